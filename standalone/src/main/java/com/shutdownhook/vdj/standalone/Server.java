@@ -11,6 +11,7 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.nio.charset.StandardCharsets;
 import java.time.LocalDate;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
@@ -26,10 +27,13 @@ import com.shutdownhook.vdj.vdjlib.AzureTokenFactory;
 import com.shutdownhook.vdj.vdjlib.AzureTokenFactory.FactoryType;
 import com.shutdownhook.vdj.vdjlib.AzureTokenFactory.OnBehalfOfParams;
 import com.shutdownhook.vdj.vdjlib.AgateImport;
+import com.shutdownhook.vdj.vdjlib.ContextIndex;
 import com.shutdownhook.vdj.vdjlib.ContextRepertoireStore;
 import com.shutdownhook.vdj.vdjlib.Export;
 import com.shutdownhook.vdj.vdjlib.GeneUse;
+import com.shutdownhook.vdj.vdjlib.KeySorter;
 import com.shutdownhook.vdj.vdjlib.MrdEngine;
+import com.shutdownhook.vdj.vdjlib.QGramIndex;
 import com.shutdownhook.vdj.vdjlib.RearrangementKey;
 import com.shutdownhook.vdj.vdjlib.RearrangementKey.KeyType;
 import com.shutdownhook.vdj.vdjlib.RepertoireResult;
@@ -86,6 +90,7 @@ public class Server implements Closeable
 		public Overlap.Config Overlap = new Overlap.Config();
 		public OverlapMode DefaultOverlapMode = OverlapMode.Standard;
 		public KeyType DefaultOverlapType = KeyType.CDR3;
+		public Boolean PrewarmKeySorts = true;
 
 		// TopX
 		public TopXRearrangements.Config TopX = new TopXRearrangements.Config();
@@ -104,6 +109,9 @@ public class Server implements Closeable
 		public Tracking.Config Tracking = new Tracking.Config();
 		public MrdEngine.Config Mrd = new MrdEngine.Config();
 
+		// Gene Use
+		public GeneUse.Config GeneUse = new GeneUse.Config();
+
 		public String ApiBase = "/api";
 		public String ContextScope = "contexts";
 		public String SearchScope = "search";
@@ -186,6 +194,8 @@ public class Server implements Closeable
 	// DELETE /api/contexts/CTX/REPS => delete repertoire(s) REPS in context CTX
 
 	// GET    /api/search/CTX/REPS   => search REPS in CTX for (QS motif/type/muts/full)
+	// POST   /api/search/CTX/REPS   => search REPS in CTX for a list of motifs in one pass
+	//                                  (JSON post body; see SearchParams)
 
 	// GET    /api/overlap/CTX/REPS  => find overlaps in REPS in CTX (QS type/mode)
 
@@ -262,6 +272,14 @@ public class Server implements Closeable
 						searchRepertoires(info);
 						handled = true;
 					}
+					else if (request.Method.equals("POST") &&
+							 info.ContextName != null &&
+							 info.RepertoireNames != null) {
+
+						// search for a panel of motifs
+						searchRepertoiresMulti(info);
+						handled = true;
+					}
 					
 				}
 				else if (info.Scope.equals(cfg.OverlapScope)) {
@@ -395,8 +413,6 @@ public class Server implements Closeable
 		
 		// fetch
 
-		InputStream stm = null;
-		InputStreamReader rdr = null;
 		TsvReader tsv = null;
 
 		try {
@@ -406,17 +422,13 @@ public class Server implements Closeable
 				return;
 			}
 			
-			stm = store.getRepertoireStream(info.getSpec(info.RepertoireName));
-			rdr = new InputStreamReader(stm);
-			tsv = new TsvReader(rdr, start);
+			tsv = TsvReader.open(store, info.getSpec(info.RepertoireName), start, TsvReader.ALL_FIELDS);
 
 			List<Rearrangement> rearrangements = tsv.readNextBatchAsync(count).get();
 			info.Response.setJson(Rearrangement.toJsonArray(repertoire, rearrangements));
 		}
 		finally {
 			if (tsv != null) tsv.close();
-			if (rdr != null) rdr.close();
-			if (stm != null) stm.close();
 		}
 
 	}
@@ -476,6 +488,8 @@ public class Server implements Closeable
 				case OK:
 					Repertoire r = findRepertoire(spec);
 					info.Response.setJson(r.toJson());
+					prewarmKeySorts(spec);
+					buildSearchIndexes(spec);
 					break;
 
 				case Exists:
@@ -493,6 +507,31 @@ public class Server implements Closeable
 		}
 	}
 
+	// kick off (and don't wait for) cached key sorts for every key type
+	// overlap and mrd might ask for, all from one pass over the new file
+	
+	private void prewarmKeySorts(RepertoireSpec spec) {
+
+		if (!cfg.PrewarmKeySorts) return;
+
+		List<RearrangementKey.Extractor> extractors = new ArrayList<RearrangementKey.Extractor>();
+		for (KeyType keyType : KeyType.values()) extractors.add(RearrangementKey.getExtractor(keyType));
+		extractors.add(mrd.getExtractor());
+
+		ContextRepertoireStore crs = new ContextRepertoireStore(store, spec.UserId, spec.Context);
+		KeySorter.prewarmAsync(crs, spec.Name, extractors, cfg.Overlap.KeySorter);
+	}
+
+	// kick off (and don't wait for) the search indexes for the new
+	// repertoire and its context; searches only load what's there
+
+	private void buildSearchIndexes(RepertoireSpec spec) {
+
+		ContextRepertoireStore crs = new ContextRepertoireStore(store, spec.UserId, spec.Context);
+		QGramIndex.buildAsync(cfg.Searcher.QGram, crs, spec.Name, KeyType.values());
+		ContextIndex.updateAsync(cfg.Searcher.ContextIndex, crs, KeyType.values());
+	}
+
 	// +-------------------+
 	// | deleteRepertoires |
 	// +-------------------+
@@ -506,6 +545,7 @@ public class Server implements Closeable
 	private void deleteRepertoires(ApiInfo info) throws Exception {
 
 		DeleteResponse[] responses = new DeleteResponse[info.RepertoireNames.length];
+		boolean anyDeleted = false;
 
 		for (int i = 0; i < info.RepertoireNames.length; ++i) {
 			
@@ -514,6 +554,13 @@ public class Server implements Closeable
 
 			boolean ok = store.deleteRepertoire(info.getSpec(info.RepertoireNames[i]));
 			responses[i].Result = (ok ? "Deleted OK" : "Error");
+			if (ok) anyDeleted = true;
+		}
+
+		// drop them from the context index in the background
+		if (anyDeleted) {
+			ContextRepertoireStore crs = new ContextRepertoireStore(store, info.UserId, info.ContextName);
+			ContextIndex.updateAsync(cfg.Searcher.ContextIndex, crs, KeyType.values());
 		}
 		
 		info.Response.setJson(Utility.getGson().toJson(responses));
@@ -537,16 +584,63 @@ public class Server implements Closeable
 		if (Easy.nullOrEmpty(motif)) throw new IllegalArgumentException("motif required");
 		motif = motif.toUpperCase();
 
+		Searcher.Params params = getSearchParams(info, typeStr, muts, full);
+		params.Motif = motif;
+
+		RepertoireResult[] results = searcher.searchAsync(params).get();
+		info.Response.setJson(RepertoireResult.resultsToJson(results));
+	}
+
+	// Same as the GET but for a list of motifs, all matched in one pass
+	// over each repertoire. Rows come back tagged with the indices (into
+	// Motifs) of the ones they matched, in RepertoireResult.MotifHits.
+
+	public static class SearchParams
+	{
+		public String[] Motifs;
+		public String Type;
+		public Integer Muts;
+		public Boolean Full;
+	}
+
+	private void searchRepertoiresMulti(ApiInfo info) throws Exception {
+
+		String body = new String(info.Request.BodyStream.readAllBytes(), StandardCharsets.UTF_8);
+		SearchParams searchParams = Utility.getGson().fromJson(body, SearchParams.class);
+
+		if (searchParams == null || searchParams.Motifs == null || searchParams.Motifs.length == 0) {
+			throw new IllegalArgumentException("motifs required");
+		}
+
+		String[] motifs = new String[searchParams.Motifs.length];
+		for (int i = 0; i < motifs.length; ++i) {
+			String motif = searchParams.Motifs[i];
+			if (Easy.nullOrEmpty(motif)) throw new IllegalArgumentException("empty motif");
+			motifs[i] = motif.toUpperCase();
+		}
+
+		int muts = (searchParams.Muts == null ? cfg.DefaultSearchMuts : searchParams.Muts);
+		Boolean full = (searchParams.Full == null ? cfg.DefaultSearchFullMatch : searchParams.Full);
+
+		Searcher.Params params = getSearchParams(info, searchParams.Type, muts, full);
+		params.Motifs = motifs;
+
+		RepertoireResult[] results = searcher.searchAsync(params).get();
+		info.Response.setJson(RepertoireResult.resultsToJson(results));
+	}
+
+	private Searcher.Params getSearchParams(ApiInfo info, String typeStr,
+											int muts, Boolean full) throws Exception {
+
 		Searcher.Params params = new Searcher.Params();
 		params.CRS = new ContextRepertoireStore(store, info.UserId, info.ContextName);
 		params.Repertoires = info.RepertoireNames;
-		params.Motif = motif;
 
-		if (typeStr.equalsIgnoreCase("mrd")) {
+		if ("mrd".equalsIgnoreCase(typeStr)) {
 			params.Extractor = mrd.getExtractor();
 			params.Matcher = mrd.getMatcher();
 		}
-		else if (typeStr.equalsIgnoreCase("genes")) {
+		else if ("genes".equalsIgnoreCase(typeStr)) {
 			params.Extractor = GeneUse.getExtractor();
 			params.Matcher = GeneUse.getMatcher();
 		}
@@ -556,8 +650,7 @@ public class Server implements Closeable
 			params.Matcher = RearrangementKey.getMatcher(keyType, muts, full);
 		}
 
-		RepertoireResult[] results = searcher.searchAsync(params).get();
-		info.Response.setJson(RepertoireResult.resultsToJson(results));
+		return(params);
 	}
 
 	// +--------------------+
@@ -808,7 +901,7 @@ public class Server implements Closeable
 		params.CRS = new ContextRepertoireStore(store, info.UserId, info.ContextName);
 		params.Repertoire = info.RepertoireName;
 
-		GeneUse geneUse = new GeneUse();
+		GeneUse geneUse = new GeneUse(cfg.GeneUse);
 		GeneUse.VJPair[] result = geneUse.getAsync(params).get();
 
 		info.Response.setJson(Utility.getGson().toJson(result));
@@ -0,0 +1,217 @@
+//
+// AHOCORASICK.JAVA
+//
+
+// Finds which of a set of patterns occur anywhere in a text, in one pass
+// over the text however many patterns there are. The patterns are built
+// into a trie whose failure links are then folded into a full transition
+// table (a DFA), so each text character is a single array lookup. Each
+// state carries the patterns that end there, its own plus those reached
+// through failure links.
+//
+// Characters are mapped onto a dense alphabet of just the ones that
+// appear in the patterns (anything else is id 0, which always leads back
+// to the root), keeping the table at states x (distinct chars + 1).
+//
+// Built once and never modified, so one AhoCorasick can be shared by any
+// number of threads.
+
+package com.shutdownhook.vdj.vdjlib;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class AhoCorasick
+{
+	// +-------+
+	// | Setup |
+	// +-------+
+
+	// empty or null patterns never match
+
+	public AhoCorasick(String[] patterns) {
+
+		this.patternCount = patterns.length;
+		buildAlphabet(patterns);
+
+		// 1. trie
+
+		List<int[]> trie = new ArrayList<int[]>();
+		List<List<Integer>> ends = new ArrayList<List<Integer>>();
+		trie.add(new int[alphabetSize]);
+		ends.add(null);
+
+		for (int ipat = 0; ipat < patterns.length; ++ipat) {
+
+			String pattern = patterns[ipat];
+			if (pattern == null || pattern.isEmpty()) continue;
+
+			int state = 0;
+			for (int i = 0; i < pattern.length(); ++i) {
+				int id = charId(pattern.charAt(i));
+				int next = trie.get(state)[id];
+				if (next == 0) {
+					next = trie.size();
+					trie.add(new int[alphabetSize]);
+					ends.add(null);
+					trie.get(state)[id] = next;
+				}
+				state = next;
+			}
+
+			if (ends.get(state) == null) ends.set(state, new ArrayList<Integer>());
+			ends.get(state).add(ipat);
+		}
+
+		// 2. failure links, breadth first, folding each into the table
+		//    and the output sets as we go
+
+		int states = trie.size();
+		this.table = new int[states * alphabetSize];
+		this.outputs = new int[states][];
+
+		int[] fail = new int[states];
+		int[] queue = new int[states];
+		int qHead = 0;
+		int qTail = 0;
+
+		for (int id = 0; id < alphabetSize; ++id) {
+			int next = trie.get(0)[id];
+			table[id] = next;
+			if (next != 0) queue[qTail++] = next;
+		}
+
+		outputs[0] = toArray(ends.get(0), null);
+
+		while (qHead < qTail) {
+
+			int state = queue[qHead++];
+			int[] row = trie.get(state);
+			outputs[state] = toArray(ends.get(state), outputs[fail[state]]);
+
+			for (int id = 0; id < alphabetSize; ++id) {
+
+				int next = row[id];
+				int ibFail = fail[state] * alphabetSize + id;
+
+				if (next == 0) {
+					table[state * alphabetSize + id] = table[ibFail];
+				}
+				else {
+					table[state * alphabetSize + id] = next;
+					fail[next] = table[ibFail];
+					queue[qTail++] = next;
+				}
+			}
+		}
+	}
+
+	public int getPatternCount() { return(patternCount); }
+
+	// +------+
+	// | find |
+	// +------+
+
+	// indices of the patterns found in text, ascending; null if none
+
+	public int[] find(String text) {
+
+		if (text == null) return(null);
+
+		int[] hits = null;
+		int hitCount = 0;
+		int state = 0;
+		int cch = text.length();
+
+		for (int i = 0; i < cch; ++i) {
+
+			state = table[state * alphabetSize + charId(text.charAt(i))];
+
+			int[] out = outputs[state];
+			if (out == null) continue;
+
+			if (hits == null) hits = new int[Math.max(4, out.length)];
+			if (hitCount + out.length > hits.length) {
+				hits = Arrays.copyOf(hits, Math.max(hits.length * 2, hitCount + out.length));
+			}
+
+			System.arraycopy(out, 0, hits, hitCount, out.length);
+			hitCount += out.length;
+		}
+
+		if (hits == null) return(null);
+
+		// patterns can be hit more than once
+		Arrays.sort(hits, 0, hitCount);
+
+		int unique = 0;
+		for (int i = 0; i < hitCount; ++i) {
+			if (i == 0 || hits[i] != hits[i - 1]) hits[unique++] = hits[i];
+		}
+
+		return(Arrays.copyOf(hits, unique));
+	}
+
+	// +---------+
+	// | Helpers |
+	// +---------+
+
+	private void buildAlphabet(String[] patterns) {
+
+		this.asciiIds = new int[128];
+		this.otherIds = new HashMap<Character,Integer>();
+
+		int nextId = 1;
+
+		for (String pattern : patterns) {
+			if (pattern == null) continue;
+			for (int i = 0; i < pattern.length(); ++i) {
+				char ch = pattern.charAt(i);
+				if (ch < 128) {
+					if (asciiIds[ch] == 0) asciiIds[ch] = nextId++;
+				}
+				else if (!otherIds.containsKey(ch)) {
+					otherIds.put(ch, nextId++);
+				}
+			}
+		}
+
+		this.alphabetSize = nextId;
+	}
+
+	private int charId(char ch) {
+		if (ch < 128) return(asciiIds[ch]);
+		Integer id = otherIds.get(ch);
+		return(id == null ? 0 : id);
+	}
+
+	private static int[] toArray(List<Integer> own, int[] inherited) {
+
+		int cOwn = (own == null ? 0 : own.size());
+		int cInherited = (inherited == null ? 0 : inherited.length);
+		if (cOwn + cInherited == 0) return(null);
+
+		int[] out = new int[cOwn + cInherited];
+		for (int i = 0; i < cOwn; ++i) out[i] = own.get(i);
+		if (cInherited > 0) System.arraycopy(inherited, 0, out, cOwn, cInherited);
+
+		return(out);
+	}
+
+	// +---------+
+	// | Members |
+	// +---------+
+
+	private int patternCount;
+
+	private int[] asciiIds;
+	private Map<Character,Integer> otherIds;
+	private int alphabetSize;
+
+	// next state = table[state * alphabetSize + charId]
+	private int[] table;
+	private int[][] outputs;
+}
@@ -0,0 +1,268 @@
+//
+// BITAP.JAVA
+//
+
+// Bit-parallel (Shift-And / Bitap) search for a pattern with up to K
+// substitutions. State d holds one bit per pattern position: bit j is set
+// when pattern[0..j] matches the text ending at the current character
+// with at most d mismatches. Each text character updates all K+1 states
+// with a few shifts and ands, so a scan is O(|text| x (K+1)) word ops
+// instead of O(|text| x |pattern|) char compares. Patterns up to 64
+// characters fit a single long; longer ones carry across an array of them.
+//
+// Masks are built once per pattern and never change, so one Bitap can be
+// shared by any number of threads.
+
+package com.shutdownhook.vdj.vdjlib;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class Bitap
+{
+	// +-------+
+	// | Setup |
+	// +-------+
+
+	// wild is a character (e.g. 'N') that matches anything on either side,
+	// or 0 for none
+
+	public Bitap(String pattern, int maxMismatches, char wild) {
+
+		this.pattern = pattern;
+		this.cch = pattern.length();
+		this.words = Math.max(1, (cch + 63) >>> 6);
+		this.maxMismatches = Math.max(0, maxMismatches);
+		this.wild = wild;
+
+		// pattern wild positions match every character, so they're the
+		// starting point for every mask (and all there is for characters
+		// not in the pattern)
+		this.wildMask = new long[words];
+		for (int i = 0; i < cch; ++i) {
+			if (wild != 0 && pattern.charAt(i) == wild) setBit(wildMask, 0, i);
+		}
+
+		this.asciiMasks = new long[128 * words];
+		for (int ch = 0; ch < 128; ++ch) System.arraycopy(wildMask, 0, asciiMasks, ch * words, words);
+		this.otherMasks = new HashMap<Character,long[]>();
+
+		for (int i = 0; i < cch; ++i) {
+			char ch = pattern.charAt(i);
+			if (ch < 128) {
+				setBit(asciiMasks, ch * words, i);
+			}
+			else {
+				long[] m = otherMasks.get(ch);
+				if (m == null) { m = wildMask.clone(); otherMasks.put(ch, m); }
+				setBit(m, 0, i);
+			}
+		}
+
+		// text wild characters match every pattern position
+		if (wild != 0 && wild < 128) {
+			for (int i = 0; i < cch; ++i) setBit(asciiMasks, wild * words, i);
+		}
+	}
+
+	public String getPattern() { return(pattern); }
+
+	// +------+
+	// | find |
+	// +------+
+
+	// true if some cch-long window of text is within maxMismatches
+
+	public boolean find(String text) {
+
+		if (cch == 0 || text == null || text.length() < cch) return(false);
+
+		// every window qualifies
+		if (maxMismatches >= cch) return(true);
+
+		// The automaton costs words x (K+1) per text character; trying each
+		// window directly costs up to cch compares per window. When the
+		// pattern is nearly as long as the text there are so few windows
+		// that the latter wins.
+		long cchText = text.length();
+		long windows = cchText - cch + 1;
+
+		if (windows * cch < cchText * words * (maxMismatches + 1)) {
+			for (int ich = 0; ich < (int) windows; ++ich) {
+				if (windowMatches(text, ich)) return(true);
+			}
+			return(false);
+		}
+
+		return(words == 1 ? findSingle(text) : findMulti(text));
+	}
+
+	private boolean findSingle(String text) {
+
+		int k = maxMismatches;
+		if (k == 1) return(findSingleOne(text));
+		
+		long[] state = new long[k + 1];
+		long hit = 1L << (cch - 1);
+		int cchText = text.length();
+
+		for (int ich = 0; ich < cchText; ++ich) {
+
+			char ch = text.charAt(ich);
+			long mask = (ch < 128 ? asciiMasks[ch] : otherMask(ch)[0]);
+
+			// state d-1 from the previous character feeds state d
+			long prev = state[0];
+			state[0] = ((prev << 1) | 1L) & mask;
+
+			for (int d = 1; d <= k; ++d) {
+				long old = state[d];
+				state[d] = (((old << 1) | 1L) & mask) | ((prev << 1) | 1L);
+				prev = old;
+			}
+
+			if ((state[k] & hit) != 0) return(true);
+		}
+
+		return(false);
+	}
+
+	// the common one-mutation search with the states in registers
+
+	private boolean findSingleOne(String text) {
+
+		long s0 = 0L;
+		long s1 = 0L;
+		long hit = 1L << (cch - 1);
+		int cchText = text.length();
+
+		for (int ich = 0; ich < cchText; ++ich) {
+
+			char ch = text.charAt(ich);
+			long mask = (ch < 128 ? asciiMasks[ch] : otherMask(ch)[0]);
+
+			s1 = (((s1 << 1) | 1L) & mask) | ((s0 << 1) | 1L);
+			s0 = ((s0 << 1) | 1L) & mask;
+
+			if ((s1 & hit) != 0) return(true);
+		}
+
+		return(false);
+	}
+
+	// same thing with each state spread over words (low word first) and
+	// the shifts carrying from one word into the next
+
+	private boolean findMulti(String text) {
+
+		int k = maxMismatches;
+		long[] state = new long[(k + 1) * words];
+		long[] prev = new long[words];
+
+		int ibHit = (k * words) + words - 1;
+		long hit = 1L << ((cch - 1) & 63);
+		int cchText = text.length();
+
+		for (int ich = 0; ich < cchText; ++ich) {
+
+			char ch = text.charAt(ich);
+			long[] masks = asciiMasks;
+			int ibMask = ch * words;
+			
+			if (ch >= 128) {
+				masks = otherMask(ch);
+				ibMask = 0;
+			}
+
+			// state 0 only matches
+			long carry = 1L;
+			for (int w = 0; w < words; ++w) {
+				long old = state[w];
+				prev[w] = old;
+				state[w] = ((old << 1) | carry) & masks[ibMask + w];
+				carry = old >>> 63;
+			}
+
+			// the rest also take a mismatch from the state below
+			for (int d = 1; d <= k; ++d) {
+
+				int ib = d * words;
+				carry = 1L;
+				long carryPrev = 1L;
+
+				for (int w = 0; w < words; ++w) {
+					long old = state[ib + w];
+					long p = prev[w];
+					prev[w] = old;
+
+					state[ib + w] = (((old << 1) | carry) & masks[ibMask + w]) | ((p << 1) | carryPrev);
+
+					carry = old >>> 63;
+					carryPrev = p >>> 63;
+				}
+			}
+
+			if ((state[ibHit] & hit) != 0) return(true);
+		}
+
+		return(false);
+	}
+
+	// +--------------+
+	// | matchesWhole |
+	// +--------------+
+
+	// same length and within maxMismatches; only one window, so a
+	// straight count with early exit beats running the automaton
+
+	public boolean matchesWhole(String text) {
+		if (text == null || text.length() != cch || cch == 0) return(false);
+		return(windowMatches(text, 0));
+	}
+
+	private boolean windowMatches(String text, int ichStart) {
+
+		int mismatches = 0;
+
+		for (int i = 0; i < cch; ++i) {
+			char chText = text.charAt(ichStart + i);
+			char chPattern = pattern.charAt(i);
+
+			if (chText != chPattern &&
+				(wild == 0 || (chText != wild && chPattern != wild))) {
+
+				if (++mismatches > maxMismatches) return(false);
+			}
+		}
+
+		return(true);
+	}
+
+	// +---------+
+	// | Helpers |
+	// +---------+
+
+	private long[] otherMask(char ch) {
+		long[] m = otherMasks.get(ch);
+		return(m == null ? wildMask : m);
+	}
+
+	private static void setBit(long[] bits, int ib, int i) {
+		bits[ib + (i >>> 6)] |= (1L << (i & 63));
+	}
+
+	// +---------+
+	// | Members |
+	// +---------+
+
+	private String pattern;
+	private int cch;
+	private int words;
+	private int maxMismatches;
+	private char wild;
+
+	// words per character, indexed by ch * words
+	private long[] asciiMasks;
+	private Map<Character,long[]> otherMasks;
+	private long[] wildMask;
+}
@@ -0,0 +1,123 @@
+//
+// BYTEKERNEL.JAVA
+//
+
+// Comparison kernels over byte-encoded (ASCII) sequences, eight byte lanes
+// at a time: each step reads a little-endian long from both arrays and
+// XORs them, so equal lanes come out zero and the first differing lane
+// is a trailing (or, walking left, leading) zero count.
+// Ragged ends fall back to a byte at a time.
+//
+// Sequences with non-ASCII characters don't encode (encode returns null)
+// and callers keep their char-based paths for those.
+
+package com.shutdownhook.vdj.vdjlib;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+public class ByteKernel
+{
+	// +--------+
+	// | encode |
+	// +--------+
+
+	// one byte per char, or null if s isn't all ASCII
+
+	public static byte[] encode(String s) {
+		if (s == null) return(null);
+		byte[] rgb = s.getBytes(StandardCharsets.UTF_8);
+		return(rgb.length == s.length() ? rgb : null);
+	}
+
+	// +---------------+
+	// | matchingRight |
+	// +---------------+
+
+	// number of equal bytes walking right from ia/ib, up to max; with
+	// foldCase ASCII letters compare case-insensitively
+
+	public static int matchingRight(byte[] a, int ia, byte[] b, int ib, int max, boolean foldCase) {
+
+		int i = 0;
+
+		for ( ; i + 8 <= max; i += 8) {
+
+			long x = getLong(a, ia + i) ^ getLong(b, ib + i);
+
+			while (x != 0) {
+				int lane = Long.numberOfTrailingZeros(x) >>> 3;
+				if (!foldCase || !equalsFolded(a[ia + i + lane], b[ib + i + lane])) return(i + lane);
+				x &= ~(0xFFL << (lane << 3));
+			}
+		}
+
+		for ( ; i < max; ++i) {
+			byte b1 = a[ia + i];
+			byte b2 = b[ib + i];
+			if (b1 != b2 && (!foldCase || !equalsFolded(b1, b2))) return(i);
+		}
+
+		return(max);
+	}
+
+	// +--------------+
+	// | matchingLeft |
+	// +--------------+
+
+	// number of equal bytes walking left from (not including) iaMac and
+	// ibMac, up to max
+
+	public static int matchingLeft(byte[] a, int iaMac, byte[] b, int ibMac, int max, boolean foldCase) {
+
+		int i = 0;
+
+		for ( ; i + 8 <= max; i += 8) {
+
+			// the eight bytes just left of what we've matched so far
+			long x = getLong(a, iaMac - i - 8) ^ getLong(b, ibMac - i - 8);
+
+			while (x != 0) {
+				int lane = 7 - (Long.numberOfLeadingZeros(x) >>> 3);
+				int back = 7 - lane;
+				if (!foldCase || !equalsFolded(a[iaMac - i - 1 - back], b[ibMac - i - 1 - back])) {
+					return(i + back);
+				}
+				x &= ~(0xFFL << (lane << 3));
+			}
+		}
+
+		for ( ; i < max; ++i) {
+			byte b1 = a[iaMac - i - 1];
+			byte b2 = b[ibMac - i - 1];
+			if (b1 != b2 && (!foldCase || !equalsFolded(b1, b2))) return(i);
+		}
+
+		return(max);
+	}
+
+	// +---------+
+	// | Helpers |
+	// +---------+
+
+	private static long getLong(byte[] rgb, int ib) {
+		return((long) LONGS.get(rgb, ib));
+	}
+
+	private static boolean equalsFolded(byte b1, byte b2) {
+		return(lower(b1) == lower(b2));
+	}
+
+	private static int lower(byte b) {
+		return(b >= 'A' && b <= 'Z' ? b | 0x20 : b);
+	}
+
+	// +---------+
+	// | Members |
+	// +---------+
+
+	private final static VarHandle LONGS =
+		MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+}
@@ -0,0 +1,926 @@
+//
+// COLUMNARREPERTOIRE.JAVA
+//
+
+// Binary, column-at-a-time copy of a repertoire's rearrangements, built by
+// TsvReceiver at upload and kept as a secondary file. Scans that only need
+// a few fields read just those columns instead of re-tokenizing the TSV;
+// the TSV itself stays the source of truth (exports, paging, etc.).
+//
+// Layout: a header (row/block counts, the file's gene dictionary and the
+// start of every block in every column) followed by one column per
+// TsvReader.Field. Rows are grouped into blocks of BlockRows; each block
+// of each column decodes independently (delta state resets at block
+// starts), which lets us split scans across threads and seek for
+// materialize without reading whole columns.
+//
+// Encodings:
+//   Rearrangement   2 bits/base (A,C,G,T) + list of escaped positions
+//                   for anything else (N, lowercase, ...)
+//   AminoAcid       5 bits/residue, code 31 escapes a raw 16-bit char
+//   V/D/JResolved   varint index into the file's gene dictionary
+//   Count           zigzag varint delta from the previous row
+//   int fields      zigzag varint
+//   VSHMIndices     varint length + zigzag varint deltas
+//   FrameType/Locus one byte (ordinal + 1, 0 = null)
+//   Probability     raw 8-byte double
+//   Dx              one byte
+
+package com.shutdownhook.vdj.vdjlib;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import com.shutdownhook.vdj.vdjlib.TsvReader.Field;
+import com.shutdownhook.vdj.vdjlib.model.FrameType;
+import com.shutdownhook.vdj.vdjlib.model.Locus;
+import com.shutdownhook.vdj.vdjlib.model.Rearrangement;
+
+public class ColumnarRepertoire
+{
+	public final static String SECONDARY_KEY = "columnar";
+	public final static int DEFAULT_BLOCK_ROWS = 4096;
+
+	// +------+
+	// | open |
+	// +------+
+
+	// Columnar reader over the whole repertoire if it has a sidecar,
+	// otherwise a TsvReader.
+
+	public static RowReader open(ContextRepertoireStore crs, String rep,
+								 EnumSet<Field> fields) throws IOException {
+
+		List<RowReader> readers = split(crs, rep, fields, 1);
+		if (readers != null) return(readers.get(0));
+
+		return(TsvReader.open(crs, rep, 0, fields));
+	}
+
+	// +--------------+
+	// | openSeekable |
+	// +--------------+
+
+	// Reader over the whole repertoire that can also jump straight to a
+	// row (see Reader.seekToRow); null if there's no (readable) sidecar.
+
+	public static Reader openSeekable(ContextRepertoireStore crs, String rep,
+									  EnumSet<Field> fields) {
+
+		Source source = () -> crs.getSecondaryStream(rep, SECONDARY_KEY);
+
+		Header hdr = Header.load(source, rep);
+		if (hdr == null) return(null);
+
+		return(new Reader(source, hdr, 0, hdr.RowCount, fields));
+	}
+
+	// +-------+
+	// | split |
+	// +-------+
+
+	// Up to maxChunks readers over contiguous runs of whole blocks, in row
+	// order; null if the repertoire doesn't have a (readable) sidecar.
+
+	public static List<RowReader> split(ContextRepertoireStore crs, String rep,
+										EnumSet<Field> fields, int maxChunks) {
+
+		Source source = () -> crs.getSecondaryStream(rep, SECONDARY_KEY);
+
+		Header hdr = Header.load(source, rep);
+		if (hdr == null) return(null);
+
+		int count = Math.max(1, Math.min(maxChunks, hdr.BlockCount));
+		List<RowReader> readers = new ArrayList<RowReader>();
+
+		for (int i = 0; i < count; ++i) {
+
+			int blockStart = (int) (((long) hdr.BlockCount) * i / count);
+			int blockEnd = (int) (((long) hdr.BlockCount) * (i + 1) / count);
+
+			int rowStart = blockStart * hdr.BlockRows;
+			int rowEnd = Math.min(hdr.RowCount, blockEnd * hdr.BlockRows);
+
+			readers.add(new Reader(source, hdr, rowStart, rowEnd, fields));
+		}
+
+		return(readers);
+	}
+
+	// +--------+
+	// | Writer |
+	// +--------+
+
+	// Call add for each row in order, then save. Columns are spooled to
+	// temp files as we go (repertoires can be big), so always close.
+
+	public static class Writer implements Closeable
+	{
+		public Writer() {
+			this(DEFAULT_BLOCK_ROWS, null);
+		}
+
+		public Writer(int blockRows, String tempPath) {
+			this.blockRows = blockRows;
+			this.tempPath = tempPath;
+			this.rowCount = 0;
+			this.genes = new ArrayList<String>();
+			this.geneIndices = new HashMap<String,Integer>();
+		}
+
+		public void close() {
+			if (columns == null) return;
+			for (Column col : columns) col.close();
+			columns = null;
+		}
+
+		public void add(Rearrangement r) throws IOException {
+
+			if (columns == null) openColumns();
+
+			if (rowCount % blockRows == 0) {
+				for (Column col : columns) col.startBlock();
+			}
+
+			for (Column col : columns) col.encode(r);
+			++rowCount;
+		}
+
+		public void save(OutputStream stm) throws IOException {
+
+			if (columns == null) openColumns();
+
+			ColumnOutput out = new ColumnOutput(stm);
+
+			for (Column col : columns) col.finish();
+
+			int blockCount = (rowCount + blockRows - 1) / blockRows;
+
+			// header
+
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(blockRows);
+			out.writeInt(rowCount);
+			out.writeInt(blockCount);
+			out.writeInt(columns.length);
+
+			out.writeVarLong(genes.size());
+			for (String gene : genes) out.writeString(gene);
+
+			long ibColumn = 0;
+
+			for (Column col : columns) {
+				out.writeByte(col.field.ordinal());
+				for (int i = 0; i < blockCount; ++i) out.writeLong(ibColumn + col.blockStarts[i]);
+				ibColumn += col.out.getPosition();
+				out.writeLong(ibColumn);
+			}
+
+			// columns
+
+			for (Column col : columns) {
+				InputStream in = new FileInputStream(col.file);
+				try { in.transferTo(out); }
+				finally { Utility.safeClose(in); }
+			}
+
+			out.flush();
+		}
+
+		private void openColumns() throws IOException {
+			Field[] fields = Field.values();
+			columns = new Column[fields.length];
+			for (int i = 0; i < fields.length; ++i) columns[i] = new Column(fields[i]);
+		}
+
+		private int geneIndex(String gene) {
+			if (gene == null) return(0);
+			Integer index = geneIndices.get(gene);
+			if (index == null) {
+				genes.add(gene);
+				index = genes.size(); // 1-based; 0 == null
+				geneIndices.put(gene, index);
+			}
+			return(index);
+		}
+
+		// one spooled column
+
+		private class Column
+		{
+			public Column(Field field) throws IOException {
+				this.field = field;
+				this.file = Utility.getTempFile(tempPath);
+				this.out = new ColumnOutput(new FileOutputStream(file));
+				this.blockStarts = new long[16];
+				this.blockCount = 0;
+			}
+
+			public void startBlock() {
+				if (blockCount == blockStarts.length) blockStarts = Arrays.copyOf(blockStarts, blockCount * 2);
+				blockStarts[blockCount++] = out.getPosition();
+				prevCount = 0;
+			}
+
+			public void encode(Rearrangement r) throws IOException {
+
+				switch (field) {
+					case Rearrangement: writeSequence(out, r.Rearrangement); break;
+					case AminoAcid: writeText5(out, r.AminoAcid); break;
+					case FrameType: out.writeByte(r.FrameType == null ? 0 : r.FrameType.ordinal() + 1); break;
+					case Locus: out.writeByte(r.Locus == null ? 0 : r.Locus.ordinal() + 1); break;
+					case Count: out.writeZigZag(r.Count - prevCount); prevCount = r.Count; break;
+					case VResolved: out.writeVarLong(geneIndex(r.VResolved)); break;
+					case DResolved: out.writeVarLong(geneIndex(r.DResolved)); break;
+					case JResolved: out.writeVarLong(geneIndex(r.JResolved)); break;
+					case Cdr3Length: out.writeZigZag(r.Cdr3Length); break;
+					case VIndex: out.writeZigZag(r.VIndex); break;
+					case DIndex: out.writeZigZag(r.DIndex); break;
+					case JIndex: out.writeZigZag(r.JIndex); break;
+					case N1Index: out.writeZigZag(r.N1Index); break;
+					case N2Index: out.writeZigZag(r.N2Index); break;
+					case Probability: out.writeLong(Double.doubleToRawLongBits(r.Probability)); break;
+					case VSHMIndices: writeIndices(out, r.VSHMIndices); break;
+					case Dx: out.writeByte(r.Dx ? 1 : 0); break;
+				}
+			}
+
+			public void finish() throws IOException {
+				out.close();
+			}
+
+			public void close() {
+				Utility.safeClose(out);
+				file.delete();
+			}
+
+			public Field field;
+			public File file;
+			public ColumnOutput out;
+			public long[] blockStarts;
+			public int blockCount;
+			private long prevCount;
+		}
+
+		private int blockRows;
+		private String tempPath;
+		private int rowCount;
+		private Column[] columns;
+		private List<String> genes;
+		private Map<String,Integer> geneIndices;
+	}
+
+	// +--------+
+	// | Reader |
+	// +--------+
+
+	public static class Reader implements RowReader
+	{
+		private Reader(Source source, Header hdr, int rowStart, int rowEnd, EnumSet<Field> fields) {
+			this.source = source;
+			this.hdr = hdr;
+			this.nextRow = rowStart;
+			this.rowEnd = rowEnd;
+			this.fields = fields.toArray(new Field[fields.size()]);
+			this.missingFields = EnumSet.complementOf(fields).toArray(new Field[0]);
+			this.columns = new Column[Field.values().length];
+		}
+
+		public void close() {
+			for (Column col : columns) {
+				if (col != null) col.close();
+			}
+		}
+
+		public int getRowCount() { return(hdr.RowCount); }
+
+		// the next read returns row; columns find their own way there,
+		// so this is cheap until then
+
+		public void seekToRow(int row) {
+			this.nextRow = row;
+		}
+
+		public Rearrangement readNext() throws IOException {
+			Rearrangement r = new Rearrangement();
+			return(readNextInto(r) ? r : null);
+		}
+
+		public boolean readNextInto(Rearrangement r) throws IOException {
+
+			if (nextRow >= rowEnd) return(false);
+
+			r.reset();
+			for (Field field : fields) getColumn(field).decodeRow(nextRow, r);
+
+			++nextRow;
+			return(true);
+		}
+
+		// only valid for the row most recently returned
+
+		public void materialize(Rearrangement r) throws IOException {
+			for (Field field : missingFields) getColumn(field).decodeRow(nextRow - 1, r);
+		}
+
+		private Column getColumn(Field field) {
+			Column col = columns[field.ordinal()];
+			if (col == null) {
+				col = new Column(field);
+				columns[field.ordinal()] = col;
+			}
+			return(col);
+		}
+
+		// one column's cursor; opens its own stream on first use
+
+		private class Column
+		{
+			public Column(Field field) {
+				this.field = field;
+				this.offsets = hdr.Offsets[field.ordinal()];
+				this.in = null;
+				this.nextRow = -1;
+			}
+
+			public void close() {
+				if (in != null) Utility.safeClose(in);
+			}
+
+			public void decodeRow(int row, Rearrangement r) throws IOException {
+
+				if (row != nextRow) seekToRow(row);
+
+				if (nextRow % hdr.BlockRows == 0) prevCount = 0;
+				decode(r);
+				++nextRow;
+			}
+
+			private void seekToRow(int row) throws IOException {
+
+				int block = row / hdr.BlockRows;
+				int blockRow = block * hdr.BlockRows;
+
+				// jump unless we're already in the right block and before row
+
+				if (in == null || nextRow > row || nextRow < blockRow) {
+
+					long ib = hdr.DataStart + offsets[block];
+
+					if (in == null || in.getPosition() > ib) {
+						if (in != null) Utility.safeClose(in);
+						InputStream stm = source.open();
+						if (stm == null) throw new IOException("columnar sidecar went missing");
+						in = new ColumnInput(stm);
+					}
+
+					in.skipTo(ib);
+					nextRow = blockRow;
+				}
+
+				while (nextRow < row) {
+					if (nextRow % hdr.BlockRows == 0) prevCount = 0;
+					decode(null);
+					++nextRow;
+				}
+			}
+
+			// r == null just means skip
+
+			private void decode(Rearrangement r) throws IOException {
+
+				switch (field) {
+
+					case Rearrangement: {
+						String s = readSequence(in);
+						if (r != null) r.Rearrangement = s;
+						break;
+					}
+
+					case AminoAcid: {
+						String s = readText5(in);
+						if (r != null) r.AminoAcid = s;
+						break;
+					}
+
+					case FrameType: {
+						int b = in.readByte();
+						if (r != null) r.FrameType = (b == 0 ? null : FRAME_TYPES[b - 1]);
+						break;
+					}
+
+					case Locus: {
+						int b = in.readByte();
+						if (r != null) r.Locus = (b == 0 ? null : LOCI[b - 1]);
+						break;
+					}
+
+					case Count: {
+						prevCount += in.readZigZag();
+						if (r != null) r.Count = prevCount;
+						break;
+					}
+
+					case VResolved: {
+						int i = (int) in.readVarLong();
+						if (r != null) { r.VResolved = hdr.geneName(i); r.VGeneId = hdr.geneId(i); }
+						break;
+					}
+
+					case DResolved: {
+						int i = (int) in.readVarLong();
+						if (r != null) { r.DResolved = hdr.geneName(i); r.DGeneId = hdr.geneId(i); }
+						break;
+					}
+
+					case JResolved: {
+						int i = (int) in.readVarLong();
+						if (r != null) { r.JResolved = hdr.geneName(i); r.JGeneId = hdr.geneId(i); }
+						break;
+					}
+
+					case Cdr3Length: { int i = (int) in.readZigZag(); if (r != null) r.Cdr3Length = i; break; }
+					case VIndex: { int i = (int) in.readZigZag(); if (r != null) r.VIndex = i; break; }
+					case DIndex: { int i = (int) in.readZigZag(); if (r != null) r.DIndex = i; break; }
+					case JIndex: { int i = (int) in.readZigZag(); if (r != null) r.JIndex = i; break; }
+					case N1Index: { int i = (int) in.readZigZag(); if (r != null) r.N1Index = i; break; }
+					case N2Index: { int i = (int) in.readZigZag(); if (r != null) r.N2Index = i; break; }
+
+					case Probability: {
+						double d = Double.longBitsToDouble(in.readLong());
+						if (r != null) r.Probability = d;
+						break;
+					}
+
+					case VSHMIndices: {
+						int[] indices = readIndices(in);
+						if (r != null) r.VSHMIndices = indices;
+						break;
+					}
+
+					case Dx: {
+						int b = in.readByte();
+						if (r != null) r.Dx = (b != 0);
+						break;
+					}
+				}
+			}
+
+			private Field field;
+			private long[] offsets;
+			private ColumnInput in;
+			private int nextRow;
+			private long prevCount;
+		}
+
+		private Source source;
+		private Header hdr;
+		private int nextRow;
+		private int rowEnd;
+		private Field[] fields;
+		private Field[] missingFields;
+		private Column[] columns;
+	}
+
+	// +--------+
+	// | Header |
+	// +--------+
+
+	private interface Source {
+		public InputStream open() throws IOException;
+	}
+
+	private static class Header
+	{
+		public int BlockRows;
+		public int RowCount;
+		public int BlockCount;
+		public long DataStart;
+		public long[][] Offsets; // [field ordinal][block], BlockCount + 1 entries each
+
+		public String[] GeneNames; // 1-based, [0] is null
+		public int[] GeneIds;      // GeneDictionary ids, same indexing
+
+		public String geneName(int i) { return(GeneNames[i]); }
+		public int geneId(int i) { return(GeneIds[i]); }
+
+		// null if missing or not something we understand
+
+		public static Header load(Source source, String name) {
+
+			InputStream stm = null;
+
+			try {
+				stm = source.open();
+				if (stm == null) return(null);
+
+				ColumnInput in = new ColumnInput(stm);
+
+				if (in.readInt() != MAGIC) throw new IOException("bad magic");
+				if (in.readInt() != VERSION) return(null);
+
+				Header hdr = new Header();
+				hdr.BlockRows = in.readInt();
+				hdr.RowCount = in.readInt();
+				hdr.BlockCount = in.readInt();
+				int columnCount = in.readInt();
+
+				int geneCount = (int) in.readVarLong();
+				hdr.GeneNames = new String[geneCount + 1];
+				hdr.GeneIds = new int[geneCount + 1];
+				hdr.GeneIds[0] = GeneDictionary.NONE;
+
+				for (int i = 1; i <= geneCount; ++i) {
+					String gene = in.readString();
+					int id = GeneDictionary.lookup(gene);
+					hdr.GeneIds[i] = id;
+					hdr.GeneNames[i] = (id == GeneDictionary.NONE ? gene : GeneDictionary.getName(id));
+				}
+
+				hdr.Offsets = new long[Field.values().length][];
+
+				for (int icol = 0; icol < columnCount; ++icol) {
+					int ordinal = in.readByte();
+					long[] offsets = new long[hdr.BlockCount + 1];
+					for (int i = 0; i <= hdr.BlockCount; ++i) offsets[i] = in.readLong();
+					if (ordinal < hdr.Offsets.length) hdr.Offsets[ordinal] = offsets;
+				}
+
+				for (long[] offsets : hdr.Offsets) {
+					if (offsets == null) throw new IOException("missing column");
+				}
+
+				hdr.DataStart = in.getPosition();
+				return(hdr);
+			}
+			catch (IOException e) {
+				log.warning(Utility.exMsg(e, "columnar header " + name + " (non-fatal)", false));
+				return(null);
+			}
+			finally {
+				if (stm != null) Utility.safeClose(stm);
+			}
+		}
+	}
+
+	// +-----------+
+	// | Sequences |
+	// +-----------+
+
+	private static void writeSequence(ColumnOutput out, String s) throws IOException {
+
+		if (s == null) { out.writeVarLong(0); return; }
+
+		int cch = s.length();
+		out.writeVarLong(cch + 1);
+
+		int cesc = 0;
+		for (int i = 0; i < cch; ++i) {
+			if (baseCode(s.charAt(i)) == -1) ++cesc;
+		}
+
+		out.writeVarLong(cesc);
+
+		int ichLast = 0;
+		for (int i = 0; i < cch && cesc > 0; ++i) {
+			char ch = s.charAt(i);
+			if (baseCode(ch) == -1) {
+				out.writeVarLong(i - ichLast);
+				out.writeVarLong(ch);
+				ichLast = i;
+			}
+		}
+
+		int b = 0;
+		for (int i = 0; i < cch; ++i) {
+			int code = baseCode(s.charAt(i));
+			if (code == -1) code = 0;
+			b |= (code << ((i & 3) * 2));
+			if ((i & 3) == 3) { out.writeByte(b); b = 0; }
+		}
+
+		if ((cch & 3) != 0) out.writeByte(b);
+	}
+
+	private static String readSequence(ColumnInput in) throws IOException {
+
+		int cch = (int) in.readVarLong() - 1;
+		if (cch == -1) return(null);
+
+		int cesc = (int) in.readVarLong();
+		int[] escPositions = new int[cesc];
+		char[] escChars = new char[cesc];
+
+		int ich = 0;
+		for (int i = 0; i < cesc; ++i) {
+			ich += (int) in.readVarLong();
+			escPositions[i] = ich;
+			escChars[i] = (char) in.readVarLong();
+		}
+
+		char[] rgch = new char[cch];
+		int b = 0;
+
+		for (int i = 0; i < cch; ++i) {
+			if ((i & 3) == 0) b = in.readByte();
+			rgch[i] = BASES[(b >> ((i & 3) * 2)) & 3];
+		}
+
+		for (int i = 0; i < cesc; ++i) rgch[escPositions[i]] = escChars[i];
+
+		return(new String(rgch));
+	}
+
+	private static int baseCode(char ch) {
+		switch (ch) {
+			case 'A': return(0);
+			case 'C': return(1);
+			case 'G': return(2);
+			case 'T': return(3);
+			default: return(-1);
+		}
+	}
+
+	private final static char[] BASES = { 'A', 'C', 'G', 'T' };
+
+	// +------------+
+	// | Amino Acid |
+	// +------------+
+
+	private static void writeText5(ColumnOutput out, String s) throws IOException {
+
+		if (s == null) { out.writeVarLong(0); return; }
+
+		int cch = s.length();
+		out.writeVarLong(cch + 1);
+
+		long acc = 0;
+		int bits = 0;
+
+		for (int i = 0; i < cch; ++i) {
+
+			char ch = s.charAt(i);
+			int code = AA_ALPHABET.indexOf(ch);
+
+			if (code == -1) {
+				acc |= ((long) AA_ESCAPE) << bits; bits += 5;
+				acc |= ((long) ch) << bits; bits += 16;
+			}
+			else {
+				acc |= ((long) code) << bits; bits += 5;
+			}
+
+			while (bits >= 8) {
+				out.writeByte((int) (acc & 0xFF));
+				acc >>>= 8;
+				bits -= 8;
+			}
+		}
+
+		if (bits > 0) out.writeByte((int) (acc & 0xFF));
+	}
+
+	private static String readText5(ColumnInput in) throws IOException {
+
+		int cch = (int) in.readVarLong() - 1;
+		if (cch == -1) return(null);
+
+		char[] rgch = new char[cch];
+		long acc = 0;
+		int bits = 0;
+
+		for (int i = 0; i < cch; ++i) {
+
+			while (bits < 5) { acc |= ((long) in.readByte()) << bits; bits += 8; }
+			int code = (int) (acc & 0x1F);
+			acc >>>= 5; bits -= 5;
+
+			if (code == AA_ESCAPE) {
+				while (bits < 16) { acc |= ((long) in.readByte()) << bits; bits += 8; }
+				rgch[i] = (char) (acc & 0xFFFF);
+				acc >>>= 16; bits -= 16;
+			}
+			else {
+				rgch[i] = AA_ALPHABET.charAt(code);
+			}
+		}
+
+		return(new String(rgch));
+	}
+
+	private final static String AA_ALPHABET = "ACDEFGHIKLMNPQRSTVWY*~X_";
+	private final static int AA_ESCAPE = 31;
+
+	// +---------+
+	// | Indices |
+	// +---------+
+
+	private static void writeIndices(ColumnOutput out, int[] indices) throws IOException {
+
+		if (indices == null) { out.writeVarLong(0); return; }
+
+		out.writeVarLong(indices.length + 1);
+		int prev = 0;
+		for (int i = 0; i < indices.length; ++i) {
+			out.writeZigZag(indices[i] - prev);
+			prev = indices[i];
+		}
+	}
+
+	private static int[] readIndices(ColumnInput in) throws IOException {
+
+		int count = (int) in.readVarLong() - 1;
+		if (count == -1) return(null);
+
+		int[] indices = new int[count];
+		int prev = 0;
+		for (int i = 0; i < count; ++i) {
+			prev += (int) in.readZigZag();
+			indices[i] = prev;
+		}
+
+		return(indices);
+	}
+
+	// +--------------+
+	// | ColumnOutput |
+	// +--------------+
+
+	private static class ColumnOutput extends BufferedOutputStream
+	{
+		public ColumnOutput(OutputStream stm) {
+			super(stm, BUFFER_SIZE);
+			this.position = 0;
+		}
+
+		public long getPosition() { return(position); }
+
+		@Override
+		public void write(int b) throws IOException {
+			super.write(b);
+			++position;
+		}
+
+		@Override
+		public void write(byte[] rgb, int ib, int cb) throws IOException {
+			super.write(rgb, ib, cb);
+			position += cb;
+		}
+
+		public void writeByte(int b) throws IOException {
+			write(b & 0xFF);
+		}
+
+		public void writeInt(int i) throws IOException {
+			for (int shift = 24; shift >= 0; shift -= 8) write((i >>> shift) & 0xFF);
+		}
+
+		public void writeLong(long l) throws IOException {
+			for (int shift = 56; shift >= 0; shift -= 8) write((int) ((l >>> shift) & 0xFF));
+		}
+
+		public void writeVarLong(long l) throws IOException {
+			while ((l & ~0x7FL) != 0) {
+				write((int) ((l & 0x7F) | 0x80));
+				l >>>= 7;
+			}
+			write((int) l);
+		}
+
+		public void writeZigZag(long l) throws IOException {
+			writeVarLong((l << 1) ^ (l >> 63));
+		}
+
+		public void writeString(String s) throws IOException {
+			byte[] rgb = s.getBytes(StandardCharsets.UTF_8);
+			writeVarLong(rgb.length);
+			write(rgb, 0, rgb.length);
+		}
+
+		private long position;
+	}
+
+	// +-------------+
+	// | ColumnInput |
+	// +-------------+
+
+	private static class ColumnInput extends BufferedInputStream
+	{
+		public ColumnInput(InputStream stm) {
+			super(stm, BUFFER_SIZE);
+			this.position = 0;
+		}
+
+		public long getPosition() { return(position); }
+
+		public void skipTo(long ib) throws IOException {
+			while (position < ib) {
+				long cb = skip(ib - position);
+				if (cb <= 0) {
+					if (read() == -1) throw new EOFException();
+					continue;
+				}
+			}
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b != -1) ++position;
+			return(b);
+		}
+
+		@Override
+		public int read(byte[] rgb, int ib, int cb) throws IOException {
+			int cbRead = super.read(rgb, ib, cb);
+			if (cbRead > 0) position += cbRead;
+			return(cbRead);
+		}
+
+		@Override
+		public long skip(long cb) throws IOException {
+			long cbSkipped = super.skip(cb);
+			if (cbSkipped > 0) position += cbSkipped;
+			return(cbSkipped);
+		}
+
+		public int readByte() throws IOException {
+			int b = read();
+			if (b == -1) throw new EOFException();
+			return(b);
+		}
+
+		public int readInt() throws IOException {
+			int i = 0;
+			for (int n = 0; n < 4; ++n) i = (i << 8) | readByte();
+			return(i);
+		}
+
+		public long readLong() throws IOException {
+			long l = 0;
+			for (int n = 0; n < 8; ++n) l = (l << 8) | readByte();
+			return(l);
+		}
+
+		public long readVarLong() throws IOException {
+			long l = 0;
+			int shift = 0;
+			while (true) {
+				int b = readByte();
+				l |= ((long) (b & 0x7F)) << shift;
+				if ((b & 0x80) == 0) return(l);
+				shift += 7;
+				if (shift > 63) throw new IOException("bad varint");
+			}
+		}
+
+		public long readZigZag() throws IOException {
+			long l = readVarLong();
+			return((l >>> 1) ^ -(l & 1));
+		}
+
+		public String readString() throws IOException {
+			int cb = (int) readVarLong();
+			byte[] rgb = new byte[cb];
+			int ib = 0;
+			while (ib < cb) {
+				int cbRead = read(rgb, ib, cb - ib);
+				if (cbRead == -1) throw new EOFException();
+				ib += cbRead;
+			}
+			return(new String(rgb, StandardCharsets.UTF_8));
+		}
+
+		private long position;
+	}
+
+	// +---------+
+	// | Members |
+	// +---------+
+
+	private final static int MAGIC = 0x56444A43; // "VDJC"
+	private final static int VERSION = 1;
+	private final static int BUFFER_SIZE = 64 * 1024;
+
+	private final static FrameType[] FRAME_TYPES = FrameType.values();
+	private final static Locus[] LOCI = Locus.values();
+
+	private final static Logger log = Logger.getLogger(ColumnarRepertoire.class.getName());
+}
@@ -0,0 +1,969 @@
+//
+// CONTEXTINDEX.JAVA
+//
+
+// One sorted index over a key type for every repertoire in a context:
+// key -> (repertoire, row, count) for each row with that key. An exact
+// full-length search across the context is then a single probe here
+// instead of a scan of every repertoire.
+//
+// The index lists the repertoires it covers (name plus UploadId, so a
+// repertoire deleted and uploaded again under the same name isn't mistaken
+// for the old one). update reconciles that list with the context as it
+// is now: repertoires committed since the last update are read,
+// sorted and merged in; deleted ones are filtered out as the existing
+// entries stream through. Neither requires rescanning repertoires that
+// are already indexed.
+//
+// Rows are columnar row numbers, so only repertoires with a columnar
+// sidecar are covered; callers search the rest the usual way.
+//
+// Each save writes the whole index to a temp file and swaps it into the
+// store in one step, so a reader never sees a half-written one. Every save
+// gets a new random version, which lookup checks when it reopens the file:
+// if an update has swapped in a new index since we loaded ours, the lookup
+// fails (and the search scans) rather than reading it with stale offsets.
+// load checks the body is all there, so a damaged index reads as missing
+// and the next update rebuilds it.
+//
+// Layout (context secondary file "contextIndex-<KeyType>"):
+//   int MAGIC, long version, int repCount
+//   repCount x (UTF name, UTF UploadId, long TotalUniques, long TotalCount,
+//               int rowCount)
+//   long entryCount, long bodyBytes, int sparseCount
+//   sparseCount x (UTF key, long body offset), every SPARSE_INTERVAL entries
+//   body: entries in key order, each
+//     UTF key, varint postingCount,
+//     postingCount x (varint rep, varint row, varint count)
+
+package com.shutdownhook.vdj.vdjlib;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Logger;
+
+import com.shutdownhook.vdj.vdjlib.RearrangementKey.KeyType;
+import com.shutdownhook.vdj.vdjlib.TsvReader.Field;
+import com.shutdownhook.vdj.vdjlib.model.Rearrangement;
+import com.shutdownhook.vdj.vdjlib.model.Repertoire;
+
+public class ContextIndex
+{
+	// +--------+
+	// | Config |
+	// +--------+
+
+	public static class Config
+	{
+		public Boolean Enabled = true;
+		public Integer MinRepertoires = 2; // fewer than this and per-repertoire search is fine
+		public Integer MaxMergeRows = 4000000;
+		public String TempPath = null;
+	}
+
+	public static String getSecondaryKey(KeyType keyType) {
+		return("contextIndex-" + keyType.toString());
+	}
+
+	public static class Posting
+	{
+		public int Repertoire; // see getRepertoireName
+		public int Row;
+		public long Count;
+	}
+
+	// +-------------+
+	// | updateAsync |
+	// +-------------+
+
+	// Brings the index for each of keyTypes up to date with the context in
+	// the background. Meant to run after a repertoire is received or
+	// deleted; searches only load whatever was saved last (and search the
+	// repertoires it doesn't cover the usual way). If the same index is
+	// already being updated, that update goes around again when it's done
+	// instead of a second one starting, so a change made partway through
+	// isn't missed.
+
+	public static CompletableFuture<Boolean> updateAsync(Config cfg, ContextRepertoireStore crs,
+														 KeyType[] keyTypes) {
+
+		return(Exec.runAsync("contextIndex", new Exec.AsyncOperation<Boolean>() {
+
+			public Boolean execute() throws Exception {
+
+				if (!cfg.Enabled) return(true);
+
+				boolean ok = true;
+				for (KeyType keyType : keyTypes) {
+					if (!updateOnce(cfg, crs, keyType)) ok = false;
+				}
+
+				return(ok);
+			}
+
+			public Boolean exceptionResult() {
+				return(false);
+			}
+		}));
+	}
+
+	private static boolean updateOnce(Config cfg, ContextRepertoireStore crs, KeyType keyType) {
+
+		String updateKey = crs.getSpec("*").toString() + "/" + keyType;
+
+		synchronized (updating) {
+			if (updating.containsKey(updateKey)) {
+				updating.put(updateKey, true);
+				return(true);
+			}
+			updating.put(updateKey, false);
+		}
+
+		while (true) {
+
+			// each round reads the context's repertoire list afresh
+			boolean ok = update(cfg, crs.reopen(), keyType);
+
+			synchronized (updating) {
+				if (!updating.get(updateKey)) {
+					updating.remove(updateKey);
+					return(ok);
+				}
+				updating.put(updateKey, false);
+			}
+		}
+	}
+
+	// true while an update is running; set again by anyone who wanted one
+	private final static Map<String,Boolean> updating = new HashMap<String,Boolean>();
+
+	// +--------+
+	// | update |
+	// +--------+
+
+	// true if the saved index matches the context (whether or not we had
+	// to change it); non-fatal otherwise. New repertoires are read and
+	// merged in batches of up to MaxMergeRows rows so a context's first
+	// update doesn't have to hold every repertoire in memory at once. If
+	// the existing index can't be merged from, we start over without it.
+
+	public static boolean update(Config cfg, ContextRepertoireStore crs, KeyType keyType) {
+
+		ContextIndex old = load(crs, keyType);
+
+		try {
+			return(update(cfg, crs, keyType, old));
+		}
+		catch (DamagedIndexException e) {
+			log.warning(Utility.exMsg(e, "ContextIndex rebuilding " + crs.getSpec("*") + "/" + keyType, false));
+		}
+
+		try {
+			return(update(cfg, crs, keyType, null));
+		}
+		catch (DamagedIndexException e) {
+			return(false); // can't happen; nothing to read without old
+		}
+	}
+
+	private static boolean update(Config cfg, ContextRepertoireStore crs,
+								  KeyType keyType, ContextIndex old) throws DamagedIndexException {
+
+		try {
+			Repertoire[] current = crs.getRepertoires();
+
+			// 1. what stays, what goes, what's new
+
+			List<IndexedRepertoire> reps = new ArrayList<IndexedRepertoire>();
+			int[] remap = null;
+			boolean changed = (old == null);
+
+			if (old != null) {
+				remap = new int[old.reps.length];
+				for (int i = 0; i < old.reps.length; ++i) {
+					remap[i] = (old.reps[i].matches(current) ? reps.size() : -1);
+					if (remap[i] == -1) changed = true;
+					else reps.add(old.reps[i]);
+				}
+			}
+
+			List<Repertoire> toAdd = new ArrayList<Repertoire>();
+			for (Repertoire rep : current) {
+				if (findRepertoire(reps, rep) == -1) toAdd.add(rep);
+			}
+
+			// 2. merge, a batch at a time
+
+			int iadd = 0;
+			
+			while (changed || iadd < toAdd.size()) {
+
+				List<RepCursor> added = new ArrayList<RepCursor>();
+				long rows = 0;
+
+				while (iadd < toAdd.size() && (added.isEmpty() || rows < cfg.MaxMergeRows)) {
+					RepCursor cursor = RepCursor.read(crs, toAdd.get(iadd++), keyType, reps.size());
+					if (cursor == null) continue; // no columnar sidecar
+					reps.add(cursor.indexed);
+					added.add(cursor);
+					rows += cursor.indexed.RowCount;
+				}
+
+				if (!changed && added.isEmpty()) break;
+
+				if (!save(cfg, crs, keyType, old, remap, reps, added)) return(false);
+
+				// what we just wrote is the starting point for the next batch
+				old = load(crs, keyType);
+				if (old == null) return(false);
+
+				remap = new int[reps.size()];
+				for (int i = 0; i < remap.length; ++i) remap[i] = i;
+
+				changed = false;
+			}
+
+			return(true);
+		}
+		catch (DamagedIndexException e) {
+			throw e;
+		}
+		catch (Exception e) {
+			log.warning(Utility.exMsg(e, "ContextIndex update (non-fatal)", true));
+			return(false);
+		}
+	}
+
+	// the existing index couldn't be read while merging from it
+
+	private static class DamagedIndexException extends IOException
+	{
+		public DamagedIndexException(IOException e) {
+			super(e);
+		}
+	}
+
+	private static boolean save(Config cfg, ContextRepertoireStore crs, KeyType keyType,
+								ContextIndex old, int[] remap, List<IndexedRepertoire> reps,
+								List<RepCursor> added) throws IOException {
+
+		File bodyFile = null;
+		File indexFile = null;
+
+		try {
+			// 1. merge into a new body
+
+			List<Cursor> cursors = new ArrayList<Cursor>();
+			if (old != null && reps.size() > added.size()) cursors.add(new IndexCursor(old, remap));
+			cursors.addAll(added);
+
+			bodyFile = Utility.getTempFile(cfg.TempPath);
+			Body body = writeBody(cursors, bodyFile);
+
+			// 2. header, sparse keys and body into one file
+
+			indexFile = Utility.getTempFile(cfg.TempPath);
+			OutputStream stm = new FileOutputStream(indexFile);
+
+			try {
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stm, BUFFER_SIZE));
+
+				out.writeInt(MAGIC);
+				out.writeLong(ThreadLocalRandom.current().nextLong());
+				out.writeInt(reps.size());
+				for (IndexedRepertoire rep : reps) rep.write(out);
+
+				out.writeLong(body.entryCount);
+				out.writeLong(bodyFile.length());
+				out.writeInt(body.sparseKeys.size());
+				for (int i = 0; i < body.sparseKeys.size(); ++i) {
+					out.writeUTF(body.sparseKeys.get(i));
+					out.writeLong(body.sparseOffsets.get(i));
+				}
+
+				InputStream bodyStm = new FileInputStream(bodyFile);
+				try { bodyStm.transferTo(out); }
+				finally { Utility.safeClose(bodyStm); }
+
+				out.flush();
+			}
+			finally {
+				Utility.safeClose(stm);
+			}
+
+			// 3. and into the store all at once
+
+			if (!crs.saveContextSecondaryFile(getSecondaryKey(keyType), indexFile)) return(false);
+
+			log.info(String.format("ContextIndex %s/%s: %d repertoires (%d new), %d keys",
+								   crs.getSpec("*"), keyType, reps.size(), added.size(),
+								   body.entryCount));
+			return(true);
+		}
+		finally {
+			if (bodyFile != null) bodyFile.delete();
+			if (indexFile != null) indexFile.delete();
+		}
+	}
+
+	private static Body writeBody(List<Cursor> cursors, File file) throws IOException {
+
+		Body body = new Body();
+
+		PriorityQueue<Cursor> queue = new PriorityQueue<Cursor>((c1, c2) -> {
+			int cmp = c1.getKey().compareTo(c2.getKey());
+			return(cmp != 0 ? cmp : Integer.compare(c1.getOrder(), c2.getOrder()));
+		});
+
+		for (int i = 0; i < cursors.size(); ++i) {
+			Cursor cursor = cursors.get(i);
+			cursor.setOrder(i);
+			if (cursor.next()) queue.add(cursor);
+		}
+
+		TsvReceiver.CountingStream counter =
+			new TsvReceiver.CountingStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+		DataOutputStream out = new DataOutputStream(counter);
+
+		List<Cursor> same = new ArrayList<Cursor>();
+
+		try {
+			while (!queue.isEmpty()) {
+
+				// every cursor on the smallest key, in rep order
+				same.clear();
+				String key = queue.peek().getKey();
+				while (!queue.isEmpty() && queue.peek().getKey().equals(key)) same.add(queue.poll());
+
+				if (body.entryCount % SPARSE_INTERVAL == 0) {
+					body.sparseKeys.add(key);
+					body.sparseOffsets.add(counter.getCount());
+				}
+
+				int postingCount = 0;
+				for (Cursor cursor : same) postingCount += cursor.getPostingCount();
+
+				out.writeUTF(key);
+				writeVarLong(out, postingCount);
+				for (Cursor cursor : same) cursor.writePostings(out);
+
+				++body.entryCount;
+
+				for (Cursor cursor : same) {
+					if (cursor.next()) queue.add(cursor);
+				}
+			}
+		}
+		finally {
+			for (Cursor cursor : cursors) cursor.close();
+			Utility.safeClose(out);
+		}
+
+		return(body);
+	}
+
+	private static class Body
+	{
+		public long entryCount = 0;
+		public List<String> sparseKeys = new ArrayList<String>();
+		public List<Long> sparseOffsets = new ArrayList<Long>();
+	}
+
+	// +------+
+	// | load |
+	// +------+
+
+	// null if there's no index (or it's unreadable or cut short); the body
+	// stays in the store until lookup needs it
+
+	public static ContextIndex load(ContextRepertoireStore crs, KeyType keyType) {
+
+		String key = getSecondaryKey(keyType);
+		InputStream stm = crs.getContextSecondaryStream(key);
+		if (stm == null) return(null);
+
+		try {
+			CountingInput counter = new CountingInput(new BufferedInputStream(stm, BUFFER_SIZE));
+			DataInputStream in = new DataInputStream(counter);
+
+			if (in.readInt() != MAGIC) throw new IOException("bad ContextIndex format");
+
+			ContextIndex index = new ContextIndex(() -> crs.getContextSecondaryStream(key));
+			index.version = in.readLong();
+
+			index.reps = new IndexedRepertoire[in.readInt()];
+			for (int i = 0; i < index.reps.length; ++i) index.reps[i] = IndexedRepertoire.read(in);
+
+			index.entryCount = in.readLong();
+			long bodyBytes = in.readLong();
+
+			int sparseCount = in.readInt();
+			index.sparseKeys = new String[sparseCount];
+			index.sparseOffsets = new long[sparseCount];
+
+			for (int i = 0; i < sparseCount; ++i) {
+				index.sparseKeys[i] = in.readUTF();
+				index.sparseOffsets[i] = in.readLong();
+			}
+
+			index.bodyStart = counter.getCount();
+
+			// exactly bodyBytes left
+			if (bodyBytes > 0) {
+				skipFully(counter, bodyBytes - 1);
+				if (counter.read() == -1) throw new IOException("truncated ContextIndex");
+			}
+			
+			if (counter.read() != -1) throw new IOException("ContextIndex longer than expected");
+			
+			return(index);
+		}
+		catch (IOException e) {
+			log.warning(Utility.exMsg(e, "ContextIndex load (non-fatal)", false));
+			return(null);
+		}
+		finally {
+			Utility.safeClose(stm);
+		}
+	}
+
+	private ContextIndex(Source source) {
+		this.source = source;
+	}
+
+	// +-------------+
+	// | Repertoires |
+	// +-------------+
+
+	public int getRepertoireCount() { return(reps.length); }
+	public String getRepertoireName(int i) { return(reps[i].Name); }
+	public int getRowCount(int i) { return(reps[i].RowCount); }
+	public long getEntryCount() { return(entryCount); }
+
+	// index of rep in Posting.Repertoire terms, or -1 if it isn't covered
+	// (or has been replaced since)
+
+	public int findRepertoire(Repertoire rep) {
+		for (int i = 0; i < reps.length; ++i) {
+			if (reps[i].matches(rep)) return(i);
+		}
+		return(-1);
+	}
+
+	private static int findRepertoire(List<IndexedRepertoire> reps, Repertoire rep) {
+		for (int i = 0; i < reps.size(); ++i) {
+			if (reps.get(i).matches(rep)) return(i);
+		}
+		return(-1);
+	}
+
+	// +--------+
+	// | lookup |
+	// +--------+
+
+	// Postings for each of keys (parallel to it; empty if not there),
+	// ordered by repertoire and then row. Keys are probed in sorted order
+	// so the whole batch is one forward pass over the body.
+
+	public Posting[][] lookup(String[] keys) throws IOException {
+
+		Posting[][] results = new Posting[keys.length][];
+		for (int i = 0; i < keys.length; ++i) results[i] = new Posting[0];
+
+		Integer[] order = new Integer[keys.length];
+		int cwanted = 0;
+		for (int i = 0; i < keys.length; ++i) {
+			if (keys[i] != null && !keys[i].isEmpty()) order[cwanted++] = i;
+		}
+
+		if (cwanted == 0 || sparseKeys.length == 0) return(results);
+
+		order = Arrays.copyOf(order, cwanted);
+		Arrays.sort(order, (i1, i2) -> keys[i1].compareTo(keys[i2]));
+
+		CountingInput counter = open();
+
+		try {
+			DataInputStream in = new DataInputStream(counter);
+
+			// the entry we're sitting in front of, read but not consumed
+			String entryKey = null;
+			long entriesLeft = entryCount;
+			int iPrev = -1;
+
+			for (int i : order) {
+
+				String wanted = keys[i];
+
+				// same key may be asked for more than once
+				if (iPrev != -1 && keys[iPrev].equals(wanted)) {
+					results[i] = results[iPrev];
+					continue;
+				}
+
+				iPrev = i;
+
+				// jump ahead if the block holding wanted starts past us
+				int block = Arrays.binarySearch(sparseKeys, wanted);
+				if (block < 0) block = -block - 2;
+				if (block < 0) continue; // before the first key
+
+				long ibBlock = bodyStart + sparseOffsets[block];
+				long ibCurrent = counter.getCount() - (entryKey == null ? 0 : utfLength(entryKey));
+
+				if (ibBlock > ibCurrent) {
+					skipFully(counter, ibBlock - counter.getCount());
+					entryKey = null;
+					entriesLeft = entryCount - ((long) block) * SPARSE_INTERVAL;
+				}
+
+				// walk to the first entry >= wanted
+				while (true) {
+
+					if (entryKey == null) {
+						if (entriesLeft == 0) break;
+						entryKey = in.readUTF();
+						--entriesLeft;
+					}
+
+					int cmp = entryKey.compareTo(wanted);
+					if (cmp > 0) break;
+
+					Posting[] postings = readPostings(in, reps);
+					if (cmp == 0) results[i] = postings;
+
+					entryKey = null;
+					if (cmp == 0) break;
+				}
+			}
+		}
+		finally {
+			Utility.safeClose(counter);
+		}
+
+		return(results);
+	}
+
+	// the saved index, positioned just past the version; throws if it's
+	// not the one we loaded (an update has replaced it since)
+
+	private CountingInput open() throws IOException {
+
+		InputStream stm = source.open();
+		if (stm == null) throw new IOException("ContextIndex went missing");
+
+		CountingInput counter = new CountingInput(new BufferedInputStream(stm, BUFFER_SIZE));
+
+		try {
+			DataInputStream in = new DataInputStream(counter);
+			if (in.readInt() != MAGIC || in.readLong() != version) {
+				throw new IOException("ContextIndex replaced since it was loaded");
+			}
+		}
+		catch (IOException e) {
+			Utility.safeClose(counter);
+			throw e;
+		}
+
+		return(counter);
+	}
+
+	// checked against reps so a damaged body can't hand out postings
+	// that point nowhere
+
+	private static Posting[] readPostings(DataInput in, IndexedRepertoire[] reps) throws IOException {
+
+		Posting[] postings = new Posting[(int) readVarLong(in)];
+
+		for (int i = 0; i < postings.length; ++i) {
+			Posting posting = new Posting();
+			posting.Repertoire = (int) readVarLong(in);
+			posting.Row = (int) readVarLong(in);
+			posting.Count = readVarLong(in);
+
+			if (posting.Repertoire < 0 || posting.Repertoire >= reps.length ||
+				posting.Row < 0 || posting.Row >= reps[posting.Repertoire].RowCount) {
+				
+				throw new IOException("bad ContextIndex posting");
+			}
+			
+			postings[i] = posting;
+		}
+
+		return(postings);
+	}
+
+	// +-------------------+
+	// | IndexedRepertoire |
+	// +-------------------+
+
+	private static class IndexedRepertoire
+	{
+		public String Name;
+		public String UploadId;
+		public long TotalUniques;
+		public long TotalCount;
+		public int RowCount;
+
+		// totals still count for repertoires from before UploadId
+		
+		public boolean matches(Repertoire rep) {
+			return(Name.equals(rep.Name) &&
+				   Objects.equals(UploadId, rep.UploadId) &&
+				   TotalUniques == rep.TotalUniques &&
+				   TotalCount == rep.TotalCount);
+		}
+
+		public boolean matches(Repertoire[] reps) {
+			for (Repertoire rep : reps) {
+				if (matches(rep)) return(true);
+			}
+			return(false);
+		}
+
+		public void write(DataOutput out) throws IOException {
+			out.writeUTF(Name);
+			out.writeUTF(UploadId == null ? "" : UploadId);
+			out.writeLong(TotalUniques);
+			out.writeLong(TotalCount);
+			out.writeInt(RowCount);
+		}
+
+		public static IndexedRepertoire read(DataInput in) throws IOException {
+			IndexedRepertoire rep = new IndexedRepertoire();
+			rep.Name = in.readUTF();
+			rep.UploadId = in.readUTF();
+			if (rep.UploadId.isEmpty()) rep.UploadId = null;
+			rep.TotalUniques = in.readLong();
+			rep.TotalCount = in.readLong();
+			rep.RowCount = in.readInt();
+			return(rep);
+		}
+	}
+
+	// +---------+
+	// | Cursors |
+	// +---------+
+
+	// Each cursor walks one sorted source of entries (the existing body, or
+	// a newly added repertoire) a key at a time for writeBody to merge.
+
+	private static abstract class Cursor
+	{
+		public abstract boolean next() throws IOException;
+		public abstract String getKey();
+		public abstract int getPostingCount();
+		public abstract void writePostings(DataOutput out) throws IOException;
+		public void close() { }
+
+		public int getOrder() { return(order); }
+		public void setOrder(int order) { this.order = order; }
+
+		private int order;
+	}
+
+	// existing entries, dropping postings for repertoires that are gone and
+	// renumbering the rest
+
+	private static class IndexCursor extends Cursor
+	{
+		public IndexCursor(ContextIndex index, int[] remap) throws IOException {
+
+			this.remap = remap;
+			this.reps = index.reps;
+			this.entriesLeft = index.entryCount;
+
+			CountingInput counter = null;
+			
+			try {
+				counter = index.open();
+				skipFully(counter, index.bodyStart - counter.getCount());
+			}
+			catch (IOException e) {
+				if (counter != null) Utility.safeClose(counter);
+				throw new DamagedIndexException(e);
+			}
+			
+			this.stm = counter;
+			this.in = new DataInputStream(counter);
+		}
+
+		public boolean next() throws IOException {
+
+			while (entriesLeft > 0) {
+
+				--entriesLeft;
+
+				Posting[] read;
+				
+				try {
+					key = in.readUTF();
+					read = readPostings(in, reps);
+				}
+				catch (IOException e) {
+					throw new DamagedIndexException(e);
+				}
+
+				List<Posting> kept = new ArrayList<Posting>();
+				for (Posting posting : read) {
+					int rep = remap[posting.Repertoire];
+					if (rep == -1) continue;
+					posting.Repertoire = rep;
+					kept.add(posting);
+				}
+
+				if (!kept.isEmpty()) {
+					postings = kept;
+					return(true);
+				}
+			}
+
+			return(false);
+		}
+
+		public String getKey() { return(key); }
+		public int getPostingCount() { return(postings.size()); }
+
+		public void writePostings(DataOutput out) throws IOException {
+			for (Posting posting : postings) {
+				writeVarLong(out, posting.Repertoire);
+				writeVarLong(out, posting.Row);
+				writeVarLong(out, posting.Count);
+			}
+		}
+
+		public void close() {
+			Utility.safeClose(stm);
+		}
+
+		private int[] remap;
+		private IndexedRepertoire[] reps;
+		private long entriesLeft;
+		private InputStream stm;
+		private DataInputStream in;
+
+		private String key;
+		private List<Posting> postings;
+	}
+
+	// one newly added repertoire, read from its columnar sidecar and sorted
+	// by key (then row) in memory
+
+	private static class RepCursor extends Cursor
+	{
+		public static RepCursor read(ContextRepertoireStore crs, Repertoire rep,
+									 KeyType keyType, int repIndex) throws IOException {
+
+			RearrangementKey.Extractor extractor = RearrangementKey.getExtractor(keyType);
+			EnumSet<Field> fields = EnumSet.copyOf(extractor.getFields());
+			fields.add(Field.Count);
+
+			ColumnarRepertoire.Reader rdr = ColumnarRepertoire.openSeekable(crs, rep.Name, fields);
+			if (rdr == null) return(null);
+
+			RepCursor cursor = new RepCursor();
+
+			try {
+				int rowCount = rdr.getRowCount();
+				cursor.keys = new String[rowCount];
+				cursor.counts = new long[rowCount];
+
+				Rearrangement r = new Rearrangement();
+				int row = 0;
+				int keyed = 0;
+
+				while (rdr.readNextInto(r)) {
+					String key = extractor.extract(r);
+					if (key != null && !key.isEmpty()) {
+						cursor.keys[row] = key;
+						cursor.counts[row] = r.Count;
+						++keyed;
+					}
+					++row;
+				}
+
+				Integer[] order = new Integer[keyed];
+				int c = 0;
+				for (int i = 0; i < row; ++i) {
+					if (cursor.keys[i] != null) order[c++] = i;
+				}
+
+				// stable, so rows stay ascending within a key
+				Arrays.sort(order, (i1, i2) -> cursor.keys[i1].compareTo(cursor.keys[i2]));
+				cursor.rows = order;
+
+				cursor.indexed = new IndexedRepertoire();
+				cursor.indexed.Name = rep.Name;
+				cursor.indexed.UploadId = rep.UploadId;
+				cursor.indexed.TotalUniques = rep.TotalUniques;
+				cursor.indexed.TotalCount = rep.TotalCount;
+				cursor.indexed.RowCount = rowCount;
+
+				cursor.repIndex = repIndex;
+				cursor.next = 0;
+			}
+			finally {
+				Utility.safeClose(rdr);
+			}
+
+			return(cursor);
+		}
+
+		public boolean next() throws IOException {
+
+			if (next == rows.length) return(false);
+
+			start = next;
+			String key = keys[rows[start]];
+			while (next < rows.length && keys[rows[next]].equals(key)) ++next;
+
+			return(true);
+		}
+
+		public String getKey() { return(keys[rows[start]]); }
+		public int getPostingCount() { return(next - start); }
+
+		public void writePostings(DataOutput out) throws IOException {
+			for (int i = start; i < next; ++i) {
+				writeVarLong(out, repIndex);
+				writeVarLong(out, rows[i]);
+				writeVarLong(out, counts[rows[i]]);
+			}
+		}
+
+		public IndexedRepertoire indexed;
+
+		private String[] keys;
+		private long[] counts;
+		private Integer[] rows; // sorted by key
+		private int repIndex;
+
+		// current group is rows[start..next)
+		private int start;
+		private int next;
+	}
+
+	// +---------+
+	// | Helpers |
+	// +---------+
+
+	private interface Source {
+		public InputStream open() throws IOException;
+	}
+
+	private static class CountingInput extends java.io.FilterInputStream
+	{
+		public CountingInput(InputStream in) {
+			super(in);
+			this.count = 0;
+		}
+
+		public long getCount() { return(count); }
+
+		@Override
+		public int read() throws IOException {
+			int b = in.read();
+			if (b != -1) ++count;
+			return(b);
+		}
+
+		@Override
+		public int read(byte[] rgb, int ib, int cb) throws IOException {
+			int cbRead = in.read(rgb, ib, cb);
+			if (cbRead > 0) count += cbRead;
+			return(cbRead);
+		}
+
+		@Override
+		public long skip(long cb) throws IOException {
+			long skipped = in.skip(cb);
+			if (skipped > 0) count += skipped;
+			return(skipped);
+		}
+
+		private long count;
+	}
+
+	private static void writeVarLong(DataOutput out, long l) throws IOException {
+		while ((l & ~0x7FL) != 0) {
+			out.writeByte((int) ((l & 0x7F) | 0x80));
+			l >>>= 7;
+		}
+		out.writeByte((int) l);
+	}
+
+	private static long readVarLong(DataInput in) throws IOException {
+		long l = 0;
+		int shift = 0;
+		int b;
+		do {
+			b = in.readUnsignedByte();
+			l |= ((long) (b & 0x7F)) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return(l);
+	}
+
+	// bytes writeUTF used for s (two length bytes plus modified UTF-8)
+
+	private static int utfLength(String s) {
+		int cb = 2;
+		for (int i = 0; i < s.length(); ++i) {
+			char ch = s.charAt(i);
+			cb += (ch >= 0x0001 && ch <= 0x007F ? 1 : (ch <= 0x07FF ? 2 : 3));
+		}
+		return(cb);
+	}
+
+	private static void skipFully(InputStream in, long cb) throws IOException {
+		while (cb > 0) {
+			long skipped = in.skip(cb);
+			if (skipped <= 0) {
+				if (in.read() == -1) throw new java.io.EOFException("truncated ContextIndex");
+				skipped = 1;
+			}
+			cb -= skipped;
+		}
+	}
+
+	// +---------+
+	// | Members |
+	// +---------+
+
+	private Source source;
+	private long version;
+
+	private IndexedRepertoire[] reps;
+	private long entryCount;
+	private long bodyStart;
+
+	// every SPARSE_INTERVAL'th key and where its entry starts in the body
+	private String[] sparseKeys;
+	private long[] sparseOffsets;
+
+	private final static int MAGIC = 0x43495832; // "CIX2"
+	private final static int SPARSE_INTERVAL = 256;
+	private final static int BUFFER_SIZE = 64 * 1024;
+
+	private final static Logger log = Logger.getLogger(ContextIndex.class.getName());
+}
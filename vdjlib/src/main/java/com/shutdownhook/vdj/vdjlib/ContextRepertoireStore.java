@@ -8,7 +8,7 @@ import java.io.File;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.IOException;
-import java.nio.file.Files;
+import java.nio.ByteBuffer;
 import java.util.logging.Logger;
 
 import com.shutdownhook.vdj.vdjlib.model.Repertoire;
@@ -20,6 +20,16 @@ public class ContextRepertoireStore
 		this.userId = userId;
 		this.context = context;
 	}
+
+	public RepertoireSpec getSpec(String rep) {
+		return(new RepertoireSpec(userId, context, rep));
+	}
+
+	// same context, reading its repertoire list again on first use
+
+	public ContextRepertoireStore reopen() {
+		return(new ContextRepertoireStore(store, userId, context));
+	}
 	
 	// +----------------+
 	// | getRepertoires |
@@ -56,6 +66,18 @@ public class ContextRepertoireStore
 		return(store.getRepertoireStream(new RepertoireSpec(userId, context, rep.Name)));
 	}
 
+	// +---------------------+
+	// | getRepertoireBuffer |
+	// +---------------------+
+
+	public ByteBuffer getRepertoireBuffer(String rep) {
+		return(store.getRepertoireBuffer(new RepertoireSpec(userId, context, rep)));
+	}
+
+	public ByteBuffer getRepertoireBuffer(Repertoire rep) {
+		return(store.getRepertoireBuffer(new RepertoireSpec(userId, context, rep.Name)));
+	}
+
 	// +-----------------+
 	// | Secondary Files |
 	// +-----------------+
@@ -76,18 +98,23 @@ public class ContextRepertoireStore
 		return(store.getRepertoireSecondarySaveStream(new RepertoireSpec(userId, context, rep.Name), key));
 	}
 
-	public void saveSecondaryFile(String rep, String key, File file) throws IOException {
+	public InputStream getContextSecondaryStream(String key) {
+		return(store.getContextSecondaryStream(userId, context, key));
+	}
 
-		OutputStream output = null;
+	public OutputStream getContextSecondarySaveStream(String key) {
+		return(store.getContextSecondarySaveStream(userId, context, key));
+	}
 
-		try {
-			output = getSecondarySaveStream(rep, key);
-			if (output == null) return; // this is ok, just means we don't have a cache
-			Files.copy(file.toPath(), output);
-		}
-		finally {
-			if (output != null) output.close();
-		}
+	// false is ok, just means we don't have a cache (or it didn't take);
+	// see RepertoireStore.saveRepertoireSecondaryFile
+	
+	public boolean saveSecondaryFile(String rep, String key, File file) {
+		return(store.saveRepertoireSecondaryFile(new RepertoireSpec(userId, context, rep), key, file));
+	}
+
+	public boolean saveContextSecondaryFile(String key, File file) {
+		return(store.saveContextSecondaryFile(userId, context, key, file));
 	}
 
 	// +---------+
@@ -6,7 +6,6 @@ package com.shutdownhook.vdj.vdjlib;
 
 import java.io.BufferedWriter;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.IOException;
 import java.io.File;
 import java.io.FileOutputStream;
@@ -14,9 +13,11 @@ import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.EnumSet;
 import java.util.concurrent.CompletableFuture;
 import java.util.logging.Logger;
 
+import com.shutdownhook.vdj.vdjlib.TsvReader.Field;
 import com.shutdownhook.vdj.vdjlib.model.Rearrangement;
 
 public class Export
@@ -83,16 +84,16 @@ public class Export
 		try {
 			file = Utility.getTempFile(cfg.TempPath);
 			out = new FileOutputStream(file, false);
-			in = params.CRS.getRepertoireStream(params.Repertoire);
 			
 			switch (params.Format) {
 				case Original:
+					in = params.CRS.getRepertoireStream(params.Repertoire);
 					in.transferTo(out);
 					break;
 					
 				case FastaIndex:
 				case FastaHash:
-					exportFasta(params, in, out);
+					exportFasta(params, out);
 					break;
 			}
 		}
@@ -108,24 +109,22 @@ public class Export
 	// | exportFasta |
 	// +-------------+
 
-	private void exportFasta(Params params, InputStream in, OutputStream out) throws IOException {
+	private void exportFasta(Params params, OutputStream out) throws IOException {
 
 		OutputStreamWriter writer = null;
 		BufferedWriter buf = null;
-		InputStreamReader reader = null;
 		TsvReader tsv = null;
 
 		try {
-			reader = new InputStreamReader(in);
-			tsv = new TsvReader(reader, 0);
+			tsv = TsvReader.open(params.CRS, params.Repertoire, 0, EnumSet.of(Field.Rearrangement));
 			
 			writer = new OutputStreamWriter(out);
 			buf = new BufferedWriter(writer);
 
-			Rearrangement r;
+			Rearrangement r = new Rearrangement();
 			int i = 0;
 
-			while ((r = tsv.readNext()) != null) {
+			while (tsv.readNextInto(r)) {
 
 				buf.write(">" + (params.Format.equals(Format.FastaIndex)
 								 ? Integer.toString(i++)
@@ -151,7 +150,6 @@ public class Export
 		}
 		finally {
 			Utility.safeClose(tsv);
-			Utility.safeClose(reader);
 			Utility.safeClose(buf);
 			Utility.safeClose(writer);
 		}
@@ -0,0 +1,274 @@
+//
+// GENEDICTIONARY.JAVA
+//
+
+// Process-wide dictionary of gene call strings (V/D/J resolved and the
+// family ties columns). There are only a few hundred distinct values
+// across every repertoire we see, so rather than making fresh Strings for
+// them on every row, TsvTokenizer looks the raw bytes up here and gets
+// back a small int id with a canonical String, a locus hint and the
+// normalized gene (for GeneUse) all worked out once per id.
+//
+// Lookups are lock-free; new entries are added under a lock, either in
+// place (a reader that races with that just misses and retries under the
+// lock) or by publishing a bigger table. If the dictionary ever
+// fills up (which would mean something is very wrong with the input),
+// lookup returns NONE and callers fall back to plain Strings.
+
+package com.shutdownhook.vdj.vdjlib;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.logging.Logger;
+
+import com.shutdownhook.vdj.vdjlib.model.Locus;
+
+public class GeneDictionary
+{
+	public final static int NONE = -1;
+	public final static int EMPTY = 0;
+
+	public final static int MAX_ENTRIES = 64 * 1024;
+
+	// +--------+
+	// | lookup |
+	// +--------+
+
+	public static int lookup(ByteBuffer bb, int ib, int ibMac) {
+
+		int hash = hash(bb, ib, ibMac);
+
+		Table t = table;
+		int id = t.find(bb, ib, ibMac, hash);
+		if (id != NONE) return(id);
+
+		return(add(bb, ib, ibMac, hash));
+	}
+
+	public static int lookup(String name) {
+		byte[] rgb = name.getBytes(StandardCharsets.UTF_8);
+		return(lookup(ByteBuffer.wrap(rgb), 0, rgb.length));
+	}
+
+	public static int size() {
+		return(count);
+	}
+
+	// +-----------+
+	// | accessors |
+	// +-----------+
+
+	public static String getName(int id) {
+		return(table.entries[id].Name);
+	}
+
+	// locus implied by the gene name alone, or null if it doesn't imply
+	// one. IGH is reported as IGH; see resolveLocus for DJ.
+
+	public static Locus getLocusHint(int id) {
+		return(table.entries[id].LocusHint);
+	}
+
+	// gene family/gene with allele removed, "X" for unknown pieces
+
+	public static String getNormalized(int id) {
+		return(table.entries[id].Normalized);
+	}
+
+	// +--------------+
+	// | resolveLocus |
+	// +--------------+
+
+	// same rules as Locus.fromGene, but using the per-id hints
+
+	public static Locus resolveLocus(int v, int d, int j,
+									 int vTies, int dTies, int jTies) throws IllegalArgumentException {
+
+		Entry[] entries = table.entries;
+
+		Locus locus = entries[j].LocusHint;
+		if (locus == null) locus = entries[d].LocusHint;
+		if (locus == null) locus = entries[v].LocusHint;
+		if (locus == null) locus = entries[jTies].LocusHint;
+		if (locus == null) locus = entries[dTies].LocusHint;
+		if (locus == null) locus = entries[vTies].LocusHint;
+
+		if (locus == null) throw new IllegalArgumentException("Bad Locus: " + entries[vTies].Name);
+
+		if (locus == Locus.IGH && v == EMPTY && vTies == EMPTY) return(Locus.DJ);
+		return(locus);
+	}
+
+	// +------------+
+	// | normalize  |
+	// +------------+
+
+	public static String normalize(String resolved) {
+
+		// check for unknown
+		String norm = (resolved == null ? "" : resolved.trim());
+		if (norm.isEmpty()) return("X");
+
+		// remove allele
+		int ichAllele = norm.lastIndexOf("*");
+		if (ichAllele != -1) norm = norm.substring(0, ichAllele);
+
+		// check for resolved gene
+		int ichGene = norm.lastIndexOf("-");
+		if (ichGene == -1) return(norm + "-X");
+
+		// yay
+		return(norm);
+	}
+
+	// +---------+
+	// | Helpers |
+	// +---------+
+
+	private static synchronized int add(ByteBuffer bb, int ib, int ibMac, int hash) {
+
+		// someone may have beaten us to it
+		int id = table.find(bb, ib, ibMac, hash);
+		if (id != NONE) return(id);
+
+		if (count == MAX_ENTRIES) {
+			if (!warnedFull) {
+				log.warning("GeneDictionary full; falling back to Strings");
+				warnedFull = true;
+			}
+			return(NONE);
+		}
+
+		byte[] rgb = new byte[ibMac - ib];
+		for (int i = 0; i < rgb.length; ++i) rgb[i] = bb.get(ib + i);
+
+		Entry entry = new Entry(rgb, hash, count);
+
+		if (count == table.entries.length || (count + 1) * 2 > table.slots.length) {
+			// readers keep using the old table until this one is published
+			table = new Table(table.slots.length * 2, table.entries.length * 2, table.entries, count);
+		}
+
+		table.add(entry);
+		++count;
+		
+		return(entry.Id);
+	}
+
+	private static int hash(ByteBuffer bb, int ib, int ibMac) {
+		int hash = 0x811C9DC5;
+		for (int i = ib; i < ibMac; ++i) {
+			hash ^= (bb.get(i) & 0xFF);
+			hash *= 0x01000193;
+		}
+		return(hash);
+	}
+
+	private static Locus computeLocusHint(String name) {
+
+		if (!name.startsWith("TCR") && !name.startsWith("IG")) return(null);
+
+		try {
+			return(Locus.fromGene(name, "", "", "", "", ""));
+		}
+		catch (RuntimeException e) {
+			// e.g. just "TCR" with nothing after it
+			return(null);
+		}
+	}
+
+	// +-------+
+	// | Entry |
+	// +-------+
+
+	private static class Entry
+	{
+		public Entry(byte[] rgb, int hash, int id) {
+			this.Bytes = rgb;
+			this.Hash = hash;
+			this.Id = id;
+			this.Name = new String(rgb, StandardCharsets.UTF_8);
+			this.LocusHint = computeLocusHint(Name);
+			this.Normalized = normalize(Name);
+		}
+
+		public boolean matches(ByteBuffer bb, int ib, int ibMac, int hash) {
+			if (hash != Hash || ibMac - ib != Bytes.length) return(false);
+			for (int i = 0; i < Bytes.length; ++i) {
+				if (Bytes[i] != bb.get(ib + i)) return(false);
+			}
+			return(true);
+		}
+
+		// final so readers that see the reference see the contents
+		public final byte[] Bytes;
+		public final int Hash;
+		public final int Id;
+		public final String Name;
+		public final Locus LocusHint;
+		public final String Normalized;
+	}
+
+	// +-------+
+	// | Table |
+	// +-------+
+
+	// open-addressed slots (holding ids) plus the entries in id order.
+	// Slots only ever go from NONE to an id and entries are written before
+	// their slot, so a racing reader either finds a complete entry or
+	// misses (possibly seeing a slot whose entry isn't visible yet, which
+	// it also treats as a miss).
+
+	private static class Table
+	{
+		public Table(int cslots, int centries, Entry[] existing, int count) {
+			this.slots = new int[cslots];
+			for (int i = 0; i < cslots; ++i) slots[i] = NONE;
+			this.entries = new Entry[centries];
+			for (int i = 0; i < count; ++i) add(existing[i]);
+		}
+
+		public int find(ByteBuffer bb, int ib, int ibMac, int hash) {
+			int mask = slots.length - 1;
+			int islot = hash & mask;
+			int id;
+			while ((id = slots[islot]) != NONE) {
+				Entry entry = entries[id];
+				if (entry == null) return(NONE);
+				if (entry.matches(bb, ib, ibMac, hash)) return(id);
+				islot = (islot + 1) & mask;
+			}
+			return(NONE);
+		}
+
+		public void add(Entry entry) {
+			entries[entry.Id] = entry;
+			int mask = slots.length - 1;
+			int islot = entry.Hash & mask;
+			while (slots[islot] != NONE) islot = (islot + 1) & mask;
+			slots[islot] = entry.Id;
+		}
+
+		public final int[] slots;
+		public final Entry[] entries;
+	}
+
+	// +---------+
+	// | Members |
+	// +---------+
+
+	private static volatile Table table;
+	private static int count = 0; // guarded by class lock
+	private static boolean warnedFull = false;
+
+	private final static int INITIAL_SLOTS = 1024;
+	private final static int INITIAL_ENTRIES = 512;
+
+	private final static Logger log = Logger.getLogger(GeneDictionary.class.getName());
+
+	static {
+		table = new Table(INITIAL_SLOTS, INITIAL_ENTRIES, null, 0);
+		table.add(new Entry(new byte[0], hash(ByteBuffer.allocate(0), 0, 0), EMPTY));
+		count = 1;
+	}
+}
@@ -4,10 +4,10 @@
 
 package com.shutdownhook.vdj.vdjlib;
 
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.util.Arrays;
+import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 import java.util.logging.Logger;
@@ -16,9 +16,27 @@ import com.shutdownhook.vdj.vdjlib.model.Repertoire;
 import com.shutdownhook.vdj.vdjlib.model.Rearrangement;
 import com.shutdownhook.vdj.vdjlib.RearrangementKey.Extractor;
 import com.shutdownhook.vdj.vdjlib.RearrangementKey.Matcher;
+import com.shutdownhook.vdj.vdjlib.TsvReader.Field;
 
 public class GeneUse
 {
+	// +------------------+
+	// | Setup & Teardown |
+	// +------------------+
+
+	public static class Config
+	{
+		public ParallelScan.Config Scan = new ParallelScan.Config();
+	}
+
+	public GeneUse() {
+		this(new Config());
+	}
+	
+	public GeneUse(Config cfg) {
+		this.cfg = cfg;
+	}
+	
 	// +--------+
 	// | Params |
 	// +--------+
@@ -46,6 +64,11 @@ public class GeneUse
 			this.Count += count;
 			this.Uniques++;
 		}
+
+		public void accumulate(VJPair other) {
+			this.Count += other.Count;
+			this.Uniques += other.Uniques;
+		}
 		
 		public int compareTo(VJPair other) {
 			int cmp = V.compareTo(other.V);
@@ -84,50 +107,147 @@ public class GeneUse
 		Repertoire rep = params.CRS.findRepertoire(params.Repertoire);
 		if (rep == null) throw new Exception("Repertoire " + params.Repertoire + " not found");
 
-		InputStream stm = null;
-		InputStreamReader rdr = null;
-		TsvReader tsv = null;
+		List<Map<String,VJPair>> partials =
+			ParallelScan.scan(cfg.Scan, params.CRS, rep,
+							  EnumSet.of(Field.VResolved, Field.JResolved, Field.Count),
+							  (rdr) -> getChunk(params, rdr));
 
-		try {
-			stm = params.CRS.getRepertoireStream(rep);
-			rdr = new InputStreamReader(stm);
-			tsv = new TsvReader(rdr, 0);
+		Map<String,VJPair> counts = partials.get(0);
+		
+		for (int i = 1; i < partials.size(); ++i) {
+			for (Map.Entry<String,VJPair> entry : partials.get(i).entrySet()) {
+				VJPair pair = counts.get(entry.getKey());
+				if (pair == null) counts.put(entry.getKey(), entry.getValue());
+				else pair.accumulate(entry.getValue());
+			}
+		}
 
-			Map<String,VJPair> counts = new HashMap<String,VJPair>();
-			Rearrangement r;
+		VJPair[] result = counts.values().toArray(new VJPair[counts.size()]);
+		Arrays.sort(result);
 			
-			while ((r = tsv.readNext()) != null) {
+		return(result);
+	}
+
+	private Map<String,VJPair> getChunk(Params params, RowReader rdr) throws Exception {
 
-				String v = normalizeGene(r.VResolved, params);
-				if (v == null) continue;
+		// tally by raw gene ids first (see GeneDictionary) in a V x J
+		// matrix; that keeps per-row work to a couple of array stores.
+		// We normalize once per distinct pair at the end. Rows whose
+		// genes didn't make it into the dictionary go through a map.
+
+		VJMatrix matrix = new VJMatrix();
+		Map<String,Map<String,VJPair>> raw = new HashMap<String,Map<String,VJPair>>();
+		Rearrangement r = new Rearrangement();
+			
+		while (rdr.readNextInto(r)) {
+
+			if (r.VGeneId != GeneDictionary.NONE && r.JGeneId != GeneDictionary.NONE) {
+				matrix.add(r.VGeneId, r.JGeneId, r.Count);
+				continue;
+			}
+
+			Map<String,VJPair> rawJs = raw.get(r.VResolved);
+			if (rawJs == null) {
+				rawJs = new HashMap<String,VJPair>();
+				raw.put(r.VResolved, rawJs);
+			}
+
+			VJPair pair = rawJs.get(r.JResolved);
+			
+			if (pair == null) {
+				pair = new VJPair(r.VResolved, r.JResolved, r.Count);
+				rawJs.put(r.JResolved, pair);
+			}
+			else {
+				pair.accumulate(r.Count);
+			}
+		}
+
+		Map<String,VJPair> counts = new HashMap<String,VJPair>();
+
+		for (int v = 0; v < matrix.counts.length; ++v) {
+			
+			if (matrix.counts[v] == null) continue;
+			
+			for (int j = 0; j < matrix.counts[v].length; ++j) {
 				
-				String j = normalizeGene(r.JResolved, params);
-				if (j == null) continue;
+				if (matrix.uniques[v][j] == 0) continue;
 
-				String key = vjKey(v, j);
-				VJPair pair = counts.get(key);
+				VJPair rawPair = new VJPair(GeneDictionary.getNormalized(v),
+											GeneDictionary.getNormalized(j),
+											matrix.counts[v][j]);
+				rawPair.Uniques = matrix.uniques[v][j];
 				
-				if (pair == null) {
-					pair = new VJPair(v, j, r.Count);
-					counts.put(key, pair);
-				}
-				else {
-					pair.accumulate(r.Count);
-				}
+				addNormalized(counts, rawPair, rawPair.V, rawPair.J);
 			}
+		}
 
-			VJPair[] result = counts.values().toArray(new VJPair[counts.size()]);
-			Arrays.sort(result);
-			
-			return(result);
+		for (Map<String,VJPair> rawJs : raw.values()) {
+			for (VJPair rawPair : rawJs.values()) {
+
+				addNormalized(counts, rawPair,
+							  GeneDictionary.normalize(rawPair.V),
+							  GeneDictionary.normalize(rawPair.J));
+			}
+		}
+
+		return(counts);
+	}
+
+	private static void addNormalized(Map<String,VJPair> counts, VJPair rawPair, String v, String j) {
+
+		String key = vjKey(v, j);
+		VJPair pair = counts.get(key);
+				
+		if (pair == null) {
+			rawPair.V = v;
+			rawPair.J = j;
+			counts.put(key, rawPair);
+		}
+		else {
+			pair.accumulate(rawPair);
+		}
+	}
+
+	// +----------+
+	// | VJMatrix |
+	// +----------+
+
+	// counts and uniques indexed by [V gene id][J gene id]; rows are only
+	// allocated for V ids we actually see, and grow as the dictionary does
+
+	private static class VJMatrix
+	{
+		public VJMatrix() {
+			int size = Math.max(GeneDictionary.size(), INITIAL_MATRIX_SIZE);
+			counts = new long[size][];
+			uniques = new long[size][];
 		}
-		finally {
-			if (tsv != null) Utility.safeClose(tsv);
-			if (rdr != null) Utility.safeClose(rdr);
-			if (stm != null) Utility.safeClose(stm);
+
+		public void add(int v, int j, long count) {
+
+			if (v >= counts.length) {
+				int size = Math.max(v + 1, counts.length * 2);
+				counts = Arrays.copyOf(counts, size);
+				uniques = Arrays.copyOf(uniques, size);
+			}
+
+			if (counts[v] == null || j >= counts[v].length) {
+				int size = Math.max(Math.max(j + 1, GeneDictionary.size()), INITIAL_MATRIX_SIZE);
+				counts[v] = (counts[v] == null ? new long[size] : Arrays.copyOf(counts[v], size));
+				uniques[v] = (uniques[v] == null ? new long[size] : Arrays.copyOf(uniques[v], size));
+			}
+
+			counts[v][j] += count;
+			uniques[v][j]++;
 		}
+
+		public long[][] counts;
+		public long[][] uniques;
 	}
 
+	private final static int INITIAL_MATRIX_SIZE = 256;
+
 	// +---------------------+
 	// | Extractor / Matcher |
 	// +---------------------+
@@ -141,6 +261,9 @@ public class GeneUse
 							  (r.JResolved == null ? "" : r.JResolved));
 				return(key.toUpperCase());
 			}
+			public EnumSet<Field> getFields() {
+				return(EnumSet.of(Field.VResolved, Field.DResolved, Field.JResolved));
+			}
 		});
 	}
 
@@ -175,28 +298,12 @@ public class GeneUse
 	private static String vjKey (String v, String j) {
 		return(v + "|" + j);
 	}
-	
-	private static String normalizeGene(String resolved, Params params) {
-
-		// check for unknown
-		String norm = (resolved == null ? "" : resolved.trim());
-		if (norm.isEmpty()) return("X");
-
-		// remove allele
-		int ichAllele = norm.lastIndexOf("*");
-		if (ichAllele != -1) norm = norm.substring(0, ichAllele);
-
-		// check for resolved gene
-		int ichGene = norm.lastIndexOf("-");
-		if (ichGene == -1) return(norm + "-X");
-
-		// yay
-		return(norm);
-	}
 
 	// +---------+
 	// | Members |
 	// +---------+
 
+	private Config cfg;
+
 	private final static Logger log = Logger.getLogger(GeneUse.class.getName());
 }
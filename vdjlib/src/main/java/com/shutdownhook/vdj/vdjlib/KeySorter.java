@@ -4,29 +4,41 @@
 
 package com.shutdownhook.vdj.vdjlib;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.Closeable;
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Comparator;
+import java.util.PriorityQueue;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 import com.shutdownhook.vdj.vdjlib.RearrangementKey.Extractor;
+import com.shutdownhook.vdj.vdjlib.TsvReader.Field;
 import com.shutdownhook.vdj.vdjlib.model.FrameType;
 import com.shutdownhook.vdj.vdjlib.model.Locus;
+import com.shutdownhook.vdj.vdjlib.model.PackedSequence;
 import com.shutdownhook.vdj.vdjlib.model.Rearrangement;
+import com.shutdownhook.vdj.vdjlib.model.Repertoire;
 
 public class KeySorter implements Closeable
 {
@@ -36,9 +48,16 @@ public class KeySorter implements Closeable
 
 	public static class Config
 	{
-		public int InitialChunkSize = 500000;
+		public int InitialChunkSize = 500000; // max keys per initial run
+		public Long SortBufferBytes = 64L * 1024L * 1024L; // per sort, split across scan chunks
+		public Long SortMemoryBudgetBytes = 256L * 1024L * 1024L; // process-wide, see getBudget
+		public Boolean OffHeapBuffers = false;
 		public Boolean UseCache = true;
 		public String WorkingPath = System.getProperty("java.io.tmpdir");
+		public Boolean PackKeys = true; // in-memory sorts only
+		public Integer MergeFanIn = 64;
+		public Integer InMemoryMaxRows = 250000; // 0 == always external
+		public ParallelScan.Config Scan = new ParallelScan.Config();
 	}
 
 	// +------------------+
@@ -67,22 +86,52 @@ public class KeySorter implements Closeable
 	public KeyItem readNext() throws IOException {
 		return(reader.readNext());
 	}
+
+	public String getRepertoireName() {
+		return(repertoireName);
+	}
+
+	// With spillResults an in-memory sort still writes its result to a run
+	// file and reads it back from there, rather than holding the sorted
+	// list until it's read. For callers (like an N-way Overlap) that keep
+	// many finished sorters around before reading any of them.
+
+	public void setSpillResults(boolean spillResults) {
+		this.spillResults = spillResults;
+	}
+
+	// total bytes of temp runs written by sort (0 for a cache hit)
+
+	public long getBytesWritten() {
+		return(bytesWritten.get());
+	}
 	
 	// +-----------+
 	// | sortAsync |
-	// | sort      |
 	// +-----------+
 
 	public CompletableFuture<Boolean> sortAsync() {
+		return(sortAllAsync(Collections.singletonList(this)));
+	}
+
+	// +--------------+
+	// | sortAllAsync |
+	// | sortAll      |
+	// +--------------+
+
+	// Sorts several KeySorters over the same repertoire (typically one per
+	// key type) from a single pass over its rows: each row is keyed by every
+	// extractor into its own buffers and runs, and the results are merged,
+	// served and cached exactly as if each had been sorted alone. Sorters
+	// that hit the cache are skipped; config (scan, buffers, in-memory
+	// limit) comes from the first sorter.
+
+	public static CompletableFuture<Boolean> sortAllAsync(List<KeySorter> sorters) {
 		
 		return(Exec.runAsync("sort", new Exec.AsyncOperation() {
 
 			public Boolean execute() throws Exception {
-				if (!fetchFromCache()) {
-					sort();
-					reader = new KeyReader(files.get(0));
-					maybeSaveToCache();
-				}
+				sortAll(sorters);
 				return(true);
 			}
 
@@ -92,76 +141,261 @@ public class KeySorter implements Closeable
 				
 		}));
 	}
-	
-	private void sort() throws Exception {
+
+	private static void sortAll(List<KeySorter> sorters) throws Exception {
+
+		KeySorter first = sorters.get(0);
+		List<KeySorter> todo = new ArrayList<KeySorter>();
+		
+		for (KeySorter sorter : sorters) {
+			
+			if (sorter.crs != first.crs || !sorter.repertoireName.equals(first.repertoireName)) {
+				throw new IllegalArgumentException("sortAll requires sorters over the same repertoire");
+			}
+			
+			if (!sorter.fetchFromCache()) todo.add(sorter);
+		}
+
+		if (todo.size() == 0) return;
+		first = todo.get(0);
+
+		Repertoire rep = first.crs.findRepertoire(first.repertoireName);
+		if (rep == null) throw new Exception("Repertoire " + first.repertoireName + " not found");
+
+		EnumSet<Field> fields = EnumSet.of(Field.Count);
+		for (KeySorter sorter : todo) fields.addAll(sorter.extractor.getFields());
+
+		if (rep.TotalUniques > 0 && rep.TotalUniques <= first.cfg.InMemoryMaxRows) {
+			sortInMemory(todo, rep, fields);
+			return;
+		}
 
 		// 0. Allocate the focus of the action
-		files = new ArrayList<File>();
+		for (KeySorter sorter : todo) sorter.files = new ArrayList<File>();
 
-		// 1. Chunk up the TSV (one thread for simplicity)
-		initialSort();
+		// 1. Chunk up the TSV (in parallel when it splits)
+		initialSort(todo, rep, fields);
 
 		// 2. Iteratively combine chunks until only one left
-		while (files.size() > 1) mergeFiles();
+		for (KeySorter sorter : todo) {
+			
+			if (sorter.files.size() == 0) {
+				// nothing keyed at all
+				List<KeyItem> none = new ArrayList<KeyItem>();
+				sorter.reader = new KeyReader(none);
+				sorter.maybeSaveToCache(none);
+				continue;
+			}
+			
+			while (sorter.files.size() > 1) sorter.mergeFiles();
+			sorter.reader = new KeyReader(sorter.files.get(0));
+			sorter.maybeSaveToCache();
+		}
+	}
+
+	// +--------------+
+	// | prewarmAsync |
+	// +--------------+
+
+	// Sorts and caches the repertoire for each extractor in one pass and
+	// throws the results away, so later requests (e.g. Overlap for any key
+	// type) start from a cache hit. Meant to run in the background right
+	// after a repertoire is received; a no-op if caching is off.
+
+	public static CompletableFuture<Boolean> prewarmAsync(ContextRepertoireStore crs,
+														  String repertoireName,
+														  List<Extractor> extractors,
+														  Config cfg) {
+		
+		return(Exec.runAsync("prewarm", new Exec.AsyncOperation() {
+
+			public Boolean execute() throws Exception {
+
+				if (!cfg.UseCache || extractors.size() == 0) return(true);
+
+				List<KeySorter> sorters = new ArrayList<KeySorter>();
+				
+				try {
+					for (Extractor extractor : extractors) {
+						sorters.add(new KeySorter(crs, repertoireName, extractor, cfg));
+					}
+
+					sortAll(sorters);
+					log.info(String.format("KeySorter prewarmed %d keys for %s",
+										   extractors.size(), repertoireName));
+					return(true);
+				}
+				finally {
+					for (KeySorter sorter : sorters) Utility.safeClose(sorter);
+				}
+			}
+
+			public Boolean exceptionResult() {
+				return(false);
+			}
+				
+		}));
+	}
+
+	// +--------------+
+	// | sortInMemory |
+	// +--------------+
+
+	// Most repertoires have few enough rows that we can just count keys in
+	// maps and sort once, skipping temp files entirely. sortAll goes by the
+	// row count stored on the repertoire (an upper bound on distinct keys)
+	// and only comes here if that's under InMemoryMaxRows.
+
+	private static void sortInMemory(List<KeySorter> sorters, Repertoire rep,
+									 EnumSet<Field> fields) throws Exception {
+
+		KeySorter first = sorters.get(0);
+		
+		List<List<Map<String,KeyItem>>> partials =
+			ParallelScan.scan(first.cfg.Scan, first.crs, rep, fields, (rdr) -> countChunk(sorters, rdr));
+
+		for (int isorter = 0; isorter < sorters.size(); ++isorter) {
+
+			KeySorter sorter = sorters.get(isorter);
+			Map<String,KeyItem> counts = partials.get(0).get(isorter);
+
+			for (int i = 1; i < partials.size(); ++i) {
+				for (KeyItem item : partials.get(i).get(isorter).values()) {
+					KeyItem existing = counts.get(item.getKey());
+					if (existing == null) counts.put(item.getKey(), item);
+					else existing.accumulateCount(item.getCount());
+				}
+			}
+
+			List<KeyItem> items = new ArrayList<KeyItem>(counts.values());
+			Collections.sort(items);
+
+			log.finest(String.format("sortInMemory: %s sorted %d keys", sorter.repertoireName, items.size()));
+
+			if (sorter.spillResults) {
+				sorter.files = new ArrayList<File>();
+				sorter.writeItemsFile(items);
+				sorter.reader = new KeyReader(sorter.files.get(0));
+				sorter.maybeSaveToCache();
+			}
+			else {
+				sorter.reader = new KeyReader(items);
+				sorter.maybeSaveToCache(items);
+			}
+		}
+	}
+
+	private void writeItemsFile(List<KeyItem> items) throws Exception {
+
+		KeyWriter wtr = null;
+
+		try {
+			File file = Files.createTempFile(workingPath, "vdj", ".run").toFile();
+			file.deleteOnExit();
+			addFile(file);
+			
+			wtr = new KeyWriter(file);
+			for (KeyItem item : items) wtr.write(item);
+
+			wtr.close();
+			wtr = null;
+
+			bytesWritten.addAndGet(file.length());
+		}
+		finally {
+			if (wtr != null) Utility.safeClose(wtr);
+		}
+	}
+
+	private static List<Map<String,KeyItem>> countChunk(List<KeySorter> sorters,
+														RowReader rdr) throws Exception {
+
+		List<Map<String,KeyItem>> counts = new ArrayList<Map<String,KeyItem>>();
+		for (int i = 0; i < sorters.size(); ++i) counts.add(new HashMap<String,KeyItem>());
+		
+		Rearrangement r = new Rearrangement();
+
+		while (rdr.readNextInto(r)) {
+
+			for (int i = 0; i < sorters.size(); ++i) {
+				
+				KeySorter sorter = sorters.get(i);
+				String key = sorter.extractor.extract(r);
+				if (Utility.nullOrEmpty(key)) continue;
+
+				KeyItem item = counts.get(i).get(key);
+				if (item == null) counts.get(i).put(key, new KeyItem(key, r.Count, sorter.cfg.PackKeys));
+				else item.accumulateCount(r.Count);
+			}
+		}
+
+		return(counts);
 	}
 
 	// +------------+
 	// | mergeFiles |
 	// +------------+
 
-	// spawn threads to merge by twos. Note that while typically we can
-	// count on close() to clean up temp files, once we pop them off of
-	// the list, they're our problem to deal with.
+	// Merges up to cfg.MergeFanIn runs at a time with a k-way merge; with
+	// the default fan-in that's a single pass for all but enormous inputs,
+	// so each entry is rewritten once rather than once per round of
+	// pairwise merging. Groups merge on separate threads. Note that while
+	// typically we can count on close() to clean up temp files, once we
+	// pop them off of the list, they're our problem to deal with.
 
 	private void mergeFiles() throws Exception {
 
 		List<File> mergeFiles = popAllFiles();
+		List<File> stragglers = new ArrayList<File>();
 
 		try {
 
-			// spin up threads to merge file pair
-			int threadCount = (mergeFiles.size() / 2); // ok if odd or even
+			int fanIn = Math.max(2, cfg.MergeFanIn);
+			int groupCount = (mergeFiles.size() + fanIn - 1) / fanIn;
 			List<CompletableFuture<Boolean>> futures = new ArrayList<CompletableFuture<Boolean>>();
+
+			for (int i = 0; i < groupCount; ++i) {
+				
+				List<File> group = mergeFiles.subList(mergeFiles.size() * i / groupCount,
+													  mergeFiles.size() * (i + 1) / groupCount);
 				
-			for (int i = 0; i < threadCount; ++i) {
-				futures.add(mergeFilePairAsync(mergeFiles.get(i * 2),
-											   mergeFiles.get((i * 2) + 1)));
+				if (group.size() == 1) {
+					// straggler; put it back, being sure to keep it out of
+					// the cleanup below!
+					File fileStraggler = group.get(0);
+					log.finest(String.format("mergeFiles straggler: %s", fileStraggler.getName()));
+					stragglers.add(fileStraggler);
+					addFile(fileStraggler);
+					continue;
+				}
+				
+				futures.add(mergeRunsAsync(new ArrayList<File>(group)));
 			}
 
 			// wait for them to be done ... ok to do serially like this
-			for (int i = 0; i < threadCount; ++i) {
-				if (!futures.get(i).get()) throw new Exception("Failed merging pair");
-			}
-			
-			if ((threadCount * 2) != mergeFiles.size()) {
-				// oops we had an odd # of files to merge; put the straggler back,
-				// being sure to remove it from our list so we don't clean it up!
-				File fileStraggler = mergeFiles.get(mergeFiles.size() - 1);
-				log.finest(String.format("mergeFiles straggler: %s", fileStraggler.getName()));
-
-				mergeFiles.remove(fileStraggler);
-				addFile(fileStraggler);
+			for (CompletableFuture<Boolean> future : futures) {
+				if (!future.get()) throw new Exception("Failed merging runs");
 			}
-			
 		}
 		finally {
+			mergeFiles.removeAll(stragglers);
 			cleanupFiles(mergeFiles);
 		}
 	}
 
-	// +--------------------+
-	// | mergeFilePairAsync |
-	// | mergeFilePair      |
-	// +--------------------+
+	// +----------------+
+	// | mergeRunsAsync |
+	// | mergeRuns      |
+	// +----------------+
 
-	// merge and dedup two files, putting the result back onto this.files
+	// merge and dedup runs, putting the result back onto this.files
 	
-	private CompletableFuture<Boolean> mergeFilePairAsync(File f1, File f2) {
+	private CompletableFuture<Boolean> mergeRunsAsync(List<File> runs) {
 		
-		return(Exec.runAsync("search", new Exec.AsyncOperation() {
+		return(Exec.runAsync("mergeRuns", new Exec.AsyncOperation() {
 
 			public Boolean execute() throws Exception {
-				mergeFilePair(f1, f2);
+				mergeRuns(runs);
 				return(true);
 			}
 
@@ -172,151 +406,194 @@ public class KeySorter implements Closeable
 		}));
 	}
 
-	private void mergeFilePair(File f1, File f2) throws IOException {
+	private void mergeRuns(List<File> runs) throws IOException {
 		
-		log.finest(String.format("mergeFilePair: f1=%s, f2=%s", f1.getName(), f2.getName()));
+		log.finest(String.format("mergeRuns: %d runs", runs.size()));
 
-		KeyReader rdr1 = null;
-		KeyReader rdr2 = null;
+		List<RunReader> readers = new ArrayList<RunReader>();
 		KeyWriter wtr = null;
 
 		try {
 
-			rdr1 = new KeyReader(f1);
-			rdr2 = new KeyReader(f2);
+			// heap of readers ordered by their current key
+			
+			PriorityQueue<RunReader> heap =
+				new PriorityQueue<RunReader>(runs.size(), (r1, r2) -> compareKeys(r1, r2));
+
+			for (File run : runs) {
+				RunReader rdr = new RunReader(run);
+				readers.add(rdr);
+				if (rdr.next()) heap.add(rdr);
+			}
 
-			File fileMerged = Files.createTempFile(workingPath, "vdj", ".txt").toFile();
+			File fileMerged = Files.createTempFile(workingPath, "vdj", ".run").toFile();
 			fileMerged.deleteOnExit();
 			wtr = new KeyWriter(fileMerged);
 
-			KeyItem item1 = rdr1.readNext();
-			KeyItem item2 = rdr2.readNext();
+			// equal keys come off the heap back to back; hold each one
+			// until we see a different key so we can accumulate counts
 
-			// write out in order, de-duping
-			while (item1 != null && item2 != null) {
-				
-				int icmp = item1.compareTo(item2);
-				
-				if (icmp == 0) {
-					item1.accumulateCount(item2.getCount());
-					item2 = rdr2.readNext();
-				}
-				else if (icmp < 0) {
-					wtr.write(item1);
-					item1 = rdr1.readNext();
+			byte[] pending = new byte[64];
+			int pendingLen = -1;
+			long pendingCount = 0L;
+
+			while (!heap.isEmpty()) {
+
+				RunReader rdr = heap.poll();
+				byte[] key = rdr.getKeyBytes();
+				int keyLen = rdr.getKeyLength();
+
+				if (pendingLen != -1 &&
+					Arrays.equals(pending, 0, pendingLen, key, 0, keyLen)) {
+					
+					pendingCount += rdr.getCount();
 				}
 				else {
-					wtr.write(item2);
-					item2 = rdr2.readNext();
+					if (pendingLen != -1) wtr.write(pending, pendingLen, pendingCount);
+					
+					if (keyLen > pending.length) pending = new byte[Math.max(keyLen, pending.length * 2)];
+					System.arraycopy(key, 0, pending, 0, keyLen);
+					pendingLen = keyLen;
+					pendingCount = rdr.getCount();
 				}
+
+				if (rdr.next()) heap.add(rdr);
 			}
 
-			// spit out the balance
-			
-			while (item1 != null) { wtr.write(item1); item1 = rdr1.readNext(); }
-			while (item2 != null) {	wtr.write(item2); item2 = rdr2.readNext(); }
+			if (pendingLen != -1) wtr.write(pending, pendingLen, pendingCount);
 
 			// and done!
 
-			log.finest(String.format("mergeFilePair: adding merged file %s", fileMerged.getName()));
+			wtr.close();
+			wtr = null;
+			
+			bytesWritten.addAndGet(fileMerged.length());
+			log.finest(String.format("mergeRuns: adding merged file %s", fileMerged.getName()));
 			addFile(fileMerged);
 		}
 		finally {
-			if (rdr2 != null) Utility.safeClose(rdr2);
-			if (rdr1 != null) Utility.safeClose(rdr1);
+			for (RunReader rdr : readers) Utility.safeClose(rdr);
 			if (wtr != null) Utility.safeClose(wtr);
 		}
 	}
 
+	private static int compareKeys(RunReader r1, RunReader r2) {
+		return(Arrays.compareUnsigned(r1.getKeyBytes(), 0, r1.getKeyLength(),
+									  r2.getKeyBytes(), 0, r2.getKeyLength()));
+	}
+
 	// +-------------+
 	// | initialSort |
 	// +-------------+
 
-	// Fills this.files with a list of files. Each file is a chunk of the original
-	// TSV content, keyed, deduped and counted.
+	// Fills each sorter's files with a list of files. Each file is a chunk of
+	// the original TSV content, keyed, deduped and counted. The repertoire is
+	// split with ParallelScan so each chunk is read, keyed, sorted and written
+	// on its own thread. Each thread buffers keys for every sorter in its own
+	// SortBuffer (sharing one grant from the budget) and spills a run for a
+	// sorter whenever its buffer fills.
 	
-	private void initialSort() throws Exception {
+	private static void initialSort(List<KeySorter> sorters, Repertoire rep,
+									EnumSet<Field> fields) throws Exception {
+
+		KeySorter first = sorters.get(0);
+		int maxEntries = Math.max(1, first.cfg.InitialChunkSize / Math.max(1, first.cfg.Scan.MaxChunks));
 
-		InputStream stm = null;
-		InputStreamReader rdr = null;
-		TsvReader tsv = null;
+		ParallelScan.scan(first.cfg.Scan, first.crs, rep, fields,
+						  (rdr) -> initialSortChunk(sorters, rdr, maxEntries));
+	}
+
+	private static Integer initialSortChunk(List<KeySorter> sorters, RowReader rdr,
+											int maxEntries) throws Exception {
+
+		Config cfg = sorters.get(0).cfg;
+		int cbuf = sorters.size();
 		
-		try {
+		// our share of the sort memory, less if others are sorting too
+		long wantBytes = cfg.SortBufferBytes / Math.max(1, cfg.Scan.MaxChunks);
+		long minBytes = Math.min(wantBytes, MIN_SORT_BUFFER_BYTES);
+		
+		SortBuffer.Budget budget = getBudget(cfg);
+		long grantBytes = budget.acquire(wantBytes, minBytes);
 
-			stm = crs.getRepertoireStream(repertoireName);
-			rdr = new InputStreamReader(stm);
-			tsv = new TsvReader(rdr, 0);
+		try {
+			SortBuffer[] buffers = new SortBuffer[cbuf];
+			for (int i = 0; i < cbuf; ++i) {
+				buffers[i] = new SortBuffer(grantBytes / cbuf, maxEntries, cfg.OffHeapBuffers);
+			}
 			
-			KeyItem[] items = new KeyItem[cfg.InitialChunkSize];
-			Rearrangement r;
-
-			while (true) {
-
-				// read the next chunk
-				int count = 0;
-				while ((r = tsv.readNext()) != null) {
-					String key = extractor.extract(r);
-					if (!Utility.nullOrEmpty(key)) {
-						items[count++] = new KeyItem(key, r.Count);
-						if (count == cfg.InitialChunkSize) break;
+			Rearrangement r = new Rearrangement();
+			int files = 0;
+
+			while (rdr.readNextInto(r)) {
+
+				for (int i = 0; i < cbuf; ++i) {
+					
+					String key = sorters.get(i).extractor.extract(r);
+					if (Utility.nullOrEmpty(key)) continue;
+
+					if (!buffers[i].add(key, r.Count)) {
+						sorters.get(i).writeInitialSortFile(buffers[i]);
+						++files;
+					
+						if (!buffers[i].add(key, r.Count)) {
+							throw new Exception(String.format("Key too large for %d byte sort buffer",
+															  grantBytes / cbuf));
+						}
 					}
 				}
+			}
 
-				if (count == 0) break;
-				
-				// sort it
-				Arrays.sort(items, 0, count);
-
-				// and write it out
-				File file = writeToInitialSortFile(items, count);
-				log.finest(String.format("initialSort: adding file %s with count %d",
-										 file.getName(), count));
-				addFile(file);
+			for (int i = 0; i < cbuf; ++i) {
+				if (buffers[i].size() > 0) {
+					sorters.get(i).writeInitialSortFile(buffers[i]);
+					++files;
+				}
 			}
+
+			return(files);
 		}
 		finally {
-			
-			if (tsv != null) Utility.safeClose(tsv);
-			if (rdr != null) Utility.safeClose(rdr);
-			if (stm != null) Utility.safeClose(stm);
+			budget.release(grantBytes);
 		}
 	}
 
-	private File writeToInitialSortFile(KeyItem[] items, int count) throws Exception {
+	private void writeInitialSortFile(SortBuffer buffer) throws Exception {
 
 		KeyWriter wtr = null;
 
-		if (count == 0) throw new Exception("0 count file in key sorter");
-			
 		try {
-			File file = Files.createTempFile(workingPath, "vdj", ".txt").toFile();
+			File file = Files.createTempFile(workingPath, "vdj", ".run").toFile();
 			file.deleteOnExit();
 			wtr = new KeyWriter(file);
 
-			KeyItem lastItem = items[0];
-			for (int i = 1; i < count; ++i) {
-				
-				KeyItem curItem = items[i];
-				
-				if (lastItem.compareTo(curItem) == 0) {
-					lastItem.accumulateCount(curItem.getCount());
-				}
-				else {
-					wtr.write(lastItem);
-					lastItem = curItem;
-				}
-			}
+			buffer.sort();
+			int written = buffer.writeTo(wtr);
 
-			wtr.write(lastItem);
+			wtr.close();
+			wtr = null;
 
-			return(file);
+			bytesWritten.addAndGet(file.length());
+			log.finest(String.format("initialSort: adding file %s with %d of %d keys (%d bytes buffered)",
+									 file.getName(), written, buffer.size(), buffer.getUsedBytes()));
+			addFile(file);
+
+			buffer.clear();
 		}
 		finally {
-
 			if (wtr != null) Utility.safeClose(wtr);
 		}
 	}
 
+	// Shared by every KeySorter (and OverlapHashJoin) in the process,
+	// sized by the first config that asks for it (in practice they all
+	// come from the same server config anyway).
+
+	static synchronized SortBuffer.Budget getBudget(Config cfg) {
+		if (budget == null) budget = new SortBuffer.Budget(cfg.SortMemoryBudgetBytes);
+		return(budget);
+	}
+
 	// +------------------+
 	// | fetchFromCache   |
 	// | maybeSaveToCache |
@@ -330,11 +607,45 @@ public class KeySorter implements Closeable
 		InputStream stm = crs.getSecondaryStream(repertoireName, cacheKey);
 		if (stm == null) return(false);
 
+		try {
+			reader = new KeyReader(stm);
+		}
+		catch (IOException e) {
+			// probably an old-format cache; it'll be replaced when we save
+			log.info(String.format("KeySorter ignoring cache for %s/%s: %s",
+								   repertoireName, cacheKey, e.getMessage()));
+			Utility.safeClose(stm);
+			return(false);
+		}
+
 		log.info(String.format("KeySorter cache hit for %s/%s", repertoireName, cacheKey));
-		reader = new KeyReader(stm);
 		return(true);
 	}
 
+	// true if sortAsync would be a cache hit
+
+	public boolean isCached() {
+
+		if (!cfg.UseCache) return(false);
+
+		InputStream stm = crs.getSecondaryStream(repertoireName, getCacheKey());
+		if (stm == null) return(false);
+
+		RunReader rdr = null;
+		
+		try {
+			rdr = new RunReader(stm);
+			return(true);
+		}
+		catch (IOException e) {
+			return(false);
+		}
+		finally {
+			if (rdr != null) Utility.safeClose(rdr);
+			Utility.safeClose(stm);
+		}
+	}
+
 	private void maybeSaveToCache() {
 
 		if (!cfg.UseCache) return;
@@ -349,6 +660,32 @@ public class KeySorter implements Closeable
 		}
 	}
 
+	private void maybeSaveToCache(List<KeyItem> items) {
+
+		if (!cfg.UseCache) return;
+
+		OutputStream stm = null;
+		KeyWriter wtr = null;
+		
+		try {
+			String cacheKey = getCacheKey();
+			stm = crs.getSecondarySaveStream(repertoireName, cacheKey);
+			if (stm == null) return;
+			
+			wtr = new KeyWriter(stm);
+			for (KeyItem item : items) wtr.write(item);
+			
+			log.info(String.format("KeySorter cached result for %s/%s", repertoireName, cacheKey));
+		}
+		catch (Exception e) {
+			log.warning(Utility.exMsg(e, "KeySorter save to cache (non-fatal)", true));
+		}
+		finally {
+			if (wtr != null) Utility.safeClose(wtr);
+			if (stm != null) Utility.safeClose(stm);
+		}
+	}
+
 	private String getCacheKey() {
 		return("keySorter-" + extractor.getClass().getName());
 	}
@@ -357,24 +694,35 @@ public class KeySorter implements Closeable
 	// | KeyItem |
 	// +---------+
 
+	// Nucleotide keys can be held as PackedSequences while they sit in the
+	// initial sort buffer; that's a quarter of the memory and compares a
+	// word at a time. PackedSequence orders the same way String does, so
+	// packed and unpacked items sort together just fine.
+
 	public static class KeyItem implements Comparable<KeyItem>
 	{
 		public KeyItem(String key, long initialCount) {
-			this.key = key;
+			this(key, initialCount, false);
+		}
+		
+		public KeyItem(String key, long initialCount, boolean pack) {
+			this.packed = (pack ? PackedSequence.pack(key) : null);
+			this.key = (packed == null ? key : null);
 			this.count = initialCount;
 		}
 
-		public String getKey() { return(key); }
+		public String getKey() { return(key == null ? packed.toString() : key); }
 		public long getCount() { return(count); }
 
 		public void accumulateCount(long addCount) { count += addCount; }
 		
 		public int compareTo(KeyItem item) {
-			return(key.compareTo(item.getKey()));
+			if (packed != null && item.packed != null) return(packed.compareTo(item.packed));
+			return(getKey().compareTo(item.getKey()));
 		}
 
 		public String toString() {
-			return(String.format("%s\t%d", key, count));
+			return(String.format("%s\t%d", getKey(), count));
 		}
 
 		public static KeyItem fromString(String input) {
@@ -384,6 +732,7 @@ public class KeySorter implements Closeable
 		}
 
 		String key;
+		PackedSequence packed;
 		long count;
 	}
 
@@ -420,6 +769,118 @@ public class KeySorter implements Closeable
 		}
 	}
 
+	// +------------+
+	// | Run Format |
+	// +------------+
+
+	// Sorted runs (temp files and the cached result) are binary:
+	//
+	//   MAGIC VERSION
+	//   entries: varint shared, varint suffixLen, suffix bytes, varint count
+	//
+	// where shared is the number of leading key bytes in common with the
+	// previous entry (runs are sorted, so that's often most of the key).
+	// Keys are UTF-8; merges compare them as unsigned bytes, which orders
+	// the same as String.compareTo for anything outside the surrogate
+	// range (and our keys are all ASCII anyway). Anything that doesn't
+	// start with the magic + version (e.g. an old text-format cache file)
+	// is rejected and the sort redone.
+
+	private final static int RUN_MAGIC = 0x564B5352; // "VKSR"
+	private final static int RUN_VERSION = 1;
+	private final static int RUN_BUFFER_SIZE = 64 * 1024;
+
+	private final static long MIN_SORT_BUFFER_BYTES = 1024L * 1024L;
+
+	// +-----------+
+	// | RunReader |
+	// +-----------+
+
+	// raw access for merging; key bytes are only valid until the next call
+
+	public static class RunReader implements Closeable
+	{
+		public RunReader(InputStream stm) throws IOException {
+			this.stm = stm;
+			this.in = new BufferedInputStream(stm, RUN_BUFFER_SIZE);
+			this.key = new byte[64];
+			this.keyLen = 0;
+			this.count = 0L;
+
+			int magic = 0;
+			for (int i = 0; i < 4; ++i) magic = (magic << 8) | readByte();
+
+			if (magic != RUN_MAGIC) throw new IOException("not a key sorter run");
+			if (readVarLong() != RUN_VERSION) throw new IOException("unknown key sorter run version");
+		}
+
+		public RunReader(File file) throws IOException {
+			this(new FileInputStream(file));
+		}
+
+		public boolean next() throws IOException {
+
+			int b = in.read();
+			if (b == -1) return(false);
+
+			int shared = (int) readVarLong(b);
+			int suffixLen = (int) readVarLong();
+
+			keyLen = shared + suffixLen;
+			if (keyLen > key.length) key = Arrays.copyOf(key, Math.max(keyLen, key.length * 2));
+			
+			readFully(key, shared, suffixLen);
+			count = readVarLong();
+
+			return(true);
+		}
+
+		public byte[] getKeyBytes() { return(key); }
+		public int getKeyLength() { return(keyLen); }
+		public long getCount() { return(count); }
+
+		public void close() {
+			Utility.safeClose(in);
+			Utility.safeClose(stm);
+		}
+
+		private int readByte() throws IOException {
+			int b = in.read();
+			if (b == -1) throw new EOFException();
+			return(b);
+		}
+
+		private long readVarLong() throws IOException {
+			return(readVarLong(readByte()));
+		}
+
+		private long readVarLong(int b) throws IOException {
+			long l = b & 0x7F;
+			int shift = 7;
+			while ((b & 0x80) != 0) {
+				b = readByte();
+				l |= ((long) (b & 0x7F)) << shift;
+				shift += 7;
+			}
+			return(l);
+		}
+
+		private void readFully(byte[] rgb, int ib, int cb) throws IOException {
+			while (cb > 0) {
+				int cbRead = in.read(rgb, ib, cb);
+				if (cbRead == -1) throw new EOFException();
+				ib += cbRead;
+				cb -= cbRead;
+			}
+		}
+
+		private InputStream stm;
+		private BufferedInputStream in;
+		private byte[] key;
+		private int keyLen;
+		private long count;
+	}
+
 	// +-----------+
 	// | KeyReader |
 	// +-----------+
@@ -427,30 +888,32 @@ public class KeySorter implements Closeable
 	public static class KeyReader implements Closeable
 	{
 		public KeyReader(InputStream stm) throws IOException {
-			this.stm = stm;
-			rdr = new InputStreamReader(stm);
-			buf = new BufferedReader(rdr);
+			rdr = new RunReader(stm);
 		}
 		
 		public KeyReader(File file) throws IOException {
-			rdr = new FileReader(file);
-			buf = new BufferedReader(rdr);
+			rdr = new RunReader(file);
+		}
+
+		// already sorted and deduped
+
+		public KeyReader(List<KeyItem> items) {
+			this.items = items.iterator();
 		}
 
 		public KeyItem readNext() throws IOException {
-			String line = buf.readLine();
-			return(line == null ? null : KeyItem.fromString(line));
+			if (items != null) return(items.hasNext() ? items.next() : null);
+			if (!rdr.next()) return(null);
+			String key = new String(rdr.getKeyBytes(), 0, rdr.getKeyLength(), StandardCharsets.UTF_8);
+			return(new KeyItem(key, rdr.getCount()));
 		}
 
 		public void close() {
-			if (buf != null) Utility.safeClose(buf);
 			if (rdr != null) Utility.safeClose(rdr);
-			if (stm != null) Utility.safeClose(stm);
 		}
 
-		private InputStream stm;
-		private InputStreamReader rdr;
-		private BufferedReader buf;
+		private RunReader rdr;
+		private Iterator<KeyItem> items;
 	}
 
 	// +-----------+
@@ -460,23 +923,60 @@ public class KeySorter implements Closeable
 	public static class KeyWriter implements Closeable
 	{
 		public KeyWriter(File file) throws IOException {
+			this(new FileOutputStream(file));
+		}
+
+		// takes ownership of stm
+		
+		public KeyWriter(OutputStream stm) throws IOException {
 			
-			wtr = new FileWriter(file);
-			buf = new BufferedWriter(wtr);
+			this.stm = stm;
+			out = new BufferedOutputStream(stm, RUN_BUFFER_SIZE);
+			prev = new byte[64];
+			prevLen = 0;
+
+			for (int shift = 24; shift >= 0; shift -= 8) out.write((RUN_MAGIC >>> shift) & 0xFF);
+			writeVarLong(RUN_VERSION);
 		}
 
 		public void write(KeyItem item) throws IOException {
-			buf.write(item.toString());
-			buf.newLine();
+			byte[] rgb = item.getKey().getBytes(StandardCharsets.UTF_8);
+			write(rgb, rgb.length, item.getCount());
+		}
+
+		public void write(byte[] key, int keyLen, long count) throws IOException {
+
+			int shared = 0;
+			int sharedMax = Math.min(keyLen, prevLen);
+			while (shared < sharedMax && key[shared] == prev[shared]) ++shared;
+
+			writeVarLong(shared);
+			writeVarLong(keyLen - shared);
+			out.write(key, shared, keyLen - shared);
+			writeVarLong(count);
+
+			if (keyLen > prev.length) prev = Arrays.copyOf(prev, Math.max(keyLen, prev.length * 2));
+			System.arraycopy(key, shared, prev, shared, keyLen - shared);
+			prevLen = keyLen;
 		}
 
 		public void close() {
-			if (buf != null) Utility.safeClose(buf);
-			if (wtr != null) Utility.safeClose(wtr);
+			if (out != null) Utility.safeClose(out);
+			if (stm != null) Utility.safeClose(stm);
 		}
 
-		public FileWriter wtr;
-		public BufferedWriter buf;
+		private void writeVarLong(long l) throws IOException {
+			while ((l & ~0x7FL) != 0) {
+				out.write((int) ((l & 0x7F) | 0x80));
+				l >>>= 7;
+			}
+			out.write((int) l);
+		}
+
+		private OutputStream stm;
+		private BufferedOutputStream out;
+		private byte[] prev;
+		private int prevLen;
 	}
 
 	// +---------+
@@ -492,6 +992,10 @@ public class KeySorter implements Closeable
 	private List<File> files;
 
 	private KeyReader reader;
+	private boolean spillResults = false;
+	private AtomicLong bytesWritten = new AtomicLong(0);
+
+	private static SortBuffer.Budget budget = null;
 	
 	private final static Logger log = Logger.getLogger(KeySorter.class.getName());
 }
@@ -4,10 +4,15 @@
 
 package com.shutdownhook.vdj.vdjlib;
 
+import java.util.Arrays;
+import java.util.EnumSet;
 import java.util.logging.Logger;
 
 import com.shutdownhook.vdj.vdjlib.RearrangementKey.Extractor;
 import com.shutdownhook.vdj.vdjlib.RearrangementKey.Matcher;
+import com.shutdownhook.vdj.vdjlib.RearrangementKey.MultiMatcher;
+import com.shutdownhook.vdj.vdjlib.TsvReader.Field;
+import com.shutdownhook.vdj.vdjlib.model.PackedSequence;
 import com.shutdownhook.vdj.vdjlib.model.Rearrangement;
 
 public class MrdEngine
@@ -29,11 +34,16 @@ public class MrdEngine
 	// | getExtractor |
 	// +--------------+
 
+	public final static EnumSet<Field> MRD_FIELDS = EnumSet.of(Field.Rearrangement, Field.JIndex);
+	
 	public Extractor getExtractor() {
 		return(new Extractor() {
 			public String extract(Rearrangement r) {
 				return(Integer.toString(getIchJ(r)) + ":" + r.Rearrangement);
 			}
+			public EnumSet<Field> getFields() {
+				return(MRD_FIELDS);
+			}
 		});
 	}
 	
@@ -53,12 +63,63 @@ public class MrdEngine
 				
 			public boolean matches(String searchString, String keyString) {
 				
-				ParsedMrdString s = parseMrdString(searchString);
 				ParsedMrdString k = parseMrdString(keyString);
+				return(matchSearch(getSearch(searchString), k, ByteKernel.encode(k.Rearrangement)));
+			}
+
+			// parse and encode each key once for the whole batch
+			
+			public MultiMatcher compile(String[] searchStrings) {
 
-				return(match(s.Rearrangement, s.IchJ, k.Rearrangement, k.IchJ));
+				MrdSearch[] searches = new MrdSearch[searchStrings.length];
+				for (int i = 0; i < searchStrings.length; ++i) {
+					searches[i] = new MrdSearch(searchStrings[i], parseMrdString(searchStrings[i]));
+				}
+
+				return(new MultiMatcher() {
+					public int[] matches(String keyString) {
+						
+						ParsedMrdString k = parseMrdString(keyString);
+						byte[] rgbKey = ByteKernel.encode(k.Rearrangement);
+						
+						int[] hits = null;
+						int hitCount = 0;
+						
+						for (int i = 0; i < searches.length; ++i) {
+							if (matchSearch(searches[i], k, rgbKey)) {
+								if (hits == null) hits = new int[searches.length];
+								hits[hitCount++] = i;
+							}
+						}
+						
+						return(hits == null ? null : Arrays.copyOf(hits, hitCount));
+					}
+				});
 			}
 
+			private boolean matchSearch(MrdSearch s, ParsedMrdString k, byte[] rgbKey) {
+				
+				if (s.Bytes != null && rgbKey != null) {
+					return(match(s.Bytes, s.Parsed.IchJ, rgbKey, k.IchJ));
+				}
+				
+				return(matchChars(s.Parsed.Rearrangement, s.Parsed.IchJ, k.Rearrangement, k.IchJ));
+			}
+
+			// matchers are shared across scan threads; MrdSearch is
+			// immutable so a racing thread at worst parses it again
+			
+			private MrdSearch getSearch(String searchString) {
+				MrdSearch search = lastSearch;
+				if (search == null || !search.Search.equals(searchString)) {
+					search = new MrdSearch(searchString, parseMrdString(searchString));
+					lastSearch = search;
+				}
+				return(search);
+			}
+
+			private volatile MrdSearch lastSearch;
+
 			private ParsedMrdString parseMrdString(String input) {
 				ParsedMrdString parsed = new ParsedMrdString();
 				parsed.IchJ = 0;
@@ -82,6 +143,19 @@ public class MrdEngine
 		});
 	}
 	
+	private static class MrdSearch
+	{
+		public MrdSearch(String search, ParsedMrdString parsed) {
+			this.Search = search;
+			this.Parsed = parsed;
+			this.Bytes = ByteKernel.encode(parsed.Rearrangement);
+		}
+
+		public final String Search;
+		public final ParsedMrdString Parsed;
+		public final byte[] Bytes;
+	}
+	
 	// +-------+
 	// | match |
 	// +-------+
@@ -93,14 +167,84 @@ public class MrdEngine
 	// minimum match, which caused "compression" errors where very short sequences
 	// over-matched; so we parameterize that here. Note if either rearrangment doesn't
 	// call a J index, we just match from the J side edge.
+	//
+	// Comparisons run a word at a time. Rearrangements compare as
+	// PackedSequences (case-folded, same as the lowercasing below), which
+	// each one packs on first use and keeps, so rows compared over and over
+	// (e.g. Tracking's seen list) only pay for packing once. Anything that
+	// won't pack, and raw strings, compare as ASCII bytes (see ByteKernel);
+	// the character loop is only for sequences that aren't ASCII.
 
 	public boolean match(Rearrangement r1, Rearrangement r2) {
+
+		PackedSequence p1 = r1.getPackedRearrangement();
+		PackedSequence p2 = r2.getPackedRearrangement();
+
+		if (p1 != null && p2 != null) return(match(p1, getIchJ(r1), p2, getIchJ(r2)));
 		
 		return(match(r1.Rearrangement, getIchJ(r1), r2.Rearrangement, getIchJ(r2)));
 	}
 	
 	public boolean match(String r1, int ichJ1, String r2, int ichJ2) {
 
+		byte[] rgb1 = ByteKernel.encode(r1);
+		byte[] rgb2 = ByteKernel.encode(r2);
+
+		if (rgb1 != null && rgb2 != null) return(match(rgb1, ichJ1, rgb2, ichJ2));
+
+		return(matchChars(r1, ichJ1, r2, ichJ2));
+	}
+
+	public boolean match(byte[] r1, int ichJ1, byte[] r2, int ichJ2) {
+
+		int cch1 = r1.length;
+		int cch2 = r2.length;
+
+		int ichJ1Real = ichJ1;
+		int ichJ2Real = ichJ2;
+		
+		if (ichJ1 < 0 || ichJ1 >= cch1 || ichJ2 < 0 || ichJ2 >= cch2) {
+			ichJ1Real = cch1;
+			ichJ2Real = cch2;
+		}
+
+		int cchRight = Math.min(cch1 - ichJ1Real, cch2 - ichJ2Real);
+		int cchLeft = Math.min(ichJ1Real, ichJ2Real);
+
+		if (cchRight + cchLeft < cfg.MinMatchLength) return(false);
+
+		if (ByteKernel.matchingRight(r1, ichJ1Real, r2, ichJ2Real, cchRight, true) < cchRight) return(false);
+		if (ByteKernel.matchingLeft(r1, ichJ1Real, r2, ichJ2Real, cchLeft, true) < cchLeft) return(false);
+
+		return(true);
+	}
+
+	public boolean match(PackedSequence r1, int ichJ1, PackedSequence r2, int ichJ2) {
+
+		int cch1 = r1.length();
+		int cch2 = r2.length();
+
+		int ichJ1Real = ichJ1;
+		int ichJ2Real = ichJ2;
+		
+		if (ichJ1 < 0 || ichJ1 >= cch1 || ichJ2 < 0 || ichJ2 >= cch2) {
+			ichJ1Real = cch1;
+			ichJ2Real = cch2;
+		}
+
+		int cchRight = Math.min(cch1 - ichJ1Real, cch2 - ichJ2Real);
+		int cchLeft = Math.min(ichJ1Real, ichJ2Real);
+
+		if (cchRight + cchLeft < cfg.MinMatchLength) return(false);
+
+		if (r1.matchingRight(ichJ1Real, r2, ichJ2Real, cchRight) < cchRight) return(false);
+		if (r1.matchingLeft(ichJ1Real, r2, ichJ2Real, cchLeft) < cchLeft) return(false);
+
+		return(true);
+	}
+	
+	private boolean matchChars(String r1, int ichJ1, String r2, int ichJ2) {
+
 		// align on J index (or J edge if necessary)
 		int cch1 = r1.length();
 		int cch2 = r2.length();
@@ -151,7 +295,7 @@ public class MrdEngine
 	// | Helpers |
 	// +---------+
 		
-	private static int getIchJ(Rearrangement r) {
+	public static int getIchJ(Rearrangement r) {
 		int cch = r.Rearrangement.length();
 		return(r.JIndex < 0 || r.JIndex > cch ? cch : r.JIndex);
 	}
@@ -6,12 +6,11 @@ package com.shutdownhook.vdj.vdjlib;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.concurrent.CompletableFuture;
 import java.util.logging.Logger;
 
@@ -29,10 +28,17 @@ public class Overlap
 
 	public static class Config
 	{
-		public Integer MaxRepertoires = 6;
+		public Integer MaxRepertoires = 200;
+		public Integer MaxConcurrentSorts = 8;
+		public Long MaxRetainedSortRows = 1000000L; // see overlap
 		public Integer MaxStandardOverlaps = 1000;
 		public Integer MaxCombinedKeyLength = 1024;
 		public KeySorter.Config KeySorter = new KeySorter.Config();
+
+		// see useHashJoin
+		public OverlapEngine Engine = OverlapEngine.Auto;
+		public Long HashMinRows = 250000L;
+		public Integer HashMaxPartitionFiles = 128; // all open while spilling
 	}
 
 	public Overlap(Config cfg) {
@@ -49,11 +55,23 @@ public class Overlap
 		Standard,
 
 		/* return all keys and counts, one entry per "presence profile" (Counts array) */
-		/* no useful sort to results */
+		/* sorted by profile (see CombinedResultItemComparator) */
 		Combined  
 		
 	}
 	
+	public static enum OverlapEngine
+	{
+		/* pick based on size and KeySorter cache state */
+		Auto,
+
+		/* KeySort each repertoire and merge */
+		SortMerge,
+
+		/* hash-partition keys from all repertoires and aggregate (OverlapHashJoin) */
+		Hash
+	}
+	
 	public static class Params
 	{
 		public ContextRepertoireStore CRS;
@@ -74,6 +92,21 @@ public class Overlap
 		public long[] Counts;
 		public long MaxCount;
 
+		// While we collect, counts are kept sparse (repertoire indices
+		// ascending, with their counts) so an item costs O(PresentIn)
+		// rather than O(repertoires); Counts is filled in by densify for
+		// just the items we return.
+		transient int[] reps;
+		transient long[] repCounts;
+
+		public void densify(int repCount) {
+			if (Counts != null || reps == null) return;
+			Counts = new long[repCount];
+			for (int i = 0; i < reps.length; ++i) Counts[reps[i]] = repCounts[i];
+			reps = null;
+			repCounts = null;
+		}
+
 		public void appendKey(String newKey, int cchMax) {
 
 			++KeyCount;
@@ -97,6 +130,7 @@ public class Overlap
 		public List<Repertoire> Repertoires = new ArrayList<Repertoire>();
 		public List<OverlapResultItem> Items = new ArrayList<OverlapResultItem>();
 		public boolean Truncated = false;
+		public long TotalOverlaps = 0; // Standard mode; may be more than Items
 	}
 
 	// +--------------+
@@ -135,70 +169,55 @@ public class Overlap
 				result.Repertoires.add(rep);
 			}
 
-			// 2. KeySort each repertoire
+			if (useHashJoin(params, result.Repertoires)) {
 
-			log.finest(String.format("KeySorting %d repertoires", result.Repertoires.size()));
-			
-			sorters = new ArrayList<KeySorter>();
-			List<CompletableFuture<Boolean>> futures = new ArrayList<CompletableFuture<Boolean>>();
-			
-			for (Repertoire rep : result.Repertoires) {
-				KeySorter sorter = new KeySorter(params.CRS, rep.Name, params.Extractor, cfg.KeySorter);
-				sorters.add(sorter);
-				futures.add(sorter.sortAsync());
-			}
-
-			for (int i = 0; i < futures.size(); ++i) {
-				if (!futures.get(i).get()) {
-					throw new Exception("KeySorter failed for " +
-										result.Repertoires.get(i).Name);
-				}
+				// 2/3. Hash join straight into results
+				hashOverlaps(params, result);
 			}
-		
-			// 3. Merge sorted repertoires into results
-			findOverlaps(sorters, result, params.Mode);
-
-			// 4. Generate final result
-			if (params.Mode.equals(OverlapMode.Standard)) {
+			else {
+				
+				// 2. KeySort each repertoire
 
-				result.Items.sort(new StandardResultItemComparator());
+				log.finest(String.format("KeySorting %d repertoires", result.Repertoires.size()));
 			
-				if (result.Items.size() > cfg.MaxStandardOverlaps) {
-					// sh*tter's full! Unfortunately we had to find ALL the overlaps
-					// so that we could sort the goodest ones to the top, but at least
-					// we can save some bandwidth and browser memory
-					result.Items = result.Items.subList(0, cfg.MaxStandardOverlaps);
-					result.Truncated = true;
-				}
-			}
-			else if (result.Items.size() > 0) { // OverlapMode.Combined
-
-				CombinedResultItemComparator comparator =
-					new CombinedResultItemComparator();
-
-				// sort so that equivalent count profiles are adjacent...
-				result.Items.sort(comparator);
-
-				// ...and combine where appropriate (into a new list to avoid bad shift perf)
-				List<OverlapResultItem> newItems = new LinkedList<OverlapResultItem>();
-				OverlapResultItem currentItem = result.Items.get(0);
-				newItems.add(currentItem);
+				sorters = new ArrayList<KeySorter>();
+				List<CompletableFuture<Boolean>> futures = new ArrayList<CompletableFuture<Boolean>>();
+			
+				// a few at a time; with lots of repertoires we'd otherwise
+				// have every one of them sorting (and buffering) at once.
+				// Small repertoires sort in memory and would hold their
+				// sorted keys until the merge; any that would take those
+				// past MaxRetainedSortRows spill to run files instead, so
+				// it's just merge cursors that grow with the repertoire count
 				
-				for (int i = 1; i < result.Items.size(); ++i) {
-					OverlapResultItem candidateItem = result.Items.get(i);
+				long retainedRows = 0;
+				
+				for (Repertoire rep : result.Repertoires) {
 					
-					if (comparator.compare(currentItem, candidateItem) == 0) {
-						currentItem.appendKey(candidateItem.Key, cfg.MaxCombinedKeyLength);
-					}
-					else {
-						newItems.add(candidateItem);
-						currentItem = candidateItem;
+					KeySorter sorter = new KeySorter(params.CRS, rep.Name, params.Extractor, cfg.KeySorter);
+					sorters.add(sorter);
+
+					if (rep.TotalUniques <= cfg.KeySorter.InMemoryMaxRows) {
+						long rows = Math.max(0, rep.TotalUniques);
+						if (retainedRows + rows <= cfg.MaxRetainedSortRows) retainedRows += rows;
+						else sorter.setSpillResults(true);
 					}
+					
+					futures.add(sorter.sortAsync());
+
+					if (futures.size() == cfg.MaxConcurrentSorts) waitForSorts(futures, sorters);
 				}
 
-				result.Items = newItems;
+				waitForSorts(futures, sorters);
+		
+				// 3. Merge sorted repertoires into results
+				findOverlaps(sorters, result, params.Mode);
 			}
-				
+
+			// 4. Standard is already sorted and trimmed to MaxStandardOverlaps,
+			//    and Combined folded into profiles, by ResultCollector
+			for (OverlapResultItem item : result.Items) item.densify(repCount);
+			
 			return(result);
 		}
 		finally {
@@ -209,16 +228,104 @@ public class Overlap
 		}
 	}
 
+	private static void waitForSorts(List<CompletableFuture<Boolean>> futures,
+									 List<KeySorter> sorters) throws Exception {
+
+		// futures are for the last futures.size() sorters
+		int first = sorters.size() - futures.size();
+		
+		for (int i = 0; i < futures.size(); ++i) {
+			if (!futures.get(i).get()) {
+				throw new Exception("KeySorter failed for " + sorters.get(first + i).getRepertoireName());
+			}
+		}
+
+		futures.clear();
+	}
+
+	// +-------------+
+	// | useHashJoin |
+	// +-------------+
+
+	// Sort-merge wins once the KeySorter caches are warm (it's then just a
+	// merge of cached runs) and for small inputs (which KeySorter sorts in
+	// memory, warming the cache as it goes). Hash wins when most of a big
+	// input would have to be sorted from scratch.
+
+	private boolean useHashJoin(Params params, List<Repertoire> reps) throws Exception {
+
+		if (cfg.Engine.equals(OverlapEngine.SortMerge)) return(false);
+		if (cfg.Engine.equals(OverlapEngine.Hash)) return(true);
+
+		// Combined samples depend on key order, so the join has to hold
+		// every key to sort it, where the merge streams them straight
+		// into their profiles
+		if (params.Mode.equals(OverlapMode.Combined)) return(false);
+
+		long totalRows = 0;
+		long coldRows = 0;
+
+		for (Repertoire rep : reps) {
+
+			// row count unknown; stick with what we know works
+			if (rep.TotalUniques <= 0) return(false);
+			
+			totalRows += rep.TotalUniques;
+
+			KeySorter sorter = new KeySorter(params.CRS, rep.Name, params.Extractor, cfg.KeySorter);
+			if (!sorter.isCached()) coldRows += rep.TotalUniques;
+		}
+
+		boolean hash = (coldRows >= cfg.HashMinRows && coldRows * 2 >= totalRows);
+		
+		log.finest(String.format("useHashJoin: %d rows, %d cold => %s",
+								 totalRows, coldRows, hash ? "hash" : "sort-merge"));
+		
+		return(hash);
+	}
+
+	// +--------------+
+	// | hashOverlaps |
+	// +--------------+
+
+	private void hashOverlaps(Params params, OverlapResult result) throws Exception {
+
+		int minPresentIn = (params.Mode.equals(OverlapMode.Standard) ? 2 : 1);
+
+		OverlapHashJoin join = new OverlapHashJoin(params.CRS, result.Repertoires,
+												   params.Extractor, cfg.KeySorter);
+
+		// Standard breaks ties on key, so it takes keys in any order and
+		// keeps only its top K; Combined samples need them in key order
+
+		ResultCollector collector = new ResultCollector(result, params.Mode);
+		boolean inKeyOrder = params.Mode.equals(OverlapMode.Combined);
+		
+		join.join(cfg.HashMaxPartitionFiles, minPresentIn, inKeyOrder,
+				  (j) -> collector.add(j.Key, j.PresentIn, j.Reps, j.Counts));
+
+		collector.finish();
+	}
+
 	// +--------------+
 	// | findOverlaps |
 	// +--------------+
 
-	public static class FindOverlapsState
+	// Merges the sorted sorters through a min-heap of their current heads
+	// (ties broken by repertoire index), so each key costs O(log N) rather
+	// than a pass over every head. All heads with the minimum key come off
+	// together, in repertoire order, and go to the collector as a sparse
+	// list of (repertoire, count).
+
+	private static class Head
 	{
-		public String Key;
-		public int KeyMatches;
-		public int[] KeyIndices;
-		public int ActiveRepertoires;
+		public Head(int index, KeyItem item) {
+			this.Index = index;
+			this.Item = item;
+		}
+		
+		public int Index;
+		public KeyItem Item;
 	}
 	
 	private void findOverlaps(List<KeySorter> sorters, OverlapResult result,
@@ -226,120 +333,169 @@ public class Overlap
 
 		log.finest("finding overlaps");
 
-		FindOverlapsState state = new FindOverlapsState();
-		state.KeyIndices = new int[sorters.size()];
-			
-		KeyItem items[] = new KeyItem[sorters.size()];
-		for (int i = 0; i < items.length; ++i) items[i] = sorters.get(i).readNext();
+		int repCount = sorters.size();
+		
+		PriorityQueue<Head> heads = new PriorityQueue<Head>(Math.max(1, repCount), (h1, h2) -> {
+			int cmp = h1.Item.compareTo(h2.Item);
+			return(cmp != 0 ? cmp : Integer.compare(h1.Index, h2.Index));
+		});
+
+		for (int i = 0; i < repCount; ++i) {
+			KeyItem item = sorters.get(i).readNext();
+			if (item != null) heads.add(new Head(i, item));
+		}
 
 		int repCountToContinue = (mode.equals(OverlapMode.Standard) ? 2 : 1);
 		
-		Map<String,OverlapResultItem> singletons = (mode.equals(OverlapMode.Standard)
-													? null : new HashMap<String,OverlapResultItem>());
+		ResultCollector collector = new ResultCollector(result, mode);
+		Head[] matches = new Head[repCount];
+		int[] reps = new int[repCount];
+		long[] counts = new long[repCount];
 		
-		while (true) {
-
-			assessOverlaps(items, state);
+		// no more overlaps possible once too few repertoires have keys left
+		while (heads.size() >= repCountToContinue) {
 
-			// no more overlaps possible ?
-			if (state.ActiveRepertoires < repCountToContinue) break;
-
-			if (state.KeyMatches > 1) {
-				// yay an overlap!
-				result.Items.add(makeResultItem(state, items));
-			}
-			else if (singletons != null && state.KeyMatches == 1) {
-				// not an overlap but tuck it away (compactly)
-				String singletonKey = String.format("%d-%d", state.KeyIndices[0],
-													items[state.KeyIndices[0]].getCount());
-
-				OverlapResultItem resultItem = singletons.get(singletonKey);
-				if (resultItem == null) {
-					singletons.put(singletonKey, makeResultItem(state, items));
-				}
-				else {
-					resultItem.appendKey(state.Key, cfg.MaxCombinedKeyLength);
-				}
-			}
-
-			// skip all at minimum
-			for (int i = 0; i < state.KeyMatches; ++i) {
-				items[state.KeyIndices[i]] = sorters.get(state.KeyIndices[i]).readNext();
+			Head first = heads.poll();
+			matches[0] = first;
+			int keyMatches = 1;
+			
+			while (!heads.isEmpty() && heads.peek().Item.compareTo(first.Item) == 0) {
+				matches[keyMatches++] = heads.poll();
 			}
-		}
 
-		// add singletons to the end of the result list
-		if (singletons != null) {
-			for (String singletonKey : singletons.keySet()) {
-				result.Items.add(singletons.get(singletonKey));
+			for (int i = 0; i < keyMatches; ++i) {
+				reps[i] = matches[i].Index;
+				counts[i] = matches[i].Item.getCount();
 			}
-		}
-	}
 
-	private static OverlapResultItem makeResultItem(FindOverlapsState state, KeyItem[] items) {
+			collector.add(first.Item.getKey(), keyMatches, reps, counts);
 
-		OverlapResultItem resultItem = new OverlapResultItem();
-				
-		resultItem.Key = state.Key;
-		resultItem.KeyCount = 1;
-		resultItem.PresentIn = state.KeyMatches;
-				
-		resultItem.Counts = new long[items.length];
-		resultItem.MaxCount = -1;
-				
-		for (int i = 0; i < state.KeyMatches; ++i) {
-			long thisCount = items[state.KeyIndices[i]].getCount();
-			resultItem.Counts[state.KeyIndices[i]] = thisCount;
-			if (thisCount > resultItem.MaxCount) resultItem.MaxCount = thisCount;
+			// advance everything at the minimum
+			for (int i = 0; i < keyMatches; ++i) {
+				Head head = matches[i];
+				head.Item = sorters.get(head.Index).readNext();
+				if (head.Item != null) heads.add(head);
+			}
 		}
 
-		return(resultItem);
+		collector.finish();
 	}
 
-	private static void assessOverlaps(KeyItem[] items, FindOverlapsState state) {
+	// +-----------------+
+	// | ResultCollector |
+	// +-----------------+
+
+	// Turns keys into result items.
+	//
+	// In Standard mode only the best MaxStandardOverlaps overlaps (by
+	// StandardResultItemComparator) are kept, in a bounded heap, so memory
+	// is O(K) however many overlaps there are; items are only built for
+	// keys that make the cut. Heap ties go to the lower key, which is
+	// exactly what the stable sort of the full key-ordered list used to
+	// give us, and means keys can arrive in any order.
+	//
+	// In Combined mode keys must arrive in key order. Every overlap becomes
+	// an item, and singletons are folded together by repertoire and count
+	// and added at the end.
+
+	private class ResultCollector
+	{
+		public ResultCollector(OverlapResult result, OverlapMode mode) {
+			
+			this.result = result;
+			
+			if (mode.equals(OverlapMode.Standard)) {
+				this.top = new TopKHeap<OverlapResultItem>(cfg.MaxStandardOverlaps,
+														   (i1, i2) -> i1.Key.compareTo(i2.Key));
+				this.profiles = null;
+			}
+			else {
+				this.top = null;
+				this.profiles = new ProfileMap(cfg.MaxCombinedKeyLength);
+			}
+		}
 
-		state.Key = null;
-		state.KeyMatches = 0;
-		state.ActiveRepertoires = 0;
+		// the first presentIn entries of reps (ascending) and counts are
+		// the repertoires the key is in; copied if we keep them
 
-		int i = 0;
+		public void add(String key, int presentIn, int[] reps, long[] counts) {
 
-		// skip over nulls
-		while (i < items.length && items[i] == null) ++i;
-		if (i == items.length) return;
+			if (presentIn > 1 && top != null) {
+				// yay an overlap! but is it a good one?
+				++result.TotalOverlaps;
 
-		// start with this one
-		state.Key = items[i].getKey();
-		state.KeyMatches = 1;
-		state.KeyIndices[0] = i;
-		state.ActiveRepertoires = 1;
-		++i;
+				long maxCount = 0;
+				for (int i = 0; i < presentIn; ++i) maxCount = Math.max(maxCount, counts[i]);
+				double secondary = standardSecondary(presentIn, key.length());
 
-		while (i < items.length) {
+				if (top.wouldAccept(maxCount, secondary)) {
+					top.offer(maxCount, secondary, makeResultItem(key, presentIn, reps, counts));
+				}
+			}
+			else if (profiles != null && presentIn > 0) {
+				// overlap or not, fold into its presence profile
+				profiles.add(key, presentIn, reps, counts);
+			}
+		}
 
-			if (items[i] != null) {
+		public void finish() {
 
-				state.ActiveRepertoires++;
+			if (top != null) {
+				result.Items = top.toSortedList();
+				result.Truncated = (result.TotalOverlaps > result.Items.size());
+			}
 			
-				int cmp = state.Key.compareTo(items[i].getKey());
-
-				if (cmp == 0) {
-					// another!
-					state.KeyIndices[state.KeyMatches++] = i;
-				}
-				else if (cmp > 0) {
-					// reset to new min
-					state.Key = items[i].getKey();
-					state.KeyMatches = 1;
-					state.KeyIndices[0] = i;
-				}
-				else {
-					// skip bigger
+			// one item per profile, in profile order
+			if (profiles != null) {
+				
+				List<OverlapResultItem> items = new ArrayList<OverlapResultItem>(profiles.size());
+				
+				for (int i = 0; i < profiles.size(); ++i) {
+					OverlapResultItem resultItem = new OverlapResultItem();
+					resultItem.Key = profiles.getSampleKeys(i);
+					resultItem.KeyCount = profiles.getKeyCount(i);
+					resultItem.PresentIn = profiles.getPresentIn(i);
+					resultItem.MaxCount = profiles.getMaxCount(i);
+					resultItem.reps = profiles.getReps(i);
+					resultItem.repCounts = profiles.getCounts(i);
+					items.add(resultItem);
 				}
+
+				items.sort(new CombinedResultItemComparator());
+				result.Items = items;
 			}
+		}
+
+		private OverlapResult result;
+		private TopKHeap<OverlapResultItem> top;
+		private ProfileMap profiles;
+	}
+
+	// after MaxCount (the heap's primary score), StandardResultItemComparator
+	// prefers more repertoires and then longer keys; both fit exactly
+	
+	private static double standardSecondary(int presentIn, int keyLength) {
+		return(((double) presentIn) * 4294967296.0 + keyLength);
+	}
+
+	private static OverlapResultItem makeResultItem(String key, int presentIn,
+													int[] reps, long[] counts) {
 
-			++i;
+		OverlapResultItem resultItem = new OverlapResultItem();
+				
+		resultItem.Key = key;
+		resultItem.KeyCount = 1;
+		resultItem.PresentIn = presentIn;
+				
+		resultItem.reps = Arrays.copyOf(reps, presentIn);
+		resultItem.repCounts = Arrays.copyOf(counts, presentIn);
+		resultItem.MaxCount = 0;
+				
+		for (int i = 0; i < presentIn; ++i) {
+			if (counts[i] > resultItem.MaxCount) resultItem.MaxCount = counts[i];
 		}
+
+		return(resultItem);
 	}
 
 	// +-------------------------------+
@@ -364,12 +520,35 @@ public class Overlap
 		}
 	}
 
+	// orders the same as comparing dense Counts element by element, but
+	// walks the sparse lists if the items haven't been densified yet
+	
 	public static class CombinedResultItemComparator implements Comparator<OverlapResultItem>
 	{
 		public int compare(OverlapResultItem o1, OverlapResultItem o2) {
-			for (int i = 0; i < o1.Counts.length; ++i) {
-				if (o1.Counts[i] < o2.Counts[i]) return(-1);
-				if (o1.Counts[i] > o2.Counts[i]) return(1);
+
+			if (o1.Counts != null && o2.Counts != null) {
+				for (int i = 0; i < o1.Counts.length; ++i) {
+					if (o1.Counts[i] < o2.Counts[i]) return(-1);
+					if (o1.Counts[i] > o2.Counts[i]) return(1);
+				}
+				return(0);
+			}
+
+			int i1 = 0;
+			int i2 = 0;
+
+			while (i1 < o1.reps.length || i2 < o2.reps.length) {
+
+				int rep1 = (i1 < o1.reps.length ? o1.reps[i1] : Integer.MAX_VALUE);
+				int rep2 = (i2 < o2.reps.length ? o2.reps[i2] : Integer.MAX_VALUE);
+				int rep = Math.min(rep1, rep2);
+				
+				long c1 = (rep1 == rep ? o1.repCounts[i1++] : 0L);
+				long c2 = (rep2 == rep ? o2.repCounts[i2++] : 0L);
+
+				if (c1 < c2) return(-1);
+				if (c1 > c2) return(1);
 			}
 
 			return(0);
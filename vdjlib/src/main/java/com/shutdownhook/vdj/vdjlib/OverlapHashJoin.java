@@ -0,0 +1,480 @@
+//
+// OVERLAPHASHJOIN.JAVA
+//
+
+// Hash-join alternative to the sort-merge in Overlap, for when the
+// KeySorter caches are cold and sorting every repertoire end to end is
+// most of the work. Each repertoire is scanned once (in parallel, see
+// ParallelScan) and its keys spilled unsorted into one of P partition
+// files by hash. Every copy of a key lands in the same partition, so each
+// partition can then be aggregated in memory on its own. Only keys
+// present in at least minPresentIn repertoires are kept, and they go to
+// the caller as soon as they're done, so nothing accumulates here.
+// Partitions come back in hash order, not key order; callers that need
+// the order the sort-merge produces ask for it and we hold and sort them
+// instead.
+//
+// Memory comes from the same Budget as KeySorter (one grant for the whole
+// join), split evenly across the scan chunks while spilling and across
+// the partitions being aggregated at once afterwards. Each chunk buffers
+// its records per partition up to its share and then appends them to the
+// partition files, which every chunk and repertoire share; so there are
+// never more than P (at most maxFiles) spill files open. A partition that
+// turns out to be bigger than its share is aggregated in several passes
+// over its file, each taking the keys that hash to that pass.
+//
+// Spill records are (varint rep, varint keyLen, key bytes, varint count).
+// Repertoires are spilled one after another, so within a file they're in
+// ascending order, which is what Joined.add expects.
+
+package com.shutdownhook.vdj.vdjlib;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Logger;
+
+import com.shutdownhook.vdj.vdjlib.RearrangementKey.Extractor;
+import com.shutdownhook.vdj.vdjlib.TsvReader.Field;
+import com.shutdownhook.vdj.vdjlib.model.Rearrangement;
+import com.shutdownhook.vdj.vdjlib.model.Repertoire;
+
+public class OverlapHashJoin
+{
+	// +--------+
+	// | Joined |
+	// +--------+
+
+	public static class Joined
+	{
+		public String Key;
+		public int PresentIn;
+
+		// sparse; the first PresentIn entries are the repertoires
+		// (ascending) the key is in and its count in each
+		public int[] Reps;
+		public long[] Counts;
+
+		private void add(int rep, long count) {
+
+			if (PresentIn > 0 && Reps[PresentIn - 1] == rep) {
+				Counts[PresentIn - 1] += count;
+				return;
+			}
+
+			if (PresentIn == Reps.length) {
+				Reps = Arrays.copyOf(Reps, PresentIn * 2);
+				Counts = Arrays.copyOf(Counts, PresentIn * 2);
+			}
+
+			Reps[PresentIn] = rep;
+			Counts[PresentIn] = count;
+			++PresentIn;
+		}
+	}
+
+	// called one key at a time, never from two threads at once
+	
+	public interface JoinedReceiver
+	{
+		public void receive(Joined j) throws Exception;
+	}
+	
+	// +-------+
+	// | Setup |
+	// +-------+
+
+	public OverlapHashJoin(ContextRepertoireStore crs, List<Repertoire> reps,
+						   Extractor extractor, KeySorter.Config cfg) {
+
+		this.crs = crs;
+		this.reps = reps;
+		this.extractor = extractor;
+		this.cfg = cfg;
+		this.workingPath = Paths.get(cfg.WorkingPath);
+	}
+
+	// +------+
+	// | join |
+	// +------+
+
+	// keys present in at least minPresentIn repertoires, in no particular
+	// order unless inKeyOrder (which means holding all of them to sort)
+
+	public void join(int maxFiles, int minPresentIn, boolean inKeyOrder,
+					 JoinedReceiver receiver) throws Exception {
+
+		int workers = Math.max(1, cfg.Scan.MaxChunks);
+		long minBytes = Math.min(cfg.SortBufferBytes, MIN_JOIN_BYTES);
+
+		SortBuffer.Budget budget = KeySorter.getBudget(cfg);
+		long grantBytes = budget.acquire(cfg.SortBufferBytes, minBytes);
+
+		try {
+			shareBytes = Math.max(MIN_SHARE_BYTES, grantBytes / workers);
+
+			// 1. Spill every repertoire into partitions, enough of them that
+			//    each should fit in a share (passes pick up the slack)
+
+			long estimate = 0;
+			for (Repertoire rep : reps) estimate += Math.max(0, rep.TotalUniques) * ESTIMATED_KEY_BYTES;
+
+			long files = (estimate + shareBytes - 1) / shareBytes;
+			openPartitions((int) Math.max(1, Math.min(files, Math.max(1, maxFiles))));
+
+			EnumSet<Field> fields = EnumSet.copyOf(extractor.getFields());
+			fields.add(Field.Count);
+
+			try {
+				for (int irep = 0; irep < reps.size(); ++irep) {
+					int irepFinal = irep;
+					ParallelScan.scan(cfg.Scan, crs, reps.get(irep), fields,
+									  (rdr) -> spillChunk(rdr, irepFinal));
+				}
+			}
+			finally {
+				for (Partition part : partitions) part.closeWriter();
+			}
+
+			log.finest(String.format("join: spilled %d repertoires into %d partitions (%d byte shares)",
+									 reps.size(), partitions.length, shareBytes));
+
+			// 2. Aggregate partitions, a wave at a time
+
+			held = (inKeyOrder ? new ArrayList<Joined>() : null);
+			this.receiver = receiver;
+
+			for (int pFirst = 0; pFirst < partitions.length; pFirst += workers) {
+
+				List<CompletableFuture<Boolean>> futures = new ArrayList<CompletableFuture<Boolean>>();
+
+				for (int p = pFirst; p < Math.min(pFirst + workers, partitions.length); ++p) {
+					futures.add(joinPartitionAsync(partitions[p], minPresentIn));
+				}
+
+				for (CompletableFuture<Boolean> future : futures) {
+					if (future.get() == null) throw new Exception("Overlap hash join partition failed");
+				}
+			}
+
+			// 3. Back into key order if asked
+
+			if (held != null) {
+				held.sort((j1, j2) -> j1.Key.compareTo(j2.Key));
+				for (Joined j : held) receiver.receive(j);
+			}
+		}
+		finally {
+			budget.release(grantBytes);
+			if (partitions != null) {
+				for (Partition part : partitions) {
+					part.closeWriter();
+					safeDelete(part.file);
+				}
+			}
+		}
+	}
+
+	// +-----------+
+	// | Partition |
+	// +-----------+
+
+	private static class Partition
+	{
+		public File file;
+		public OutputStream stm;
+		public long records;
+		public long keyBytes;
+
+		// one chunk's buffered records for this partition, all at once
+		public synchronized void append(byte[] rgb, int cb, long records, long keyBytes)
+			throws IOException {
+
+			stm.write(rgb, 0, cb);
+			this.records += records;
+			this.keyBytes += keyBytes;
+		}
+
+		public synchronized void closeWriter() {
+			if (stm != null) Utility.safeClose(stm);
+			stm = null;
+		}
+	}
+
+	private void openPartitions(int count) throws IOException {
+
+		partitions = new Partition[count];
+
+		for (int p = 0; p < count; ++p) {
+			partitions[p] = new Partition();
+			partitions[p].file = Files.createTempFile(workingPath, "vdj", ".part").toFile();
+			partitions[p].file.deleteOnExit();
+			partitions[p].stm = new FileOutputStream(partitions[p].file);
+		}
+	}
+
+	// +------------+
+	// | spillChunk |
+	// +------------+
+
+	// buffers records per partition until the chunk's share is used up,
+	// then appends each partition's to its file
+
+	private Long spillChunk(RowReader rdr, int irep) throws Exception {
+
+		int count = partitions.length;
+		byte[][] bufs = new byte[count][];
+		int[] lengths = new int[count];
+		long[] records = new long[count];
+		long[] keyBytes = new long[count];
+		long cbBuffered = 0;
+		long rows = 0;
+
+		Rearrangement r = new Rearrangement();
+
+		while (rdr.readNextInto(r)) {
+
+			String key = extractor.extract(r);
+			if (Utility.nullOrEmpty(key)) continue;
+
+			int p = partition(key, count);
+			byte[] rgb = key.getBytes(StandardCharsets.UTF_8);
+
+			int cbRecord = rgb.length + 30; // three varints at most
+
+			if (bufs[p] == null || bufs[p].length - lengths[p] < cbRecord) {
+				int cbOld = (bufs[p] == null ? 0 : bufs[p].length);
+				int cbNew = Math.max(Math.max(INITIAL_SPILL_BUFFER, cbOld * 2), lengths[p] + cbRecord);
+				bufs[p] = (bufs[p] == null ? new byte[cbNew] : Arrays.copyOf(bufs[p], cbNew));
+				cbBuffered += cbNew - cbOld;
+			}
+
+			int ib = lengths[p];
+			ib = putVarLong(bufs[p], ib, irep);
+			ib = putVarLong(bufs[p], ib, rgb.length);
+			System.arraycopy(rgb, 0, bufs[p], ib, rgb.length);
+			ib = putVarLong(bufs[p], ib + rgb.length, r.Count);
+			lengths[p] = ib;
+
+			++records[p];
+			keyBytes[p] += rgb.length;
+			++rows;
+
+			// buffers are dropped rather than reused so the next round
+			// only grows the ones it needs
+			if (cbBuffered >= shareBytes) {
+				flushChunk(bufs, lengths, records, keyBytes);
+				Arrays.fill(bufs, null);
+				cbBuffered = 0;
+			}
+		}
+
+		flushChunk(bufs, lengths, records, keyBytes);
+		return(rows);
+	}
+
+	private void flushChunk(byte[][] bufs, int[] lengths, long[] records,
+							long[] keyBytes) throws IOException {
+
+		for (int p = 0; p < partitions.length; ++p) {
+			if (lengths[p] == 0) continue;
+			partitions[p].append(bufs[p], lengths[p], records[p], keyBytes[p]);
+			lengths[p] = 0;
+			records[p] = 0;
+			keyBytes[p] = 0;
+		}
+	}
+
+	private static int partition(String key, int partitions) {
+		int h = key.hashCode();
+		h ^= (h >>> 16);
+		return((h & 0x7FFFFFFF) % partitions);
+	}
+
+	// independent of partition so a partition's keys spread over passes
+	private static int pass(String key, int passes) {
+		long h = mix(key.hashCode());
+		return((int) ((h >>> 33) % passes));
+	}
+
+	// +---------------+
+	// | joinPartition |
+	// +---------------+
+
+	private CompletableFuture<Boolean> joinPartitionAsync(Partition part, int minPresentIn) {
+
+		return(Exec.runAsync("joinPartition", new Exec.AsyncOperation<Boolean>() {
+			public Boolean execute() throws Exception {
+				joinPartition(part, minPresentIn);
+				return(true);
+			}
+		}));
+	}
+
+	private void joinPartition(Partition part, int minPresentIn) throws Exception {
+
+		long estimate = (part.records * JOINED_BYTES) + part.keyBytes;
+		int passes = (int) Math.max(1, (estimate + shareBytes - 1) / shareBytes);
+
+		if (passes > 1) {
+			log.finest(String.format("joinPartition: %s in %d passes (%d records)",
+									 part.file.getName(), passes, part.records));
+		}
+
+		for (int pass = 0; pass < passes; ++pass) {
+
+			Map<String,Joined> keys = new HashMap<String,Joined>();
+			InputStream in = null;
+
+			try {
+				in = new BufferedInputStream(new FileInputStream(part.file), SPILL_READ_BUFFER);
+				byte[] rgb = new byte[64];
+
+				while (true) {
+
+					long irep = readVarLong(in);
+					if (irep == -1) break;
+
+					int cb = (int) readVarLong(in);
+					if (cb > rgb.length) rgb = new byte[Math.max(cb, rgb.length * 2)];
+					if (in.readNBytes(rgb, 0, cb) != cb) throw new EOFException("truncated spill file");
+
+					long count = readVarLong(in);
+					if (count == -1) throw new EOFException("truncated spill file");
+
+					String key = new String(rgb, 0, cb, StandardCharsets.UTF_8);
+					if (passes > 1 && pass(key, passes) != pass) continue;
+
+					Joined j = keys.get(key);
+
+					if (j == null) {
+						j = new Joined();
+						j.Key = key;
+						j.Reps = new int[2];
+						j.Counts = new long[2];
+						keys.put(j.Key, j);
+					}
+
+					j.add((int) irep, count);
+				}
+			}
+			finally {
+				if (in != null) Utility.safeClose(in);
+			}
+
+			List<Joined> kept = new ArrayList<Joined>();
+			for (Joined j : keys.values()) {
+				if (j.PresentIn >= minPresentIn) kept.add(j);
+			}
+
+			keys = null;
+			deliver(kept);
+		}
+
+		safeDelete(part.file);
+	}
+
+	// one partition at a time, so the receiver never sees two threads
+
+	private synchronized void deliver(List<Joined> kept) throws Exception {
+		if (held != null) held.addAll(kept);
+		else for (Joined j : kept) receiver.receive(j);
+	}
+
+	// +---------+
+	// | Helpers |
+	// +---------+
+
+	private static int putVarLong(byte[] rgb, int ib, long l) {
+		while ((l & ~0x7FL) != 0) {
+			rgb[ib++] = (byte) ((l & 0x7F) | 0x80);
+			l >>>= 7;
+		}
+		rgb[ib++] = (byte) l;
+		return(ib);
+	}
+
+	// -1 at a clean end of stream
+
+	private static long readVarLong(InputStream in) throws IOException {
+
+		long l = 0;
+		int shift = 0;
+		int b;
+
+		do {
+			b = in.read();
+			if (b == -1) {
+				if (shift == 0) return(-1);
+				throw new EOFException("truncated spill file");
+			}
+			l |= ((long) (b & 0x7F)) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+
+		return(l);
+	}
+
+	// murmur3 finalizer
+	private static long mix(long h) {
+		h ^= (h >>> 33);
+		h *= 0xff51afd7ed558ccdL;
+		h ^= (h >>> 33);
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= (h >>> 33);
+		return(h);
+	}
+
+	private static void safeDelete(File file) {
+		try {
+			file.delete();
+		}
+		catch (Exception e) {
+			log.severe(Utility.exMsg(e, "safeDelete", false));
+			/* eat it */
+		}
+	}
+
+	// +---------+
+	// | Members |
+	// +---------+
+
+	private ContextRepertoireStore crs;
+	private List<Repertoire> reps;
+	private Extractor extractor;
+	private KeySorter.Config cfg;
+	private Path workingPath;
+
+	private long shareBytes;
+	private Partition[] partitions;
+	private List<Joined> held;
+	private JoinedReceiver receiver;
+
+	// rough heap per aggregated key besides its chars: String, Joined,
+	// its two arrays and the map entry
+	private final static long JOINED_BYTES = 160L;
+	private final static long ESTIMATED_KEY_BYTES = JOINED_BYTES + 32L;
+
+	private final static long MIN_JOIN_BYTES = 4L * 1024L * 1024L;
+	private final static long MIN_SHARE_BYTES = 64L * 1024L;
+	private final static int INITIAL_SPILL_BUFFER = 1024;
+	private final static int SPILL_READ_BUFFER = 64 * 1024;
+
+	private final static Logger log = Logger.getLogger(OverlapHashJoin.class.getName());
+}
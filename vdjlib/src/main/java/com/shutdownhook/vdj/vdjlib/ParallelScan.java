@@ -0,0 +1,114 @@
+//
+// PARALLELSCAN.JAVA
+//
+
+// Runs a per-row scan over a single repertoire on multiple threads by
+// splitting it into newline-aligned byte ranges (see TsvReader.split).
+// The caller supplies a Scanner that turns one chunk's reader into a
+// partial result; partials come back in file order for the caller to
+// merge. Repertoires that can't be split (no mapped buffer, or just too
+// small to bother) are scanned as a single chunk on the calling thread.
+//
+// If the repertoire has a columnar sidecar (see ColumnarRepertoire) we
+// split that by blocks instead and never touch the tsv.
+
+package com.shutdownhook.vdj.vdjlib;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Logger;
+
+import com.shutdownhook.vdj.vdjlib.TsvReader.Field;
+import com.shutdownhook.vdj.vdjlib.model.Repertoire;
+
+public class ParallelScan
+{
+	// +--------+
+	// | Config |
+	// +--------+
+
+	public static class Config
+	{
+		public Integer MaxChunks = Runtime.getRuntime().availableProcessors(); // < 2 == serial
+		public Integer MinChunkBytes = 4 * 1024 * 1024;
+		public Boolean UseColumnar = true;
+	}
+
+	// +---------+
+	// | Scanner |
+	// +---------+
+
+	public interface Scanner<T> {
+		public T scan(RowReader rdr) throws Exception;
+	}
+
+	// +------+
+	// | scan |
+	// +------+
+
+	public static <T> List<T> scan(Config cfg, ContextRepertoireStore crs, Repertoire rep,
+								   EnumSet<Field> fields, Scanner<T> scanner) throws Exception {
+
+		if (cfg.UseColumnar) {
+			List<RowReader> chunks = ColumnarRepertoire.split(crs, rep.Name, fields, cfg.MaxChunks);
+			if (chunks != null) return(scanChunks(chunks, scanner, rep));
+		}
+
+		TsvReader tsv = null;
+
+		try {
+			tsv = TsvReader.open(crs, rep, 0, fields);
+			List<RowReader> chunks = new ArrayList<RowReader>(tsv.split(cfg.MaxChunks, cfg.MinChunkBytes));
+			return(scanChunks(chunks, scanner, rep));
+		}
+		finally {
+			if (tsv != null) Utility.safeClose(tsv);
+		}
+	}
+
+	private static <T> List<T> scanChunks(List<RowReader> chunks, Scanner<T> scanner,
+										  Repertoire rep) throws Exception {
+
+		List<T> partials = new ArrayList<T>();
+
+		if (chunks.size() == 1) {
+			try { partials.add(scanner.scan(chunks.get(0))); }
+			finally { Utility.safeClose(chunks.get(0)); }
+			return(partials);
+		}
+
+		List<CompletableFuture<T>> futures = new ArrayList<CompletableFuture<T>>();
+
+		for (RowReader chunk : chunks) {
+			futures.add(scanChunkAsync(chunk, scanner));
+		}
+
+		CompletableFuture.allOf(futures.toArray(new CompletableFuture[futures.size()])).join();
+
+		for (CompletableFuture<T> future : futures) {
+			T partial = future.get();
+			if (partial == null) throw new IOException("chunk scan failed for " + rep.Name);
+			partials.add(partial);
+		}
+
+		return(partials);
+	}
+
+	private static <T> CompletableFuture<T> scanChunkAsync(RowReader chunk, Scanner<T> scanner) {
+		return(Exec.runAsync("scanChunk", new Exec.AsyncOperation<T>() {
+			public T execute() throws Exception {
+				try { return(scanner.scan(chunk)); }
+				finally { Utility.safeClose(chunk); }
+			}
+		}));
+	}
+
+	// +---------+
+	// | Members |
+	// +---------+
+
+	private final static Logger log = Logger.getLogger(ParallelScan.class.getName());
+}
@@ -0,0 +1,229 @@
+//
+// PROFILEMAP.JAVA
+//
+
+// Folds keys into "presence profiles" (the repertoires a key is in and its
+// count in each) for Combined-mode overlap. Profiles are open-addressed by
+// a hash of their sparse (rep, count) lists, and the lists themselves live
+// end to end in shared primitive pools, so the map costs memory in
+// proportion to the number of distinct profiles rather than keys.
+//
+// Each profile keeps its total key count and a bounded sample of its keys:
+// the first ones added, joined with ", " up to sampleMax characters and
+// then "..." (the same shape OverlapResultItem.appendKey builds). Keys
+// arrive in key order from the merge, so the sample is deterministic.
+
+package com.shutdownhook.vdj.vdjlib;
+
+import java.util.Arrays;
+
+public class ProfileMap
+{
+	// +-------+
+	// | Setup |
+	// +-------+
+
+	public ProfileMap(int sampleMax) {
+
+		this.sampleMax = sampleMax;
+
+		this.slots = new int[INITIAL_SLOTS];
+		this.mask = INITIAL_SLOTS - 1;
+
+		this.hashes = new long[INITIAL_PROFILES];
+		this.starts = new int[INITIAL_PROFILES];
+		this.lengths = new int[INITIAL_PROFILES];
+		this.keyCounts = new int[INITIAL_PROFILES];
+		this.maxCounts = new long[INITIAL_PROFILES];
+		this.samples = new StringBuilder[INITIAL_PROFILES];
+		this.sampleFull = new boolean[INITIAL_PROFILES];
+
+		this.repPool = new int[INITIAL_POOL];
+		this.countPool = new long[INITIAL_POOL];
+		this.poolUsed = 0;
+
+		this.size = 0;
+	}
+
+	public int size() { return(size); }
+
+	// +-----+
+	// | add |
+	// +-----+
+
+	// the first presentIn entries of reps (ascending) and counts are the
+	// key's profile; returns the profile index it was folded into
+
+	public int add(String key, int presentIn, int[] reps, long[] counts) {
+
+		long hash = hash(presentIn, reps, counts);
+		int slot = (int) hash & mask;
+
+		while (slots[slot] != 0) {
+			int i = slots[slot] - 1;
+			if (hashes[i] == hash && matches(i, presentIn, reps, counts)) {
+				appendKey(i, key);
+				return(i);
+			}
+			slot = (slot + 1) & mask;
+		}
+
+		int i = newProfile(hash, presentIn, reps, counts, key);
+		slots[slot] = i + 1;
+
+		if (size * 2 > slots.length) rehash();
+
+		return(i);
+	}
+
+	// +-----------+
+	// | Accessors |
+	// +-----------+
+
+	public int getPresentIn(int i) { return(lengths[i]); }
+	public int getKeyCount(int i) { return(keyCounts[i]); }
+	public long getMaxCount(int i) { return(maxCounts[i]); }
+	public String getSampleKeys(int i) { return(samples[i].toString()); }
+
+	public int[] getReps(int i) {
+		return(Arrays.copyOfRange(repPool, starts[i], starts[i] + lengths[i]));
+	}
+
+	public long[] getCounts(int i) {
+		return(Arrays.copyOfRange(countPool, starts[i], starts[i] + lengths[i]));
+	}
+
+	// +---------+
+	// | Helpers |
+	// +---------+
+
+	private int newProfile(long hash, int presentIn, int[] reps, long[] counts, String key) {
+
+		if (size == hashes.length) {
+			int cNew = size * 2;
+			hashes = Arrays.copyOf(hashes, cNew);
+			starts = Arrays.copyOf(starts, cNew);
+			lengths = Arrays.copyOf(lengths, cNew);
+			keyCounts = Arrays.copyOf(keyCounts, cNew);
+			maxCounts = Arrays.copyOf(maxCounts, cNew);
+			samples = Arrays.copyOf(samples, cNew);
+			sampleFull = Arrays.copyOf(sampleFull, cNew);
+		}
+
+		if (poolUsed + presentIn > repPool.length) {
+			int cNew = Math.max(repPool.length * 2, poolUsed + presentIn);
+			repPool = Arrays.copyOf(repPool, cNew);
+			countPool = Arrays.copyOf(countPool, cNew);
+		}
+
+		long maxCount = 0;
+		for (int j = 0; j < presentIn; ++j) {
+			repPool[poolUsed + j] = reps[j];
+			countPool[poolUsed + j] = counts[j];
+			if (counts[j] > maxCount) maxCount = counts[j];
+		}
+
+		int i = size++;
+
+		hashes[i] = hash;
+		starts[i] = poolUsed;
+		lengths[i] = presentIn;
+		keyCounts[i] = 1;
+		maxCounts[i] = maxCount;
+		samples[i] = new StringBuilder(key);
+		sampleFull[i] = false;
+
+		poolUsed += presentIn;
+		return(i);
+	}
+
+	private void appendKey(int i, String key) {
+
+		++keyCounts[i];
+		if (sampleFull[i]) return;
+
+		StringBuilder sb = samples[i];
+
+		if ((sb.length() + key.length() + 2) > (sampleMax - 3)) {
+			sb.append("...");
+			sampleFull[i] = true;
+		}
+		else {
+			sb.append(", ").append(key);
+		}
+	}
+
+	private boolean matches(int i, int presentIn, int[] reps, long[] counts) {
+
+		if (lengths[i] != presentIn) return(false);
+
+		int start = starts[i];
+		for (int j = 0; j < presentIn; ++j) {
+			if (repPool[start + j] != reps[j] || countPool[start + j] != counts[j]) return(false);
+		}
+
+		return(true);
+	}
+
+	private void rehash() {
+
+		slots = new int[slots.length * 2];
+		mask = slots.length - 1;
+
+		for (int i = 0; i < size; ++i) {
+			int slot = (int) hashes[i] & mask;
+			while (slots[slot] != 0) slot = (slot + 1) & mask;
+			slots[slot] = i + 1;
+		}
+	}
+
+	private static long hash(int presentIn, int[] reps, long[] counts) {
+
+		long h = presentIn;
+		for (int j = 0; j < presentIn; ++j) {
+			h = mix(h ^ reps[j]);
+			h = mix(h ^ counts[j]);
+		}
+
+		return(mix(h));
+	}
+
+	// murmur3 finalizer
+	private static long mix(long h) {
+		h ^= (h >>> 33);
+		h *= 0xff51afd7ed558ccdL;
+		h ^= (h >>> 33);
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= (h >>> 33);
+		return(h);
+	}
+
+	// +---------+
+	// | Members |
+	// +---------+
+
+	private int sampleMax;
+
+	// open-addressed; profile index + 1, 0 is empty
+	private int[] slots;
+	private int mask;
+
+	// per profile
+	private long[] hashes;
+	private int[] starts;
+	private int[] lengths;
+	private int[] keyCounts;
+	private long[] maxCounts;
+	private StringBuilder[] samples;
+	private boolean[] sampleFull;
+	private int size;
+
+	// sparse profiles, end to end
+	private int[] repPool;
+	private long[] countPool;
+	private int poolUsed;
+
+	private final static int INITIAL_SLOTS = 1024;
+	private final static int INITIAL_PROFILES = 256;
+	private final static int INITIAL_POOL = 1024;
+}
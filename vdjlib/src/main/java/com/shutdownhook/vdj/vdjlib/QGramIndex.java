@@ -0,0 +1,722 @@
+//
+// QGRAMINDEX.JAVA
+//
+
+// Inverted index from every q-gram (length-q substring) of one key type
+// to the rows whose key contains it, so a motif search can find a short
+// list of candidate rows and only run the real matcher on those.
+//
+// A key within K substitutions of a motif must contain at least one of
+// K+1 disjoint pieces of the motif exactly (pigeonhole), so a row can only
+// match if it contains every gram of some piece. We intersect the
+// postings of the rarest few grams in each piece and union across pieces;
+// that's a superset of the matches, never a miss. Motifs too short to
+// give every piece a whole gram (or with too many candidates to beat a
+// scan) just get a null back and the caller scans as usual.
+//
+// Row ids are columnar row numbers, so the index is only built for
+// repertoires with a columnar sidecar (which is also what lets Searcher
+// jump to candidate rows; see ColumnarRepertoire.openSeekable).
+//
+// Indexes are built in the background (see buildAsync), never on the
+// search path. Like ContextIndex, build writes the whole index to a temp file and swaps
+// it into the store in one step, each save with a new random version that
+// readPostings checks when it reopens the file. load checks the postings
+// are all there, so a damaged index reads as missing and gets rebuilt.
+//
+// Layout (secondary file "qgram-<KeyType>"):
+//   int MAGIC, long version, int q, int rowCount, int gramCount
+//   gramCount x (long gram, int postingCount, long postingOffset)
+//   long total posting bytes
+//   postings: ascending row ids as varint deltas, in gram order
+//
+// Grams are packed eight bits per char into a long, so q tops out at 8;
+// grams with a char that doesn't fit in eight bits aren't indexed.
+
+package com.shutdownhook.vdj.vdjlib;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Logger;
+
+import com.shutdownhook.vdj.vdjlib.RearrangementKey.KeyType;
+import com.shutdownhook.vdj.vdjlib.model.Rearrangement;
+
+public class QGramIndex
+{
+	// +--------+
+	// | Config |
+	// +--------+
+
+	public static class Config
+	{
+		public Boolean Enabled = true;
+		public Integer NucleotideQ = 8;
+		public Integer AminoAcidQ = 3;
+		public Integer MaxGramsPerPiece = 4;
+		public Double MaxCandidateFraction = 0.25; // more than this and we just scan
+		public String TempPath = null;
+	}
+
+	public static String getSecondaryKey(KeyType keyType) {
+		return("qgram-" + keyType.toString());
+	}
+
+	public static int getQ(Config cfg, KeyType keyType) {
+		int q = (keyType == KeyType.AminoAcid ? cfg.AminoAcidQ : cfg.NucleotideQ);
+		return(Math.max(1, Math.min(MAX_Q, q)));
+	}
+
+	// +------------+
+	// | buildAsync |
+	// +------------+
+
+	// Builds and saves the index for rep and each of keyTypes in the
+	// background. Meant to run once a repertoire has been received (its
+	// columnar sidecar is what we read); searches only load what's there
+	// and scan if there's nothing yet. Key types another thread is already
+	// building for rep are skipped.
+
+	public static CompletableFuture<Boolean> buildAsync(Config cfg, ContextRepertoireStore crs,
+														String rep, KeyType[] keyTypes) {
+
+		return(Exec.runAsync("qgram", new Exec.AsyncOperation<Boolean>() {
+
+			public Boolean execute() throws Exception {
+
+				if (!cfg.Enabled) return(true);
+
+				boolean ok = true;
+				for (KeyType keyType : keyTypes) {
+					if (!buildOnce(cfg, crs, rep, keyType)) ok = false;
+				}
+
+				return(ok);
+			}
+
+			public Boolean exceptionResult() {
+				return(false);
+			}
+		}));
+	}
+
+	private static boolean buildOnce(Config cfg, ContextRepertoireStore crs,
+									 String rep, KeyType keyType) {
+
+		String buildKey = crs.getSpec(rep).toString() + "/" + keyType;
+
+		synchronized (building) {
+			if (building.contains(buildKey)) return(true);
+			building.add(buildKey);
+		}
+
+		try {
+			return(build(cfg, crs, rep, keyType));
+		}
+		finally {
+			synchronized (building) { building.remove(buildKey); }
+		}
+	}
+
+	private final static Set<String> building = new HashSet<String>();
+
+	// +-------+
+	// | build |
+	// +-------+
+
+	// false if the repertoire has no columnar sidecar; non-fatal otherwise,
+	// a failed build just means searches keep scanning
+
+	public static boolean build(Config cfg, ContextRepertoireStore crs,
+								String rep, KeyType keyType) {
+
+		RearrangementKey.Extractor extractor = RearrangementKey.getExtractor(keyType);
+
+		ColumnarRepertoire.Reader rdr = ColumnarRepertoire.openSeekable(crs, rep, extractor.getFields());
+		if (rdr == null) return(false);
+
+		File file = null;
+
+		try {
+			Builder builder = new Builder(getQ(cfg, keyType));
+
+			Rearrangement r = new Rearrangement();
+			int row = 0;
+
+			while (rdr.readNextInto(r)) {
+				builder.add(row++, extractor.extract(r));
+			}
+
+			file = Utility.getTempFile(cfg.TempPath);
+			OutputStream stm = new FileOutputStream(file);
+			try { builder.save(stm); }
+			finally { Utility.safeClose(stm); }
+
+			if (!crs.saveSecondaryFile(rep, getSecondaryKey(keyType), file)) return(false);
+
+			log.info(String.format("QGramIndex built %s/%s (%d rows, %d grams)",
+								   rep, keyType, row, builder.getGramCount()));
+			return(true);
+		}
+		catch (Exception e) {
+			log.warning(Utility.exMsg(e, "QGramIndex build " + rep + " (non-fatal)", false));
+			return(false);
+		}
+		finally {
+			if (file != null) file.delete();
+			Utility.safeClose(rdr);
+		}
+	}
+
+	// +------+
+	// | load |
+	// +------+
+
+	// null if there's no index for rep / keyType (or it's unreadable or
+	// cut short); postings stay on disk until a query needs them
+
+	public static QGramIndex load(Config cfg, ContextRepertoireStore crs,
+								  String rep, KeyType keyType) {
+
+		String key = getSecondaryKey(keyType);
+		InputStream stm = crs.getSecondaryStream(rep, key);
+		if (stm == null) return(null);
+
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(stm, BUFFER_SIZE));
+
+			if (in.readInt() != MAGIC) throw new IOException("bad QGramIndex format");
+
+			QGramIndex index = new QGramIndex(cfg, () -> crs.getSecondaryStream(rep, key), rep);
+			index.version = in.readLong();
+			index.q = in.readInt();
+			index.rowCount = in.readInt();
+
+			int gramCount = in.readInt();
+			index.grams = new long[gramCount];
+			index.counts = new int[gramCount];
+			index.offsets = new long[gramCount + 1];
+
+			for (int i = 0; i < gramCount; ++i) {
+				index.grams[i] = in.readLong();
+				index.counts[i] = in.readInt();
+				index.offsets[i] = in.readLong();
+
+				if (i > 0 && (index.grams[i] <= index.grams[i-1] ||
+							  index.offsets[i] < index.offsets[i-1])) {
+					throw new IOException("bad QGramIndex table");
+				}
+			}
+
+			index.offsets[gramCount] = in.readLong();
+			index.dataStart = HEADER_BYTES + (20L * gramCount) + 8L;
+
+			// exactly offsets[gramCount] posting bytes left
+			long postingBytes = index.offsets[gramCount];
+			if (gramCount > 0 && postingBytes < index.offsets[gramCount - 1]) {
+				throw new IOException("bad QGramIndex table");
+			}
+
+			if (postingBytes > 0) {
+				skipFully(in, postingBytes - 1);
+				if (in.read() == -1) throw new EOFException("truncated QGramIndex");
+			}
+
+			if (in.read() != -1) throw new IOException("trailing bytes in QGramIndex");
+
+			return(index);
+		}
+		catch (IOException e) {
+			log.warning(Utility.exMsg(e, "QGramIndex load " + rep + " (non-fatal)", false));
+			return(null);
+		}
+		finally {
+			Utility.safeClose(stm);
+		}
+	}
+
+	private QGramIndex(Config cfg, Source source, String name) {
+		this.cfg = cfg;
+		this.source = source;
+		this.name = name;
+	}
+
+	public int getQ() { return(q); }
+	public int getRowCount() { return(rowCount); }
+
+	// +------------+
+	// | candidates |
+	// +------------+
+
+	// Ascending rows that might hold motif with up to allowedMutations
+	// substitutions (every row that actually does is in there), or null
+	// if the index can't narrow things down enough to be worth it.
+
+	public int[] candidates(String motif, int allowedMutations) {
+		return(candidates(new String[] { motif }, allowedMutations));
+	}
+
+	// same for rows that might hold any of motifs
+
+	public int[] candidates(String[] motifs, int allowedMutations) {
+
+		int[] result = new int[0];
+
+		for (String motif : motifs) {
+			int[] rows = candidatesOne(motif, allowedMutations);
+			if (rows == null) return(null);
+			result = union(result, rows);
+		}
+
+		if (result.length > rowCount * cfg.MaxCandidateFraction) return(null);
+		return(result);
+	}
+
+	private int[] candidatesOne(String motif, int allowedMutations) {
+
+		if (motif == null || motif.isEmpty()) return(new int[0]);
+
+		int pieceCount = Math.max(0, allowedMutations) + 1;
+		int cch = motif.length();
+		if (cch / pieceCount < q) return(null);
+
+		// 1. rarest grams in each piece, and a quick upper bound on the
+		//    candidates before we read any postings
+
+		long[][] pieces = new long[pieceCount][];
+		long estimate = 0;
+
+		for (int ipiece = 0; ipiece < pieceCount; ++ipiece) {
+
+			int ichStart = (int) (((long) cch) * ipiece / pieceCount);
+			int ichEnd = (int) (((long) cch) * (ipiece + 1) / pieceCount);
+
+			long[] picked = pickGrams(motif, ichStart, ichEnd);
+			if (picked == null) return(null);
+
+			pieces[ipiece] = picked;
+			if (picked.length > 0) estimate += counts[find(picked[0])];
+		}
+
+		long maxCandidates = (long) (rowCount * cfg.MaxCandidateFraction);
+		if (estimate > maxCandidates) return(null);
+
+		// 2. postings for all of those, in one pass over the file
+
+		Map<Long,int[]> postings;
+
+		try {
+			postings = readPostings(pieces);
+		}
+		catch (IOException e) {
+			log.warning(Utility.exMsg(e, "QGramIndex postings " + name + " (non-fatal)", false));
+			return(null);
+		}
+
+		// 3. intersect within pieces, union across them
+
+		int[] result = new int[0];
+
+		for (long[] picked : pieces) {
+
+			if (picked.length == 0) continue;
+
+			int[] rows = postings.get(picked[0]);
+			for (int i = 1; i < picked.length && rows.length > 0; ++i) {
+				rows = intersect(rows, postings.get(picked[i]));
+			}
+
+			result = union(result, rows);
+		}
+
+		return(result);
+	}
+
+	// Up to MaxGramsPerPiece distinct grams from motif[ichStart..ichEnd),
+	// rarest first. Empty if one of them isn't in the index at all (so no
+	// row has this piece), null if none of them can be indexed.
+
+	private long[] pickGrams(String motif, int ichStart, int ichEnd) {
+
+		List<Long> grams = new ArrayList<Long>();
+
+		for (int ich = ichStart; ich + q <= ichEnd; ++ich) {
+			long gram = gramAt(motif, ich, q);
+			if (gram == -1L) continue;
+			if (find(gram) == -1) return(new long[0]);
+			if (!grams.contains(gram)) grams.add(gram);
+		}
+
+		if (grams.isEmpty()) return(null);
+
+		grams.sort((g1, g2) -> Integer.compare(counts[find(g1)], counts[find(g2)]));
+
+		int cpicked = Math.min(grams.size(), Math.max(1, cfg.MaxGramsPerPiece));
+		long[] picked = new long[cpicked];
+		for (int i = 0; i < cpicked; ++i) picked[i] = grams.get(i);
+
+		return(picked);
+	}
+
+	private Map<Long,int[]> readPostings(long[][] pieces) throws IOException {
+
+		Set<Long> unique = new HashSet<Long>();
+		for (long[] picked : pieces) {
+			for (long gram : picked) unique.add(gram);
+		}
+
+		// postings are in gram order, so ascending grams only move forward
+		long[] wanted = new long[unique.size()];
+		int cwanted = 0;
+		for (Long gram : unique) wanted[cwanted++] = gram;
+		Arrays.sort(wanted);
+
+		Map<Long,int[]> postings = new HashMap<Long,int[]>();
+		if (wanted.length == 0) return(postings);
+
+		InputStream stm = source.open();
+		if (stm == null) throw new IOException("QGramIndex went missing");
+
+		try {
+			InputStream in = new BufferedInputStream(stm, BUFFER_SIZE);
+
+			// not the one we loaded if a build has replaced it since
+			DataInputStream header = new DataInputStream(in);
+			if (header.readInt() != MAGIC || header.readLong() != version) {
+				throw new IOException("QGramIndex replaced since it was loaded");
+			}
+
+			long position = 12;
+
+			for (long gram : wanted) {
+
+				int i = find(gram);
+				long ib = dataStart + offsets[i];
+
+				skipFully(in, ib - position);
+				position = ib;
+
+				int[] rows = new int[counts[i]];
+				int row = -1;
+
+				for (int j = 0; j < rows.length; ++j) {
+					long delta = 0;
+					int shift = 0;
+					int b;
+					do {
+						b = in.read();
+						if (b == -1) throw new EOFException("truncated QGramIndex posting");
+						++position;
+						delta |= ((long) (b & 0x7F)) << shift;
+						shift += 7;
+					} while ((b & 0x80) != 0);
+
+					row += (int) delta;
+					if (row < 0 || row >= rowCount) throw new IOException("bad QGramIndex posting");
+					rows[j] = row;
+				}
+
+				postings.put(gram, rows);
+			}
+		}
+		finally {
+			Utility.safeClose(stm);
+		}
+
+		return(postings);
+	}
+
+	// +---------+
+	// | Builder |
+	// +---------+
+
+	// Accumulates postings in memory, rows in ascending order. Grams live in
+	// an open-addressed table so each one is a probe rather than a boxed
+	// map lookup; each posting is a growing byte buffer of varint deltas.
+
+	public static class Builder
+	{
+		public Builder(int q) {
+			this.q = q;
+			this.slots = new int[INITIAL_SLOTS];
+			this.mask = INITIAL_SLOTS - 1;
+			this.grams = new long[INITIAL_GRAMS];
+			this.lastRows = new int[INITIAL_GRAMS];
+			this.counts = new int[INITIAL_GRAMS];
+			this.bufs = new byte[INITIAL_GRAMS][];
+			this.lengths = new int[INITIAL_GRAMS];
+			this.gramCount = 0;
+			this.rowCount = 0;
+		}
+
+		public int getGramCount() { return(gramCount); }
+
+		public void add(int row, String key) {
+
+			rowCount = Math.max(rowCount, row + 1);
+			if (key == null) return;
+
+			// rolling gram; lastBad is the last char we can't pack
+			long gram = 0;
+			long gramMask = (q == MAX_Q ? -1L : (1L << (8 * q)) - 1);
+			int lastBad = -1;
+			int cch = key.length();
+
+			for (int ich = 0; ich < cch; ++ich) {
+
+				char ch = key.charAt(ich);
+				if (ch > 0xFF) lastBad = ich;
+
+				gram = ((gram << 8) | (ch & 0xFF)) & gramMask;
+
+				if (ich >= q - 1 && ich - lastBad >= q) addPosting(gram, row);
+			}
+		}
+
+		private void addPosting(long gram, int row) {
+
+			int slot = (int) mix(gram) & mask;
+
+			while (slots[slot] != 0) {
+				int i = slots[slot] - 1;
+				if (grams[i] == gram) {
+					// same gram twice in one key
+					if (lastRows[i] == row) return;
+					append(i, row);
+					return;
+				}
+				slot = (slot + 1) & mask;
+			}
+
+			int i = newGram(gram);
+			slots[slot] = i + 1;
+			append(i, row);
+
+			if (gramCount * 2 > slots.length) rehash();
+		}
+
+		private void append(int i, int row) {
+
+			if (bufs[i].length - lengths[i] < 5) bufs[i] = Arrays.copyOf(bufs[i], bufs[i].length * 2);
+
+			int delta = row - lastRows[i];
+			byte[] buf = bufs[i];
+			int ib = lengths[i];
+
+			while ((delta & ~0x7F) != 0) {
+				buf[ib++] = (byte) ((delta & 0x7F) | 0x80);
+				delta >>>= 7;
+			}
+			buf[ib++] = (byte) delta;
+
+			lengths[i] = ib;
+			lastRows[i] = row;
+			++counts[i];
+		}
+
+		private int newGram(long gram) {
+
+			if (gramCount == grams.length) {
+				int cNew = gramCount * 2;
+				grams = Arrays.copyOf(grams, cNew);
+				lastRows = Arrays.copyOf(lastRows, cNew);
+				counts = Arrays.copyOf(counts, cNew);
+				bufs = Arrays.copyOf(bufs, cNew);
+				lengths = Arrays.copyOf(lengths, cNew);
+			}
+
+			int i = gramCount++;
+			grams[i] = gram;
+			lastRows[i] = -1;
+			counts[i] = 0;
+			bufs[i] = new byte[INITIAL_POSTING];
+			lengths[i] = 0;
+
+			return(i);
+		}
+
+		private void rehash() {
+
+			slots = new int[slots.length * 2];
+			mask = slots.length - 1;
+
+			for (int i = 0; i < gramCount; ++i) {
+				int slot = (int) mix(grams[i]) & mask;
+				while (slots[slot] != 0) slot = (slot + 1) & mask;
+				slots[slot] = i + 1;
+			}
+		}
+
+		public void save(OutputStream stm) throws IOException {
+
+			// table is sorted by gram so load can binary search it
+			Integer[] order = new Integer[gramCount];
+			for (int i = 0; i < gramCount; ++i) order[i] = i;
+			Arrays.sort(order, (i1, i2) -> Long.compare(grams[i1], grams[i2]));
+
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stm, BUFFER_SIZE));
+
+			out.writeInt(MAGIC);
+			out.writeLong(ThreadLocalRandom.current().nextLong());
+			out.writeInt(q);
+			out.writeInt(rowCount);
+			out.writeInt(gramCount);
+
+			long offset = 0;
+			for (Integer i : order) {
+				out.writeLong(grams[i]);
+				out.writeInt(counts[i]);
+				out.writeLong(offset);
+				offset += lengths[i];
+			}
+
+			out.writeLong(offset);
+
+			for (Integer i : order) out.write(bufs[i], 0, lengths[i]);
+
+			out.flush();
+		}
+
+		private int q;
+		private int rowCount;
+
+		// open-addressed; gram index + 1, 0 is empty
+		private int[] slots;
+		private int mask;
+
+		// per gram
+		private long[] grams;
+		private int[] lastRows;
+		private int[] counts;
+		private byte[][] bufs;
+		private int[] lengths;
+		private int gramCount;
+
+		private final static int INITIAL_SLOTS = 4096;
+		private final static int INITIAL_GRAMS = 1024;
+		private final static int INITIAL_POSTING = 16;
+	}
+
+	// +---------+
+	// | Helpers |
+	// +---------+
+
+	private interface Source {
+		public InputStream open() throws IOException;
+	}
+
+	// packed gram at s[ich..ich+q), or -1 if a char doesn't fit
+
+	private static long gramAt(String s, int ich, int q) {
+		long gram = 0;
+		for (int i = 0; i < q; ++i) {
+			char ch = s.charAt(ich + i);
+			if (ch > 0xFF) return(-1L);
+			gram = (gram << 8) | ch;
+		}
+		return(gram);
+	}
+
+	private int find(long gram) {
+		int i = Arrays.binarySearch(grams, gram);
+		return(i < 0 ? -1 : i);
+	}
+
+	private static int[] intersect(int[] a, int[] b) {
+
+		int[] out = new int[Math.min(a.length, b.length)];
+		int c = 0;
+		int ia = 0;
+		int ib = 0;
+
+		while (ia < a.length && ib < b.length) {
+			if (a[ia] < b[ib]) ++ia;
+			else if (a[ia] > b[ib]) ++ib;
+			else { out[c++] = a[ia]; ++ia; ++ib; }
+		}
+
+		return(Arrays.copyOf(out, c));
+	}
+
+	private static int[] union(int[] a, int[] b) {
+
+		if (a.length == 0) return(b);
+		if (b.length == 0) return(a);
+
+		int[] out = new int[a.length + b.length];
+		int c = 0;
+		int ia = 0;
+		int ib = 0;
+
+		while (ia < a.length || ib < b.length) {
+			if (ib == b.length || (ia < a.length && a[ia] < b[ib])) out[c++] = a[ia++];
+			else if (ia == a.length || b[ib] < a[ia]) out[c++] = b[ib++];
+			else { out[c++] = a[ia]; ++ia; ++ib; }
+		}
+
+		return(Arrays.copyOf(out, c));
+	}
+
+	private static void skipFully(InputStream in, long cb) throws IOException {
+		while (cb > 0) {
+			long skipped = in.skip(cb);
+			if (skipped <= 0) {
+				if (in.read() == -1) throw new EOFException("truncated QGramIndex");
+				skipped = 1;
+			}
+			cb -= skipped;
+		}
+	}
+
+	// murmur3 finalizer
+	private static long mix(long h) {
+		h ^= (h >>> 33);
+		h *= 0xff51afd7ed558ccdL;
+		h ^= (h >>> 33);
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= (h >>> 33);
+		return(h);
+	}
+
+	// +---------+
+	// | Members |
+	// +---------+
+
+	private Config cfg;
+	private Source source;
+	private String name;
+
+	private long version;
+	private int q;
+	private int rowCount;
+	private long dataStart;
+
+	// sorted by gram; offsets has one extra entry for the end
+	private long[] grams;
+	private int[] counts;
+	private long[] offsets;
+
+	private final static int MAGIC = 0x51474932; // "QGI2"
+	private final static long HEADER_BYTES = 24L; // through gramCount
+	private final static int MAX_Q = 8;
+	private final static int BUFFER_SIZE = 64 * 1024;
+
+	private final static Logger log = Logger.getLogger(QGramIndex.class.getName());
+}
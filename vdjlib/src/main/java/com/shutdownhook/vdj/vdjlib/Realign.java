@@ -19,6 +19,7 @@ import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.EnumSet;
 import java.util.logging.Logger;
 
 import com.shutdownhook.vdj.vdjlib.model.Rearrangement;
@@ -273,26 +274,23 @@ public class Realign
 
 	public void toFasta(InputStream tsvStream, OutputStream fastaStream) throws IOException {
 
-		InputStreamReader rdr = null;
 		TsvReader tsv = null;
 		PrintWriter wtr = null;
 
 		try {
-			rdr = new InputStreamReader(tsvStream);
-			tsv = new TsvReader(rdr, 0);
+			tsv = new TsvReader(tsvStream, 0, EnumSet.of(TsvReader.Field.Rearrangement));
 			wtr = new PrintWriter(fastaStream);
 
 			long i = 0;
-			Rearrangement r;
+			Rearrangement r = new Rearrangement();
 			
-			while ((r = tsv.readNext()) != null) {
+			while (tsv.readNextInto(r)) {
 				wtr.printf(">%d %s\n%s\n", i++, r.Rearrangement, r.Rearrangement);
 			}
 		}
 		finally {
 			if (wtr != null) Utility.safeClose(wtr);
 			if (tsv != null) Utility.safeClose(tsv);
-			if (rdr != null) Utility.safeClose(rdr);
 		}
 	}
 
@@ -4,8 +4,13 @@
 
 package com.shutdownhook.vdj.vdjlib;
 
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.logging.Logger;
 
+import com.shutdownhook.vdj.vdjlib.TsvReader.Field;
 import com.shutdownhook.vdj.vdjlib.model.Rearrangement;
 
 public class RearrangementKey
@@ -26,25 +31,40 @@ public class RearrangementKey
 	// | getExtractor |
 	// +--------------+
 
+	// getFields is the TsvReader projection extract needs; the default
+	// is safe but makes the reader do a full parse for every row.
+	// getKeyType is null for keys that aren't one of ours.
+	
 	public interface Extractor {
 		public String extract(Rearrangement r);
+		default public EnumSet<Field> getFields() { return(TsvReader.ALL_FIELDS); }
+		default public KeyType getKeyType() { return(null); }
 	}
 
+	public final static EnumSet<Field> CDR3_FIELDS =
+		EnumSet.of(Field.Rearrangement, Field.VIndex, Field.DIndex, Field.Cdr3Length);
+	
 	public static Extractor getExtractor(KeyType keyType) {
 
 		switch (keyType) {
 			
 			case CDR3:
 				return(new Extractor() {
-					public String extract(Rearrangement r) { return(r.getCDR3()); } });
+					public String extract(Rearrangement r) { return(r.getCDR3()); }
+					public EnumSet<Field> getFields() { return(CDR3_FIELDS); }
+					public KeyType getKeyType() { return(KeyType.CDR3); } });
 				
 			case AminoAcid:
 				return(new Extractor() {
-					public String extract(Rearrangement r) { return(r.AminoAcid); } });
+					public String extract(Rearrangement r) { return(r.AminoAcid); }
+					public EnumSet<Field> getFields() { return(EnumSet.of(Field.AminoAcid)); }
+					public KeyType getKeyType() { return(KeyType.AminoAcid); } });
 				
 			case Rearrangement:
 				return(new Extractor() {
-					public String extract(Rearrangement r) { return(r.Rearrangement); } });
+					public String extract(Rearrangement r) { return(r.Rearrangement); }
+					public EnumSet<Field> getFields() { return(EnumSet.of(Field.Rearrangement)); }
+					public KeyType getKeyType() { return(KeyType.Rearrangement); } });
 
 			default:
 				return(null);
@@ -56,8 +76,47 @@ public class RearrangementKey
 	// | getMatcher |
 	// +------------+
 
+	// compile prepares a batch of search strings to be matched against
+	// each key in one go; MultiMatcher.matches returns the indices of the
+	// ones that match (ascending) or null if none do. The default just
+	// tries each search string in turn.
+	//
+	// getSpec describes a plain substring / full-length match with up to
+	// AllowedMutations substitutions, which is what lets Searcher narrow
+	// things down with a QGramIndex first; null for anything else.
+	
 	public interface Matcher {
+		
 		public boolean matches(String searchString, String keyString);
+
+		default public MatchSpec getSpec() { return(null); }
+
+		default public MultiMatcher compile(String[] searchStrings) {
+			return(new MultiMatcher() {
+				public int[] matches(String keyString) {
+					int[] hits = null;
+					int hitCount = 0;
+					for (int i = 0; i < searchStrings.length; ++i) {
+						if (Matcher.this.matches(searchStrings[i], keyString)) {
+							if (hits == null) hits = new int[searchStrings.length];
+							hits[hitCount++] = i;
+						}
+					}
+					return(hits == null ? null : Arrays.copyOf(hits, hitCount));
+				}
+			});
+		}
+	}
+
+	public interface MultiMatcher {
+		public int[] matches(String keyString);
+	}
+
+	public static class MatchSpec
+	{
+		public KeyType KeyType;
+		public int AllowedMutations;
+		public boolean FullLength;
 	}
 
 	public static Matcher getMatcher(KeyType keyType, int allowedMutations, boolean fullLength) {
@@ -67,56 +126,111 @@ public class RearrangementKey
 		// shut it off, but we may want to give the option or think about another way to do better
 		// in the future.
 		boolean nIsWild = false;
+
+		MatchSpec spec = new MatchSpec();
+		spec.KeyType = keyType;
+		spec.AllowedMutations = allowedMutations;
+		spec.FullLength = fullLength;
+
+		// Exact matches are just String ops. With mutations allowed we run
+		// bit-parallel (see Bitap); the search text is the same for every key
+		// so we only compile it once.
 		
 		return(new Matcher() {
 
+			public MatchSpec getSpec() {
+				// wild Ns could match anything, which the index can't see
+				return(nIsWild ? null : spec);
+			}
+
 			public boolean matches(String search, String key) {
 
 				if (search == null || search.isEmpty()) return(false);
 				if (key == null || key.isEmpty()) return(false);
 
-				int cchSearch = search.length();
-				int cchKey = key.length();
+				if (allowedMutations == 0 && !nIsWild) {
+					return(fullLength ? key.equals(search) : key.indexOf(search) != -1);
+				}
 
-				if (fullLength && (cchSearch != cchKey)) return(false);
+				Bitap bitap = getBitap(search);
+				return(fullLength ? bitap.matchesWhole(key) : bitap.find(key));
+			}
 
-				int ichStart = 0;
-				int ichKeyMac = cchKey - cchSearch + 1;
+			// Exact substrings all go into one AhoCorasick and exact full
+			// matches are a hash lookup, so either way it's one pass per key
+			// no matter how many searches. With mutations each search keeps
+			// its own Bitap.
+			
+			public MultiMatcher compile(String[] searches) {
+
+				if (allowedMutations == 0 && !nIsWild) {
+					
+					if (!fullLength) {
+						AhoCorasick ac = new AhoCorasick(searches);
+						return(new MultiMatcher() {
+							public int[] matches(String key) { return(ac.find(key)); }
+						});
+					}
 
-				if (ichKeyMac <= 0) return(false);
-		
-				while (ichStart < ichKeyMac) {
+					Map<String,int[]> exact = new HashMap<String,int[]>();
+					for (int i = 0; i < searches.length; ++i) {
+						if (searches[i] == null || searches[i].isEmpty()) continue;
+						int[] indices = exact.get(searches[i]);
+						indices = (indices == null ? new int[1] : Arrays.copyOf(indices, indices.length + 1));
+						indices[indices.length - 1] = i;
+						exact.put(searches[i], indices);
+					}
+					
+					return(new MultiMatcher() {
+						public int[] matches(String key) {
+							int[] indices = (key == null ? null : exact.get(key));
+							return(indices == null ? null : indices.clone());
+						}
+					});
+				}
 
-					int mutsRemaining = allowedMutations;
-					int j = 0;
-					while (j < cchSearch) {
+				Bitap[] bitaps = new Bitap[searches.length];
+				for (int i = 0; i < searches.length; ++i) {
+					String search = (searches[i] == null ? "" : searches[i]);
+					bitaps[i] = new Bitap(search, allowedMutations, nIsWild ? 'N' : (char) 0);
+				}
 
-						char chKey = key.charAt(ichStart + j);
-						char chSearch = search.charAt(j);
+				return(new MultiMatcher() {
+					public int[] matches(String key) {
+						
+						if (key == null || key.isEmpty()) return(null);
+						
+						int[] hits = null;
+						int hitCount = 0;
 						
-						if ((chKey != chSearch) &&
-							(!nIsWild || (chKey != 'N' && chSearch != 'N'))) {
-
-							// chars don't match and either N's are NOT wild (AminoAcid)
-							// or neither character is an N ==> mismatch
-							
-							if (mutsRemaining == 0) break;
-							--mutsRemaining;
+						for (int i = 0; i < bitaps.length; ++i) {
+							if (fullLength ? bitaps[i].matchesWhole(key) : bitaps[i].find(key)) {
+								if (hits == null) hits = new int[bitaps.length];
+								hits[hitCount++] = i;
+							}
 						}
-				
-						++j;
+						
+						return(hits == null ? null : Arrays.copyOf(hits, hitCount));
 					}
+				});
+			}
+
+			// matchers are shared across scan threads; Bitap is immutable
+			// so a racing thread at worst compiles it again
 			
-					if (j == cchSearch) return(true);
-			
-					++ichStart;
+			private Bitap getBitap(String search) {
+				Bitap bitap = lastBitap;
+				if (bitap == null || !bitap.getPattern().equals(search)) {
+					bitap = new Bitap(search, allowedMutations, nIsWild ? 'N' : (char) 0);
+					lastBitap = bitap;
 				}
-
-				return(false);
+				return(bitap);
 			}
+
+			private volatile Bitap lastBitap;
 		});
 	}
-	
+
 	// +---------+
 	// | Members |
 	// +---------+
@@ -16,6 +16,10 @@ public class RepertoireResult
 	public Boolean Truncated;
 	public List<Integer> SelectionIndices;
 
+	// multi-motif search; parallel to Rearrangements, the indices of the
+	// motifs each one matched
+	public List<int[]> MotifHits;
+
 	public String toJson() {
 		
 		StringBuilder sb = new StringBuilder();
@@ -37,6 +41,12 @@ public class RepertoireResult
 			sb.append("\"SelectionIndices\": ");
 			sb.append(Utility.getGson().toJson(SelectionIndices));
 		}
+
+		if (MotifHits != null) {
+			sb.append(",");
+			sb.append("\"MotifHits\": ");
+			sb.append(Utility.getGson().toJson(MotifHits));
+		}
 		
 		sb.append("}");
 
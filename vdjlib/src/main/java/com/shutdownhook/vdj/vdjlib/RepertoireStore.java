@@ -4,8 +4,11 @@
 
 package com.shutdownhook.vdj.vdjlib;
 
+import java.io.File;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
 
 import com.shutdownhook.vdj.vdjlib.model.Repertoire;
 
@@ -20,6 +23,13 @@ public interface RepertoireStore
 	public Repertoire[] getContextRepertoires(String userId, String ctx);
 	public InputStream getRepertoireStream(RepertoireSpec spec);
 
+	// Optional zero-copy access; return a read-only buffer positioned at the
+	// start of the repertoire (e.g., a memory mapping) or null to make
+	// callers fall back to getRepertoireStream.
+
+	default public ByteBuffer
+		getRepertoireBuffer(RepertoireSpec spec) { return(null); }
+
 	// Optional methods for a store that implements uploads
 
 	default public OutputStream // return null if already exists!
@@ -41,5 +51,44 @@ public interface RepertoireStore
 
 	default public boolean
 		deleteRepertoireSecondaryFiles(RepertoireSpec spec) { return(true); }
+
+	// Replaces a secondary file with the contents of file in one step, so
+	// readers see the old one or the new one and never a mix, and a failed
+	// save leaves the old one alone. The default copies through the save
+	// stream, which promises neither; false means nothing was saved.
+
+	default public boolean
+		saveRepertoireSecondaryFile(RepertoireSpec spec, String key, File file) {
+		return(copyToStream(file, getRepertoireSecondarySaveStream(spec, key)));
+	}
+
+	// Optional context-wide cache support (e.g., ContextIndex); these go
+	// away with the context
+
+	default public OutputStream
+		getContextSecondarySaveStream(String userId, String ctx, String key) { return(null); }
+
+	default public InputStream
+		getContextSecondaryStream(String userId, String ctx, String key) { return(null); }
+
+	default public boolean // see saveRepertoireSecondaryFile
+		saveContextSecondaryFile(String userId, String ctx, String key, File file) {
+		return(copyToStream(file, getContextSecondarySaveStream(userId, ctx, key)));
+	}
+
+	private static boolean copyToStream(File file, OutputStream stm) {
+		
+		if (stm == null) return(false);
 		
+		try {
+			Files.copy(file.toPath(), stm);
+			return(true);
+		}
+		catch (Exception e) {
+			return(false);
+		}
+		finally {
+			Utility.safeClose(stm);
+		}
+	}
 }
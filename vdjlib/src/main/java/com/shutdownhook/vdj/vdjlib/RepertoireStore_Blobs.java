@@ -11,6 +11,7 @@
 
 package com.shutdownhook.vdj.vdjlib;
 
+import java.io.File;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
@@ -156,6 +157,7 @@ public class RepertoireStore_Blobs implements RepertoireStore
 				// by doing this we effectively delete the context too, since
 				// there is no "directory" when there are no files in it.
 				getContextFileBlob(spec.UserId, spec.Context).delete();
+				deleteBlobsUnder(getContextCachePath(spec.UserId, spec.Context));
 			}
 			else if (!saveContextRepertoires(spec.UserId, spec.Context, newReps)) {
 				return(false);
@@ -191,6 +193,23 @@ public class RepertoireStore_Blobs implements RepertoireStore
 		}
 	}
 
+	// +-----------------------------+
+	// | saveRepertoireSecondaryFile |
+	// +-----------------------------+
+
+	// a blob upload only replaces the old one once it's all there
+
+	public boolean saveRepertoireSecondaryFile(RepertoireSpec spec, String key, File file) {
+		try {
+			getRepertoireSecondaryFileBlob(spec, key).uploadFromFile(file.getAbsolutePath(), true);
+			return(true);
+		}
+		catch (Exception e) {
+			log.warning(Utility.exMsg(e, "saveRepertoireSecondaryFile", false));
+			return(false);
+		}
+	}
+
 	// +------------------------------+
 	// | getRepertoireSecondaryStream |
 	// +------------------------------+
@@ -212,10 +231,7 @@ public class RepertoireStore_Blobs implements RepertoireStore
 	
 	public boolean deleteRepertoireSecondaryFiles(RepertoireSpec spec) {
 		try {
-			client.listBlobsByHierarchy(getRepertoireCachePath(spec)).forEach(blob -> {
-				if (!blob.isPrefix()) client.getBlobClient(blob.getName()).delete();
-			});
-
+			deleteBlobsUnder(getRepertoireCachePath(spec));
 			return(true);
 		}
 		catch (Exception e) {
@@ -224,6 +240,58 @@ public class RepertoireStore_Blobs implements RepertoireStore
 		}
 	}
 
+	private void deleteBlobsUnder(String path) {
+		client.listBlobsByHierarchy(path).forEach(blob -> {
+			if (!blob.isPrefix()) client.getBlobClient(blob.getName()).delete();
+		});
+	}
+
+	// +-------------------------------+
+	// | getContextSecondarySaveStream |
+	// +-------------------------------+
+
+	public OutputStream getContextSecondarySaveStream(String userId, String ctx, String key) {
+		try {
+			return(getContextSecondaryFileBlob(userId, ctx, key)
+				   .getBlockBlobClient()
+				   .getBlobOutputStream(true));
+		}
+		catch (Exception e) {
+			log.warning(Utility.exMsg(e, "getContextSecondarySaveStream", false));
+			return(null);
+		}
+	}
+
+	// +--------------------------+
+	// | saveContextSecondaryFile |
+	// +--------------------------+
+
+	public boolean saveContextSecondaryFile(String userId, String ctx, String key, File file) {
+		try {
+			getContextSecondaryFileBlob(userId, ctx, key).uploadFromFile(file.getAbsolutePath(), true);
+			return(true);
+		}
+		catch (Exception e) {
+			log.warning(Utility.exMsg(e, "saveContextSecondaryFile", false));
+			return(false);
+		}
+	}
+
+	// +---------------------------+
+	// | getContextSecondaryStream |
+	// +---------------------------+
+	
+	public InputStream getContextSecondaryStream(String userId, String ctx, String key) {
+		try {
+			BlobClient blob = getContextSecondaryFileBlob(userId, ctx, key);
+			return(blob.exists() ? blob.openInputStream() : null);
+		}
+		catch (Exception e) {
+			log.warning(Utility.exMsg(e, "getContextSecondaryStream", true));
+			return(null);
+		}
+	}
+
 	// +--------------------+
 	// | getContainerClient |
 	// +--------------------+
@@ -299,6 +367,16 @@ public class RepertoireStore_Blobs implements RepertoireStore
 		return(client.getBlobClient(getRepertoireCachePath(spec) + clean(key)));
 	}
 	
+	// urlEncode turns "~" into %7E, so this can't collide with a repertoire
+
+	private String getContextCachePath(String userId, String ctx) {
+		return(getContextPath(userId, ctx) + CONTEXT_CACHE_NAME + "/");
+	}
+
+	private BlobClient getContextSecondaryFileBlob(String userId, String ctx, String key) {
+		return(client.getBlobClient(getContextCachePath(userId, ctx) + clean(key)));
+	}
+	
 	private String clean(String input) {
 		return(Utility.urlEncode(input));
 	}
@@ -331,6 +409,7 @@ public class RepertoireStore_Blobs implements RepertoireStore
 
 	private final static String TSV_EXT = ".tsv";
 	private final static String CACHE_SUFFIX = "__cache";
+	private final static String CONTEXT_CACHE_NAME = "~context" + CACHE_SUFFIX;
 
 	private final static Logger log = Logger.getLogger(RepertoireStore_Blobs.class.getName());
 }
@@ -12,8 +12,12 @@ import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.logging.Logger;
 
 import com.shutdownhook.vdj.vdjlib.model.Repertoire;
@@ -28,6 +32,10 @@ public class RepertoireStore_Files implements RepertoireStore
 	{
 		public String BasePath;
 		public String ContextFileName = "context.json";
+
+		// Mapped files can't be deleted on Windows until the mapping is
+		// garbage collected; turn this off if that becomes a problem.
+		public Boolean UseMappedReads = true;
 	}
 
 	public RepertoireStore_Files(Config cfg) {
@@ -93,6 +101,40 @@ public class RepertoireStore_Files implements RepertoireStore
 		}
 	}
 
+	// +---------------------+
+	// | getRepertoireBuffer |
+	// +---------------------+
+
+	// Maps the file read-only so scans run directly against the OS page
+	// cache (shared by every concurrent reader of the same repertoire)
+	// without a charset decode or heap copy. A single mapping is limited
+	// to 2GB, so bigger files just fall back to the stream.
+	
+	public ByteBuffer getRepertoireBuffer(RepertoireSpec spec) {
+
+		if (!cfg.UseMappedReads) return(null);
+		
+		FileChannel channel = null;
+		
+		try {
+			channel = FileChannel.open(getRepertoireFile(spec).toPath(), StandardOpenOption.READ);
+			long cb = channel.size();
+			if (cb > Integer.MAX_VALUE) return(null);
+			
+			// mapping stays valid after the channel is closed
+			return(channel.map(FileChannel.MapMode.READ_ONLY, 0, cb));
+		}
+		catch (IOException e) {
+
+			String msg = String.format("getRepertoireBuffer %s", spec);
+			log.warning(Utility.exMsg(e, msg, false));
+			return(null);
+		}
+		finally {
+			Utility.safeClose(channel);
+		}
+	}
+
 	// +-------------------------+
 	// | getRepertoireSaveStream |
 	// +-------------------------+
@@ -198,6 +240,14 @@ public class RepertoireStore_Files implements RepertoireStore
 		}
 	}
 
+	// +-----------------------------+
+	// | saveRepertoireSecondaryFile |
+	// +-----------------------------+
+
+	public boolean saveRepertoireSecondaryFile(RepertoireSpec spec, String key, File file) {
+		return(replaceAtomically(getRepertoireCacheDir(spec), key, file));
+	}
+
 	// +------------------------------+
 	// | getRepertoireSecondaryStream |
 	// +------------------------------+
@@ -218,6 +268,55 @@ public class RepertoireStore_Files implements RepertoireStore
 		}
 	}
 
+	// +-------------------------------+
+	// | getContextSecondarySaveStream |
+	// +-------------------------------+
+
+	public OutputStream getContextSecondarySaveStream(String userId, String ctx, String key) {
+		
+		try {
+			File cacheDir = getContextCacheDir(userId, ctx);
+			cacheDir.mkdirs();
+			return(new FileOutputStream(new File(cacheDir, clean(key))));
+		}
+		catch (IOException e) {
+
+			String msg = String.format("getContextSecondarySaveStream %s/%s/%s", userId, ctx, key);
+			log.severe(Utility.exMsg(e, msg, true));
+			return(null);
+		}
+	}
+
+	// +--------------------------+
+	// | saveContextSecondaryFile |
+	// +--------------------------+
+
+	public boolean saveContextSecondaryFile(String userId, String ctx, String key, File file) {
+		File cacheDir = getContextCacheDir(userId, ctx);
+		cacheDir.mkdirs();
+		return(replaceAtomically(cacheDir, key, file));
+	}
+
+	// +---------------------------+
+	// | getContextSecondaryStream |
+	// +---------------------------+
+	
+	public InputStream getContextSecondaryStream(String userId, String ctx, String key) {
+
+		try {
+			return(new FileInputStream(new File(getContextCacheDir(userId, ctx), clean(key))));
+		}
+		catch (FileNotFoundException eNotFound) {
+			// this is ok, just means we don't have one cached
+			return(null);
+		}
+		catch (IOException e) {
+			String msg = String.format("getContextSecondaryStream %s/%s/%s", userId, ctx, key);
+			log.severe(Utility.exMsg(e, msg, true));
+			return(null);
+		}
+	}
+
 	// +--------------------------------+
 	// | deleteRepertoireSecondaryFiles |
 	// +--------------------------------+
@@ -265,10 +364,42 @@ public class RepertoireStore_Files implements RepertoireStore
 		return(cacheDir);
 	}
 
+	// clean never leaves a "~", so this can't collide with a repertoire
+
+	private File getContextCacheDir(String userId, String ctx) {
+		return(new File(getContextDir(userId, ctx), CONTEXT_CACHE_NAME));
+	}
+
 	private String clean(String input) {
 		return(input.replaceAll("\\W+", "_"));
 	}
 
+	// copy next to the target and rename over it; readers that already
+	// have the old one open keep reading the old one
+
+	private boolean replaceAtomically(File dir, String key, File file) {
+
+		File temp = null;
+		
+		try {
+			temp = File.createTempFile(clean(key), ".tmp", dir);
+			Files.copy(file.toPath(), temp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			
+			Files.move(temp.toPath(), new File(dir, clean(key)).toPath(),
+					   StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			
+			temp = null;
+			return(true);
+		}
+		catch (Exception e) {
+			log.warning(Utility.exMsg(e, "replaceAtomically " + key, false));
+			return(false);
+		}
+		finally {
+			if (temp != null) temp.delete();
+		}
+	}
+
 	private void saveContextRepertoires(String userId, String ctx, Repertoire[] reps) throws IOException {
 		String json = Repertoire.toJsonArray(reps);
 		getContextDir(userId, ctx).mkdirs();
@@ -285,6 +416,7 @@ public class RepertoireStore_Files implements RepertoireStore
 
 	private final static String TSV_EXT = ".tsv";
 	private final static String CACHE_SUFFIX = "__cache";
+	private final static String CONTEXT_CACHE_NAME = "~context" + CACHE_SUFFIX;
 
 	private final static Logger log = Logger.getLogger(RepertoireStore_Files.class.getName());
 }
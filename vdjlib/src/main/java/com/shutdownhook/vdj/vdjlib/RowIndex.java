@@ -0,0 +1,154 @@
+//
+// ROWINDEX.JAVA
+//
+
+// Sparse row -> byte offset index for a stored repertoire, so paged reads
+// can seek close to their start row instead of tokenizing every line in
+// front of it. We record the offset of every Nth data row (N = Interval);
+// a reader seeks to the nearest indexed row at or before the one it wants
+// and walks the rest, so any page costs at most Interval extra lines.
+//
+// TsvReceiver builds the index as it saves a repertoire and stores it as
+// a secondary file under SECONDARY_KEY. Repertoires saved before it
+// existed just don't have one and readers fall back to walking rows.
+
+package com.shutdownhook.vdj.vdjlib;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+public class RowIndex
+{
+	public final static String SECONDARY_KEY = "rowIndex";
+	public final static int DEFAULT_INTERVAL = 1000;
+
+	// +------------------+
+	// | Setup & Teardown |
+	// +------------------+
+
+	public RowIndex() {
+		this(DEFAULT_INTERVAL);
+	}
+
+	public RowIndex(int interval) {
+		this.interval = interval;
+		this.offsets = new long[INITIAL_CAPACITY];
+		this.count = 0;
+	}
+
+	// +-------+
+	// | build |
+	// +-------+
+
+	// true if the caller should add the offset of data row irow
+
+	public boolean wants(int irow) {
+		return(irow == count * interval);
+	}
+
+	public void add(long offset) {
+		if (count == offsets.length) offsets = Arrays.copyOf(offsets, count * 2);
+		offsets[count++] = offset;
+	}
+
+	// +--------+
+	// | lookup |
+	// +--------+
+
+	// highest indexed row <= irow, or 0 if there's nothing useful
+
+	public int getIndexedRow(int irow) {
+		int ientry = getEntry(irow);
+		return(ientry == -1 ? 0 : ientry * interval);
+	}
+
+	// offset of getIndexedRow(irow), or -1 if there's nothing useful
+
+	public long getOffset(int irow) {
+		int ientry = getEntry(irow);
+		return(ientry == -1 ? -1 : offsets[ientry]);
+	}
+
+	private int getEntry(int irow) {
+		if (irow <= 0 || count == 0) return(-1);
+		return(Math.min(irow / interval, count - 1));
+	}
+
+	// +-------------+
+	// | save / load |
+	// +-------------+
+
+	public void save(OutputStream stm) throws IOException {
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stm));
+
+		out.writeInt(MAGIC);
+		out.writeInt(interval);
+		out.writeInt(count);
+		for (int i = 0; i < count; ++i) out.writeLong(offsets[i]);
+
+		out.flush();
+	}
+
+	public static RowIndex load(InputStream stm) throws IOException {
+
+		DataInputStream in = new DataInputStream(new BufferedInputStream(stm));
+
+		if (in.readInt() != MAGIC) throw new IOException("bad RowIndex format");
+
+		RowIndex index = new RowIndex(in.readInt());
+		int count = in.readInt();
+
+		index.offsets = new long[Math.max(count, 1)];
+		for (int i = 0; i < count; ++i) index.offsets[i] = in.readLong();
+		index.count = count;
+
+		return(index);
+	}
+
+	// null if the repertoire doesn't have an index (or it's unreadable)
+
+	public static RowIndex load(ContextRepertoireStore crs, String rep) {
+		return(load(crs.getSecondaryStream(rep, SECONDARY_KEY), rep));
+	}
+
+	public static RowIndex load(RepertoireStore store, RepertoireSpec spec) {
+		return(load(store.getRepertoireSecondaryStream(spec, SECONDARY_KEY), spec.Name));
+	}
+
+	private static RowIndex load(InputStream stm, String name) {
+
+		if (stm == null) return(null);
+
+		try {
+			return(load(stm));
+		}
+		catch (IOException e) {
+			log.warning(Utility.exMsg(e, "RowIndex load " + name + " (non-fatal)", false));
+			return(null);
+		}
+		finally {
+			Utility.safeClose(stm);
+		}
+	}
+
+	// +---------+
+	// | Members |
+	// +---------+
+
+	private int interval;
+	private long[] offsets;
+	private int count;
+
+	private final static int MAGIC = 0x52495831; // "RIX1"
+	private final static int INITIAL_CAPACITY = 256;
+
+	private final static Logger log = Logger.getLogger(RowIndex.class.getName());
+}
@@ -0,0 +1,23 @@
+//
+// ROWREADER.JAVA
+// 
+
+// Row-at-a-time access to a repertoire's rearrangements, whichever form
+// it's stored in (the original TSV or the columnar sidecar). Fields
+// outside the reader's projection are left at their defaults until
+// materialize is called on the most recently read row.
+
+package com.shutdownhook.vdj.vdjlib;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import com.shutdownhook.vdj.vdjlib.model.Rearrangement;
+
+public interface RowReader extends Closeable
+{
+	public Rearrangement readNext() throws IOException;
+	public boolean readNextInto(Rearrangement r) throws IOException;
+	public void materialize(Rearrangement r) throws IOException;
+	public void close();
+}
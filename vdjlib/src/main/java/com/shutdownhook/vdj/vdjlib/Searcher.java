@@ -4,15 +4,18 @@
 
 package com.shutdownhook.vdj.vdjlib;
 
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 import java.util.logging.Logger;
 
 import com.shutdownhook.vdj.vdjlib.RearrangementKey;
+import com.shutdownhook.vdj.vdjlib.RearrangementKey.KeyType;
+import com.shutdownhook.vdj.vdjlib.RearrangementKey.MultiMatcher;
 import com.shutdownhook.vdj.vdjlib.model.Repertoire;
 import com.shutdownhook.vdj.vdjlib.model.Rearrangement;
 
@@ -25,6 +28,9 @@ public class Searcher
 	public static class Config
 	{
 		public Integer MaxResults = 2000; // 0 == no max
+		public ParallelScan.Config Scan = new ParallelScan.Config();
+		public QGramIndex.Config QGram = new QGramIndex.Config();
+		public ContextIndex.Config ContextIndex = new ContextIndex.Config();
 	}
 
 	public Searcher(Config cfg) {
@@ -42,6 +48,11 @@ public class Searcher
 		public String Motif;
 		public RearrangementKey.Extractor Extractor;
 		public RearrangementKey.Matcher Matcher;
+
+		// if set, Motif is ignored and all of these are matched in one
+		// pass; each result row is tagged with the ones it hit (see
+		// RepertoireResult.MotifHits)
+		public String[] Motifs;
 	}
 
 	// +-------------+
@@ -64,10 +75,20 @@ public class Searcher
 		List<CompletableFuture<RepertoireResult>> futures =
 			new ArrayList<CompletableFuture<RepertoireResult>>();
 
+		// compile once and share across repertoires
+		MultiMatcher multi = compileMotifs(params);
+
+		// rows for the repertoires the context index covers, if it applies
+		Map<String,int[]> indexed = findIndexedRows(params);
+
 		for (int i = 0; i < params.Repertoires.length; ++i) {
 			Repertoire rep = params.CRS.findRepertoire(params.Repertoires[i]);
 			if (rep == null) throw new Exception(String.format("rep %s not found", params.Repertoires[i]));
-			futures.add(searchOneRepertoireAsync(params, rep));
+
+			int[] rows = (indexed == null ? null : indexed.get(rep.Name));
+			futures.add(rows == null
+						? searchOneRepertoireAsync(params, multi, rep)
+						: searchIndexedAsync(params, multi, rep, rows));
 		}
 
 		CompletableFuture.allOf(futures.toArray(new CompletableFuture[futures.size()])).join();
@@ -86,55 +107,294 @@ public class Searcher
 	public CompletableFuture<RepertoireResult>
 		searchOneRepertoireAsync(Params params, Repertoire repertoire) {
 
+		return(searchOneRepertoireAsync(params, compileMotifs(params), repertoire));
+	}
+
+	private CompletableFuture<RepertoireResult>
+		searchOneRepertoireAsync(Params params, MultiMatcher multi, Repertoire repertoire) {
+
 		return(Exec.runAsync("searchOne", new Exec.AsyncOperation() {
 			public RepertoireResult execute() throws Exception {
-				return(searchOneRepertoire(params, repertoire));
+				return(searchOneRepertoire(params, multi, repertoire));
 			}
 		}));
 	}
 
-	private RepertoireResult searchOneRepertoire(Params params, Repertoire repertoire)
-		throws IOException {
+	private RepertoireResult searchOneRepertoire(Params params, MultiMatcher multi,
+												 Repertoire repertoire) throws Exception {
 
-		InputStream stm = null;
-		InputStreamReader rdr = null;
-		TsvReader tsv = null;
+		int[] candidates = findCandidates(params, repertoire);
+		if (candidates != null) {
+			RepertoireResult result = searchCandidates(params, multi, repertoire, candidates);
+			if (result != null) return(result);
+		}
 
-		try {
-			stm = params.CRS.getRepertoireStream(repertoire);
-			rdr = new InputStreamReader(stm);
-			tsv = new TsvReader(rdr, 0);
+		List<RepertoireResult> partials =
+			ParallelScan.scan(cfg.Scan, params.CRS, repertoire, params.Extractor.getFields(),
+							  (rdr) -> searchChunk(params, multi, rdr));
 
-			RepertoireResult result = new RepertoireResult();
-			result.Repertoire = repertoire;
-			result.Rearrangements = new ArrayList<Rearrangement>();
-			result.Truncated = false;
+		// chunks are in file order and each holds its first MaxResults
+		// matches, so the first MaxResults overall are the same ones a
+		// serial scan would have found
+
+		RepertoireResult result = new RepertoireResult();
+		result.Repertoire = repertoire;
+		result.Rearrangements = new ArrayList<Rearrangement>();
+		result.Truncated = false;
+		if (multi != null) result.MotifHits = new ArrayList<int[]>();
+
+		for (RepertoireResult partial : partials) {
+			for (int i = 0; i < partial.Rearrangements.size(); ++i) {
+				
+				if (cfg.MaxResults != 0 && result.Rearrangements.size() == cfg.MaxResults) {
+					result.Truncated = true;
+					return(result);
+				}
+
+				result.Rearrangements.add(partial.Rearrangements.get(i));
+				if (multi != null) result.MotifHits.add(partial.MotifHits.get(i));
+			}
+
+			if (partial.Truncated) {
+				result.Truncated = true;
+				return(result);
+			}
+		}
+
+		return(result);
+	}
+
+	private RepertoireResult searchChunk(Params params, MultiMatcher multi,
+										 RowReader rdr) throws IOException {
+
+		RepertoireResult result = newPartial(multi);
+		Rearrangement r = new Rearrangement();
 			
-			Rearrangement r;
+		while (rdr.readNextInto(r)) {
+			if (!checkRow(params, multi, rdr, r, result)) break;
+		}
+
+		return(result);
+	}
+
+	// false once result is full (and marked Truncated)
+
+	private boolean checkRow(Params params, MultiMatcher multi, RowReader rdr,
+							 Rearrangement r, RepertoireResult result) throws IOException {
+
+		String key = params.Extractor.extract(r);
+		int[] hits = null;
+
+		if (multi != null) {
+			hits = multi.matches(key);
+			if (hits == null) return(true);
+		}
+		else if (!params.Matcher.matches(params.Motif, key)) {
+			return(true);
+		}
+
+		if (cfg.MaxResults != 0 && result.Rearrangements.size() == cfg.MaxResults) {
+			result.Truncated = true;
+			return(false);
+		}
+
+		rdr.materialize(r);
+		result.Rearrangements.add(r.copy());
+		if (multi != null) result.MotifHits.add(hits);
+
+		return(true);
+	}
+
+	private static RepertoireResult newPartial(MultiMatcher multi) {
+		RepertoireResult result = new RepertoireResult();
+		result.Rearrangements = new ArrayList<Rearrangement>();
+		result.Truncated = false;
+		if (multi != null) result.MotifHits = new ArrayList<int[]>();
+		return(result);
+	}
+
+	// +--------------------+
+	// | findIndexedRows    |
+	// | searchIndexedAsync |
+	// +--------------------+
+
+	// Exact full-length searches over several repertoires go to the
+	// ContextIndex: one probe for every motif, giving the matching rows in
+	// each repertoire it covers (keyed by name; repertoires it doesn't
+	// cover aren't in the map). Null if it doesn't apply.
+	//
+	// We only ever load the saved index; updating it is a background job
+	// (see ContextIndex.updateAsync). If it's missing or doesn't cover
+	// everything we were asked about, we kick one off for next time and
+	// scan whatever isn't covered now.
+
+	private Map<String,int[]> findIndexedRows(Params params) throws IOException {
+
+		if (params.Repertoires.length < cfg.ContextIndex.MinRepertoires) return(null);
+		
+		RearrangementKey.MatchSpec spec = params.Matcher.getSpec();
+		if (spec == null || spec.AllowedMutations != 0 || !spec.FullLength) return(null);
+		if (spec.KeyType != params.Extractor.getKeyType()) return(null);
+
+		if (!cfg.ContextIndex.Enabled) return(null);
+
+		ContextIndex index = ContextIndex.load(params.CRS, spec.KeyType);
+		if (index == null) {
+			updateContextIndex(params, spec.KeyType);
+			return(null);
+		}
+
+		String[] motifs = (params.Motifs == null ? new String[] { params.Motif } : params.Motifs);
+		ContextIndex.Posting[][] postings;
+
+		try {
+			postings = index.lookup(motifs);
+		}
+		catch (IOException | RuntimeException e) {
+			// includes an index replaced by an update since we loaded it
+			log.warning(Utility.exMsg(e, "ContextIndex lookup (non-fatal)", false));
+			return(null);
+		}
+
+		// postings are already in row order within each repertoire, but the
+		// same row can turn up under more than one motif
+		
+		int[] counts = new int[index.getRepertoireCount()];
+		for (ContextIndex.Posting[] motifPostings : postings) {
+			for (ContextIndex.Posting posting : motifPostings) ++counts[posting.Repertoire];
+		}
+
+		int[][] rowsByRep = new int[counts.length][];
+		for (int i = 0; i < counts.length; ++i) rowsByRep[i] = new int[counts[i]];
+
+		Arrays.fill(counts, 0);
+		for (ContextIndex.Posting[] motifPostings : postings) {
+			for (ContextIndex.Posting posting : motifPostings) {
+				rowsByRep[posting.Repertoire][counts[posting.Repertoire]++] = posting.Row;
+			}
+		}
+
+		Map<String,int[]> indexed = new HashMap<String,int[]>();
+		boolean stale = false;
+
+		for (Repertoire rep : params.CRS.getRepertoires()) {
 			
-			while ((r = tsv.readNext()) != null) {
+			int irep = index.findRepertoire(rep);
+			if (irep == -1) {
+				stale = true;
+				continue;
+			}
+
+			int[] rows = rowsByRep[irep];
+			Arrays.sort(rows);
 
-				String key = params.Extractor.extract(r);
-				if (params.Matcher.matches(params.Motif, key)) {
+			int unique = 0;
+			for (int i = 0; i < rows.length; ++i) {
+				if (i == 0 || rows[i] != rows[i - 1]) rows[unique++] = rows[i];
+			}
 
-					if (cfg.MaxResults != 0 && result.Rearrangements.size() == cfg.MaxResults) {
-						result.Truncated = true;
-						break;
-					}
+			indexed.put(rep.Name, Arrays.copyOf(rows, unique));
+		}
 
-					result.Rearrangements.add(r);
-				}
+		if (stale) updateContextIndex(params, spec.KeyType);
+		return(indexed);
+	}
+
+	private void updateContextIndex(Params params, KeyType keyType) {
+		ContextIndex.updateAsync(cfg.ContextIndex, params.CRS, new KeyType[] { keyType });
+	}
+
+	// rows came from the index; searchCandidates still runs the matcher on
+	// each, which is how MotifHits get filled in
+
+	private CompletableFuture<RepertoireResult>
+		searchIndexedAsync(Params params, MultiMatcher multi, Repertoire repertoire, int[] rows) {
+
+		return(Exec.runAsync("searchIndexed", new Exec.AsyncOperation() {
+			public RepertoireResult execute() throws Exception {
+				RepertoireResult result = searchCandidates(params, multi, repertoire, rows);
+				return(result != null ? result : searchOneRepertoire(params, multi, repertoire));
+			}
+		}));
+	}
+
+	// +------------------+
+	// | findCandidates   |
+	// | searchCandidates |
+	// +------------------+
+
+	// Rows that might match according to the repertoire's QGramIndex, or
+	// null if we should just scan (no index, a matcher it doesn't
+	// understand, a motif it can't narrow down, ...). Indexes are built
+	// in the background after upload; if there isn't one yet we start
+	// building it for next time and scan now.
+
+	private int[] findCandidates(Params params, Repertoire repertoire) {
+
+		RearrangementKey.MatchSpec spec = params.Matcher.getSpec();
+		if (spec == null || spec.KeyType != params.Extractor.getKeyType()) return(null);
+		if (!cfg.QGram.Enabled) return(null);
+
+		QGramIndex index = QGramIndex.load(cfg.QGram, params.CRS, repertoire.Name, spec.KeyType);
+		if (index == null) {
+			QGramIndex.buildAsync(cfg.QGram, params.CRS, repertoire.Name, new KeyType[] { spec.KeyType });
+			return(null);
+		}
+
+		String[] motifs = (params.Motifs == null ? new String[] { params.Motif } : params.Motifs);
+		
+		int[] candidates = index.candidates(motifs, spec.AllowedMutations);
+		if (candidates == null) return(null);
+
+		log.fine(String.format("Searcher %s: %d candidate rows of %d",
+							   repertoire.Name, candidates.length, index.getRowCount()));
+		
+		return(candidates);
+	}
+
+	// Candidates are ascending, so results come back in the same order (and
+	// truncate at the same place) as a scan. Null if the columnar sidecar
+	// isn't there or doesn't line up with the index.
+	
+	private RepertoireResult searchCandidates(Params params, MultiMatcher multi,
+											  Repertoire repertoire, int[] candidates)
+		throws IOException {
+
+		if (candidates.length == 0) {
+			RepertoireResult result = newPartial(multi);
+			result.Repertoire = repertoire;
+			return(result);
+		}
+
+		ColumnarRepertoire.Reader rdr =
+			ColumnarRepertoire.openSeekable(params.CRS, repertoire.Name, params.Extractor.getFields());
+
+		if (rdr == null) return(null);
+
+		try {
+			RepertoireResult result = newPartial(multi);
+			result.Repertoire = repertoire;
+
+			Rearrangement r = new Rearrangement();
+
+			for (int row : candidates) {
+				if (row >= rdr.getRowCount()) return(null);
+				rdr.seekToRow(row);
+				if (!rdr.readNextInto(r)) return(null);
+				if (!checkRow(params, multi, rdr, r, result)) break;
 			}
 
 			return(result);
 		}
 		finally {
-			if (tsv != null) Utility.safeClose(tsv);
-			if (rdr != null) Utility.safeClose(rdr);
-			if (stm != null) Utility.safeClose(stm);
+			Utility.safeClose(rdr);
 		}
 	}
 
+	private static MultiMatcher compileMotifs(Params params) {
+		return(params.Motifs == null ? null : params.Matcher.compile(params.Motifs));
+	}
+
 	// +---------+
 	// | Members |
 	// +---------+
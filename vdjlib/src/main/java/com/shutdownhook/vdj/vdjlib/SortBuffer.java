@@ -0,0 +1,289 @@
+//
+// SORTBUFFER.JAVA
+//
+
+// Buffer for one KeySorter run. Key bytes (UTF-8) go end to end in a
+// single byte arena (heap or direct) with parallel primitive arrays of
+// offset, length and count per entry, so a run costs about its key bytes
+// plus a fixed 24 bytes per entry instead of a KeyItem and a String each.
+// The buffer is created with a byte capacity covering both the arena and
+// the entry arrays; add returns false once it's full and the caller
+// spills the run (sort + writeTo) and clears it for reuse.
+//
+// Capacity normally comes from a Budget shared by everything sorting in
+// the process, so concurrent sorts get smaller buffers (and spill more
+// often) rather than piling up heap.
+
+package com.shutdownhook.vdj.vdjlib;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public class SortBuffer
+{
+	// +--------+
+	// | Budget |
+	// +--------+
+
+	// Hands out byte grants against a fixed total. Callers always get at
+	// least the minimum they ask for (so nobody stalls; we may run over by
+	// that much) and otherwise whatever is left, up to what they want.
+
+	public static class Budget
+	{
+		public Budget(long totalBytes) {
+			this.totalBytes = totalBytes;
+			this.usedBytes = 0;
+		}
+
+		public synchronized long acquire(long wantBytes, long minBytes) {
+			long grant = Math.max(minBytes, Math.min(wantBytes, totalBytes - usedBytes));
+			usedBytes += grant;
+			return(grant);
+		}
+
+		public synchronized void release(long bytes) {
+			usedBytes -= bytes;
+		}
+
+		public synchronized long getUsedBytes() { return(usedBytes); }
+		public long getTotalBytes() { return(totalBytes); }
+
+		private long totalBytes;
+		private long usedBytes;
+	}
+
+	// +-------+
+	// | Setup |
+	// +-------+
+
+	public SortBuffer(long capacityBytes, int maxEntries, boolean offHeap) {
+
+		this.capacityBytes = capacityBytes;
+		this.maxEntries = maxEntries;
+		this.offHeap = offHeap;
+
+		int cbInitial = (int) Math.min(capacityBytes, INITIAL_ARENA_BYTES);
+		this.arena = allocate(cbInitial);
+		this.view = arena.duplicate();
+
+		int cInitial = Math.min(maxEntries, INITIAL_ENTRIES);
+		this.offsets = new int[cInitial];
+		this.lengths = new int[cInitial];
+		this.counts = new long[cInitial];
+		this.order = null;
+
+		this.size = 0;
+		this.cbUsed = 0;
+	}
+
+	public int size() { return(size); }
+	public long getUsedBytes() { return(cbUsed + ((long) size * ENTRY_BYTES)); }
+
+	public void clear() {
+		size = 0;
+		cbUsed = 0;
+		order = null;
+	}
+
+	// +-----+
+	// | add |
+	// +-----+
+
+	// false if the buffer is full; nothing is added in that case
+
+	public boolean add(String key, long count) {
+
+		int cch = key.length();
+		boolean ascii = true;
+		for (int i = 0; i < cch && ascii; ++i) ascii = (key.charAt(i) < 0x80);
+
+		if (ascii) {
+			if (!reserve(cch)) return(false);
+			for (int i = 0; i < cch; ++i) arena.put(cbUsed + i, (byte) key.charAt(i));
+			return(commit(cch, count));
+		}
+
+		byte[] rgb = key.getBytes(StandardCharsets.UTF_8);
+		if (!reserve(rgb.length)) return(false);
+		for (int i = 0; i < rgb.length; ++i) arena.put(cbUsed + i, rgb[i]);
+		return(commit(rgb.length, count));
+	}
+
+	private boolean reserve(int cb) {
+
+		if (size == maxEntries) return(false);
+
+		long cbNeeded = cbUsed + cb + ((long) (size + 1) * ENTRY_BYTES);
+		if (cbNeeded > capacityBytes) return(false);
+
+		if (cbUsed + cb > arena.capacity()) {
+			long cbNew = Math.max((long) arena.capacity() * 2, (long) cbUsed + cb);
+			cbNew = Math.min(cbNew, Math.min(capacityBytes, Integer.MAX_VALUE - 8));
+			if (cbNew < cbUsed + cb) return(false);
+
+			ByteBuffer newArena = allocate((int) cbNew);
+			ByteBuffer src = arena.duplicate();
+			src.position(0).limit(cbUsed);
+			newArena.put(src);
+			arena = newArena;
+			view = arena.duplicate();
+		}
+
+		if (size == offsets.length) {
+			int cNew = (int) Math.min((long) offsets.length * 2, maxEntries);
+			offsets = Arrays.copyOf(offsets, cNew);
+			lengths = Arrays.copyOf(lengths, cNew);
+			counts = Arrays.copyOf(counts, cNew);
+		}
+
+		return(true);
+	}
+
+	private boolean commit(int cb, long count) {
+		offsets[size] = cbUsed;
+		lengths[size] = cb;
+		counts[size] = count;
+		cbUsed += cb;
+		++size;
+		order = null;
+		return(true);
+	}
+
+	// +------+
+	// | sort |
+	// +------+
+
+	// bottom-up merge sort of entry indices; keys compare as unsigned
+	// bytes (same order the run files and merges use)
+
+	public void sort() {
+
+		int[] src = new int[size];
+		int[] dst = new int[size];
+		for (int i = 0; i < size; ++i) src[i] = i;
+
+		for (int width = 1; width < size; width <<= 1) {
+
+			for (int lo = 0; lo < size; lo += (width << 1)) {
+
+				int mid = Math.min(lo + width, size);
+				int hi = Math.min(lo + (width << 1), size);
+				int i = lo, j = mid, k = lo;
+
+				while (i < mid && j < hi) dst[k++] = (compare(src[j], src[i]) < 0 ? src[j++] : src[i++]);
+				while (i < mid) dst[k++] = src[i++];
+				while (j < hi) dst[k++] = src[j++];
+			}
+
+			int[] tmp = src; src = dst; dst = tmp;
+		}
+
+		order = src;
+	}
+
+	// +---------+
+	// | writeTo |
+	// +---------+
+
+	// writes sorted entries, merging equal keys; returns entries written
+
+	public int writeTo(KeySorter.KeyWriter wtr) throws IOException {
+
+		if (order == null) sort();
+		if (size == 0) return(0);
+
+		int written = 0;
+		int iLast = order[0];
+		long count = counts[iLast];
+
+		for (int i = 1; i < size; ++i) {
+
+			int iCur = order[i];
+
+			if (compare(iLast, iCur) == 0) {
+				count += counts[iCur];
+			}
+			else {
+				writeEntry(wtr, iLast, count);
+				++written;
+				iLast = iCur;
+				count = counts[iCur];
+			}
+		}
+
+		writeEntry(wtr, iLast, count);
+		return(written + 1);
+	}
+
+	private void writeEntry(KeySorter.KeyWriter wtr, int i, long count) throws IOException {
+
+		int cb = lengths[i];
+		if (scratch.length < cb) scratch = new byte[Math.max(cb, scratch.length * 2)];
+
+		view.limit(offsets[i] + cb).position(offsets[i]);
+		view.get(scratch, 0, cb);
+
+		wtr.write(scratch, cb, count);
+	}
+
+	// +---------+
+	// | Helpers |
+	// +---------+
+
+	// eight bytes at a time while both keys have them; big-endian longs
+	// compared unsigned order the same as their bytes
+
+	private int compare(int i1, int i2) {
+
+		int ib1 = offsets[i1], cb1 = lengths[i1];
+		int ib2 = offsets[i2], cb2 = lengths[i2];
+		int cb = Math.min(cb1, cb2);
+		int k = 0;
+
+		for ( ; k + 8 <= cb; k += 8) {
+			long l1 = arena.getLong(ib1 + k);
+			long l2 = arena.getLong(ib2 + k);
+			if (l1 != l2) return(Long.compareUnsigned(l1, l2));
+		}
+
+		for ( ; k < cb; ++k) {
+			int d = (arena.get(ib1 + k) & 0xFF) - (arena.get(ib2 + k) & 0xFF);
+			if (d != 0) return(d);
+		}
+
+		return(cb1 - cb2);
+	}
+
+	private ByteBuffer allocate(int cb) {
+		return(offHeap ? ByteBuffer.allocateDirect(cb) : ByteBuffer.allocate(cb));
+	}
+
+	// +---------+
+	// | Members |
+	// +---------+
+
+	private long capacityBytes;
+	private int maxEntries;
+	private boolean offHeap;
+
+	private ByteBuffer arena;
+	private ByteBuffer view;
+	private int cbUsed;
+
+	private int[] offsets;
+	private int[] lengths;
+	private long[] counts;
+	private int[] order;
+	private int size;
+
+	private byte[] scratch = new byte[256];
+
+	// offset + length + count + two sort index slots
+	public final static int ENTRY_BYTES = 4 + 4 + 8 + 4 + 4;
+
+	private final static int INITIAL_ARENA_BYTES = 64 * 1024;
+	private final static int INITIAL_ENTRIES = 1024;
+}
@@ -0,0 +1,228 @@
+//
+// TOPKHEAP.JAVA
+//
+
+// Keeps the K best items offered to it in a bounded min-heap, so each
+// offer is O(log K) and rejecting an item that can't make the cut is O(1).
+// Items are ranked on primitive scores worked out once by the caller (a
+// long, then a double) rather than through a Comparator; ties go to the
+// item offered first, which makes the result identical to a stable sort
+// of everything offered in order, cut to K.
+//
+// Heaps from parallel chunks merge by offering each chunk's sorted items
+// in chunk order, which keeps that tie-breaking intact across chunks.
+//
+// Callers whose items don't arrive in a meaningful order can pass a
+// tieBreak comparator instead (lower is better); it settles ties on score
+// before offer order does, so the result doesn't depend on arrival order.
+
+package com.shutdownhook.vdj.vdjlib;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+public class TopKHeap<T>
+{
+	public TopKHeap(int k) {
+		this(k, null);
+	}
+
+	public TopKHeap(int k, Comparator<T> tieBreak) {
+		this.k = k;
+		this.tieBreak = tieBreak;
+		this.size = 0;
+		this.nextSeq = 0;
+
+		// grows as needed so a huge k ("everything") costs nothing up front
+		int cap = Math.max(1, Math.min(k, INITIAL_CAPACITY));
+		this.primaries = new long[cap];
+		this.secondaries = new double[cap];
+		this.seqs = new long[cap];
+		this.items = new Object[cap];
+	}
+
+	public int size() { return(size); }
+
+	// +-------+
+	// | offer |
+	// +-------+
+
+	// true if an item with these scores offered now would be kept; use it
+	// to skip work (like materializing a row) for items that won't be.
+	// With a tieBreak, a tie with the worst item we hold can't be settled
+	// without the item itself, so that's a maybe (true) and offer decides.
+
+	public boolean wouldAccept(long primary, double secondary) {
+		if (size < k) return(true);
+		if (k == 0) return(false);
+		int cmp = compare(primary, secondary, primaries[0], secondaries[0]);
+		return(cmp > 0 || (cmp == 0 && tieBreak != null));
+	}
+
+	// Returns whichever item the heap no longer holds: item itself if it
+	// didn't make the cut, the evicted worst item if it did and we were
+	// full, or null if we were still filling up. Handy for recycling.
+
+	public T offer(long primary, double secondary, T item) {
+
+		long seq = nextSeq++;
+
+		if (size < k) {
+			if (size == items.length) grow();
+			int i = size++;
+			set(i, primary, secondary, seq, item);
+			siftUp(i);
+			return(null);
+		}
+
+		if (!wouldAccept(primary, secondary)) return(item);
+
+		@SuppressWarnings("unchecked")
+		T evicted = (T) items[0];
+
+		if (tieBreak != null &&
+			compare(primary, secondary, primaries[0], secondaries[0]) == 0 &&
+			tieBreak.compare(item, evicted) >= 0) {
+
+			// tied and no better on tieBreak; offered later, so worse
+			return(item);
+		}
+
+		set(0, primary, secondary, seq, item);
+		siftDown(0);
+
+		return(evicted);
+	}
+
+	// +-------+
+	// | merge |
+	// +-------+
+
+	// call in chunk order
+
+	public void merge(TopKHeap<T> other) {
+		for (int i : other.sortedIndices()) {
+			@SuppressWarnings("unchecked")
+			T item = (T) other.items[i];
+			offer(other.primaries[i], other.secondaries[i], item);
+		}
+	}
+
+	// +--------------+
+	// | toSortedList |
+	// +--------------+
+
+	// best first
+
+	public List<T> toSortedList() {
+
+		List<T> list = new ArrayList<T>(size);
+
+		for (int i : sortedIndices()) {
+			@SuppressWarnings("unchecked")
+			T item = (T) items[i];
+			list.add(item);
+		}
+
+		return(list);
+	}
+
+	// +---------+
+	// | Helpers |
+	// +---------+
+
+	private int[] sortedIndices() {
+
+		Integer[] indices = new Integer[size];
+		for (int i = 0; i < size; ++i) indices[i] = i;
+
+		Arrays.sort(indices, (i1, i2) -> worse(i1, i2) ? 1 : (worse(i2, i1) ? -1 : 0));
+
+		int[] sorted = new int[size];
+		for (int i = 0; i < size; ++i) sorted[i] = indices[i];
+		return(sorted);
+	}
+
+	private static int compare(long p1, double s1, long p2, double s2) {
+		if (p1 != p2) return(p1 < p2 ? -1 : 1);
+		return(Double.compare(s1, s2));
+	}
+
+	// lower score, or same score and later on tieBreak, or all that and
+	// offered later
+
+	private boolean worse(int i1, int i2) {
+		
+		int cmp = compare(primaries[i1], secondaries[i1], primaries[i2], secondaries[i2]);
+		if (cmp != 0) return(cmp < 0);
+
+		if (tieBreak != null) {
+			@SuppressWarnings("unchecked")
+			int tie = tieBreak.compare((T) items[i1], (T) items[i2]);
+			if (tie != 0) return(tie > 0);
+		}
+		
+		return(seqs[i1] > seqs[i2]);
+	}
+
+	private void grow() {
+		int cap = (int) Math.min((long) k, (long) items.length * 2);
+		primaries = Arrays.copyOf(primaries, cap);
+		secondaries = Arrays.copyOf(secondaries, cap);
+		seqs = Arrays.copyOf(seqs, cap);
+		items = Arrays.copyOf(items, cap);
+	}
+
+	private void set(int i, long primary, double secondary, long seq, Object item) {
+		primaries[i] = primary;
+		secondaries[i] = secondary;
+		seqs[i] = seq;
+		items[i] = item;
+	}
+
+	private void swap(int i1, int i2) {
+		long p = primaries[i1]; primaries[i1] = primaries[i2]; primaries[i2] = p;
+		double s = secondaries[i1]; secondaries[i1] = secondaries[i2]; secondaries[i2] = s;
+		long q = seqs[i1]; seqs[i1] = seqs[i2]; seqs[i2] = q;
+		Object o = items[i1]; items[i1] = items[i2]; items[i2] = o;
+	}
+
+	private void siftUp(int i) {
+		while (i > 0) {
+			int parent = (i - 1) >>> 1;
+			if (!worse(i, parent)) break;
+			swap(i, parent);
+			i = parent;
+		}
+	}
+
+	private void siftDown(int i) {
+		while (true) {
+			int left = (i << 1) + 1;
+			if (left >= size) break;
+			int right = left + 1;
+			int worst = (right < size && worse(right, left) ? right : left);
+			if (!worse(worst, i)) break;
+			swap(i, worst);
+			i = worst;
+		}
+	}
+
+	// +---------+
+	// | Members |
+	// +---------+
+
+	private int k;
+	private Comparator<T> tieBreak;
+	private int size;
+	private long nextSeq;
+
+	private long[] primaries;
+	private double[] secondaries;
+	private long[] seqs;
+	private Object[] items;
+
+	private final static int INITIAL_CAPACITY = 1024;
+}
@@ -4,15 +4,14 @@
 
 package com.shutdownhook.vdj.vdjlib;
 
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.util.ArrayList;
-import java.util.Comparator;
-import java.util.LinkedList;
+import java.util.EnumSet;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import java.util.logging.Logger;
 
+import com.shutdownhook.vdj.vdjlib.TsvReader.Field;
+import com.shutdownhook.vdj.vdjlib.model.Locus;
 import com.shutdownhook.vdj.vdjlib.model.Repertoire;
 import com.shutdownhook.vdj.vdjlib.model.Rearrangement;
 
@@ -25,6 +24,7 @@ public class TopXRearrangements
 	public static class Config
 	{
 		public Integer MaxCount = 500;
+		public ParallelScan.Config Scan = new ParallelScan.Config();
 	}
 	
 	public TopXRearrangements(Config cfg) {
@@ -107,118 +107,109 @@ public class TopXRearrangements
 		Repertoire rep = params.CRS.findRepertoire(params.Repertoires[irep]);
 		if (rep == null) throw new Exception("Repertoire " + params.Repertoires[irep] + " not found");
 
-		Comparator<Rearrangement> cmp = getComparator(params.Sort, rep);
+		Scorer scorer = new Scorer(params.Sort, rep);
 
-		InputStream stm = null;
-		InputStreamReader rdr = null;
-		TsvReader tsv = null;
+		List<TopKHeap<Rearrangement>> partials =
+			ParallelScan.scan(cfg.Scan, params.CRS, rep, getFields(params.Sort),
+							  (rdr) -> getChunk(rdr, scorer, params.Count));
 
-		try {
-			stm = params.CRS.getRepertoireStream(rep);
-			rdr = new InputStreamReader(stm);
-			tsv = new TsvReader(rdr, 0);
+		// merging chunk heaps in file order keeps ties in file order too,
+		// so we end up with exactly what a serial scan would produce
 
-			RepertoireResult result = new RepertoireResult();
-			result.Repertoire = rep;
-			result.Rearrangements = new LinkedList<Rearrangement>();
-
-			Rearrangement r;
-			
-			while ((r = tsv.readNext()) != null) {
-				addtoList(result.Rearrangements, r, cmp, params.Count);
-			}
+		TopKHeap<Rearrangement> heap = partials.get(0);
+		for (int i = 1; i < partials.size(); ++i) heap.merge(partials.get(i));
+		
+		RepertoireResult result = new RepertoireResult();
+		result.Repertoire = rep;
+		result.Rearrangements = heap.toSortedList();
 
-			return(result);
-		}
-		finally {
-			if (tsv != null) Utility.safeClose(tsv);
-			if (rdr != null) Utility.safeClose(rdr);
-			if (stm != null) Utility.safeClose(stm);
-		}
+		return(result);
 	}
 
-	private static void addtoList(List<Rearrangement> rearrangements, Rearrangement r,
-								  Comparator<Rearrangement> cmp, int maxSize) {
+	private static TopKHeap<Rearrangement> getChunk(RowReader rdr, Scorer scorer,
+													int maxSize) throws Exception {
 		
-		// walk from the end of the list looking for a spot where we are greater.
-		// this backwards walk is intentional because we'll typically break out
-		// much more quickly than if we walked forward looking for one smaller.
-				
-		int i = rearrangements.size() - 1;
-		while (i >= 0 && cmp.compare(r, rearrangements.get(i)) > 0) {
-			--i;
-		}
-
-		// i is now at the first position where the value is < that r (may be
-		// -1 indicating we're the largest found so far). Insert to the right of
-		// that position (unless it's beyond the end and we already have
-		// maxSize entries)
-
-		++i;
+		TopKHeap<Rearrangement> heap = new TopKHeap<Rearrangement>(maxSize);
+		Rearrangement r = new Rearrangement();
+			
+		while (rdr.readNextInto(r)) {
 
-		if (rearrangements.size() < maxSize) {
-			// add and all good, we're still building
-			rearrangements.add(i, r);
-		}
-		else if (i < rearrangements.size()) {
-					
-			// add at correct position
-			rearrangements.add(i, r);
-
-			// maybe trim
-			if (rearrangements.size() > maxSize) {
-				rearrangements.remove(rearrangements.size() - 1);
+			long primary = scorer.primary(r);
+			double secondary = scorer.secondary(r);
+			
+			if (heap.wouldAccept(primary, secondary)) {
+				// the heap owns r now, so decode into whatever it let go of
+				rdr.materialize(r);
+				Rearrangement evicted = heap.offer(primary, secondary, r);
+				r = (evicted == null ? new Rearrangement() : evicted);
 			}
 		}
-	}
-	
-	// +---------+
-	// | Helpers |
-	// +---------+
 
-	private static Comparator<Rearrangement> getComparator(TopXSort sort, Repertoire rep) {
+		return(heap);
+	}
 
-		Comparator<Rearrangement> cmp = null;
-		
-		switch (sort) {
-			case Count:           cmp = Comparator.comparingLong(r -> r.Count); break;
-			case FractionOfCells: cmp = Comparator.comparingDouble(r -> r.getFractionOfCells(rep)); break;
-			case FractionOfLocus: cmp = Comparator.comparingDouble(r -> r.getFractionOfLocus(rep)); break;
-			case FractionOfCount: cmp = Comparator.comparingDouble(r -> r.getFractionOfCount(rep)); break;
-			case DxPotential:     cmp = new DxPotentialComparator(rep); break;
-			default: return(null);
-		}
+	// +--------+
+	// | Scorer |
+	// +--------+
 
-		return(cmp);
-	}
+	// Sort keys as primitives for TopKHeap: primary then secondary, higher
+	// is better. Per-locus totals are looked up once here rather than
+	// going through the LocusCounts map for every row.
 
-	public static class DxPotentialComparator implements Comparator<Rearrangement>
+	private static class Scorer
 	{
-		public DxPotentialComparator(Repertoire rep) {
+		public Scorer(TopXSort sort, Repertoire rep) {
+			
+			this.sort = sort;
 			this.rep = rep;
-		}
-		
-		public int compare(Rearrangement r1, Rearrangement r2) {
 
-			// nulls
-			if (r1 == null && r2 == null) return(0);
-			if (r1 == null) return(1);
-			if (r2 == null) return(-1);
+			this.locusTotals = new double[Locus.values().length];
+			for (Locus locus : Locus.values()) {
+				Long total = rep.LocusCounts.get(locus.getGroup());
+				locusTotals[locus.ordinal()] = (total == null ? Double.NaN : (double) total);
+			}
+		}
 
-			// dx
-			if (r1.Dx && !r2.Dx) return(1);
-			if (!r1.Dx && r2.Dx) return(-1);
+		public long primary(Rearrangement r) {
+			switch (sort) {
+				case Count:       return(r.Count);
+				case DxPotential: return(r.Dx ? 1L : 0L);
+				default:          return(0L);
+			}
+		}
 
-			// fraction of locus
-			double dbl1 = r1.getFractionOfLocus(rep);
-			double dbl2 = r2.getFractionOfLocus(rep);
+		public double secondary(Rearrangement r) {
+			switch (sort) {
+				case FractionOfCells: return(rep.getFractionOfCells(r.Count));
+				case FractionOfCount: return(rep.getFractionOfCount(r.Count));
+				case FractionOfLocus: // fall through
+				case DxPotential:     return(fractionOfLocus(r));
+				default:              return(0.0);
+			}
+		}
 
-			if (dbl1 < dbl2) return(-1);
-			if (dbl1 > dbl2) return(1);
-			return(0);
+		private double fractionOfLocus(Rearrangement r) {
+			double total = locusTotals[r.Locus.ordinal()];
+			if (Double.isNaN(total)) return(r.getFractionOfLocus(rep)); // same failure as before
+			return(((double) r.Count) / total);
 		}
 
+		private TopXSort sort;
 		private Repertoire rep;
+		private double[] locusTotals;
+	}
+
+	// +---------+
+	// | Helpers |
+	// +---------+
+
+	private static EnumSet<Field> getFields(TopXSort sort) {
+		
+		switch (sort) {
+			case FractionOfLocus: return(EnumSet.of(Field.Count, Field.Locus));
+			case DxPotential:     return(EnumSet.of(Field.Count, Field.Locus, Field.Dx));
+			default:              return(EnumSet.of(Field.Count));
+		}
 	}
 
 	// +---------+
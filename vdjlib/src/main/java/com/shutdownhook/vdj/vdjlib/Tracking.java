@@ -4,15 +4,15 @@
 
 package com.shutdownhook.vdj.vdjlib;
 
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.EnumSet;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import java.util.logging.Logger;
 
+import com.shutdownhook.vdj.vdjlib.TsvReader.Field;
 import com.shutdownhook.vdj.vdjlib.model.Rearrangement;
 import com.shutdownhook.vdj.vdjlib.model.Repertoire;
 
@@ -27,6 +27,7 @@ public class Tracking
 		public Integer MaxTargets = 50;
 		public Integer DxOptionsCount = 20;
 		public Double DxOptionsMinFractionOfLocus = .05;
+		public ParallelScan.Config Scan = new ParallelScan.Config();
 	}
 	
 	public Tracking(Config cfg, MrdEngine.Config cfgMrd) {
@@ -137,35 +138,56 @@ public class Tracking
 	
 	private long[] matchTargets(Params params, Repertoire rep) throws Exception {
 
-		InputStream stm = null;
-		InputStreamReader reader = null;
-		TsvReader tsv = null;
+		EnumSet<Field> fields = EnumSet.copyOf(MrdEngine.MRD_FIELDS);
+		fields.add(Field.Count);
 
-		try {
-			stm = params.CRS.getRepertoireStream(rep);
-			reader = new InputStreamReader(stm);
-			tsv = new TsvReader(reader, 0);
+		List<long[]> partials = ParallelScan.scan(cfg.Scan, params.CRS, rep, fields,
+												  (rdr) -> matchTargetsChunk(params, rdr));
 
-			long[] counts = new long[params.Targets.length];
-			for (int i = 0; i < counts.length; ++i) counts[i] = 0L;
+		long[] counts = new long[params.Targets.length];
+		for (int i = 0; i < counts.length; ++i) counts[i] = 0L;
 
-			Rearrangement r;
+		for (long[] partial : partials) {
+			for (int i = 0; i < counts.length; ++i) counts[i] += partial[i];
+		}
 
-			while ((r = tsv.readNext()) != null) {
-				for (int i = 0; i < counts.length; ++i) {
-					if (mrd.match(params.Targets[i], r)) {
-						counts[i] += r.Count;
-					}
-				}
-			}
-			
-			return(counts);	
+		return(counts);
+	}
+
+	private long[] matchTargetsChunk(Params params, RowReader rdr) throws Exception {
+
+		long[] counts = new long[params.Targets.length];
+		for (int i = 0; i < counts.length; ++i) counts[i] = 0L;
+
+		// targets are shared across chunks, so encode our own copies; rows
+		// are encoded once and compared against every target (ByteKernel)
+
+		byte[][] encoded = new byte[counts.length][];
+		int[] ichJ = new int[counts.length];
+
+		for (int i = 0; i < counts.length; ++i) {
+			encoded[i] = ByteKernel.encode(params.Targets[i].Rearrangement);
+			ichJ[i] = MrdEngine.getIchJ(params.Targets[i]);
 		}
-		finally {
-			Utility.safeClose(tsv);
-			Utility.safeClose(reader);
-			Utility.safeClose(stm);
+
+		Rearrangement r = new Rearrangement();
+
+		while (rdr.readNextInto(r)) {
+
+			byte[] rgb = ByteKernel.encode(r.Rearrangement);
+			int ichJRow = MrdEngine.getIchJ(r);
+			
+			for (int i = 0; i < counts.length; ++i) {
+
+				boolean match = ((rgb != null && encoded[i] != null)
+								 ? mrd.match(encoded[i], ichJ[i], rgb, ichJRow)
+								 : mrd.match(params.Targets[i], r));
+				
+				if (match) counts[i] += r.Count;
+			}
 		}
+			
+		return(counts);	
 	}
 
 	// +---------------------+
@@ -5,10 +5,12 @@
 package com.shutdownhook.vdj.vdjlib;
 
 import java.io.BufferedReader;
-import java.io.Closeable;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.EnumSet;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import java.util.logging.Logger;
@@ -16,13 +18,46 @@ import java.util.logging.Logger;
 import com.shutdownhook.vdj.vdjlib.model.FrameType;
 import com.shutdownhook.vdj.vdjlib.model.Locus;
 import com.shutdownhook.vdj.vdjlib.model.Rearrangement;
+import com.shutdownhook.vdj.vdjlib.model.Repertoire;
 
-public class TsvReader implements Closeable
+public class TsvReader implements RowReader
 {
 	public interface LinePeeker {
 		public void peek(String line) throws IOException;
 	}
 
+	// +------------+
+	// | Projection |
+	// +------------+
+
+	// Callers that only need a few Rearrangement fields can say so, and
+	// we'll skip the parse work (Locus resolution, vSHM and tag splitting,
+	// etc.) for everything else. Fields outside the projection are left
+	// at their defaults unless materialize is called.
+
+	public static enum Field
+	{
+		Rearrangement,
+		AminoAcid,
+		FrameType,
+		Locus,
+		Count,
+		VResolved,
+		DResolved,
+		JResolved,
+		Cdr3Length,
+		VIndex,
+		DIndex,
+		JIndex,
+		N1Index,
+		N2Index,
+		Probability,
+		VSHMIndices,
+		Dx
+	}
+
+	public final static EnumSet<Field> ALL_FIELDS = EnumSet.allOf(Field.class);
+
 	// +------------------+
 	// | Setup & Teardown |
 	// +------------------+
@@ -32,19 +67,203 @@ public class TsvReader implements Closeable
 	}
 	
 	public TsvReader(InputStreamReader stm, int startRowIndex, LinePeeker peeker) {
+		this(stm, startRowIndex, peeker, ALL_FIELDS);
+	}
+	
+	public TsvReader(InputStreamReader stm, int startRowIndex,
+					 LinePeeker peeker, EnumSet<Field> fields) {
 		this.stm = stm;
+		this.byteStm = null;
+		this.startRowIndex = startRowIndex;
+		this.peeker = peeker;
+		this.cellCount = null; 
+		this.sampleMillis = null;
+		this.isPipeline = false;
+		setFields(fields);
+	}
+
+	// Byte-level mode: lines are tokenized directly from the stream without
+	// a charset decode, and Strings are only created for the fields we use.
+	// Prefer this for scans; the reader flavor is there for callers that
+	// already have characters in hand (e.g., uploads).
+	
+	public TsvReader(InputStream byteStm, int startRowIndex) {
+		this(byteStm, startRowIndex, null, ALL_FIELDS);
+	}
+	
+	public TsvReader(InputStream byteStm, int startRowIndex, EnumSet<Field> fields) {
+		this(byteStm, startRowIndex, null, fields);
+	}
+	
+	public TsvReader(InputStream byteStm, int startRowIndex,
+					 LinePeeker peeker, EnumSet<Field> fields) {
+		this.stm = null;
+		this.byteStm = byteStm;
 		this.startRowIndex = startRowIndex;
 		this.peeker = peeker;
 		this.cellCount = null; 
 		this.sampleMillis = null;
 		this.isPipeline = false;
+		setFields(fields);
+	}
+
+	// Scans bb in place (see RepertoireStore.getRepertoireBuffer)
+	
+	public TsvReader(ByteBuffer bb, int startRowIndex, EnumSet<Field> fields) {
+		this.stm = null;
+		this.byteStm = null;
+		this.bb = bb;
+		this.startRowIndex = startRowIndex;
+		this.peeker = null;
+		this.cellCount = null; 
+		this.sampleMillis = null;
+		this.isPipeline = false;
+		setFields(fields);
+	}
+
+	private void setFields(EnumSet<Field> fields) {
+		this.fields = EnumSet.copyOf(fields);
+		this.missingFields = EnumSet.complementOf(this.fields);
 	}
 	
 	public void close() {
 
-		// we don't own stm so leave it alone
+		// we don't own stm or byteStm so leave them alone (unless
+		// we came from open, in which case we do)
 
 		if (rdr != null) Utility.safeClose(rdr);
+		if (tok != null) Utility.safeClose(tok);
+		if (ownStream) Utility.safeClose(byteStm);
+	}
+
+	// +------+
+	// | open |
+	// +------+
+
+	// Preferred way to scan a stored repertoire: uses a mapped buffer if
+	// the store can provide one, otherwise its stream. Either way the
+	// returned reader owns what it opened, so just close the reader.
+	// When starting past row 0 we also pick up the repertoire's RowIndex
+	// (if it has one) to skip straight to the neighborhood of the start.
+
+	public static TsvReader open(ContextRepertoireStore crs, Repertoire rep,
+								 int startRowIndex, EnumSet<Field> fields) throws IOException {
+		
+		return(open(crs, rep.Name, startRowIndex, fields));
+	}
+
+	public static TsvReader open(ContextRepertoireStore crs, String rep,
+								 int startRowIndex, EnumSet<Field> fields) throws IOException {
+
+		TsvReader tsv;
+		
+		ByteBuffer bb = crs.getRepertoireBuffer(rep);
+		if (bb != null) tsv = new TsvReader(bb, startRowIndex, fields);
+		else tsv = openStream(crs.getRepertoireStream(rep), rep, startRowIndex, fields);
+
+		if (startRowIndex > 0) tsv.rowIndex = RowIndex.load(crs, rep);
+		return(tsv);
+	}
+
+	public static TsvReader open(RepertoireStore store, RepertoireSpec spec,
+								 int startRowIndex, EnumSet<Field> fields) throws IOException {
+
+		TsvReader tsv;
+		
+		ByteBuffer bb = store.getRepertoireBuffer(spec);
+		if (bb != null) tsv = new TsvReader(bb, startRowIndex, fields);
+		else tsv = openStream(store.getRepertoireStream(spec), spec.Name, startRowIndex, fields);
+
+		if (startRowIndex > 0) tsv.rowIndex = RowIndex.load(store, spec);
+		return(tsv);
+	}
+
+	private static TsvReader openStream(InputStream stm, String name, int startRowIndex,
+										EnumSet<Field> fields) throws IOException {
+
+		if (stm == null) throw new IOException("Can't open repertoire " + name);
+
+		TsvReader tsv = new TsvReader(stm, startRowIndex, fields);
+		tsv.ownStream = true;
+		return(tsv);
+	}
+
+	// +-------+
+	// | split |
+	// +-------+
+
+	// Divides the data rows of a buffer-backed reader into up to maxChunks
+	// newline-aligned byte ranges, each returned (in file order) as its own
+	// reader that can be scanned on a separate thread. Chunk readers share
+	// the header layout parsed here but know nothing about each other, so
+	// getNextRowIndex is relative to the chunk. Call this instead of
+	// readNext; a reader that can't be split (stream-backed, already
+	// started, or smaller than two chunks' worth) comes back by itself.
+
+	public List<TsvReader> split(int maxChunks, int minChunkBytes) throws IOException {
+
+		List<TsvReader> chunks = new ArrayList<TsvReader>();
+		
+		if (bb == null || tok != null || startRowIndex != 0 || maxChunks < 2) {
+			chunks.add(this);
+			return(chunks);
+		}
+
+		initialize();
+
+		int ibData = (int) tok.getNextOffset();
+		int ibMac = bb.limit();
+		
+		int count = Math.min(maxChunks, (ibMac - ibData) / Math.max(minChunkBytes, 1));
+		if (count < 2) {
+			chunks.add(this);
+			return(chunks);
+		}
+
+		int cbChunk = (ibMac - ibData) / count;
+		int ibStart = ibData;
+
+		for (int i = 0; i < count && ibStart < ibMac; ++i) {
+			
+			int ibEnd = (i == count - 1 ? ibMac : nextLineStart(ibStart + cbChunk));
+
+			ByteBuffer chunk = bb.duplicate();
+			chunk.limit(ibEnd);
+			chunk.position(ibStart);
+			chunks.add(new TsvReader(this, chunk));
+			
+			ibStart = ibEnd;
+		}
+
+		return(chunks);
+	}
+
+	// chunk reader; header state comes from the parent
+	
+	private TsvReader(TsvReader parent, ByteBuffer chunk) {
+		this.stm = null;
+		this.byteStm = null;
+		this.bb = chunk;
+		this.startRowIndex = 0;
+		this.peeker = null;
+		this.headerIndices = parent.headerIndices;
+		this.cellCount = parent.cellCount;
+		this.sampleMillis = parent.sampleMillis;
+		this.isPipeline = parent.isPipeline;
+		this.fields = parent.fields;
+		this.missingFields = parent.missingFields;
+		this.tok = new TsvTokenizer(chunk);
+		this.nextRowIndex = 0;
+	}
+
+	// first byte after the line terminator at or beyond ib
+	
+	private int nextLineStart(int ib) {
+		
+		int ibMac = bb.limit();
+		while (ib < ibMac && bb.get(ib) != '\n' && bb.get(ib) != '\r') ++ib;
+		while (ib < ibMac && (bb.get(ib) == '\n' || bb.get(ib) == '\r')) ++ib;
+		return(ib);
 	}
 
 	// +-----------------+
@@ -55,6 +274,13 @@ public class TsvReader implements Closeable
 		return(nextRowIndex);
 	}
 
+	// Reads through the header lines (if that hasn't happened yet) so
+	// that subsequent lines seen by the peeker are all data rows.
+	
+	public void readHeaders() throws IOException {
+		if (tok == null) initialize();
+	}
+
 	public Long getDiscoveredCellCount() {
 		return(cellCount);
 	}
@@ -92,99 +318,175 @@ public class TsvReader implements Closeable
 	}
 
 	public Rearrangement readNext() throws IOException {
+		Rearrangement r = new Rearrangement();
+		return(readNextInto(r) ? r : null);
+	}
+
+	// Decodes the next row into r (after resetting it) rather than making
+	// a new object; returns false at the end of the file. Use this for
+	// scans that look at every row but keep few of them, and copy the
+	// keepers (after materialize if there's a projection).
 
-		if (rdr == null) initialize();
+	public boolean readNextInto(Rearrangement r) throws IOException {
+
+		if (tok == null) initialize();
 		
-		String line = readLine();
-		if (line == null) return(null);
+		if (!readLine()) return(false);
 		
 		++nextRowIndex;
-		String[] fields = line.split(TSV_SEP);
 
-		Rearrangement r = new Rearrangement();
+		r.reset();
+		parseFields(r, fields);
+		discoverCellCount();
+
+		return(true);
+	}
+
+	// +-------------+
+	// | materialize |
+	// +-------------+
+
+	// Fills in any fields left out by the projection. Only valid for the
+	// row most recently returned by readNext; use it for the (typically
+	// few) rows a caller decides to keep.
+
+	public void materialize(Rearrangement r) {
+		if (!missingFields.isEmpty()) parseFields(r, missingFields);
+	}
+
+	// +-------------+
+	// | parseFields |
+	// +-------------+
+
+	private void parseFields(Rearrangement r, EnumSet<Field> which) {
 
 		// string values
+
+		if (which.contains(Field.Rearrangement)) r.Rearrangement = getField(IHDR_REARRANGEMENT);
+		if (which.contains(Field.AminoAcid)) r.AminoAcid = getField(IHDR_AMINOACID);
+
+		// gene calls come from the GeneDictionary, so no new Strings
+		
+		boolean wantLocus = which.contains(Field.Locus);
 		
-		r.Rearrangement = getField(fields, IHDR_REARRANGEMENT);
-		r.AminoAcid = getField(fields, IHDR_AMINOACID);
-		r.VResolved = getField(fields, IHDR_VRESOLVED);
-		r.DResolved = getField(fields, IHDR_DRESOLVED);
-		r.JResolved = getField(fields, IHDR_JRESOLVED);
+		int v = GeneDictionary.EMPTY;
+		int d = GeneDictionary.EMPTY;
+		int j = GeneDictionary.EMPTY;
+		
+		if (wantLocus || which.contains(Field.VResolved)) v = getGeneId(IHDR_VRESOLVED);
+		if (wantLocus || which.contains(Field.DResolved)) d = getGeneId(IHDR_DRESOLVED);
+		if (wantLocus || which.contains(Field.JResolved)) j = getGeneId(IHDR_JRESOLVED);
+
+		if (which.contains(Field.VResolved)) {
+			r.VGeneId = v;
+			r.VResolved = geneName(v, IHDR_VRESOLVED);
+		}
+		
+		if (which.contains(Field.DResolved)) {
+			r.DGeneId = d;
+			r.DResolved = geneName(d, IHDR_DRESOLVED);
+		}
+		
+		if (which.contains(Field.JResolved)) {
+			r.JGeneId = j;
+			r.JResolved = geneName(j, IHDR_JRESOLVED);
+		}
 		
 		// parsed values
 
-		String strFrameType = getField(fields, IHDR_FRAMETYPE);
-		String strCount = getField(fields, IHDR_COUNT);
-		String strCdr3Length = getField(fields, IHDR_CDR3LENGTH);
-		String strVIndex = getField(fields,IHDR_VINDEX);
-		String strDIndex = getField(fields, IHDR_DINDEX);
-		String strJIndex = getField(fields, IHDR_JINDEX);
-		String strN1Index = getField(fields, IHDR_N1INDEX);
-		String strN2Index = getField(fields, IHDR_N2INDEX);
-		String strVSHMIndices = optionalField(fields, IHDR_VSHMINDICES);
-		String strCloneProbability = optionalField(fields, IHDR_CLONE_PROBABILITY);
-		String strLogCloneProbability = optionalField(fields, IHDR_LOG_CLONE_PROBABILITY);
-		String strInputTemplateEstimate = optionalField(fields, IHDR_INPUT_TEMPLATE_ESTIMATE);
-		String strSequenceTags = optionalField(fields, IHDR_SEQUENCE_TAGS);
-
-		r.Count = Long.parseLong(strCount);
-		if (strInputTemplateEstimate != null) {
-			long ite = Long.parseLong(strInputTemplateEstimate);
-			if (r.Count != ite) r.Count = ite;
+		if (which.contains(Field.Count)) {
+			r.Count = tok.getLong(headerIndices[IHDR_COUNT]);
+			if (!optionalEmpty(IHDR_INPUT_TEMPLATE_ESTIMATE)) {
+				long ite = tok.getLong(headerIndices[IHDR_INPUT_TEMPLATE_ESTIMATE]);
+				if (r.Count != ite) r.Count = ite;
+			}
 		}
 
-		r.FrameType = FrameType.valueOf(strFrameType);
-		r.Cdr3Length = Integer.parseInt(strCdr3Length);
-		r.VIndex = Integer.parseInt(strVIndex);
-		r.DIndex = Integer.parseInt(strDIndex);
-		r.JIndex = Integer.parseInt(strJIndex);
-		r.N1Index = Integer.parseInt(isPipeline ? strN2Index : strN1Index);
-		r.N2Index = Integer.parseInt(isPipeline ? strN1Index : strN2Index);
+		if (which.contains(Field.FrameType)) r.FrameType = FrameType.valueOf(getField(IHDR_FRAMETYPE));
+		if (which.contains(Field.Cdr3Length)) r.Cdr3Length = tok.getInt(headerIndices[IHDR_CDR3LENGTH]);
+		if (which.contains(Field.VIndex)) r.VIndex = tok.getInt(headerIndices[IHDR_VINDEX]);
+		if (which.contains(Field.DIndex)) r.DIndex = tok.getInt(headerIndices[IHDR_DINDEX]);
+		if (which.contains(Field.JIndex)) r.JIndex = tok.getInt(headerIndices[IHDR_JINDEX]);
 
-		r.Locus = Locus.fromGene(r.VResolved, r.DResolved, r.JResolved,
-								 getField(fields, IHDR_VFAMILY_TIES),
-								 getField(fields, IHDR_DFAMILY_TIES),
-								 getField(fields, IHDR_JFAMILY_TIES));
+		if (which.contains(Field.N1Index)) {
+			r.N1Index = tok.getInt(headerIndices[isPipeline ? IHDR_N2INDEX : IHDR_N1INDEX]);
+		}
+		
+		if (which.contains(Field.N2Index)) {
+			r.N2Index = tok.getInt(headerIndices[isPipeline ? IHDR_N1INDEX : IHDR_N2INDEX]);
+		}
+
+		if (wantLocus) {
+
+			int vTies = getGeneId(IHDR_VFAMILY_TIES);
+			int dTies = getGeneId(IHDR_DFAMILY_TIES);
+			int jTies = getGeneId(IHDR_JFAMILY_TIES);
 
-		r.VSHMIndices = Rearrangement.VSHMCsvToIndices(strVSHMIndices);
+			if (v != GeneDictionary.NONE && d != GeneDictionary.NONE && j != GeneDictionary.NONE &&
+				vTies != GeneDictionary.NONE && dTies != GeneDictionary.NONE && jTies != GeneDictionary.NONE) {
 
-		if (!Utility.nullOrEmpty(strCloneProbability)) {
-			r.Probability = Math.log10(Double.parseDouble(strCloneProbability));
+				r.Locus = GeneDictionary.resolveLocus(v, d, j, vTies, dTies, jTies);
+			}
+			else {
+				r.Locus = Locus.fromGene(geneName(v, IHDR_VRESOLVED),
+										 geneName(d, IHDR_DRESOLVED),
+										 geneName(j, IHDR_JRESOLVED),
+										 getField(IHDR_VFAMILY_TIES),
+										 getField(IHDR_DFAMILY_TIES),
+										 getField(IHDR_JFAMILY_TIES));
+			}
 		}
-		else if (!Utility.nullOrEmpty(strLogCloneProbability)) {
-			r.Probability = Double.parseDouble(strLogCloneProbability);
+
+		if (which.contains(Field.VSHMIndices)) {
+			r.VSHMIndices = Rearrangement.VSHMCsvToIndices(optionalField(IHDR_VSHMINDICES));
 		}
 
-		r.Dx = false;
-		if (!Utility.nullOrEmpty(strSequenceTags)) {
-			for (String tag : strSequenceTags.split(",")) {
-				if (tag.trim().toLowerCase().equals("dx")) {
-					r.Dx = true;
-					break;
+		if (which.contains(Field.Probability)) {
+			if (!optionalEmpty(IHDR_CLONE_PROBABILITY)) {
+				r.Probability = Math.log10(tok.getDouble(headerIndices[IHDR_CLONE_PROBABILITY]));
+			}
+			else if (!optionalEmpty(IHDR_LOG_CLONE_PROBABILITY)) {
+				r.Probability = tok.getDouble(headerIndices[IHDR_LOG_CLONE_PROBABILITY]);
+			}
+		}
+
+		if (which.contains(Field.Dx)) {
+			r.Dx = false;
+			if (!optionalEmpty(IHDR_SEQUENCE_TAGS)) {
+				for (String tag : optionalField(IHDR_SEQUENCE_TAGS).split(",")) {
+					if (tag.trim().toLowerCase().equals("dx")) {
+						r.Dx = true;
+						break;
+					}
 				}
 			}
 		}
+	}
+
+	private void discoverCellCount() {
 		
 		if (cellCount == null) {
 
 			if (headerIndices[IHDR_CELLS] != IDX_MISSING_FIELD) {
-				String strCells = getField(fields, IHDR_CELLS);
-				if (!strCells.isEmpty()) cellCount = Long.parseLong(strCells);
+				if (!tok.isEmpty(headerIndices[IHDR_CELLS])) {
+					cellCount = tok.getLong(headerIndices[IHDR_CELLS]);
+				}
 			}
 
 			if (cellCount == null && headerIndices[IHDR_CELLS_EST] != IDX_MISSING_FIELD) {
-				String strCells = getField(fields, IHDR_CELLS_EST);
-				if (!strCells.isEmpty()) cellCount = Long.parseLong(strCells);
+				if (!tok.isEmpty(headerIndices[IHDR_CELLS_EST])) {
+					cellCount = tok.getLong(headerIndices[IHDR_CELLS_EST]);
+				}
 			}
 		}
+	}
 
-		return(r);
+	private String optionalField(int ihdr) {
+		return(tok.getRawString(headerIndices[ihdr]));
 	}
 
-	private String optionalField(String[] fields, int ihdr) {
-		int idx = headerIndices[ihdr];
-		if (idx == IDX_MISSING_FIELD || idx >= fields.length) return(null);
-		return(fields[idx]);
+	private boolean optionalEmpty(int ihdr) {
+		return(tok.isEmpty(headerIndices[ihdr]));
 	}
 
 	// +------------+
@@ -192,8 +494,17 @@ public class TsvReader implements Closeable
 	// +------------+
 
 	private void initialize() throws IOException {
-		
-		this.rdr = new BufferedReader(stm);
+
+		if (bb != null) {
+			this.tok = new TsvTokenizer(bb);
+		}
+		else if (byteStm != null) {
+			this.tok = new TsvTokenizer(byteStm);
+		}
+		else {
+			this.rdr = new BufferedReader(stm);
+			this.tok = new TsvTokenizer((InputStream) null);
+		}
 
 		setupHeaders();
 		advanceToRow(startRowIndex);
@@ -205,12 +516,9 @@ public class TsvReader implements Closeable
 		// which is true Adaptive TSVs. It also assumes that all fields
 		// are present except possibly VSHMIndices.
 
-		String line;
-		
-		while ((line = readLine()) != null) {
+		while (readLine()) {
 			
-			if (line == null) break;
-			String trimmed = line.trim();
+			String trimmed = tok.getLine().trim();
 			if (trimmed.isEmpty()) continue;
 
 			if (trimmed.startsWith("#")) {
@@ -324,7 +632,16 @@ public class TsvReader implements Closeable
 
 		nextRowIndex = 0;
 
-		while (nextRowIndex < startRowIndex && (readLine() != null)) {
+		// the peeker has to see every line, so no skipping with one around
+		if (rowIndex != null && rdr == null && peeker == null) {
+			long offset = rowIndex.getOffset(startRowIndex);
+			if (offset != -1) {
+				tok.seek(offset);
+				nextRowIndex = rowIndex.getIndexedRow(startRowIndex);
+			}
+		}
+
+		while (nextRowIndex < startRowIndex && readLine()) {
 			++nextRowIndex;
 		}
 	}
@@ -333,14 +650,32 @@ public class TsvReader implements Closeable
 	// | Helpers |
 	// +---------+
 
-	private String readLine() throws IOException {
-		String line = rdr.readLine();
-		if (line != null && peeker != null) peeker.peek(line);
-		return(line);
+	private boolean readLine() throws IOException {
+
+		if (rdr != null) {
+			String line = rdr.readLine();
+			if (line == null) return(false);
+			tok.setLine(line);
+			if (peeker != null) peeker.peek(line);
+		}
+		else {
+			if (!tok.nextLine()) return(false);
+			if (peeker != null) peeker.peek(tok.getLine());
+		}
+		
+		return(true);
+	}
+
+	private String getField(int ihdr) {
+		return(tok.getString(headerIndices[ihdr]));
+	}
+
+	private int getGeneId(int ihdr) {
+		return(tok.getGeneId(headerIndices[ihdr]));
 	}
 
-	private String getField(String[] fields, int ihdr) {
-		return(headerIndices[ihdr] < fields.length ? fields[headerIndices[ihdr]].trim() : "");
+	private String geneName(int id, int ihdr) {
+		return(id == GeneDictionary.NONE ? getField(ihdr) : GeneDictionary.getName(id));
 	}
 
 	// +---------+
@@ -348,10 +683,17 @@ public class TsvReader implements Closeable
 	// +---------+
 
 	protected InputStreamReader stm; // protected for test code
+	private InputStream byteStm;
+	private ByteBuffer bb;
+	private boolean ownStream;
+	private RowIndex rowIndex;
 	private int startRowIndex;
 	private LinePeeker peeker;
+	private EnumSet<Field> fields;
+	private EnumSet<Field> missingFields;
 	
 	private BufferedReader rdr;
+	private TsvTokenizer tok;
 	private int nextRowIndex;
 	private int[] headerIndices;
 
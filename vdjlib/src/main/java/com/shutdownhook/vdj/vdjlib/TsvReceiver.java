@@ -5,14 +5,18 @@
 package com.shutdownhook.vdj.vdjlib;
 
 import java.io.BufferedWriter;
+import java.io.FilterOutputStream;
 import java.io.InputStreamReader;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.time.LocalDate;
+import java.util.EnumSet;
+import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
 import java.util.logging.Logger;
 
+import com.shutdownhook.vdj.vdjlib.TsvReader.Field;
 import com.shutdownhook.vdj.vdjlib.model.Rearrangement;
 import com.shutdownhook.vdj.vdjlib.model.Repertoire;
 
@@ -31,6 +35,7 @@ public class TsvReceiver
 	public static class ReceiveStreams
 	{
 		OutputStream Stm;
+		CountingStream Counter;
 		OutputStreamWriter Writer;
 		BufferedWriter Buf;
 	}
@@ -65,13 +70,14 @@ public class TsvReceiver
 											   Double sampleMillis, LocalDate effectiveDate) throws Exception {
 		
 		final ReceiveStreams streams = new ReceiveStreams();
+		ColumnarRepertoire.Writer columnar = null;
 
 		final TsvReader tsvReader = new TsvReader(stm, 0, new TsvReader.LinePeeker() {
 				public void peek(String line) throws IOException {
 					streams.Buf.write(line);
 					streams.Buf.newLine();
 				}
-			});
+			}, EnumSet.of(Field.Locus, Field.Count));
 
 		try {
 			// check if already exists
@@ -87,19 +93,61 @@ public class TsvReceiver
 				throw new Exception(String.format("failed getting save Stream %s", spec));
 			}
 				
-			streams.Writer = new OutputStreamWriter(streams.Stm);
+			streams.Counter = new CountingStream(streams.Stm);
+			streams.Writer = new OutputStreamWriter(streams.Counter);
 			streams.Buf = new BufferedWriter(streams.Writer);
 
 			Repertoire repertoire = new Repertoire();
 			repertoire.Name = spec.Name;
 			repertoire.Date = effectiveDate;
-				
-			Rearrangement r;
+			repertoire.UploadId = UUID.randomUUID().toString();
+
+			// headers go out first; after that every peeked line is a data
+			// row and flushing the writers tells us exactly where it starts
+			
+			tsvReader.readHeaders();
+			RowIndex rowIndex = new RowIndex();
+			columnar = new ColumnarRepertoire.Writer();
+			int irow = 0;
+			
+			Rearrangement r = new Rearrangement();
 
-			while ((r = tsvReader.readNext()) != null) {
+			while (true) {
+
+				if (rowIndex.wants(irow)) {
+					streams.Buf.flush();
+					rowIndex.add(streams.Counter.getCount());
+				}
+				
+				if (!tsvReader.readNextInto(r)) break;
+				
 				repertoire.accumulateCount(r.Locus, r.Count);
+				++irow;
+
+				// parsing every field here is what rejects a malformed file
+				// at upload rather than later in export or paging, so it's
+				// fatal whether or not we end up with a columnar copy
+
+				tsvReader.materialize(r);
+
+				// the columnar copy is an optimization; if it fails we
+				// just don't have one and readers use the tsv
+
+				if (columnar != null) {
+					try {
+						columnar.add(r);
+					}
+					catch (Exception e) {
+						log.warning(Utility.exMsg(e, "columnar " + spec + " (non-fatal)", false));
+						Utility.safeClose(columnar);
+						columnar = null;
+					}
+				}
 			}
 
+			saveRowIndex(store, spec, rowIndex);
+			if (columnar != null) saveColumnar(store, spec, columnar);
+
 			if (totalCells != null) {
 				repertoire.TotalCells = totalCells;
 			}
@@ -123,9 +171,92 @@ public class TsvReceiver
 			if (streams.Writer != null) Utility.safeClose(streams.Writer);
 			if (streams.Stm != null) Utility.safeClose(streams.Stm);
 			if (tsvReader != null) Utility.safeClose(tsvReader);
+			if (columnar != null) Utility.safeClose(columnar);
 		}
 			
 	}
 
+	// +--------------+
+	// | saveRowIndex |
+	// +--------------+
+
+	// non-fatal; readers just walk rows if the index isn't there
+
+	private static void saveRowIndex(RepertoireStore store, RepertoireSpec spec, RowIndex rowIndex) {
+
+		OutputStream stm = null;
+		
+		try {
+			stm = store.getRepertoireSecondarySaveStream(spec, RowIndex.SECONDARY_KEY);
+			if (stm != null) rowIndex.save(stm);
+		}
+		catch (Exception e) {
+			log.warning(Utility.exMsg(e, "saveRowIndex " + spec + " (non-fatal)", false));
+		}
+		finally {
+			if (stm != null) Utility.safeClose(stm);
+		}
+	}
+
+	// +--------------+
+	// | saveColumnar |
+	// +--------------+
+
+	// also non-fatal; without it scans just read the tsv
+
+	private static void saveColumnar(RepertoireStore store, RepertoireSpec spec,
+									 ColumnarRepertoire.Writer columnar) {
+
+		OutputStream stm = null;
+		
+		try {
+			stm = store.getRepertoireSecondarySaveStream(spec, ColumnarRepertoire.SECONDARY_KEY);
+			if (stm != null) columnar.save(stm);
+		}
+		catch (Exception e) {
+			log.warning(Utility.exMsg(e, "saveColumnar " + spec + " (non-fatal)", false));
+		}
+		finally {
+			if (stm != null) Utility.safeClose(stm);
+		}
+	}
+
+	// +----------------+
+	// | CountingStream |
+	// +----------------+
+
+	// Counts bytes on their way to the store. Flushes stop here, so we
+	// can flush the writers above us to get an exact count without
+	// pushing partial blocks into the store stream itself.
+	
+	public static class CountingStream extends FilterOutputStream
+	{
+		public CountingStream(OutputStream out) {
+			super(out);
+			this.count = 0;
+		}
+
+		public long getCount() { return(count); }
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			++count;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+
+		@Override
+		public void flush() {
+			// see above
+		}
+
+		private long count;
+	}
+
 	private final static Logger log = Logger.getLogger(TsvReceiver.class.getName());
 }
@@ -0,0 +1,388 @@
+//
+// TSVTOKENIZER.JAVA
+//
+
+// Splits TSV content into lines and fields directly over a byte buffer.
+// Rather than materializing a String for every line and field, we just
+// record start/end offsets for each field of the current line; numbers
+// are parsed straight from the bytes and Strings are only created for
+// the fields a caller actually asks for. Offsets are only valid until
+// the next call to nextLine or setLine.
+//
+// Content comes either from an InputStream (read into a growable heap
+// buffer) or from a ByteBuffer that already holds the whole file, e.g. a
+// read-only memory mapping, in which case we scan it in place.
+
+package com.shutdownhook.vdj.vdjlib;
+
+import java.io.Closeable;
+import java.io.InputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+public class TsvTokenizer implements Closeable
+{
+	// +------------------+
+	// | Setup & Teardown |
+	// +------------------+
+
+	public TsvTokenizer(InputStream stm) {
+		this.stm = stm;
+		setBuffer(new byte[INITIAL_BUFFER_SIZE]);
+		this.ibMac = 0;
+		this.eof = (stm == null);
+		init();
+	}
+
+	// scans bb from its current position to its limit without copying.
+	// We read via absolute gets, so bb's own position is never touched
+	// and the same buffer can be shared by concurrent tokenizers.
+	
+	public TsvTokenizer(ByteBuffer bb) {
+		this.stm = null;
+		this.buf = null;
+		this.bb = bb;
+		this.ibMac = bb.limit();
+		this.eof = true;
+		init();
+		this.ibNext = bb.position();
+	}
+
+	private void init() {
+		this.ibBase = 0;
+		this.ibLine = 0;
+		this.ibLineMac = 0;
+		this.ibNext = 0;
+		this.starts = new int[INITIAL_FIELD_COUNT];
+		this.ends = new int[INITIAL_FIELD_COUNT];
+		this.fieldCount = 0;
+	}
+
+	public void close() {
+		// we don't own stm so leave it alone
+	}
+
+	// +----------+
+	// | nextLine |
+	// | setLine  |
+	// +----------+
+
+	// returns false at end of stream. Handles \n, \r\n and bare \r
+	// line endings the same way BufferedReader.readLine does.
+
+	public boolean nextLine() throws IOException {
+
+		int ibScan = ibNext;
+
+		while (true) {
+
+			while (ibScan < ibMac) {
+				byte b = bb.get(ibScan);
+				if (b == '\n' || b == '\r') break;
+				++ibScan;
+			}
+
+			if (ibScan < ibMac) {
+
+				if (bb.get(ibScan) == '\r' && ibScan + 1 == ibMac && !eof) {
+					// need one more byte to know if this is \r\n
+					ibScan -= fill();
+					continue;
+				}
+
+				ibLine = ibNext;
+				ibLineMac = ibScan;
+
+				ibNext = ibScan + 1;
+				if (bb.get(ibScan) == '\r' && ibNext < ibMac && bb.get(ibNext) == '\n') ++ibNext;
+
+				tokenize();
+				return(true);
+			}
+
+			if (eof) {
+				if (ibNext == ibMac) return(false);
+
+				// final line without a terminator
+				ibLine = ibNext;
+				ibLineMac = ibMac;
+				ibNext = ibMac;
+
+				tokenize();
+				return(true);
+			}
+
+			ibScan -= fill();
+		}
+	}
+
+	// load a line that was read elsewhere (e.g., from a Reader)
+
+	public void setLine(String line) {
+
+		byte[] rgb = line.getBytes(StandardCharsets.UTF_8);
+		if (buf == null || rgb.length > buf.length) setBuffer(new byte[rgb.length]);
+		System.arraycopy(rgb, 0, buf, 0, rgb.length);
+
+		ibLine = 0;
+		ibLineMac = rgb.length;
+		ibMac = rgb.length;
+		ibNext = rgb.length;
+
+		tokenize();
+	}
+
+	// +---------------+
+	// | getNextOffset |
+	// | seek          |
+	// +---------------+
+
+	// offset of the first byte not yet consumed by nextLine, relative to
+	// where the stream started (or an absolute index into an external
+	// ByteBuffer). Not meaningful with setLine.
+	
+	public long getNextOffset() {
+		return(ibBase + ibNext);
+	}
+
+	// positions the tokenizer so the next line starts at offset, which
+	// must be the start of a line. Streams can only move forward; we
+	// skip over whatever isn't already buffered.
+
+	public void seek(long offset) throws IOException {
+
+		if (buf == null) {
+			if (offset < 0 || offset > ibMac) throw new IOException("seek out of range: " + offset);
+			ibNext = (int) offset;
+			return;
+		}
+
+		if (offset < ibBase + ibNext) throw new IOException("can't seek backwards: " + offset);
+
+		if (offset <= ibBase + ibMac) {
+			ibNext = (int) (offset - ibBase);
+			return;
+		}
+
+		long cbSkip = offset - (ibBase + ibMac);
+		
+		while (cbSkip > 0) {
+			long cb = stm.skip(cbSkip);
+			if (cb <= 0) {
+				// skip may legitimately do nothing; read a byte to see if we're at eof
+				if (stm.read() == -1) throw new IOException("seek past end: " + offset);
+				cb = 1;
+			}
+			cbSkip -= cb;
+		}
+
+		ibBase = offset;
+		ibNext = 0;
+		ibMac = 0;
+		eof = false;
+	}
+
+	public int getFieldCount() {
+		return(fieldCount);
+	}
+
+	public String getLine() {
+		return(makeString(ibLine, ibLineMac));
+	}
+
+	// trimmed, "" if the field doesn't exist
+	public String getString(int ifld) {
+		if (ifld < 0 || ifld >= fieldCount) return("");
+		int ib = trimStart(ifld);
+		int ibMacField = trimEnd(ifld, ib);
+		if (ib == ibMacField) return("");
+		return(makeString(ib, ibMacField));
+	}
+
+	// untrimmed, null if the field doesn't exist
+	public String getRawString(int ifld) {
+		if (ifld < 0 || ifld >= fieldCount) return(null);
+		return(makeString(starts[ifld], ends[ifld]));
+	}
+
+	// trimmed field looked up in the GeneDictionary; EMPTY if the field
+	// doesn't exist, NONE if the dictionary won't take it
+	
+	public int getGeneId(int ifld) {
+		if (ifld < 0 || ifld >= fieldCount) return(GeneDictionary.EMPTY);
+		int ib = trimStart(ifld);
+		return(GeneDictionary.lookup(bb, ib, trimEnd(ifld, ib)));
+	}
+
+	public boolean isEmpty(int ifld) {
+		if (ifld < 0 || ifld >= fieldCount) return(true);
+		int ib = trimStart(ifld);
+		return(trimEnd(ifld, ib) == ib);
+	}
+
+	public int getInt(int ifld) throws NumberFormatException {
+		long val = getLong(ifld);
+		if (val < Integer.MIN_VALUE || val > Integer.MAX_VALUE) throw badNumber(ifld);
+		return((int) val);
+	}
+
+	public long getLong(int ifld) throws NumberFormatException {
+
+		if (ifld < 0 || ifld >= fieldCount) throw badNumber(ifld);
+
+		int ib = trimStart(ifld);
+		int ibMacField = trimEnd(ifld, ib);
+		if (ib == ibMacField) throw badNumber(ifld);
+
+		boolean negative = false;
+		byte bFirst = bb.get(ib);
+		if (bFirst == '-' || bFirst == '+') {
+			negative = (bFirst == '-');
+			if (++ib == ibMacField) throw badNumber(ifld);
+		}
+
+		// accumulate negatively so that Long.MIN_VALUE round-trips
+		long val = 0;
+
+		while (ib < ibMacField) {
+			int digit = bb.get(ib++) - '0';
+			if (digit < 0 || digit > 9) throw badNumber(ifld);
+			if (val < MIN_BEFORE_MULTIPLY) throw badNumber(ifld);
+			val *= 10;
+			if (val < Long.MIN_VALUE + digit) throw badNumber(ifld);
+			val -= digit;
+		}
+
+		if (negative) return(val);
+		if (val == Long.MIN_VALUE) throw badNumber(ifld);
+		return(-val);
+	}
+
+	// doubles are rare enough that we just let the JDK handle them
+	public double getDouble(int ifld) throws NumberFormatException {
+		return(Double.parseDouble(getString(ifld)));
+	}
+
+	// +---------+
+	// | Helpers |
+	// +---------+
+
+	private void tokenize() {
+
+		fieldCount = 0;
+		int ibStart = ibLine;
+
+		for (int ib = ibLine; ib < ibLineMac; ++ib) {
+			if (bb.get(ib) == '\t') {
+				addField(ibStart, ib);
+				ibStart = ib + 1;
+			}
+		}
+
+		addField(ibStart, ibLineMac);
+	}
+
+	private void addField(int ibStart, int ibEnd) {
+
+		if (fieldCount == starts.length) {
+			int[] newStarts = new int[starts.length * 2];
+			int[] newEnds = new int[ends.length * 2];
+			System.arraycopy(starts, 0, newStarts, 0, fieldCount);
+			System.arraycopy(ends, 0, newEnds, 0, fieldCount);
+			starts = newStarts;
+			ends = newEnds;
+		}
+
+		starts[fieldCount] = ibStart;
+		ends[fieldCount] = ibEnd;
+		++fieldCount;
+	}
+
+	// shift any partial line to the front of the buffer (growing it if the
+	// line fills it completely) and read more. Returns the number of bytes
+	// the content moved so callers can adjust their own offsets.
+
+	private int fill() throws IOException {
+
+		int shift = ibNext;
+		int cbKeep = ibMac - ibNext;
+
+		if (shift > 0) {
+			System.arraycopy(buf, ibNext, buf, 0, cbKeep);
+			ibBase += shift;
+			ibNext = 0;
+			ibMac = cbKeep;
+		}
+
+		if (ibMac == buf.length) {
+			byte[] newBuf = new byte[buf.length * 2];
+			System.arraycopy(buf, 0, newBuf, 0, ibMac);
+			setBuffer(newBuf);
+		}
+
+		int cbRead = stm.read(buf, ibMac, buf.length - ibMac);
+		if (cbRead == -1) eof = true; else ibMac += cbRead;
+
+		return(shift);
+	}
+
+	private int trimStart(int ifld) {
+		int ib = starts[ifld];
+		int ibMacField = ends[ifld];
+		while (ib < ibMacField && (bb.get(ib) & 0xFF) <= ' ') ++ib;
+		return(ib);
+	}
+
+	private int trimEnd(int ifld, int ibStart) {
+		int ibMacField = ends[ifld];
+		while (ibMacField > ibStart && (bb.get(ibMacField - 1) & 0xFF) <= ' ') --ibMacField;
+		return(ibMacField);
+	}
+
+	private String makeString(int ib, int ibMacString) {
+
+		int cb = ibMacString - ib;
+		
+		if (buf != null) return(new String(buf, ib, cb, StandardCharsets.UTF_8));
+
+		if (scratch == null || scratch.length < cb) scratch = new byte[Math.max(cb, 256)];
+		ByteBuffer view = bb.duplicate();
+		view.position(ib);
+		view.get(scratch, 0, cb);
+		return(new String(scratch, 0, cb, StandardCharsets.UTF_8));
+	}
+
+	private void setBuffer(byte[] newBuf) {
+		buf = newBuf;
+		bb = ByteBuffer.wrap(buf);
+	}
+
+	private NumberFormatException badNumber(int ifld) {
+		return(new NumberFormatException("For input string: \"" + getString(ifld) + "\""));
+	}
+
+	// +---------+
+	// | Members |
+	// +---------+
+
+	private InputStream stm;
+	private byte[] buf;     // null when scanning an external ByteBuffer
+	private ByteBuffer bb;  // wraps buf, or the external buffer
+	private byte[] scratch; // for making Strings from an external buffer
+	private boolean eof;
+
+	private long ibBase;   // stream offset of buf[0]
+	private int ibMac;     // end of valid data in buf
+	private int ibNext;    // start of the next unread line
+	private int ibLine;    // start of current line
+	private int ibLineMac; // end of current line (excluding terminator)
+
+	private int[] starts;
+	private int[] ends;
+	private int fieldCount;
+
+	private final static int INITIAL_BUFFER_SIZE = 64 * 1024;
+	private final static int INITIAL_FIELD_COUNT = 128;
+	private final static long MIN_BEFORE_MULTIPLY = Long.MIN_VALUE / 10;
+}
@@ -0,0 +1,264 @@
+//
+// PACKEDSEQUENCE.JAVA
+//
+
+// Nucleotide sequence at 2 bits per base (A=0, C=1, G=2, T=3), 32 bases
+// per long with base i at bits (i % 32) * 2. N positions are stored as A
+// with the matching two bits set in a parallel mask (null if there aren't
+// any), so comparisons can XOR whole words of both arrays at once and
+// then find or count differing bases with bit tricks instead of walking
+// characters.
+//
+// Only A/C/G/T/N are representable; pack returns null for anything else
+// and callers fall back to Strings. Case is folded if asked, otherwise
+// lowercase is treated as unrepresentable too. Comparisons are exact
+// (N only equals N) and compareTo orders the same way String does.
+
+package com.shutdownhook.vdj.vdjlib.model;
+
+import java.util.Arrays;
+
+public class PackedSequence implements Comparable<PackedSequence>
+{
+	// +------+
+	// | pack |
+	// +------+
+
+	public static PackedSequence pack(String s) {
+		return(pack(s, false));
+	}
+
+	public static PackedSequence pack(String s, boolean foldCase) {
+
+		if (s == null) return(null);
+
+		int cch = s.length();
+		long[] bases = new long[words(cch)];
+		long[] nmask = null;
+
+		for (int i = 0; i < cch; ++i) {
+
+			char ch = s.charAt(i);
+			if (foldCase && ch >= 'a' && ch <= 'z') ch -= ('a' - 'A');
+
+			int shift = (i & 31) << 1;
+
+			switch (ch) {
+				case 'A': break;
+				case 'C': bases[i >>> 5] |= (1L << shift); break;
+				case 'G': bases[i >>> 5] |= (2L << shift); break;
+				case 'T': bases[i >>> 5] |= (3L << shift); break;
+
+				case 'N':
+					if (nmask == null) nmask = new long[bases.length];
+					nmask[i >>> 5] |= (3L << shift);
+					break;
+
+				default:
+					return(null);
+			}
+		}
+
+		return(new PackedSequence(cch, bases, nmask));
+	}
+
+	private PackedSequence(int length, long[] bases, long[] nmask) {
+		this.length = length;
+		this.bases = bases;
+		this.nmask = nmask;
+	}
+
+	// +-----------+
+	// | accessors |
+	// +-----------+
+
+	public int length() { return(length); }
+	public boolean hasN() { return(nmask != null); }
+
+	public char charAt(int i) {
+		if (i < 0 || i >= length) throw new IndexOutOfBoundsException(Integer.toString(i));
+		int shift = (i & 31) << 1;
+		if (nmask != null && ((nmask[i >>> 5] >>> shift) & 3L) != 0) return('N');
+		return(BASES[(int) ((bases[i >>> 5] >>> shift) & 3L)]);
+	}
+
+	@Override
+	public String toString() {
+		char[] rgch = new char[length];
+		for (int i = 0; i < length; ++i) rgch[i] = charAt(i);
+		return(new String(rgch));
+	}
+
+	// +-------------------+
+	// | equals / hashCode |
+	// +-------------------+
+
+	@Override
+	public boolean equals(Object other) {
+		if (other == this) return(true);
+		if (!(other instanceof PackedSequence)) return(false);
+		PackedSequence p = (PackedSequence) other;
+		if (length != p.length) return(false);
+		return(Arrays.equals(bases, p.bases) && Arrays.equals(nmask, p.nmask));
+	}
+
+	@Override
+	public int hashCode() {
+		return(31 * Arrays.hashCode(bases) + (nmask == null ? length : Arrays.hashCode(nmask)));
+	}
+
+	// +---------------+
+	// | regionMatches |
+	// +---------------+
+
+	public boolean regionMatches(int offset, PackedSequence other, int otherOffset, int len) {
+
+		if (offset < 0 || otherOffset < 0 || len < 0) return(false);
+		if (offset + len > length || otherOffset + len > other.length) return(false);
+
+		return(matchingRight(offset, other, otherOffset, len) == len);
+	}
+
+	public boolean startsWith(PackedSequence prefix) {
+		return(regionMatches(0, prefix, 0, prefix.length));
+	}
+
+	public boolean endsWith(PackedSequence suffix) {
+		return(regionMatches(length - suffix.length, suffix, 0, suffix.length));
+	}
+
+	// +---------+
+	// | hamming |
+	// +---------+
+
+	// number of differing bases between len bases starting at offset and
+	// otherOffset; stops counting (and returns something > max) once it
+	// gets past max.
+
+	public int hamming(int offset, PackedSequence other, int otherOffset, int len, int max) {
+
+		int diffs = 0;
+
+		for (int k = 0; k < len; k += 32) {
+
+			long d = diffWord(offset + k, other, otherOffset + k, Math.min(32, len - k));
+			diffs += Long.bitCount(d);
+
+			if (diffs > max) break;
+		}
+
+		return(diffs);
+	}
+
+	// smallest offset in this at which pattern matches with at most
+	// maxMismatches differences, or -1
+
+	public int indexOf(PackedSequence pattern, int maxMismatches) {
+
+		int ichMac = length - pattern.length;
+
+		for (int ich = 0; ich <= ichMac; ++ich) {
+			if (hamming(ich, pattern, 0, pattern.length, maxMismatches) <= maxMismatches) return(ich);
+		}
+
+		return(-1);
+	}
+
+	// +-------------------+
+	// | matching run size |
+	// +-------------------+
+
+	// number of equal bases walking right from offset/otherOffset, up to max
+
+	public int matchingRight(int offset, PackedSequence other, int otherOffset, int max) {
+
+		for (int k = 0; k < max; k += 32) {
+			long d = diffWord(offset + k, other, otherOffset + k, Math.min(32, max - k));
+			if (d != 0) return(k + (Long.numberOfTrailingZeros(d) >>> 1));
+		}
+
+		return(max);
+	}
+
+	// number of equal bases walking left from (not including) ichMac and
+	// otherIchMac, up to max
+
+	public int matchingLeft(int ichMac, PackedSequence other, int otherIchMac, int max) {
+
+		for (int k = 0; k < max; k += 32) {
+
+			int cb = Math.min(32, max - k);
+			long d = diffWord(ichMac - k - cb, other, otherIchMac - k - cb, cb);
+
+			if (d != 0) {
+				int ibHigh = (63 - Long.numberOfLeadingZeros(d)) >>> 1;
+				return(k + (cb - 1 - ibHigh));
+			}
+		}
+
+		return(max);
+	}
+
+	// +-----------+
+	// | compareTo |
+	// +-----------+
+
+	public int compareTo(PackedSequence other) {
+
+		int cchCommon = Math.min(length, other.length);
+		int ich = matchingRight(0, other, 0, cchCommon);
+
+		if (ich < cchCommon) return(charAt(ich) - other.charAt(ich));
+		return(length - other.length);
+	}
+
+	// +---------+
+	// | Helpers |
+	// +---------+
+
+	// one bit (the low one of each pair) set for every differing base in
+	// the cb (<= 32) bases starting at offset/otherOffset
+
+	private long diffWord(int offset, PackedSequence other, int otherOffset, int cb) {
+
+		long x = word(bases, offset) ^ word(other.bases, otherOffset);
+
+		if (nmask != null || other.nmask != null) {
+			x |= (word(nmask, offset) ^ word(other.nmask, otherOffset));
+		}
+
+		if (cb < 32) x &= ((1L << (cb << 1)) - 1);
+
+		return((x | (x >>> 1)) & LOW_BITS);
+	}
+
+	// 32 bases starting at base ib (bases past the end come back as 0)
+
+	private static long word(long[] w, int ib) {
+
+		if (w == null) return(0L);
+
+		int iw = ib >>> 5;
+		int shift = (ib & 31) << 1;
+
+		long lo = (iw < w.length ? w[iw] >>> shift : 0L);
+		if (shift == 0 || iw + 1 >= w.length) return(lo);
+
+		return(lo | (w[iw + 1] << (64 - shift)));
+	}
+
+	private static int words(int cch) {
+		return((cch + 31) >>> 5);
+	}
+
+	// +---------+
+	// | Members |
+	// +---------+
+
+	private final int length;
+	private final long[] bases;
+	private final long[] nmask;
+
+	private final static char[] BASES = { 'A', 'C', 'G', 'T' };
+	private final static long LOW_BITS = 0x5555555555555555L;
+}
@@ -37,6 +37,66 @@ public class Rearrangement
 
 	public boolean Dx;
 
+	// GeneDictionary ids for VResolved/DResolved/JResolved when this row came
+	// from a TsvReader (-1 otherwise, e.g. parsed from JSON); the Strings
+	// above are the dictionary's canonical instances in that case.
+	
+	public transient int VGeneId = -1;
+	public transient int DGeneId = -1;
+	public transient int JGeneId = -1;
+
+	// Reuse (see TsvReader.readNextInto). Scans that only keep the odd row
+	// decode into a single instance and copy the ones they want to hold on to.
+
+	public void reset() {
+		Rearrangement = null;
+		AminoAcid = null;
+		FrameType = null;
+		Locus = null;
+		Count = 0L;
+		VResolved = null;
+		DResolved = null;
+		JResolved = null;
+		Cdr3Length = 0;
+		VIndex = 0;
+		DIndex = 0;
+		JIndex = 0;
+		N1Index = 0;
+		N2Index = 0;
+		Probability = 0.0;
+		VSHMIndices = null;
+		Dx = false;
+		VGeneId = -1;
+		DGeneId = -1;
+		JGeneId = -1;
+		clearCache();
+	}
+
+	public Rearrangement copy() {
+		Rearrangement r = new Rearrangement();
+		r.Rearrangement = Rearrangement;
+		r.AminoAcid = AminoAcid;
+		r.FrameType = FrameType;
+		r.Locus = Locus;
+		r.Count = Count;
+		r.VResolved = VResolved;
+		r.DResolved = DResolved;
+		r.JResolved = JResolved;
+		r.Cdr3Length = Cdr3Length;
+		r.VIndex = VIndex;
+		r.DIndex = DIndex;
+		r.JIndex = JIndex;
+		r.N1Index = N1Index;
+		r.N2Index = N2Index;
+		r.Probability = Probability;
+		r.VSHMIndices = (VSHMIndices == null ? null : VSHMIndices.clone());
+		r.Dx = Dx;
+		r.VGeneId = VGeneId;
+		r.DGeneId = DGeneId;
+		r.JGeneId = JGeneId;
+		return(r);
+	}
+
 	// On-Demand calculations
 
 	public double getFractionOfLocus(Repertoire repertoire) {
@@ -73,7 +133,27 @@ public class Rearrangement
 		return(cdr3);
 	}
 	
+	// null if Rearrangement has anything other than A/C/G/T/N (either case)
+
+	public synchronized PackedSequence getPackedRearrangement() {
+
+		if (packed == null && !packFailed && Rearrangement != null) {
+			packed = PackedSequence.pack(Rearrangement, true);
+			packFailed = (packed == null);
+		}
+
+		return(packed);
+	}
+	
+	private synchronized void clearCache() {
+		cdr3 = null;
+		packed = null;
+		packFailed = false;
+	}
+	
 	private transient String cdr3;
+	private transient PackedSequence packed;
+	private transient boolean packFailed;
 
 	// JSON Serialization
 
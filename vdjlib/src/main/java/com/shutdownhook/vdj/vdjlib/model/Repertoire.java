@@ -21,6 +21,7 @@ public class Repertoire
 	public long TotalUniques = 0;
 	public double TotalMilliliters = 0.0;
 	public Map<LocusGroup,Long> LocusCounts = new HashMap<LocusGroup,Long>();
+	public String UploadId; // new for every upload, even of the same name (null if older)
 
 	// normalizers
 	
@@ -0,0 +1,79 @@
+//
+// AHOCORASICKTEST.JAVA
+
+package com.shutdownhook.vdj.vdjlib;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AhoCorasickTest
+{
+	// +-------+
+	// | Tests |
+	// +-------+
+
+	@Test
+	public void matchesIndexOf() throws Exception {
+
+		Random rand = new Random(43);
+
+		for (int trial = 0; trial < 500; ++trial) {
+
+			// short patterns over a small alphabet so they overlap, nest
+			// and repeat; some chars in the text aren't in any pattern
+			String[] patterns = new String[1 + rand.nextInt(40)];
+			for (int i = 0; i < patterns.length; ++i) {
+				patterns[i] = (rand.nextInt(20) == 0 ? "" : randomString(rand, "ACGé", 1 + rand.nextInt(6)));
+			}
+
+			AhoCorasick ac = new AhoCorasick(patterns);
+			Assert.assertEquals(patterns.length, ac.getPatternCount());
+
+			for (int t = 0; t < 20; ++t) {
+				String text = randomString(rand, "ACGTé", rand.nextInt(60));
+				Assert.assertArrayEquals(text, naive(patterns, text), ac.find(text));
+			}
+		}
+	}
+
+	@Test
+	public void edges() throws Exception {
+
+		Assert.assertNull(new AhoCorasick(new String[0]).find("ACGT"));
+		Assert.assertNull(new AhoCorasick(new String[] { "", null }).find("ACGT"));
+		Assert.assertNull(new AhoCorasick(new String[] { "AC" }).find(null));
+
+		// classic overlapping set
+		AhoCorasick ac = new AhoCorasick(new String[] { "he", "she", "his", "hers" });
+		Assert.assertArrayEquals(new int[] { 0, 1, 3 }, ac.find("ushers"));
+		Assert.assertArrayEquals(new int[] { 2 }, ac.find("this"));
+	}
+
+	// +---------+
+	// | Helpers |
+	// +---------+
+
+	private static int[] naive(String[] patterns, String text) {
+
+		List<Integer> hits = new ArrayList<Integer>();
+		for (int i = 0; i < patterns.length; ++i) {
+			if (!patterns[i].isEmpty() && text.indexOf(patterns[i]) != -1) hits.add(i);
+		}
+
+		if (hits.size() == 0) return(null);
+
+		int[] rg = new int[hits.size()];
+		for (int i = 0; i < rg.length; ++i) rg[i] = hits.get(i);
+		return(rg);
+	}
+
+	private static String randomString(Random rand, String alphabet, int cch) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < cch; ++i) sb.append(alphabet.charAt(rand.nextInt(alphabet.length())));
+		return(sb.toString());
+	}
+}
@@ -0,0 +1,140 @@
+//
+// BITAPTEST.JAVA
+
+package com.shutdownhook.vdj.vdjlib;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BitapTest
+{
+	// +-------+
+	// | Tests |
+	// +-------+
+
+	@Test
+	public void matchesNaive() throws Exception {
+
+		Random rand = new Random(31);
+
+		// small alphabets so near misses are common; lengths cross the
+		// one-word limit and the direct-window cutover both ways
+		String[] alphabets = new String[] { "AC", "ACGT", "ACGTN", "ACDEFGHIKLMNPQRSTVWY*", "ACé" };
+
+		for (int trial = 0; trial < 3000; ++trial) {
+
+			String alphabet = alphabets[rand.nextInt(alphabets.length)];
+			int cchPattern = 1 + rand.nextInt(rand.nextBoolean() ? 20 : 150);
+			int cchText = rand.nextInt(cchPattern + 100);
+			int k = rand.nextInt(5);
+			char wild = (rand.nextInt(4) == 0 ? 'N' : (char) 0);
+
+			String pattern = randomString(rand, alphabet, cchPattern);
+			String text = randomString(rand, alphabet, cchText);
+
+			// plant a mutated copy now and then so there are hits
+			if (cchText >= cchPattern && rand.nextBoolean()) {
+				int ich = rand.nextInt(cchText - cchPattern + 1);
+				String planted = mutate(rand, alphabet, pattern, rand.nextInt(k + 2));
+				text = text.substring(0, ich) + planted + text.substring(ich + cchPattern);
+			}
+
+			Bitap bitap = new Bitap(pattern, k, wild);
+			String msg = String.format("%s / %s / %d / %d", pattern, text, k, (int) wild);
+
+			Assert.assertEquals(msg, naiveFind(pattern, text, k, wild), bitap.find(text));
+
+			String same = (cchText >= cchPattern ? text.substring(0, cchPattern) : text);
+			Assert.assertEquals(msg, naiveWhole(pattern, same, k, wild), bitap.matchesWhole(same));
+		}
+	}
+
+	@Test
+	public void edges() throws Exception {
+
+		Assert.assertFalse(new Bitap("", 1, (char) 0).find("ACGT"));
+		Assert.assertFalse(new Bitap("ACGT", 1, (char) 0).find(null));
+		Assert.assertFalse(new Bitap("ACGT", 1, (char) 0).find("ACG"));
+		Assert.assertTrue(new Bitap("ACGT", 4, (char) 0).find("TTTT"));
+		Assert.assertFalse(new Bitap("ACGT", 4, (char) 0).matchesWhole("TTTTT"));
+
+		// exactly 64 and 65 characters, mismatch in the last one
+		for (int cch : new int[] { 64, 65, 128, 129 }) {
+			String pattern = randomString(new Random(cch), "ACGT", cch);
+			String text = "GG" + pattern.substring(0, cch - 1) + (pattern.charAt(cch - 1) == 'A' ? 'C' : 'A') + "GG";
+			Assert.assertFalse(new Bitap(pattern, 0, (char) 0).find(text));
+			Assert.assertTrue(new Bitap(pattern, 1, (char) 0).find(text));
+		}
+	}
+
+	@Test
+	public void longText() throws Exception {
+
+		// far more windows than the pattern is long, so these take the
+		// multi-word automaton rather than trying each window
+		Random rand = new Random(37);
+
+		for (int trial = 0; trial < 200; ++trial) {
+
+			int cchPattern = 65 + rand.nextInt(150);
+			int k = rand.nextInt(4);
+			String pattern = randomString(rand, "ACGT", cchPattern);
+			String text = randomString(rand, "ACGT", 2000 + rand.nextInt(2000));
+
+			if (rand.nextBoolean()) {
+				int ich = rand.nextInt(text.length() - cchPattern + 1);
+				String planted = mutate(rand, "ACGT", pattern, rand.nextInt(k + 2));
+				text = text.substring(0, ich) + planted + text.substring(ich + cchPattern);
+			}
+
+			Bitap bitap = new Bitap(pattern, k, (char) 0);
+			Assert.assertEquals(naiveFind(pattern, text, k, (char) 0), bitap.find(text));
+		}
+	}
+
+	// +---------+
+	// | Helpers |
+	// +---------+
+
+	private static boolean naiveFind(String pattern, String text, int k, char wild) {
+
+		if (pattern.isEmpty()) return(false);
+
+		for (int ich = 0; ich + pattern.length() <= text.length(); ++ich) {
+			if (mismatches(pattern, text, ich, wild) <= k) return(true);
+		}
+
+		return(false);
+	}
+
+	private static boolean naiveWhole(String pattern, String text, int k, char wild) {
+		if (pattern.isEmpty() || pattern.length() != text.length()) return(false);
+		return(mismatches(pattern, text, 0, wild) <= k);
+	}
+
+	private static int mismatches(String pattern, String text, int ich, char wild) {
+		int n = 0;
+		for (int i = 0; i < pattern.length(); ++i) {
+			char chP = pattern.charAt(i);
+			char chT = text.charAt(ich + i);
+			if (chP != chT && (wild == 0 || (chP != wild && chT != wild))) ++n;
+		}
+		return(n);
+	}
+
+	private static String mutate(Random rand, String alphabet, String s, int muts) {
+		char[] rgch = s.toCharArray();
+		for (int i = 0; i < muts; ++i) {
+			rgch[rand.nextInt(rgch.length)] = alphabet.charAt(rand.nextInt(alphabet.length()));
+		}
+		return(new String(rgch));
+	}
+
+	private static String randomString(Random rand, String alphabet, int cch) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < cch; ++i) sb.append(alphabet.charAt(rand.nextInt(alphabet.length())));
+		return(sb.toString());
+	}
+}
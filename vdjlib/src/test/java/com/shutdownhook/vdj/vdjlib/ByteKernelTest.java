@@ -0,0 +1,84 @@
+//
+// BYTEKERNELTEST.JAVA
+
+package com.shutdownhook.vdj.vdjlib;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ByteKernelTest
+{
+	// +-------+
+	// | Tests |
+	// +-------+
+
+	@Test
+	public void matchesScalar() throws Exception {
+
+		Random rand = new Random(41);
+
+		for (int trial = 0; trial < 5000; ++trial) {
+
+			String alphabet = (rand.nextBoolean() ? "ACGT" : "ACGTacgtN*-");
+			byte[] a = randomBytes(rand, alphabet, 1 + rand.nextInt(120));
+			byte[] b = a.clone();
+
+			// a few point differences so runs end at all sorts of lanes
+			for (int i = rand.nextInt(4); i > 0; --i) {
+				b[rand.nextInt(b.length)] = (byte) alphabet.charAt(rand.nextInt(alphabet.length()));
+			}
+
+			int ia = rand.nextInt(a.length);
+			int ib = rand.nextInt(a.length);
+			if (rand.nextBoolean()) ib = ia;
+			int len = rand.nextInt(a.length - Math.max(ia, ib) + 1);
+			boolean fold = rand.nextBoolean();
+
+			Assert.assertEquals(scalarRight(a, ia, b, ib, len, fold),
+								ByteKernel.matchingRight(a, ia, b, ib, len, fold));
+
+			int iaMac = ia + len;
+			int ibMac = ib + len;
+			Assert.assertEquals(scalarLeft(a, iaMac, b, ibMac, len, fold),
+								ByteKernel.matchingLeft(a, iaMac, b, ibMac, len, fold));
+		}
+	}
+
+	@Test
+	public void encode() throws Exception {
+		Assert.assertArrayEquals("ACGT".getBytes(), ByteKernel.encode("ACGT"));
+		Assert.assertNull(ByteKernel.encode("ACGé"));
+		Assert.assertNull(ByteKernel.encode(null));
+	}
+
+	// +---------+
+	// | Helpers |
+	// +---------+
+
+	private static int scalarRight(byte[] a, int ia, byte[] b, int ib, int max, boolean fold) {
+		for (int i = 0; i < max; ++i) {
+			if (!same(a[ia + i], b[ib + i], fold)) return(i);
+		}
+		return(max);
+	}
+
+	private static int scalarLeft(byte[] a, int iaMac, byte[] b, int ibMac, int max, boolean fold) {
+		for (int i = 0; i < max; ++i) {
+			if (!same(a[iaMac - i - 1], b[ibMac - i - 1], fold)) return(i);
+		}
+		return(max);
+	}
+
+	private static boolean same(byte b1, byte b2, boolean fold) {
+		if (!fold) return(b1 == b2);
+		return(Character.toLowerCase((char) b1) == Character.toLowerCase((char) b2));
+	}
+
+	private static byte[] randomBytes(Random rand, String alphabet, int cb) {
+		byte[] rgb = new byte[cb];
+		for (int i = 0; i < cb; ++i) rgb[i] = (byte) alphabet.charAt(rand.nextInt(alphabet.length()));
+		return(rgb);
+	}
+}
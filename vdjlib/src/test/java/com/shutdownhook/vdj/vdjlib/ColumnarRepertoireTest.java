@@ -0,0 +1,266 @@
+//
+// COLUMNARREPERTOIRETEST.JAVA
+
+package com.shutdownhook.vdj.vdjlib;
+
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.shutdownhook.vdj.vdjlib.RearrangementKey.KeyType;
+import com.shutdownhook.vdj.vdjlib.TopXRearrangements.TopXSort;
+import com.shutdownhook.vdj.vdjlib.TsvReader.Field;
+import com.shutdownhook.vdj.vdjlib.model.Rearrangement;
+
+public class ColumnarRepertoireTest
+{
+	// +------------------+
+	// | Setup & Teardown |
+	// +------------------+
+
+	private static String TEST_USER = "foo-columnar@bar.com";
+	private static String TEST_CONTEXT = "context-columnar";
+	private static String[] TEST_REPERTOIRES = {
+		"BH.tsv", "A_BCell_ID.tsv", "A_TCRG_ID.tsv", "D_BCell_Cellfree_MRD.tsv", "agate_1.tsv"
+	};
+
+	// copy of BH.tsv whose sidecar we rebuild with small blocks
+	private static String SMALL_BLOCKS = "BH.tsv";
+	private static String SMALL_BLOCKS_CONTEXT = "context-columnar-small";
+	private static int SMALL_BLOCK_ROWS = 100;
+
+	@BeforeClass
+	public static void beforeClass() throws Exception {
+
+		store = new Helpers.TempRepertoireStore();
+
+		for (String name : TEST_REPERTOIRES) {
+			store.addFromResource(new RepertoireSpec(TEST_USER, TEST_CONTEXT, name));
+		}
+
+		crs = new ContextRepertoireStore(store.get(), TEST_USER, TEST_CONTEXT);
+
+		store.addFromResource(new RepertoireSpec(TEST_USER, SMALL_BLOCKS_CONTEXT, SMALL_BLOCKS));
+		crsSmall = new ContextRepertoireStore(store.get(), TEST_USER, SMALL_BLOCKS_CONTEXT);
+
+		ColumnarRepertoire.Writer writer = new ColumnarRepertoire.Writer(SMALL_BLOCK_ROWS, null);
+		for (Rearrangement r : readTsv(crsSmall, SMALL_BLOCKS)) writer.add(r);
+
+		OutputStream stm = crsSmall.getSecondarySaveStream(SMALL_BLOCKS, ColumnarRepertoire.SECONDARY_KEY);
+		writer.save(stm);
+		stm.close();
+		writer.close();
+	}
+
+	@AfterClass
+	public static void afterClass() {
+		store.close();
+	}
+
+	private static Helpers.TempRepertoireStore store;
+	private static ContextRepertoireStore crs;
+	private static ContextRepertoireStore crsSmall;
+
+	// +-----------+
+	// | roundTrip |
+	// +-----------+
+
+	@Test
+	public void roundTrip() throws Exception {
+
+		for (String name : TEST_REPERTOIRES) {
+
+			List<Rearrangement> expected = readTsv(crs, name);
+
+			RowReader rdr = ColumnarRepertoire.open(crs, name, TsvReader.ALL_FIELDS);
+			Assert.assertTrue(rdr instanceof ColumnarRepertoire.Reader);
+			List<Rearrangement> actual = readAll(rdr);
+			rdr.close();
+
+			assertRows(expected, actual);
+		}
+	}
+
+	@Test
+	public void projection() throws Exception {
+
+		EnumSet<Field> fields = EnumSet.of(Field.AminoAcid, Field.Count, Field.JResolved);
+
+		for (String name : TEST_REPERTOIRES) {
+
+			List<Rearrangement> expected = readTsv(crs, name);
+
+			RowReader rdr = ColumnarRepertoire.open(crs, name, fields);
+			Rearrangement r = new Rearrangement();
+			int irow = 0;
+
+			while (rdr.readNextInto(r)) {
+
+				Rearrangement e = expected.get(irow);
+				Assert.assertEquals(e.AminoAcid, r.AminoAcid);
+				Assert.assertEquals(e.Count, r.Count);
+				Assert.assertEquals(e.JResolved, r.JResolved);
+				Assert.assertNull(r.Rearrangement);
+				Assert.assertNull(r.VResolved);
+
+				if (irow % 37 == 0) {
+					rdr.materialize(r);
+					Assert.assertEquals(e.toJson(), r.toJson());
+				}
+
+				++irow;
+			}
+
+			rdr.close();
+			Assert.assertEquals(expected.size(), irow);
+		}
+	}
+
+	@Test
+	public void fallback() throws Exception {
+
+		Assert.assertNull(ColumnarRepertoire.split(crs, "nope.tsv", TsvReader.ALL_FIELDS, 4));
+
+		// no sidecar means we read the tsv instead
+
+		RepertoireSpec spec = new RepertoireSpec(TEST_USER, "context-columnar-fallback", "agate_1.tsv");
+		store.addFromResource(spec);
+		store.get().deleteRepertoireSecondaryFiles(spec);
+
+		ContextRepertoireStore crsFallback = new ContextRepertoireStore(store.get(), spec.UserId, spec.Context);
+		RowReader rdr = ColumnarRepertoire.open(crsFallback, spec.Name, TsvReader.ALL_FIELDS);
+		Assert.assertTrue(rdr instanceof TsvReader);
+		assertRows(readTsv(crs, spec.Name), readAll(rdr));
+		rdr.close();
+	}
+
+	// +-------+
+	// | split |
+	// +-------+
+
+	@Test
+	public void split() throws Exception {
+
+		List<Rearrangement> expected = readTsv(crsSmall, SMALL_BLOCKS);
+
+		List<RowReader> chunks = ColumnarRepertoire.split(crsSmall, SMALL_BLOCKS, TsvReader.ALL_FIELDS, 7);
+		Assert.assertEquals(7, chunks.size());
+
+		List<Rearrangement> actual = new ArrayList<Rearrangement>();
+		for (RowReader chunk : chunks) {
+			List<Rearrangement> rows = readAll(chunk);
+			Assert.assertTrue(rows.size() > 0);
+			actual.addAll(rows);
+			chunk.close();
+		}
+
+		assertRows(expected, actual);
+	}
+
+	@Test
+	public void engines() throws Exception {
+
+		ParallelScan.Config tsv = new ParallelScan.Config();
+		tsv.MaxChunks = 1;
+		tsv.UseColumnar = false;
+
+		ParallelScan.Config columnar = new ParallelScan.Config();
+		columnar.MaxChunks = 5;
+
+		// gene use
+
+		GeneUse.Params guParams = new GeneUse.Params();
+		guParams.CRS = crsSmall;
+		guParams.Repertoire = SMALL_BLOCKS;
+
+		GeneUse.Config guTsv = new GeneUse.Config();
+		guTsv.Scan = tsv;
+		GeneUse.VJPair[] guExpected = new GeneUse(guTsv).getAsync(guParams).get();
+
+		GeneUse.Config guColumnar = new GeneUse.Config();
+		guColumnar.Scan = columnar;
+		GeneUse.VJPair[] guActual = new GeneUse(guColumnar).getAsync(guParams).get();
+
+		Assert.assertEquals(guExpected.length, guActual.length);
+		for (int i = 0; i < guExpected.length; ++i) {
+			Assert.assertEquals(guExpected[i], guActual[i]);
+			Assert.assertEquals(guExpected[i].Count, guActual[i].Count);
+			Assert.assertEquals(guExpected[i].Uniques, guActual[i].Uniques);
+		}
+
+		// topx
+
+		TopXRearrangements.Params txParams = new TopXRearrangements.Params();
+		txParams.CRS = crsSmall;
+		txParams.Repertoires = new String[] { SMALL_BLOCKS };
+		txParams.Count = 50;
+		txParams.Sort = TopXSort.Count;
+
+		TopXRearrangements.Config txTsv = new TopXRearrangements.Config();
+		txTsv.Scan = tsv;
+		TopXRearrangements.Config txColumnar = new TopXRearrangements.Config();
+		txColumnar.Scan = columnar;
+
+		assertResults(new TopXRearrangements(txTsv).getAsync(txParams).get()[0],
+					  new TopXRearrangements(txColumnar).getAsync(txParams).get()[0]);
+
+		// search
+
+		Searcher.Params sParams = new Searcher.Params();
+		sParams.CRS = crsSmall;
+		sParams.Repertoires = new String[] { SMALL_BLOCKS };
+		sParams.Motif = "CASS";
+		sParams.Extractor = RearrangementKey.getExtractor(KeyType.AminoAcid);
+		sParams.Matcher = RearrangementKey.getMatcher(KeyType.AminoAcid, 0, false);
+
+		Searcher.Config sTsv = new Searcher.Config();
+		sTsv.Scan = tsv;
+		Searcher.Config sColumnar = new Searcher.Config();
+		sColumnar.Scan = columnar;
+
+		assertResults(new Searcher(sTsv).searchAsync(sParams).get()[0],
+					  new Searcher(sColumnar).searchAsync(sParams).get()[0]);
+	}
+
+	// +---------+
+	// | Helpers |
+	// +---------+
+
+	private static List<Rearrangement> readTsv(ContextRepertoireStore crs, String name) throws Exception {
+		TsvReader tsv = TsvReader.open(crs, name, 0, TsvReader.ALL_FIELDS);
+		List<Rearrangement> rows = readAll(tsv);
+		tsv.close();
+		return(rows);
+	}
+
+	private static List<Rearrangement> readAll(RowReader rdr) throws Exception {
+		List<Rearrangement> rows = new ArrayList<Rearrangement>();
+		Rearrangement r;
+		while ((r = rdr.readNext()) != null) rows.add(r);
+		return(rows);
+	}
+
+	private static void assertRows(List<Rearrangement> expected, List<Rearrangement> actual) {
+		Assert.assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); ++i) {
+			Assert.assertEquals(expected.get(i).toJson(), actual.get(i).toJson());
+		}
+	}
+
+	private static void assertResults(RepertoireResult expected, RepertoireResult actual) {
+
+		Assert.assertEquals(expected.Truncated, actual.Truncated);
+		Assert.assertEquals(expected.Rearrangements.size(), actual.Rearrangements.size());
+
+		for (int i = 0; i < expected.Rearrangements.size(); ++i) {
+			Assert.assertEquals(expected.Rearrangements.get(i).toJson(),
+								actual.Rearrangements.get(i).toJson());
+		}
+	}
+}
@@ -0,0 +1,425 @@
+//
+// CONTEXTINDEXTEST.JAVA
+
+package com.shutdownhook.vdj.vdjlib;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.shutdownhook.vdj.vdjlib.RearrangementKey.KeyType;
+import com.shutdownhook.vdj.vdjlib.TsvReader.Field;
+import com.shutdownhook.vdj.vdjlib.model.Rearrangement;
+import com.shutdownhook.vdj.vdjlib.model.Repertoire;
+
+public class ContextIndexTest
+{
+	// +------------------+
+	// | Setup & Teardown |
+	// +------------------+
+
+	private static String TEST_USER = "foo-ctxindex@bar.com";
+	private static String TEST_CONTEXT = "context-ctxindex";
+	private static String[] TEST_REPERTOIRES = { "BH.tsv", "A_BCell_ID.tsv", "A_TCRG_ID.tsv" };
+
+	@BeforeClass
+	public static void beforeClass() throws Exception {
+
+		store = new Helpers.TempRepertoireStore();
+
+		for (String name : TEST_REPERTOIRES) {
+			store.addFromResource(new RepertoireSpec(TEST_USER, TEST_CONTEXT, name));
+		}
+
+		crs = new ContextRepertoireStore(store.get(), TEST_USER, TEST_CONTEXT);
+	}
+
+	@AfterClass
+	public static void afterClass() {
+		store.close();
+	}
+
+	private static Helpers.TempRepertoireStore store;
+	private static ContextRepertoireStore crs;
+
+	// +---------------+
+	// | lookupMatches |
+	// +---------------+
+
+	@Test
+	public void lookupMatches() throws Exception {
+		for (KeyType keyType : KeyType.values()) {
+			ContextIndex index = updateAndLoad(new ContextIndex.Config(), crs, keyType);
+			Assert.assertNotNull(index);
+			assertIndex(crs, index, keyType, TEST_REPERTOIRES, new Random(25));
+		}
+	}
+
+	// +-------------------+
+	// | incrementalUpdate |
+	// +-------------------+
+
+	// adding and removing repertoires leaves the same index a fresh build
+	// of the context would have
+
+	@Test
+	public void incrementalUpdate() throws Exception {
+
+		String context = "context-ctxindex-incremental";
+		ContextIndex.Config cfg = new ContextIndex.Config();
+		cfg.MaxMergeRows = 1000; // force more than one batch
+
+		Random rand = new Random(2025);
+		KeyType keyType = KeyType.AminoAcid;
+
+		// two to start
+
+		store.addFromResource(new RepertoireSpec(TEST_USER, context, TEST_REPERTOIRES[0]));
+		store.addFromResource(new RepertoireSpec(TEST_USER, context, TEST_REPERTOIRES[1]));
+
+		ContextRepertoireStore crs1 = new ContextRepertoireStore(store.get(), TEST_USER, context);
+		ContextIndex index = updateAndLoad(cfg, crs1, keyType);
+		assertIndex(crs1, index, keyType, new String[] { TEST_REPERTOIRES[0], TEST_REPERTOIRES[1] }, rand);
+
+		// add one
+
+		store.addFromResource(new RepertoireSpec(TEST_USER, context, TEST_REPERTOIRES[2]));
+
+		ContextRepertoireStore crs2 = new ContextRepertoireStore(store.get(), TEST_USER, context);
+		index = updateAndLoad(cfg, crs2, keyType);
+		assertIndex(crs2, index, keyType, TEST_REPERTOIRES, rand);
+
+		// remove the first
+
+		Assert.assertTrue(store.get().deleteRepertoire(new RepertoireSpec(TEST_USER, context, TEST_REPERTOIRES[0])));
+
+		ContextRepertoireStore crs3 = new ContextRepertoireStore(store.get(), TEST_USER, context);
+		index = updateAndLoad(cfg, crs3, keyType);
+		assertIndex(crs3, index, keyType, new String[] { TEST_REPERTOIRES[1], TEST_REPERTOIRES[2] }, rand);
+
+		Assert.assertEquals(-1, index.findRepertoire(crs.findRepertoire(TEST_REPERTOIRES[0])));
+
+		// same thing from scratch
+
+		String fresh = "context-ctxindex-fresh";
+		store.addFromResource(new RepertoireSpec(TEST_USER, fresh, TEST_REPERTOIRES[1]));
+		store.addFromResource(new RepertoireSpec(TEST_USER, fresh, TEST_REPERTOIRES[2]));
+
+		ContextRepertoireStore crsFresh = new ContextRepertoireStore(store.get(), TEST_USER, fresh);
+		ContextIndex freshIndex = updateAndLoad(new ContextIndex.Config(), crsFresh, keyType);
+
+		Assert.assertEquals(freshIndex.getEntryCount(), index.getEntryCount());
+	}
+
+	// +----------+
+	// | replaced |
+	// +----------+
+
+	// an index loaded before an update swapped in a new one refuses to
+	// look anything up rather than reading the new file with old offsets;
+	// a repertoire uploaded again under the same name gets new postings
+
+	@Test
+	public void replaced() throws Exception {
+
+		String context = "context-ctxindex-replaced";
+		KeyType keyType = KeyType.AminoAcid;
+		ContextIndex.Config cfg = new ContextIndex.Config();
+
+		store.addFromResource(new RepertoireSpec(TEST_USER, context, TEST_REPERTOIRES[0]));
+		store.addFromResource(new RepertoireSpec(TEST_USER, context, TEST_REPERTOIRES[1]));
+
+		ContextRepertoireStore crs1 = new ContextRepertoireStore(store.get(), TEST_USER, context);
+		ContextIndex before = updateAndLoad(cfg, crs1, keyType);
+		Assert.assertNotNull(before);
+
+		// same name, same content, new upload
+
+		RepertoireSpec spec = new RepertoireSpec(TEST_USER, context, TEST_REPERTOIRES[1]);
+		Assert.assertTrue(store.get().deleteRepertoire(spec));
+		store.addFromResource(spec);
+
+		ContextRepertoireStore crs2 = new ContextRepertoireStore(store.get(), TEST_USER, context);
+		Repertoire uploaded = crs2.findRepertoire(TEST_REPERTOIRES[1]);
+		Assert.assertEquals(-1, before.findRepertoire(uploaded));
+
+		ContextIndex after = updateAndLoad(cfg, crs2, keyType);
+		Assert.assertTrue(after.findRepertoire(uploaded) != -1);
+		assertIndex(crs2, after, keyType, new String[] { TEST_REPERTOIRES[0], TEST_REPERTOIRES[1] },
+					new Random(7));
+
+		try {
+			before.lookup(new String[] { "CASSLGQGAYEQYF" });
+			Assert.fail("lookup on a replaced index");
+		}
+		catch (IOException e) {
+			// expected
+		}
+	}
+
+	// +---------+
+	// | damaged |
+	// +---------+
+
+	// a cut-off index reads as missing and the next update rebuilds it
+
+	@Test
+	public void damaged() throws Exception {
+
+		String context = "context-ctxindex-damaged";
+		KeyType keyType = KeyType.CDR3;
+		ContextIndex.Config cfg = new ContextIndex.Config();
+
+		store.addFromResource(new RepertoireSpec(TEST_USER, context, TEST_REPERTOIRES[0]));
+		store.addFromResource(new RepertoireSpec(TEST_USER, context, TEST_REPERTOIRES[2]));
+
+		ContextRepertoireStore crs1 = new ContextRepertoireStore(store.get(), TEST_USER, context);
+		Assert.assertNotNull(updateAndLoad(cfg, crs1, keyType));
+
+		String key = ContextIndex.getSecondaryKey(keyType);
+		InputStream stm = crs1.getContextSecondaryStream(key);
+		byte[] rgb = stm.readAllBytes();
+		stm.close();
+
+		File file = File.createTempFile("vdj", ".tmp");
+		file.deleteOnExit();
+		Files.write(file.toPath(), Arrays.copyOf(rgb, rgb.length - 100));
+		Assert.assertTrue(crs1.saveContextSecondaryFile(key, file));
+		file.delete();
+
+		Assert.assertNull(ContextIndex.load(crs1, keyType));
+
+		ContextIndex index = updateAndLoad(cfg, crs1, keyType);
+		Assert.assertNotNull(index);
+		assertIndex(crs1, index, keyType, new String[] { TEST_REPERTOIRES[0], TEST_REPERTOIRES[2] },
+					new Random(8));
+	}
+
+	// +-------------+
+	// | searchKicks |
+	// +-------------+
+
+	// a search with no index scans, and leaves one being built for later
+
+	@Test
+	public void searchKicks() throws Exception {
+
+		String context = "context-ctxindex-kicks";
+		KeyType keyType = KeyType.AminoAcid;
+
+		store.addFromResource(new RepertoireSpec(TEST_USER, context, TEST_REPERTOIRES[0]));
+		store.addFromResource(new RepertoireSpec(TEST_USER, context, TEST_REPERTOIRES[1]));
+
+		ContextRepertoireStore crsKicks = new ContextRepertoireStore(store.get(), TEST_USER, context);
+		Assert.assertNull(ContextIndex.load(crsKicks, keyType));
+
+		Searcher.Config cfg = new Searcher.Config();
+		cfg.QGram.Enabled = false;
+
+		Searcher.Params params = new Searcher.Params();
+		params.CRS = crsKicks;
+		params.Repertoires = new String[] { TEST_REPERTOIRES[0], TEST_REPERTOIRES[1] };
+		params.Extractor = RearrangementKey.getExtractor(keyType);
+		params.Matcher = RearrangementKey.getMatcher(keyType, 0, true);
+		params.Motif = "CASSLGQGAYEQYF";
+
+		Assert.assertEquals(2, new Searcher(cfg).searchAsync(params).get().length);
+
+		ContextIndex index = null;
+		for (int i = 0; i < 300 && index == null; ++i) {
+			Thread.sleep(100);
+			index = ContextIndex.load(crsKicks, keyType);
+		}
+
+		Assert.assertNotNull(index);
+		Assert.assertEquals(2, index.getRepertoireCount());
+	}
+
+	// +-------------+
+	// | matchesScan |
+	// +-------------+
+
+	// exact full-length searches come back the same through the index
+
+	@Test
+	public void matchesScan() throws Exception {
+
+		Random rand = new Random(11);
+
+		for (KeyType keyType : KeyType.values()) {
+
+			Map<String,List<Row>> truth = readTruth(crs, keyType, TEST_REPERTOIRES);
+			List<String> keys = new ArrayList<String>(truth.keySet());
+			keys.sort(null);
+
+			String[] motifs = new String[6];
+			for (int i = 0; i < motifs.length - 1; ++i) motifs[i] = keys.get(rand.nextInt(keys.size()));
+			motifs[motifs.length - 1] = motifs[0];
+
+			matchesScanHelper(keyType, new String[] { motifs[1] });
+			matchesScanHelper(keyType, new String[] { "NOTAREALKEY" });
+			matchesScanHelper(keyType, motifs);
+		}
+	}
+
+	private void matchesScanHelper(KeyType keyType, String[] motifs) throws Exception {
+
+		// searches only load the index, so make sure there is one
+		Assert.assertNotNull(updateAndLoad(new ContextIndex.Config(), crs, keyType));
+
+		for (int maxResults : new int[] { 0, 1 }) {
+
+			Searcher.Config cfgScan = new Searcher.Config();
+			cfgScan.MaxResults = maxResults;
+			cfgScan.ContextIndex.Enabled = false;
+			cfgScan.QGram.Enabled = false;
+
+			Searcher.Config cfgIndex = new Searcher.Config();
+			cfgIndex.MaxResults = maxResults;
+			cfgIndex.QGram.Enabled = false;
+
+			Searcher.Params params = new Searcher.Params();
+			params.CRS = crs;
+			params.Repertoires = TEST_REPERTOIRES;
+			params.Extractor = RearrangementKey.getExtractor(keyType);
+			params.Matcher = RearrangementKey.getMatcher(keyType, 0, true);
+
+			if (motifs.length == 1) params.Motif = motifs[0];
+			else params.Motifs = motifs;
+
+			RepertoireResult[] expected = new Searcher(cfgScan).searchAsync(params).get();
+			RepertoireResult[] actual = new Searcher(cfgIndex).searchAsync(params).get();
+
+			Assert.assertEquals(expected.length, actual.length);
+
+			for (int irep = 0; irep < expected.length; ++irep) {
+
+				Assert.assertEquals(expected[irep].Repertoire.Name, actual[irep].Repertoire.Name);
+				Assert.assertEquals(expected[irep].Truncated, actual[irep].Truncated);
+				Assert.assertEquals(expected[irep].Rearrangements.size(), actual[irep].Rearrangements.size());
+
+				for (int i = 0; i < expected[irep].Rearrangements.size(); ++i) {
+
+					Assert.assertEquals(expected[irep].Rearrangements.get(i).toJson(),
+										actual[irep].Rearrangements.get(i).toJson());
+
+					if (params.Motifs != null) {
+						Assert.assertArrayEquals(expected[irep].MotifHits.get(i),
+												 actual[irep].MotifHits.get(i));
+					}
+				}
+			}
+		}
+	}
+
+	// +---------+
+	// | Helpers |
+	// +---------+
+
+	private static ContextIndex updateAndLoad(ContextIndex.Config cfg, ContextRepertoireStore crs,
+											  KeyType keyType) throws Exception {
+
+		Assert.assertTrue(ContextIndex.updateAsync(cfg, crs, new KeyType[] { keyType }).get());
+		return(ContextIndex.load(crs, keyType));
+	}
+
+	private static class Row
+	{
+		public String Repertoire;
+		public int Row;
+		public long Count;
+	}
+
+	// every key present (plus a few that aren't) looks up to exactly the
+	// rows that have it, in repertoire then row order
+
+	private static void assertIndex(ContextRepertoireStore crs, ContextIndex index, KeyType keyType,
+									String[] names, Random rand) throws Exception {
+
+		Assert.assertEquals(names.length, index.getRepertoireCount());
+
+		Map<String,List<Row>> truth = readTruth(crs, keyType, names);
+		Assert.assertEquals(truth.size(), index.getEntryCount());
+
+		List<String> keys = new ArrayList<String>(truth.keySet());
+		keys.add("");
+		keys.add(null);
+		keys.add("ZZZZZZZZZZZZZZ");
+		keys.add("AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA");
+		keys.add(keys.get(rand.nextInt(truth.size())));
+		java.util.Collections.shuffle(keys, rand);
+
+		ContextIndex.Posting[][] postings = index.lookup(keys.toArray(new String[keys.size()]));
+		Assert.assertEquals(keys.size(), postings.length);
+
+		for (int i = 0; i < keys.size(); ++i) {
+
+			List<Row> expected = (keys.get(i) == null ? null : truth.get(keys.get(i)));
+			if (expected == null) expected = new ArrayList<Row>();
+
+			Assert.assertEquals(expected.size(), postings[i].length);
+
+			for (int j = 0; j < expected.size(); ++j) {
+				Row row = expected.get(j);
+				ContextIndex.Posting posting = postings[i][j];
+				Assert.assertEquals(row.Repertoire, index.getRepertoireName(posting.Repertoire));
+				Assert.assertEquals(row.Row, posting.Row);
+				Assert.assertEquals(row.Count, posting.Count);
+			}
+		}
+	}
+
+	// key -> rows, in the index's repertoire order (the order of names)
+
+	private static Map<String,List<Row>> readTruth(ContextRepertoireStore crs, KeyType keyType,
+												   String[] names) throws Exception {
+
+		RearrangementKey.Extractor extractor = RearrangementKey.getExtractor(keyType);
+		EnumSet<Field> fields = EnumSet.copyOf(extractor.getFields());
+		fields.add(Field.Count);
+
+		Map<String,List<Row>> truth = new HashMap<String,List<Row>>();
+
+		for (String name : names) {
+
+			ColumnarRepertoire.Reader rdr = ColumnarRepertoire.openSeekable(crs, name, fields);
+			Rearrangement r = new Rearrangement();
+			int irow = 0;
+
+			while (rdr.readNextInto(r)) {
+
+				String key = extractor.extract(r);
+
+				if (key != null && !key.isEmpty()) {
+					Row row = new Row();
+					row.Repertoire = name;
+					row.Row = irow;
+					row.Count = r.Count;
+
+					List<Row> rows = truth.get(key);
+					if (rows == null) { rows = new ArrayList<Row>(); truth.put(key, rows); }
+					rows.add(row);
+				}
+
+				++irow;
+			}
+
+			rdr.close();
+		}
+
+		return(truth);
+	}
+}
@@ -0,0 +1,134 @@
+//
+// GENEDICTIONARYTEST.JAVA
+
+package com.shutdownhook.vdj.vdjlib;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.shutdownhook.vdj.vdjlib.model.Locus;
+import com.shutdownhook.vdj.vdjlib.model.Rearrangement;
+
+public class GeneDictionaryTest
+{
+	// +--------+
+	// | lookup |
+	// +--------+
+
+	@Test
+	public void lookup() throws Exception {
+
+		Assert.assertEquals(GeneDictionary.EMPTY, GeneDictionary.lookup(""));
+		Assert.assertEquals("", GeneDictionary.getName(GeneDictionary.EMPTY));
+
+		int id1 = GeneDictionary.lookup("TCRBV05-01*01");
+		int id2 = GeneDictionary.lookup(new String("TCRBV05-01*01"));
+		Assert.assertEquals(id1, id2);
+		Assert.assertEquals("TCRBV05-01*01", GeneDictionary.getName(id1));
+		Assert.assertEquals("TCRBV05-01", GeneDictionary.getNormalized(id1));
+		Assert.assertEquals(Locus.TCRB, GeneDictionary.getLocusHint(id1));
+
+		int id3 = GeneDictionary.lookup("TCRBV05");
+		Assert.assertTrue(id1 != id3);
+		Assert.assertEquals("TCRBV05-X", GeneDictionary.getNormalized(id3));
+
+		Assert.assertNull(GeneDictionary.getLocusHint(GeneDictionary.lookup("unresolved")));
+		Assert.assertEquals("X", GeneDictionary.getNormalized(GeneDictionary.EMPTY));
+	}
+
+	@Test
+	public void concurrent() throws Exception {
+
+		// lots of threads racing to add the same names (and grow the table)
+		// must all agree on the ids
+
+		final int cnames = 3000;
+		List<CompletableFuture<int[]>> futures = new ArrayList<CompletableFuture<int[]>>();
+
+		for (int t = 0; t < 8; ++t) {
+			futures.add(Exec.runAsync("dict", new Exec.AsyncOperation<int[]>() {
+				public int[] execute() {
+					int[] ids = new int[cnames];
+					for (int i = 0; i < cnames; ++i) ids[i] = GeneDictionary.lookup("IGHV-TEST-" + i);
+					return(ids);
+				}
+			}));
+		}
+
+		int[] first = futures.get(0).get();
+		for (CompletableFuture<int[]> future : futures) {
+			Assert.assertArrayEquals(first, future.get());
+		}
+
+		for (int i = 0; i < cnames; ++i) {
+			Assert.assertEquals("IGHV-TEST-" + i, GeneDictionary.getName(first[i]));
+		}
+	}
+
+	// +--------------+
+	// | resolveLocus |
+	// +--------------+
+
+	@Test
+	public void resolveLocus() throws Exception {
+
+		String[][] cases = {
+			{ "TCRBV05-01*01", "TCRBD01-01*01", "TCRBJ02-07*01", "", "", "" },
+			{ "", "", "TCRGJ01-02*01", "", "", "" },
+			{ "", "", "", "TCRAV01-01", "", "" },
+			{ "IGHV03-23*01", "", "IGHJ04-02*01", "", "", "" },
+			{ "", "IGHD03-10*01", "IGHJ04-02*01", "", "", "" },
+			{ "", "IGHD03-10*01", "IGHJ04-02*01", "IGHV03-23", "", "" },
+			{ "IGKV01-05*01", "", "", "", "", "" },
+			{ "unresolved", "", "", "", "", "IGLJ02" }
+		};
+
+		for (String[] c : cases) {
+			Locus expected = Locus.fromGene(c[0], c[1], c[2], c[3], c[4], c[5]);
+			Locus actual = GeneDictionary.resolveLocus(GeneDictionary.lookup(c[0]),
+													   GeneDictionary.lookup(c[1]),
+													   GeneDictionary.lookup(c[2]),
+													   GeneDictionary.lookup(c[3]),
+													   GeneDictionary.lookup(c[4]),
+													   GeneDictionary.lookup(c[5]));
+			Assert.assertEquals(expected, actual);
+		}
+
+		try {
+			GeneDictionary.resolveLocus(GeneDictionary.EMPTY, GeneDictionary.EMPTY, GeneDictionary.EMPTY,
+										GeneDictionary.EMPTY, GeneDictionary.EMPTY, GeneDictionary.EMPTY);
+			Assert.fail("expected IllegalArgumentException");
+		}
+		catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	// +-----------+
+	// | TsvReader |
+	// +-----------+
+
+	@Test
+	public void sharedInstances() throws Exception {
+
+		InputStream stm = getClass().getClassLoader().getResourceAsStream("BH.tsv");
+		TsvReader tsv = new TsvReader(stm, 0);
+
+		Rearrangement r;
+
+		while ((r = tsv.readNext()) != null) {
+			Assert.assertTrue(r.VGeneId != GeneDictionary.NONE);
+			Assert.assertSame(GeneDictionary.getName(r.VGeneId), r.VResolved);
+			Assert.assertSame(GeneDictionary.getName(r.DGeneId), r.DResolved);
+			Assert.assertSame(GeneDictionary.getName(r.JGeneId), r.JResolved);
+		}
+
+		tsv.close();
+		stm.close();
+	}
+}
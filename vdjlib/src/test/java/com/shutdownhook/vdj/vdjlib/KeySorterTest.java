@@ -87,6 +87,7 @@ public class KeySorterTest
 	private void basicTestRepertoireInfo(TestRepertoireInfo info, boolean useCache) throws Exception {
 		KeySorter.Config cfg = new KeySorter.Config();
 		cfg.UseCache = useCache;
+		cfg.InMemoryMaxRows = 0;
 		cfg.InitialChunkSize = info.Uniques + 1; basicTestHelper(info, cfg);
 		cfg.InitialChunkSize = info.Uniques / 2; basicTestHelper(info, cfg);
 		cfg.InitialChunkSize = (int) ((double)info.Uniques / 3.5); basicTestHelper(info, cfg);
@@ -104,6 +105,252 @@ public class KeySorterTest
 		ks.close();
 	}
 	
+	@Test
+	public void parallelInitialSort() throws Exception {
+
+		// runs generated on several threads from tsv byte ranges and from
+		// columnar blocks should merge to the same answer
+
+		for (TestRepertoireInfo info : TEST_INFOS) {
+			for (boolean columnar : new boolean[] { false, true }) {
+
+				KeySorter.Config cfg = new KeySorter.Config();
+				cfg.UseCache = false;
+				cfg.InMemoryMaxRows = 0;
+				cfg.InitialChunkSize = info.Uniques / 2;
+				cfg.Scan.MaxChunks = 5;
+				cfg.Scan.MinChunkBytes = 1024;
+				cfg.Scan.UseColumnar = columnar;
+
+				KeySorter ks = new KeySorter(crs, info.Name, info.Extractor, cfg);
+				Assert.assertTrue(ks.sortAsync().get());
+				assertKeyItems(ks, getSideLoadedTruth(info.Name, info.Extractor));
+				ks.close();
+			}
+		}
+	}
+
+	@Test
+	public void mergeBytesWritten() throws Exception {
+
+		// lots of small runs; pairwise (fan-in 2) rewrites every entry once
+		// per round while the k-way merge writes it once
+
+		TestRepertoireInfo info = TEST_INFOS[1];
+		long[] bytes = new long[2];
+		int[] fanIns = { 2, 64 };
+
+		for (int i = 0; i < fanIns.length; ++i) {
+			
+			KeySorter.Config cfg = new KeySorter.Config();
+			cfg.UseCache = false;
+			cfg.InMemoryMaxRows = 0;
+			cfg.InitialChunkSize = info.Uniques / 16;
+			cfg.MergeFanIn = fanIns[i];
+			cfg.Scan.MaxChunks = 1;
+
+			KeySorter ks = new KeySorter(crs, info.Name, info.Extractor, cfg);
+			Assert.assertTrue(ks.sortAsync().get());
+			assertKeyItems(ks, getSideLoadedTruth(info.Name, info.Extractor));
+			bytes[i] = ks.getBytesWritten();
+			ks.close();
+
+			System.out.println(String.format("mergeBytesWritten: fanIn %d wrote %d bytes", fanIns[i], bytes[i]));
+		}
+
+		Assert.assertTrue(bytes[1] < bytes[0]);
+	}
+
+	@Test
+	public void smallBuffers() throws Exception {
+
+		// a sort buffer too small for the repertoire spills lots of runs
+		// (on or off heap) and still merges to the same answer
+
+		for (TestRepertoireInfo info : TEST_INFOS) {
+			for (boolean offHeap : new boolean[] { false, true }) {
+
+				KeySorter.Config cfg = new KeySorter.Config();
+				cfg.UseCache = false;
+				cfg.InMemoryMaxRows = 0;
+				cfg.SortBufferBytes = 16L * 1024L;
+				cfg.OffHeapBuffers = offHeap;
+				cfg.Scan.MaxChunks = 2;
+				cfg.Scan.MinChunkBytes = 1024;
+
+				KeySorter ks = new KeySorter(crs, info.Name, info.Extractor, cfg);
+				Assert.assertTrue(ks.sortAsync().get());
+				assertKeyItems(ks, getSideLoadedTruth(info.Name, info.Extractor));
+				ks.close();
+			}
+		}
+	}
+
+	@Test
+	public void inMemory() throws Exception {
+
+		// small enough to count in a map; no temp files, same answer, and
+		// the result still lands in (and comes back from) the cache
+
+		for (TestRepertoireInfo info : TEST_INFOS) {
+			
+			String cacheKey = "keySorter-" + info.Extractor.getClass().getName();
+
+			for (int maxChunks : new int[] { 1, 5 }) {
+
+				// clobber any cache left by other tests so we know it's rewritten
+				File old = File.createTempFile("vdj", ".txt");
+				old.deleteOnExit();
+				Utility.stringToFile(old.getAbsolutePath(), "junk");
+				crs.saveSecondaryFile(info.Name, cacheKey, old);
+				old.delete();
+
+				KeySorter.Config cfg = new KeySorter.Config();
+				cfg.InMemoryMaxRows = info.Uniques;
+				cfg.Scan.MaxChunks = maxChunks;
+				cfg.Scan.MinChunkBytes = 1024;
+				
+				KeySorter ks = new KeySorter(crs, info.Name, info.Extractor, cfg);
+				Assert.assertTrue(ks.sortAsync().get());
+				assertKeyItems(ks, getSideLoadedTruth(info.Name, info.Extractor));
+				Assert.assertEquals(0, ks.getBytesWritten());
+				ks.close();
+
+				// written straight to the cache
+				KeySorter.KeyReader rdr = new KeySorter.KeyReader(crs.getSecondaryStream(info.Name, cacheKey));
+				Assert.assertNotNull(rdr.readNext());
+				rdr.close();
+			}
+
+			// same keys when the result is spilled rather than held
+			
+			KeySorter.Config cfg = new KeySorter.Config();
+			cfg.UseCache = false;
+			cfg.InMemoryMaxRows = info.Uniques;
+
+			KeySorter ks = new KeySorter(crs, info.Name, info.Extractor, cfg);
+			ks.setSpillResults(true);
+			Assert.assertTrue(ks.sortAsync().get());
+			assertKeyItems(ks, getSideLoadedTruth(info.Name, info.Extractor));
+			Assert.assertTrue(ks.getBytesWritten() > 0);
+			ks.close();
+		}
+	}
+
+	@Test
+	public void sortAll() throws Exception {
+
+		// every key type plus mrd from one pass, in memory and external,
+		// should match sorting each alone
+
+		String name = TEST_INFOS[0].Name;
+		List<Extractor> extractors = allExtractors();
+
+		for (int inMemoryMaxRows : new int[] { 0, TEST_INFOS[0].Uniques }) {
+
+			KeySorter.Config cfg = new KeySorter.Config();
+			cfg.UseCache = false;
+			cfg.InMemoryMaxRows = inMemoryMaxRows;
+			cfg.InitialChunkSize = TEST_INFOS[0].Uniques / 3;
+			cfg.Scan.MaxChunks = 3;
+			cfg.Scan.MinChunkBytes = 1024;
+
+			List<KeySorter> sorters = new ArrayList<KeySorter>();
+			for (Extractor extractor : extractors) sorters.add(new KeySorter(crs, name, extractor, cfg));
+
+			Assert.assertTrue(KeySorter.sortAllAsync(sorters).get());
+
+			for (int i = 0; i < sorters.size(); ++i) {
+				assertKeyItems(sorters.get(i), getSideLoadedTruth(name, extractors.get(i)));
+				sorters.get(i).close();
+			}
+		}
+	}
+
+	@Test
+	public void prewarm() throws Exception {
+
+		// after a prewarm every key type is a cache hit, which for an
+		// external sort means nothing written
+
+		RepertoireSpec spec = new RepertoireSpec(TEST_USER, "context-prewarm", "subject9-v2.tsv");
+		store.addFromResource(spec);
+		ContextRepertoireStore crsPrewarm = new ContextRepertoireStore(store.get(), spec.UserId, spec.Context);
+
+		KeySorter.Config cfg = new KeySorter.Config();
+		cfg.InMemoryMaxRows = 0;
+
+		List<Extractor> extractors = allExtractors();
+		Assert.assertTrue(KeySorter.prewarmAsync(crsPrewarm, spec.Name, extractors, cfg).get());
+
+		for (Extractor extractor : extractors) {
+			KeySorter ks = new KeySorter(crsPrewarm, spec.Name, extractor, cfg);
+			Assert.assertTrue(ks.sortAsync().get());
+			Assert.assertEquals(0, ks.getBytesWritten());
+			assertKeyItems(ks, getSideLoadedTruth(spec.Name, extractor));
+			ks.close();
+		}
+	}
+
+	@Test
+	public void runFormat() throws Exception {
+
+		File file = File.createTempFile("vdj", ".run");
+		file.deleteOnExit();
+
+		String[] keys = { "", "A", "AAAC", "AAACGT", "AAAG", "B", "BCDEFG", "BCDX" };
+
+		KeySorter.KeyWriter wtr = new KeySorter.KeyWriter(file);
+		for (int i = 0; i < keys.length; ++i) wtr.write(new KeyItem(keys[i], i * 1000000007L));
+		wtr.close();
+
+		KeySorter.KeyReader rdr = new KeySorter.KeyReader(file);
+		for (int i = 0; i < keys.length; ++i) {
+			KeyItem item = rdr.readNext();
+			Assert.assertEquals(keys[i], item.getKey());
+			Assert.assertEquals(i * 1000000007L, item.getCount());
+		}
+		Assert.assertNull(rdr.readNext());
+		rdr.close();
+
+		file.delete();
+	}
+
+	@Test
+	public void oldCacheIgnored() throws Exception {
+
+		// a text-format cache from before the binary runs should be
+		// treated as a miss and then replaced
+
+		TestRepertoireInfo info = TEST_INFOS[0];
+		KeySorter.Config cfg = new KeySorter.Config();
+
+		File old = File.createTempFile("vdj", ".txt");
+		old.deleteOnExit();
+		Utility.stringToFile(old.getAbsolutePath(), "CASS\t12\n");
+
+		String cacheKey = "keySorter-" + info.Extractor.getClass().getName();
+		crs.saveSecondaryFile(info.Name, cacheKey, old);
+		old.delete();
+
+		KeySorter ks = new KeySorter(crs, info.Name, info.Extractor, cfg);
+		Assert.assertTrue(ks.sortAsync().get());
+		assertKeyItems(ks, getSideLoadedTruth(info.Name, info.Extractor));
+		ks.close();
+
+		// and now it's a real hit
+		KeySorter.KeyReader rdr = new KeySorter.KeyReader(crs.getSecondaryStream(info.Name, cacheKey));
+		Assert.assertNotNull(rdr.readNext());
+		rdr.close();
+	}
+
+	private static List<Extractor> allExtractors() {
+		List<Extractor> extractors = new ArrayList<Extractor>();
+		for (KeyType keyType : KeyType.values()) extractors.add(RearrangementKey.getExtractor(keyType));
+		extractors.add(new MrdEngine(new MrdEngine.Config()).getExtractor());
+		return(extractors);
+	}
+
 	// +----------------+
 	// | assertKeyItems |
 	// +----------------+
@@ -118,6 +365,8 @@ public class KeySorterTest
 			Assert.assertEquals(truth.get(i).getCount(), testItem.getCount());
 			++i;
 		}
+
+		Assert.assertEquals(truth.size(), i);
 	}
 
 	// +--------------------+
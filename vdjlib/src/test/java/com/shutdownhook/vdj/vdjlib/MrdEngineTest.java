@@ -5,6 +5,7 @@ package com.shutdownhook.vdj.vdjlib;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
 
 import org.junit.Assert;
 import org.junit.BeforeClass;
@@ -30,6 +31,72 @@ public class MrdEngineTest
 		Assert.assertFalse("fail-length2", matchTwo("abcde", -1, "cde", -1, 4));
 	}
 
+	@Test
+	public void testPackedMatchesChars() throws Exception {
+
+		// packed comparisons have to agree with the original character loop
+
+		MrdEngine.Config cfg = new MrdEngine.Config();
+		cfg.MinMatchLength = 20;
+		MrdEngine mrd = new MrdEngine(cfg);
+
+		Random rand = new Random(5);
+
+		for (int i = 0; i < 1000; ++i) {
+
+			String seq1 = randomSequence(rand, 30 + rand.nextInt(90));
+			int ichCut = rand.nextInt(seq1.length() / 2);
+			String seq2 = seq1.substring(ichCut, seq1.length() - rand.nextInt(seq1.length() / 3));
+			if (rand.nextBoolean()) seq2 = mutateOne(rand, seq2);
+			if (rand.nextBoolean()) seq2 = seq2.toLowerCase();
+
+			int jIndex1 = rand.nextInt(seq1.length() + 10) - 5;
+			int jIndex2 = jIndex1 - ichCut;
+
+			boolean packed = mrd.match(seq1, jIndex1, seq2, jIndex2);
+			boolean chars = matchChars(seq1, jIndex1, seq2, jIndex2, cfg.MinMatchLength);
+
+			Assert.assertEquals(chars, packed);
+			Assert.assertEquals(packed, mrd.match(makeMrdRearrangement(seq1, jIndex1),
+												  makeMrdRearrangement(seq2, jIndex2)));
+		}
+	}
+
+	private static boolean matchChars(String r1, int ichJ1, String r2, int ichJ2, int cchMin) {
+
+		int cch1 = r1.length();
+		int cch2 = r2.length();
+
+		if (ichJ1 < 0 || ichJ1 >= cch1 || ichJ2 < 0 || ichJ2 >= cch2) {
+			ichJ1 = cch1;
+			ichJ2 = cch2;
+		}
+
+		int cchMatch = 0;
+
+		for (int i1 = ichJ1, i2 = ichJ2; i1 < cch1 && i2 < cch2; ++i1, ++i2, ++cchMatch) {
+			if (Character.toLowerCase(r1.charAt(i1)) != Character.toLowerCase(r2.charAt(i2))) return(false);
+		}
+
+		for (int i1 = ichJ1 - 1, i2 = ichJ2 - 1; i1 >= 0 && i2 >= 0; --i1, --i2, ++cchMatch) {
+			if (Character.toLowerCase(r1.charAt(i1)) != Character.toLowerCase(r2.charAt(i2))) return(false);
+		}
+
+		return(cchMatch >= cchMin);
+	}
+
+	private static String randomSequence(Random rand, int cch) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < cch; ++i) sb.append("ACGTN".charAt(rand.nextInt(5)));
+		return(sb.toString());
+	}
+
+	private static String mutateOne(Random rand, String s) {
+		char[] rgch = s.toCharArray();
+		rgch[rand.nextInt(rgch.length)] = 'G';
+		return(new String(rgch));
+	}
+
 	private static boolean matchTwo(String seq1, int jIndex1,
 									String seq2, int jIndex2,
 									int cchMatchMin)
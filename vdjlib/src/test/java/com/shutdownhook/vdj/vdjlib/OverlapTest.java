@@ -3,6 +3,13 @@
 
 package com.shutdownhook.vdj.vdjlib;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
 import org.junit.AfterClass;
 import org.junit.Assert;
 import org.junit.BeforeClass;
@@ -24,6 +31,7 @@ public class OverlapTest
 
 	private static String TEST_USER = "foo@bar.com";
 	private static String TEST_CONTEXT = "context";
+	private static String NWAY_CONTEXT = "context-nway";
 
 	@BeforeClass
 	public static void beforeClass() throws Exception {
@@ -147,6 +155,210 @@ public class OverlapTest
 		return(overlap.overlapAsync(params).get());
 	}
 
+	// +-------+
+	// | top k |
+	// +-------+
+
+	@Test
+	public void topK() throws Exception {
+
+		// keeping just the best K while streaming should give the head of
+		// the full sorted list, ties and all, plus the real total
+
+		String[] names = new String[] { "A_BCell_ID.tsv", "A_BCell_MRD.tsv", "BH.tsv" };
+
+		for (Overlap.OverlapEngine engine : new Overlap.OverlapEngine[] {
+				Overlap.OverlapEngine.SortMerge, Overlap.OverlapEngine.Hash }) {
+
+			OverlapResult full = topKHelper(engine, Integer.MAX_VALUE, names);
+			Assert.assertFalse(full.Truncated);
+			Assert.assertEquals(full.Items.size(), full.TotalOverlaps);
+
+			List<OverlapResultItem> sorted = new ArrayList<OverlapResultItem>(full.Items);
+			sorted.sort(new Overlap.StandardResultItemComparator());
+			
+			for (int k : new int[] { 1, 7, 50, full.Items.size(), full.Items.size() + 1 }) {
+
+				OverlapResult result = topKHelper(engine, k, names);
+				Assert.assertEquals(full.TotalOverlaps, result.TotalOverlaps);
+				Assert.assertEquals(k < full.Items.size(), result.Truncated);
+				Assert.assertEquals(Math.min(k, sorted.size()), result.Items.size());
+
+				for (int i = 0; i < result.Items.size(); ++i) {
+					Assert.assertEquals(sorted.get(i).Key, result.Items.get(i).Key);
+					Assert.assertArrayEquals(sorted.get(i).Counts, result.Items.get(i).Counts);
+				}
+			}
+		}
+	}
+
+	private OverlapResult topKHelper(Overlap.OverlapEngine engine, int k,
+									 String[] names) throws Exception {
+		
+		Overlap.Config cfg = new Overlap.Config();
+		cfg.MaxStandardOverlaps = k;
+		cfg.Engine = engine;
+		Overlap overlap = new Overlap(cfg);
+
+		Overlap.Params params = new Overlap.Params();
+		params.CRS = crs;
+		params.RepertoireNames = names;
+		params.Extractor = RearrangementKey.getExtractor(KeyType.AminoAcid);
+		
+		return(overlap.overlapAsync(params).get());
+	}
+
+	// +-----------+
+	// | hash join |
+	// +-----------+
+
+	@Test
+	public void hashMatchesSortMerge() throws Exception {
+
+		String[] names = new String[] { "A_BCell_ID.tsv", "A_BCell_MRD.tsv", "BH.tsv" };
+		
+		for (Overlap.OverlapMode mode : Overlap.OverlapMode.values()) {
+			for (KeyType keyType : KeyType.values()) {
+
+				OverlapResult expected = engineHelper(crs, Overlap.OverlapEngine.SortMerge, mode, keyType, names);
+				OverlapResult actual = engineHelper(crs, Overlap.OverlapEngine.Hash, mode, keyType, names);
+
+				System.out.println(String.format("----- hash %s %s (%d)", mode, keyType, actual.Items.size()));
+				
+				Assert.assertEquals(expected.Truncated, actual.Truncated);
+				Assert.assertEquals(expected.Items.size(), actual.Items.size());
+
+				for (int i = 0; i < expected.Items.size(); ++i) {
+					OverlapResultItem e = expected.Items.get(i);
+					OverlapResultItem a = actual.Items.get(i);
+					Assert.assertEquals(e.Key, a.Key);
+					Assert.assertEquals(e.KeyCount, a.KeyCount);
+					Assert.assertEquals(e.PresentIn, a.PresentIn);
+					Assert.assertEquals(e.MaxCount, a.MaxCount);
+					Assert.assertArrayEquals(e.Counts, a.Counts);
+				}
+			}
+		}
+	}
+
+	private OverlapResult engineHelper(ContextRepertoireStore crs, Overlap.OverlapEngine engine,
+									   Overlap.OverlapMode mode, KeyType keyType,
+									   String[] names) throws Exception {
+
+		Overlap.Config cfg = new Overlap.Config();
+		cfg.MaxStandardOverlaps = 50;
+		cfg.Engine = engine;
+		cfg.HashMaxPartitionFiles = 4;
+		cfg.KeySorter.SortBufferBytes = 128L * 1024L; // several passes per partition
+		cfg.KeySorter.UseCache = false;
+		cfg.KeySorter.Scan.MaxChunks = 3;
+		cfg.KeySorter.Scan.MinChunkBytes = 1024;
+		Overlap overlap = new Overlap(cfg);
+
+		Overlap.Params params = new Overlap.Params();
+		params.CRS = crs;
+		params.RepertoireNames = names;
+		params.Extractor = RearrangementKey.getExtractor(keyType);
+		params.Mode = mode;
+		
+		return(overlap.overlapAsync(params).get());
+	}
+
+	// +-------+
+	// | n-way |
+	// +-------+
+
+	@Test
+	public void manyRepertoires() throws Exception {
+
+		// more repertoires than the old limit of 6, with lots of shared
+		// keys since they're copies; check against counting by hand
+
+		String[] sources = { "A_BCell_ID.tsv", "A_BCell_MRD.tsv", "BH.tsv", "A_TCRG_ID.tsv" };
+		String[] names = new String[12];
+		
+		for (int i = 0; i < names.length; ++i) {
+			names[i] = String.format("nway-%d.tsv", i);
+			Helpers.ResourceStreamReader rdr = new Helpers.ResourceStreamReader(sources[i % sources.length]);
+			TsvReceiver.receive(rdr.get(), store.get(), new RepertoireSpec(TEST_USER, NWAY_CONTEXT, names[i])).get();
+			rdr.close();
+		}
+
+		ContextRepertoireStore crsNway = new ContextRepertoireStore(store.get(), TEST_USER, NWAY_CONTEXT);
+
+		KeyType keyType = KeyType.CDR3;
+		
+		List<Map<String,Long>> counts = new ArrayList<Map<String,Long>>();
+		for (String name : names) counts.add(countKeys(crsNway, name, keyType));
+
+		Overlap.Config cfg = new Overlap.Config();
+		cfg.MaxStandardOverlaps = Integer.MAX_VALUE;
+		cfg.Engine = Overlap.OverlapEngine.SortMerge;
+		cfg.KeySorter.UseCache = false;
+		cfg.MaxRetainedSortRows = 5000L; // so most in-memory sorts spill
+
+		Overlap.Params params = new Overlap.Params();
+		params.CRS = crsNway;
+		params.RepertoireNames = names;
+		params.Extractor = RearrangementKey.getExtractor(keyType);
+		
+		OverlapResult result = new Overlap(cfg).overlapAsync(params).get();
+
+		Set<String> allKeys = new HashSet<String>();
+		for (Map<String,Long> map : counts) allKeys.addAll(map.keySet());
+
+		int expectedOverlaps = 0;
+		for (String key : allKeys) {
+			int presentIn = 0;
+			for (Map<String,Long> map : counts) if (map.containsKey(key)) ++presentIn;
+			if (presentIn > 1) ++expectedOverlaps;
+		}
+
+		System.out.println(String.format("----- n-way %d (%d)", names.length, result.Items.size()));
+		Assert.assertEquals(expectedOverlaps, result.Items.size());
+
+		for (OverlapResultItem item : result.Items) {
+			Assert.assertEquals(names.length, item.Counts.length);
+			int presentIn = 0;
+			for (int i = 0; i < names.length; ++i) {
+				Long expected = counts.get(i).get(item.Key);
+				Assert.assertEquals(expected == null ? 0L : expected.longValue(), item.Counts[i]);
+				if (expected != null) ++presentIn;
+			}
+			Assert.assertEquals(presentIn, item.PresentIn);
+		}
+
+		// and the hash engine agrees, both modes
+
+		for (Overlap.OverlapMode mode : Overlap.OverlapMode.values()) {
+			OverlapResult expected = engineHelper(crsNway, Overlap.OverlapEngine.SortMerge, mode, keyType, names);
+			OverlapResult actual = engineHelper(crsNway, Overlap.OverlapEngine.Hash, mode, keyType, names);
+			
+			Assert.assertEquals(expected.Items.size(), actual.Items.size());
+			for (int i = 0; i < expected.Items.size(); ++i) {
+				Assert.assertEquals(expected.Items.get(i).Key, actual.Items.get(i).Key);
+				Assert.assertArrayEquals(expected.Items.get(i).Counts, actual.Items.get(i).Counts);
+			}
+		}
+	}
+
+	private Map<String,Long> countKeys(ContextRepertoireStore crs, String name,
+									   KeyType keyType) throws Exception {
+
+		KeySorter.Config cfg = new KeySorter.Config();
+		cfg.UseCache = false;
+		
+		KeySorter sorter = new KeySorter(crs, name, RearrangementKey.getExtractor(keyType), cfg);
+		Assert.assertTrue(sorter.sortAsync().get());
+
+		Map<String,Long> counts = new HashMap<String,Long>();
+		KeySorter.KeyItem item;
+		while ((item = sorter.readNext()) != null) counts.put(item.getKey(), item.getCount());
+		sorter.close();
+
+		return(counts);
+	}
+
 	// +---------+
 	// | Helpers |
 	// +---------+
@@ -0,0 +1,155 @@
+//
+// PACKEDSEQUENCETEST.JAVA
+
+package com.shutdownhook.vdj.vdjlib;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.shutdownhook.vdj.vdjlib.model.PackedSequence;
+
+public class PackedSequenceTest
+{
+	// +------+
+	// | pack |
+	// +------+
+
+	@Test
+	public void pack() throws Exception {
+
+		Assert.assertEquals("ACGTN", PackedSequence.pack("ACGTN").toString());
+		Assert.assertEquals("ACGTN", PackedSequence.pack("acgtn", true).toString());
+		Assert.assertEquals("", PackedSequence.pack("").toString());
+
+		Assert.assertNull(PackedSequence.pack("acgt"));
+		Assert.assertNull(PackedSequence.pack("ACGX"));
+		Assert.assertNull(PackedSequence.pack(null));
+
+		Assert.assertFalse(PackedSequence.pack("ACGT").hasN());
+		Assert.assertTrue(PackedSequence.pack("ACNT").hasN());
+
+		Random rand = new Random(42);
+		for (int i = 0; i < 200; ++i) {
+			String s = randomSequence(rand, rand.nextInt(150));
+			PackedSequence p = PackedSequence.pack(s);
+			Assert.assertEquals(s, p.toString());
+			Assert.assertEquals(s.length(), p.length());
+			Assert.assertEquals(p, PackedSequence.pack(s));
+			Assert.assertEquals(p.hashCode(), PackedSequence.pack(s).hashCode());
+		}
+	}
+
+	// +-------------+
+	// | comparisons |
+	// +-------------+
+
+	@Test
+	public void compareTo() throws Exception {
+
+		Random rand = new Random(7);
+
+		for (int i = 0; i < 2000; ++i) {
+
+			String s1 = randomSequence(rand, rand.nextInt(100));
+			String s2 = (rand.nextBoolean() ? mutate(rand, s1, 1) : randomSequence(rand, rand.nextInt(100)));
+			if (rand.nextInt(10) == 0) s2 = s1.substring(0, s1.length() / 2);
+
+			PackedSequence p1 = PackedSequence.pack(s1);
+			PackedSequence p2 = PackedSequence.pack(s2);
+
+			Assert.assertEquals(Integer.signum(s1.compareTo(s2)), Integer.signum(p1.compareTo(p2)));
+			Assert.assertEquals(s1.equals(s2), p1.equals(p2));
+			Assert.assertEquals(s1.startsWith(s2), p1.startsWith(p2));
+			Assert.assertEquals(s1.endsWith(s2), p1.endsWith(p2));
+		}
+	}
+
+	@Test
+	public void hamming() throws Exception {
+
+		Random rand = new Random(11);
+
+		for (int i = 0; i < 1000; ++i) {
+
+			String s1 = randomSequence(rand, 1 + rand.nextInt(120));
+			String s2 = mutate(rand, s1, rand.nextInt(6));
+
+			PackedSequence p1 = PackedSequence.pack(s1);
+			PackedSequence p2 = PackedSequence.pack(s2);
+
+			int offset = rand.nextInt(s1.length());
+			int len = rand.nextInt(s1.length() - offset + 1);
+
+			int expected = 0;
+			for (int j = 0; j < len; ++j) {
+				if (s1.charAt(offset + j) != s2.charAt(offset + j)) ++expected;
+			}
+
+			Assert.assertEquals(expected, p1.hamming(offset, p2, offset, len, Integer.MAX_VALUE));
+			Assert.assertTrue(p1.hamming(offset, p2, offset, len, 0) > 0 || expected == 0);
+			Assert.assertEquals(expected == 0, p1.regionMatches(offset, p2, offset, len));
+
+			// matching runs from the middle out
+
+			int right = 0;
+			while (offset + right < s1.length() && s1.charAt(offset + right) == s2.charAt(offset + right)) ++right;
+			Assert.assertEquals(right, p1.matchingRight(offset, p2, offset, s1.length() - offset));
+
+			int left = 0;
+			while (offset - left - 1 >= 0 && s1.charAt(offset - left - 1) == s2.charAt(offset - left - 1)) ++left;
+			Assert.assertEquals(left, p1.matchingLeft(offset, p2, offset, offset));
+		}
+	}
+
+	@Test
+	public void indexOf() throws Exception {
+
+		Random rand = new Random(3);
+
+		for (int i = 0; i < 300; ++i) {
+
+			String key = randomSequence(rand, 20 + rand.nextInt(100));
+			int ich = rand.nextInt(key.length() - 10);
+			String search = mutate(rand, key.substring(ich, ich + 5 + rand.nextInt(key.length() - ich - 5)), 2);
+
+			PackedSequence k = PackedSequence.pack(key);
+			PackedSequence s = PackedSequence.pack(search);
+
+			for (int muts = 0; muts <= 3; ++muts) {
+				Assert.assertEquals(naiveIndexOf(key, search, muts), k.indexOf(s, muts));
+			}
+		}
+	}
+
+	// +---------+
+	// | Helpers |
+	// +---------+
+
+	private static int naiveIndexOf(String key, String search, int muts) {
+
+		for (int ich = 0; ich + search.length() <= key.length(); ++ich) {
+			int diffs = 0;
+			for (int j = 0; j < search.length() && diffs <= muts; ++j) {
+				if (key.charAt(ich + j) != search.charAt(j)) ++diffs;
+			}
+			if (diffs <= muts) return(ich);
+		}
+
+		return(-1);
+	}
+
+	private static String randomSequence(Random rand, int cch) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < cch; ++i) sb.append(rand.nextInt(40) == 0 ? 'N' : "ACGT".charAt(rand.nextInt(4)));
+		return(sb.toString());
+	}
+
+	private static String mutate(Random rand, String s, int count) {
+		if (s.isEmpty()) return(s);
+		char[] rgch = s.toCharArray();
+		for (int i = 0; i < count; ++i) rgch[rand.nextInt(rgch.length)] = "ACGTN".charAt(rand.nextInt(5));
+		return(new String(rgch));
+	}
+}
@@ -0,0 +1,189 @@
+//
+// PARALLELSCANTEST.JAVA
+
+package com.shutdownhook.vdj.vdjlib;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.shutdownhook.vdj.vdjlib.RearrangementKey.KeyType;
+import com.shutdownhook.vdj.vdjlib.TopXRearrangements.TopXSort;
+import com.shutdownhook.vdj.vdjlib.model.Rearrangement;
+import com.shutdownhook.vdj.vdjlib.model.Repertoire;
+
+public class ParallelScanTest
+{
+	// +------------------+
+	// | Setup & Teardown |
+	// +------------------+
+
+	private static String TEST_USER = "foo-scan@bar.com";
+	private static String TEST_CONTEXT = "context-scan";
+	private static String TEST_REPERTOIRE = "BH.tsv";
+
+	@BeforeClass
+	public static void beforeClass() throws Exception {
+		store = new Helpers.TempRepertoireStore();
+		store.addFromResource(new RepertoireSpec(TEST_USER, TEST_CONTEXT, TEST_REPERTOIRE));
+		crs = new ContextRepertoireStore(store.get(), TEST_USER, TEST_CONTEXT);
+		rep = crs.findRepertoire(TEST_REPERTOIRE);
+
+		// these exercise tsv byte-range splits; ColumnarRepertoireTest
+		// covers the columnar ones
+
+		serial = new ParallelScan.Config();
+		serial.MaxChunks = 1;
+		serial.UseColumnar = false;
+
+		chunked = new ParallelScan.Config();
+		chunked.MaxChunks = 7;
+		chunked.MinChunkBytes = 1024;
+		chunked.UseColumnar = false;
+	}
+
+	@AfterClass
+	public static void afterClass() {
+		store.close();
+	}
+
+	private static Helpers.TempRepertoireStore store;
+	private static ContextRepertoireStore crs;
+	private static Repertoire rep;
+	private static ParallelScan.Config serial;
+	private static ParallelScan.Config chunked;
+
+	// +-------+
+	// | split |
+	// +-------+
+
+	@Test
+	public void splitMatchesSerial() throws Exception {
+
+		List<List<Rearrangement>> expected =
+			ParallelScan.scan(serial, crs, rep, TsvReader.ALL_FIELDS, (rdr) -> readAll(rdr));
+
+		List<List<Rearrangement>> actual =
+			ParallelScan.scan(chunked, crs, rep, TsvReader.ALL_FIELDS, (rdr) -> readAll(rdr));
+
+		Assert.assertEquals(1, expected.size());
+		Assert.assertEquals(chunked.MaxChunks.intValue(), actual.size());
+
+		List<Rearrangement> rowsExpected = expected.get(0);
+		int irow = 0;
+
+		for (List<Rearrangement> chunk : actual) {
+			Assert.assertTrue(chunk.size() > 0);
+			for (Rearrangement r : chunk) {
+				Assert.assertEquals(rowsExpected.get(irow++).toJson(), r.toJson());
+			}
+		}
+
+		Assert.assertEquals(rowsExpected.size(), irow);
+	}
+
+	private static List<Rearrangement> readAll(RowReader rdr) throws Exception {
+		List<Rearrangement> rows = new ArrayList<Rearrangement>();
+		Rearrangement r;
+		while ((r = rdr.readNext()) != null) rows.add(r);
+		return(rows);
+	}
+
+	// +---------+
+	// | engines |
+	// +---------+
+
+	@Test
+	public void geneUseChunked() throws Exception {
+
+		GeneUse.Params params = new GeneUse.Params();
+		params.CRS = crs;
+		params.Repertoire = TEST_REPERTOIRE;
+
+		GeneUse.VJPair[] expected = new GeneUse(geneUseConfig(serial)).getAsync(params).get();
+		GeneUse.VJPair[] actual = new GeneUse(geneUseConfig(chunked)).getAsync(params).get();
+
+		Assert.assertEquals(expected.length, actual.length);
+		for (int i = 0; i < expected.length; ++i) {
+			Assert.assertEquals(expected[i], actual[i]);
+			Assert.assertEquals(expected[i].Count, actual[i].Count);
+			Assert.assertEquals(expected[i].Uniques, actual[i].Uniques);
+		}
+	}
+
+	@Test
+	public void topXChunked() throws Exception {
+
+		TopXRearrangements.Params params = new TopXRearrangements.Params();
+		params.CRS = crs;
+		params.Repertoires = new String[] { TEST_REPERTOIRE };
+		params.Count = 100;
+
+		for (TopXSort sort : TopXSort.values()) {
+
+			params.Sort = sort;
+
+			TopXRearrangements.Config cfgSerial = new TopXRearrangements.Config();
+			cfgSerial.Scan = serial;
+			RepertoireResult[] expected = new TopXRearrangements(cfgSerial).getAsync(params).get();
+
+			TopXRearrangements.Config cfgChunked = new TopXRearrangements.Config();
+			cfgChunked.Scan = chunked;
+			RepertoireResult[] actual = new TopXRearrangements(cfgChunked).getAsync(params).get();
+
+			assertResults(expected[0], actual[0]);
+		}
+	}
+
+	@Test
+	public void searchChunked() throws Exception {
+
+		Searcher.Params params = new Searcher.Params();
+		params.CRS = crs;
+		params.Repertoires = new String[] { TEST_REPERTOIRE };
+		params.Motif = "TGT";
+		params.Extractor = RearrangementKey.getExtractor(KeyType.Rearrangement);
+		params.Matcher = RearrangementKey.getMatcher(KeyType.Rearrangement, 0, false);
+
+		// unbounded, then truncated well inside the first chunk and
+		// right around a chunk boundary
+
+		int[] maxResults = { 0, 10, 1000 };
+
+		for (int max : maxResults) {
+
+			Searcher.Config cfgSerial = new Searcher.Config();
+			cfgSerial.MaxResults = max;
+			cfgSerial.Scan = serial;
+			RepertoireResult[] expected = new Searcher(cfgSerial).searchAsync(params).get();
+
+			Searcher.Config cfgChunked = new Searcher.Config();
+			cfgChunked.MaxResults = max;
+			cfgChunked.Scan = chunked;
+			RepertoireResult[] actual = new Searcher(cfgChunked).searchAsync(params).get();
+
+			assertResults(expected[0], actual[0]);
+		}
+	}
+
+	private static GeneUse.Config geneUseConfig(ParallelScan.Config scan) {
+		GeneUse.Config cfg = new GeneUse.Config();
+		cfg.Scan = scan;
+		return(cfg);
+	}
+
+	private static void assertResults(RepertoireResult expected, RepertoireResult actual) {
+
+		Assert.assertEquals(expected.Truncated, actual.Truncated);
+		Assert.assertEquals(expected.Rearrangements.size(), actual.Rearrangements.size());
+
+		for (int i = 0; i < expected.Rearrangements.size(); ++i) {
+			Assert.assertEquals(expected.Rearrangements.get(i).toJson(),
+								actual.Rearrangements.get(i).toJson());
+		}
+	}
+}
@@ -0,0 +1,105 @@
+//
+// PROFILEMAPTEST.JAVA
+
+package com.shutdownhook.vdj.vdjlib;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ProfileMapTest
+{
+	// +-------+
+	// | Tests |
+	// +-------+
+
+	@Test
+	public void matchesNaive() throws Exception {
+
+		Random rand = new Random(29);
+
+		for (int trial = 0; trial < 50; ++trial) {
+
+			int sampleMax = 16 + rand.nextInt(200);
+			ProfileMap map = new ProfileMap(sampleMax);
+
+			// naive version keyed on a string form of the profile, with
+			// keys folded the way OverlapResultItem.appendKey does it
+			Map<String,Overlap.OverlapResultItem> truth = new HashMap<String,Overlap.OverlapResultItem>();
+			List<String> order = new ArrayList<String>();
+			Map<String,Integer> indices = new HashMap<String,Integer>();
+
+			int count = rand.nextInt(20000);
+			for (int i = 0; i < count; ++i) {
+
+				String key = String.format("K%06d", i);
+				int[] reps = new int[4];
+				long[] counts = new long[4];
+				int presentIn = randomProfile(rand, reps, counts);
+
+				int index = map.add(key, presentIn, reps, counts);
+
+				String profile = Arrays.toString(Arrays.copyOf(reps, presentIn)) +
+					Arrays.toString(Arrays.copyOf(counts, presentIn));
+
+				Overlap.OverlapResultItem item = truth.get(profile);
+				if (item == null) {
+					Assert.assertEquals(order.size(), index);
+					item = new Overlap.OverlapResultItem();
+					item.Key = key;
+					item.KeyCount = 1;
+					truth.put(profile, item);
+					indices.put(profile, order.size());
+					order.add(profile);
+				}
+				else {
+					Assert.assertEquals(indices.get(profile).intValue(), index);
+					item.appendKey(key, sampleMax);
+				}
+			}
+
+			Assert.assertEquals(order.size(), map.size());
+
+			for (int i = 0; i < map.size(); ++i) {
+				String profile = Arrays.toString(map.getReps(i)) + Arrays.toString(map.getCounts(i));
+				Assert.assertEquals(order.get(i), profile);
+
+				Overlap.OverlapResultItem item = truth.get(profile);
+				Assert.assertEquals(item.Key, map.getSampleKeys(i));
+				Assert.assertEquals(item.KeyCount, map.getKeyCount(i));
+				Assert.assertEquals(map.getReps(i).length, map.getPresentIn(i));
+
+				long maxCount = 0;
+				for (long c : map.getCounts(i)) maxCount = Math.max(maxCount, c);
+				Assert.assertEquals(maxCount, map.getMaxCount(i));
+			}
+		}
+	}
+
+	// +---------+
+	// | Helpers |
+	// +---------+
+
+	private static int randomProfile(Random rand, int[] reps, long[] counts) {
+
+		// few reps and small counts so profiles repeat a lot
+		int presentIn = 0;
+		while (presentIn == 0) {
+			for (int rep = 0; rep < 4; ++rep) {
+				if (rand.nextInt(3) == 0) {
+					reps[presentIn] = rep;
+					counts[presentIn] = 1 + rand.nextInt(rand.nextBoolean() ? 3 : 500);
+					++presentIn;
+				}
+			}
+		}
+
+		return(presentIn);
+	}
+}
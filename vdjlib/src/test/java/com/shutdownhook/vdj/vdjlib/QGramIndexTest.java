@@ -0,0 +1,256 @@
+//
+// QGRAMINDEXTEST.JAVA
+
+package com.shutdownhook.vdj.vdjlib;
+
+import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.shutdownhook.vdj.vdjlib.RearrangementKey.KeyType;
+import com.shutdownhook.vdj.vdjlib.model.Rearrangement;
+
+public class QGramIndexTest
+{
+	// +------------------+
+	// | Setup & Teardown |
+	// +------------------+
+
+	private static String TEST_USER = "foo-qgram@bar.com";
+	private static String TEST_CONTEXT = "context-qgram";
+	private static String[] TEST_REPERTOIRES = { "BH.tsv", "A_BCell_ID.tsv" };
+
+	@BeforeClass
+	public static void beforeClass() throws Exception {
+
+		store = new Helpers.TempRepertoireStore();
+
+		for (String name : TEST_REPERTOIRES) {
+			store.addFromResource(new RepertoireSpec(TEST_USER, TEST_CONTEXT, name));
+		}
+
+		crs = new ContextRepertoireStore(store.get(), TEST_USER, TEST_CONTEXT);
+	}
+
+	@AfterClass
+	public static void afterClass() {
+		store.close();
+	}
+
+	private static Helpers.TempRepertoireStore store;
+	private static ContextRepertoireStore crs;
+
+	// +--------------------+
+	// | candidatesSuperset |
+	// +--------------------+
+
+	// whatever the index hands back must include every row that matches
+
+	@Test
+	public void candidatesSuperset() throws Exception {
+
+		Random rand = new Random(24);
+		QGramIndex.Config cfg = new QGramIndex.Config();
+		cfg.MaxCandidateFraction = 1.0;
+
+		for (String name : TEST_REPERTOIRES) {
+			for (KeyType keyType : KeyType.values()) {
+
+				QGramIndex index = buildAndLoad(cfg, crs, name, keyType);
+				Assert.assertNotNull(index);
+
+				List<String> keys = readKeys(name, keyType);
+				Assert.assertEquals(keys.size(), index.getRowCount());
+
+				int narrowed = 0;
+
+				for (int trial = 0; trial < 60; ++trial) {
+
+					int muts = rand.nextInt(3);
+					boolean full = rand.nextBoolean();
+					String motif = randomMotif(rand, keys, full, muts);
+
+					RearrangementKey.Matcher matcher = RearrangementKey.getMatcher(keyType, muts, full);
+					int[] candidates = index.candidates(motif, muts);
+					if (candidates == null) continue;
+
+					++narrowed;
+
+					for (int i = 1; i < candidates.length; ++i) {
+						Assert.assertTrue(candidates[i] > candidates[i - 1]);
+					}
+
+					for (int row = 0; row < keys.size(); ++row) {
+						if (matcher.matches(motif, keys.get(row))) {
+							Assert.assertTrue(Arrays.binarySearch(candidates, row) >= 0);
+						}
+					}
+				}
+
+				Assert.assertTrue(narrowed > 0);
+			}
+		}
+	}
+
+	// +---------+
+	// | damaged |
+	// +---------+
+
+	// a cut-off index reads as missing and the next search rebuilds it;
+	// one loaded before a rebuild stops handing out candidates
+
+	@Test
+	public void damaged() throws Exception {
+
+		QGramIndex.Config cfg = new QGramIndex.Config();
+		cfg.MaxCandidateFraction = 1.0;
+
+		String name = TEST_REPERTOIRES[0];
+		KeyType keyType = KeyType.AminoAcid;
+		String key = QGramIndex.getSecondaryKey(keyType);
+
+		QGramIndex before = buildAndLoad(cfg, crs, name, keyType);
+		Assert.assertNotNull(before);
+		int[] expected = before.candidates("CASSLG", 0);
+		Assert.assertNotNull(expected);
+		Assert.assertTrue(expected.length > 0);
+
+		InputStream stm = crs.getSecondaryStream(name, key);
+		byte[] rgb = stm.readAllBytes();
+		stm.close();
+
+		File file = File.createTempFile("vdj", ".tmp");
+		file.deleteOnExit();
+		Files.write(file.toPath(), Arrays.copyOf(rgb, rgb.length - 10));
+		Assert.assertTrue(crs.saveSecondaryFile(name, key, file));
+		file.delete();
+
+		Assert.assertNull(QGramIndex.load(cfg, crs, name, keyType));
+
+		QGramIndex after = buildAndLoad(cfg, crs, name, keyType);
+		Assert.assertNotNull(after);
+		Assert.assertArrayEquals(expected, after.candidates("CASSLG", 0));
+		Assert.assertNull(before.candidates("CASSLG", 0));
+	}
+
+	// +-------------+
+	// | matchesScan |
+	// +-------------+
+
+	// same results, truncation and motif hits with the index as without
+
+	@Test
+	public void matchesScan() throws Exception {
+
+		matchesScanHelper(KeyType.AminoAcid, 0, false, new String[] { "CASSLG" });
+		matchesScanHelper(KeyType.AminoAcid, 1, false, new String[] { "CASSLGQGAYEQYF" });
+		matchesScanHelper(KeyType.AminoAcid, 0, false, new String[] { "YGMDV", "CARDG", "WGQG" });
+		matchesScanHelper(KeyType.CDR3, 2, false, new String[] { "TGTGCCAGCAGCTTAGG" + "GGGCCTACGAGCAGTAC" });
+		matchesScanHelper(KeyType.Rearrangement, 1, false, new String[] { "GAGCAGTACTTCGGGCCG" });
+		matchesScanHelper(KeyType.AminoAcid, 0, true, new String[] { "CASSLGQGAYEQYF", "CASSPGQGYEQYF" });
+	}
+
+	private void matchesScanHelper(KeyType keyType, int muts, boolean full,
+								   String[] motifs) throws Exception {
+
+		// searches only load the index, so make sure there is one
+		for (String name : TEST_REPERTOIRES) {
+			Assert.assertNotNull(buildAndLoad(new QGramIndex.Config(), crs, name, keyType));
+		}
+
+		for (int maxResults : new int[] { 0, 3 }) {
+
+			Searcher.Config cfgScan = new Searcher.Config();
+			cfgScan.MaxResults = maxResults;
+			cfgScan.QGram.Enabled = false;
+
+			Searcher.Config cfgIndex = new Searcher.Config();
+			cfgIndex.MaxResults = maxResults;
+			cfgIndex.QGram.MaxCandidateFraction = 1.0;
+
+			Searcher.Params params = new Searcher.Params();
+			params.CRS = crs;
+			params.Repertoires = TEST_REPERTOIRES;
+			params.Extractor = RearrangementKey.getExtractor(keyType);
+			params.Matcher = RearrangementKey.getMatcher(keyType, muts, full);
+
+			if (motifs.length == 1) params.Motif = motifs[0];
+			else params.Motifs = motifs;
+
+			RepertoireResult[] expected = new Searcher(cfgScan).searchAsync(params).get();
+			RepertoireResult[] actual = new Searcher(cfgIndex).searchAsync(params).get();
+
+			for (int irep = 0; irep < expected.length; ++irep) {
+
+				Assert.assertEquals(expected[irep].Truncated, actual[irep].Truncated);
+				Assert.assertEquals(expected[irep].Rearrangements.size(), actual[irep].Rearrangements.size());
+
+				for (int i = 0; i < expected[irep].Rearrangements.size(); ++i) {
+
+					Assert.assertEquals(expected[irep].Rearrangements.get(i).toJson(),
+										actual[irep].Rearrangements.get(i).toJson());
+
+					if (params.Motifs != null) {
+						Assert.assertArrayEquals(expected[irep].MotifHits.get(i),
+												 actual[irep].MotifHits.get(i));
+					}
+				}
+			}
+		}
+	}
+
+	// +---------+
+	// | Helpers |
+	// +---------+
+
+	private static QGramIndex buildAndLoad(QGramIndex.Config cfg, ContextRepertoireStore crs,
+										   String name, KeyType keyType) throws Exception {
+
+		Assert.assertTrue(QGramIndex.buildAsync(cfg, crs, name, new KeyType[] { keyType }).get());
+		return(QGramIndex.load(cfg, crs, name, keyType));
+	}
+
+	private static List<String> readKeys(String name, KeyType keyType) throws Exception {
+
+		RearrangementKey.Extractor extractor = RearrangementKey.getExtractor(keyType);
+		ColumnarRepertoire.Reader rdr = ColumnarRepertoire.openSeekable(crs, name, extractor.getFields());
+
+		List<String> keys = new ArrayList<String>();
+		Rearrangement r = new Rearrangement();
+		while (rdr.readNextInto(r)) keys.add(extractor.extract(r));
+
+		rdr.close();
+		return(keys);
+	}
+
+	// a piece of a real key (all of it if full), with up to muts changes
+
+	private static String randomMotif(Random rand, List<String> keys, boolean full, int muts) {
+
+		String key = null;
+		while (key == null || key.length() < 12) key = keys.get(rand.nextInt(keys.size()));
+
+		String motif = key;
+		if (!full) {
+			int cch = 6 + rand.nextInt(key.length() - 5);
+			int ich = rand.nextInt(key.length() - cch + 1);
+			motif = key.substring(ich, ich + cch);
+		}
+
+		char[] rgch = motif.toCharArray();
+		for (int i = rand.nextInt(muts + 1); i > 0; --i) {
+			rgch[rand.nextInt(rgch.length)] = "ACGTY".charAt(rand.nextInt(5));
+		}
+
+		return(new String(rgch));
+	}
+}
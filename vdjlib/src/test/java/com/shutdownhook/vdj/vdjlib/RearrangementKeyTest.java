@@ -3,6 +3,10 @@
 
 package com.shutdownhook.vdj.vdjlib;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
 import org.junit.AfterClass;
 import org.junit.Assert;
 import org.junit.BeforeClass;
@@ -44,4 +48,132 @@ public class RearrangementKeyTest
 		Matcher matcher = RearrangementKey.getMatcher(KeyType.Rearrangement, 2, false);
 		Assert.assertFalse(matcher.matches("AXXE", "ABCDEFG"));
 	}
+
+	@Test
+	public void testMatcher_Nucleotide_Real() throws Exception {
+
+		// Bitap substring and full-length mutation matching on a real sequence;
+		// N in the search is just another character, not a wildcard
+
+		String key = "GCCATGGGTATGGTGGCTACGCCCCGGGACCCTACGGTATGGACGTCTGGGGCCAAGGG";
+		
+		Matcher matcher = RearrangementKey.getMatcher(KeyType.Rearrangement, 1, false);
+		Assert.assertTrue(matcher.matches("CCCTACGGAATGGACG", key));
+		Assert.assertFalse(matcher.matches("CCCTACGGAATGGAAG", key));
+		Assert.assertFalse(matcher.matches("CCCTACGGNATGGAAG", key));
+		Assert.assertTrue(matcher.matches(key.substring(0, key.length() - 1) + "T", key));
+
+		Matcher full = RearrangementKey.getMatcher(KeyType.Rearrangement, 2, true);
+		Assert.assertTrue(full.matches(key.substring(0, key.length() - 2) + "TT", key));
+		Assert.assertFalse(full.matches(key.substring(1), key));
+		Assert.assertFalse(full.matches("N" + key.substring(0, key.length() - 3) + "TT", key));
+	}
+
+	@Test
+	public void testMatcher_Randomized() throws Exception {
+
+		// against the original offset-by-offset matcher (below)
+
+		Random rand = new Random(37);
+
+		for (int trial = 0; trial < 2000; ++trial) {
+
+			String alphabet = (rand.nextBoolean() ? "ACGT" : "ACDEFGHIKLMNPQRSTVWY");
+			int muts = rand.nextInt(4);
+			boolean full = (rand.nextInt(4) == 0);
+
+			String key = randomString(rand, alphabet, 1 + rand.nextInt(90));
+			String search;
+
+			if (rand.nextBoolean()) {
+				int ich = rand.nextInt(key.length());
+				int cch = 1 + rand.nextInt(key.length() - ich);
+				if (full) { ich = 0; cch = key.length(); }
+				char[] rgch = key.substring(ich, ich + cch).toCharArray();
+				for (int i = rand.nextInt(muts + 2); i > 0; --i) {
+					rgch[rand.nextInt(rgch.length)] = alphabet.charAt(rand.nextInt(alphabet.length()));
+				}
+				search = new String(rgch);
+			}
+			else {
+				search = randomString(rand, alphabet, 1 + rand.nextInt(20));
+			}
+
+			Matcher matcher = RearrangementKey.getMatcher(KeyType.Rearrangement, muts, full);
+			Assert.assertEquals(search + " / " + key + " / " + muts + " / " + full,
+								originalMatches(search, key, muts, full),
+								matcher.matches(search, key));
+		}
+	}
+
+	@Test
+	public void testMatcher_Compile() throws Exception {
+
+		// batches have to agree with matching each search on its own,
+		// for every flavor compile picks (AhoCorasick, exact, Bitap)
+
+		Random rand = new Random(47);
+
+		for (int trial = 0; trial < 300; ++trial) {
+
+			int muts = rand.nextInt(3);
+			boolean full = rand.nextBoolean();
+			Matcher matcher = RearrangementKey.getMatcher(KeyType.Rearrangement, muts, full);
+
+			String[] searches = new String[1 + rand.nextInt(30)];
+			for (int i = 0; i < searches.length; ++i) {
+				searches[i] = randomString(rand, "ACGT", rand.nextInt(full ? 4 : 8));
+			}
+
+			RearrangementKey.MultiMatcher multi = matcher.compile(searches);
+
+			for (int t = 0; t < 50; ++t) {
+
+				String key = randomString(rand, "ACGT", rand.nextInt(full ? 4 : 30));
+
+				List<Integer> expected = new ArrayList<Integer>();
+				for (int i = 0; i < searches.length; ++i) {
+					if (matcher.matches(searches[i], key)) expected.add(i);
+				}
+
+				int[] hits = multi.matches(key);
+				if (expected.size() == 0) {
+					Assert.assertNull(hits);
+				}
+				else {
+					Assert.assertEquals(expected.size(), hits.length);
+					for (int i = 0; i < hits.length; ++i) Assert.assertEquals(expected.get(i).intValue(), hits[i]);
+				}
+			}
+		}
+	}
+
+	private static boolean originalMatches(String search, String key, int muts, boolean full) {
+
+		int cchSearch = search.length();
+		int cchKey = key.length();
+
+		if (full && (cchSearch != cchKey)) return(false);
+
+		for (int ichStart = 0; ichStart < cchKey - cchSearch + 1; ++ichStart) {
+			int mutsRemaining = muts;
+			int j = 0;
+			while (j < cchSearch) {
+				if (key.charAt(ichStart + j) != search.charAt(j)) {
+					if (mutsRemaining == 0) break;
+					--mutsRemaining;
+				}
+				++j;
+			}
+			if (j == cchSearch) return(true);
+		}
+
+		return(false);
+	}
+
+	private static String randomString(Random rand, String alphabet, int cch) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < cch; ++i) sb.append(alphabet.charAt(rand.nextInt(alphabet.length())));
+		return(sb.toString());
+	}
 }
@@ -0,0 +1,122 @@
+//
+// ROWINDEXTEST.JAVA
+
+package com.shutdownhook.vdj.vdjlib;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.List;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.shutdownhook.vdj.vdjlib.model.Rearrangement;
+
+public class RowIndexTest
+{
+	// +------------------+
+	// | Setup & Teardown |
+	// +------------------+
+
+	private static String TEST_USER = "foo-rowindex@bar.com";
+	private static String TEST_CONTEXT = "context-rowindex";
+	private static String TEST_REPERTOIRE = "BH.tsv";
+
+	@BeforeClass
+	public static void beforeClass() throws Exception {
+
+		store = new Helpers.TempRepertoireStore();
+		spec = new RepertoireSpec(TEST_USER, TEST_CONTEXT, TEST_REPERTOIRE);
+		store.addFromResource(spec);
+
+		// same files, but read through streams rather than mappings
+		RepertoireStore_Files.Config cfg = new RepertoireStore_Files.Config();
+		cfg.BasePath = store.getPath().toString();
+		cfg.UseMappedReads = false;
+		streamStore = new RepertoireStore_Files(cfg);
+
+		TsvReader tsv = TsvReader.open(store.get(), spec, 0, TsvReader.ALL_FIELDS);
+		all = tsv.readBatch(Integer.MAX_VALUE);
+		tsv.close();
+	}
+
+	@AfterClass
+	public static void afterClass() {
+		store.close();
+	}
+
+	private static Helpers.TempRepertoireStore store;
+	private static RepertoireStore streamStore;
+	private static RepertoireSpec spec;
+	private static List<Rearrangement> all;
+
+	// +-------+
+	// | Tests |
+	// +-------+
+
+	@Test
+	public void indexSaved() throws Exception {
+		RowIndex index = RowIndex.load(store.get(), spec);
+		Assert.assertNotNull(index);
+		Assert.assertEquals(0, index.getIndexedRow(RowIndex.DEFAULT_INTERVAL - 1));
+		Assert.assertEquals(RowIndex.DEFAULT_INTERVAL, index.getIndexedRow(RowIndex.DEFAULT_INTERVAL));
+		Assert.assertEquals(RowIndex.DEFAULT_INTERVAL, index.getIndexedRow(RowIndex.DEFAULT_INTERVAL + 1));
+	}
+
+	@Test
+	public void pagedMapped() throws Exception {
+		assertPages(store.get());
+	}
+
+	@Test
+	public void pagedStream() throws Exception {
+		assertPages(streamStore);
+	}
+
+	@Test
+	public void roundTrip() throws Exception {
+
+		RowIndex index = new RowIndex(10);
+		for (int irow = 0; irow < 95; ++irow) {
+			if (index.wants(irow)) index.add(irow * 100L);
+		}
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		index.save(out);
+
+		RowIndex loaded = RowIndex.load(new ByteArrayInputStream(out.toByteArray()));
+		Assert.assertEquals(-1L, loaded.getOffset(0));
+		Assert.assertEquals(0L, loaded.getOffset(9));
+		Assert.assertEquals(1000L, loaded.getOffset(10));
+		Assert.assertEquals(5000L, loaded.getOffset(57));
+		Assert.assertEquals(9000L, loaded.getOffset(5000));
+		Assert.assertEquals(90, loaded.getIndexedRow(5000));
+	}
+
+	private void assertPages(RepertoireStore rs) throws Exception {
+
+		int[] starts = { 0, 1, 999, 1000, 1001, 2500, all.size() - 1, all.size(), all.size() + 10 };
+
+		for (int start : starts) {
+
+			TsvReader tsv = TsvReader.open(rs, spec, start, TsvReader.ALL_FIELDS);
+			List<Rearrangement> page = tsv.readBatch(20);
+
+			if (start >= all.size()) {
+				Assert.assertNull(page);
+			}
+			else {
+				for (int i = 0; i < page.size(); ++i) {
+					Assert.assertEquals(all.get(start + i).toJson(), page.get(i).toJson());
+				}
+				Assert.assertEquals(Math.min(20, all.size() - start), page.size());
+				Assert.assertEquals(start + page.size(), tsv.getNextRowIndex());
+			}
+
+			tsv.close();
+		}
+	}
+}
@@ -3,6 +3,7 @@
 
 package com.shutdownhook.vdj.vdjlib;
 
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
@@ -108,6 +109,69 @@ public class SearcherTest
 		Assert.assertEquals(860, results[1].Rearrangements.size());
 	}
 
+	// +--------+
+	// | Motifs |
+	// +--------+
+
+	@Test
+	public void testMultiMotifMatchesSingle() throws Exception {
+
+		// one pass over a panel should find exactly what searching for
+		// each motif separately does, tagged with the motifs it hit
+
+		String[] motifs = new String[] { "CARGG", "CASS", "CARDG", "AAAAAAAAAA", "CASS", "YGMDV" };
+
+		multiMotifHelper(KeyType.AminoAcid, 0, false, motifs);
+		multiMotifHelper(KeyType.AminoAcid, 1, false, motifs);
+	}
+
+	private void multiMotifHelper(KeyType keyType, int muts, boolean full,
+								  String[] motifs) throws Exception {
+
+		Searcher.Config cfg = new Searcher.Config();
+		cfg.MaxResults = 0;
+		Searcher unlimited = new Searcher(cfg);
+
+		Searcher.Params params = new Searcher.Params();
+		params.CRS = crs;
+		params.Repertoires = new String[] { REP_1, REP_3 };
+		params.Extractor = RearrangementKey.getExtractor(keyType);
+		params.Matcher = RearrangementKey.getMatcher(keyType, muts, full);
+		params.Motifs = motifs;
+
+		RepertoireResult[] multi = unlimited.searchAsync(params).get();
+
+		for (int irep = 0; irep < params.Repertoires.length; ++irep) {
+
+			List<Rearrangement> rows = multi[irep].Rearrangements;
+			List<int[]> hits = multi[irep].MotifHits;
+			Assert.assertEquals(rows.size(), hits.size());
+
+			for (int imotif = 0; imotif < motifs.length; ++imotif) {
+
+				Searcher.Params single = new Searcher.Params();
+				single.CRS = crs;
+				single.Repertoires = new String[] { params.Repertoires[irep] };
+				single.Extractor = params.Extractor;
+				single.Matcher = params.Matcher;
+				single.Motif = motifs[imotif];
+
+				RepertoireResult expected = unlimited.searchAsync(single).get()[0];
+
+				int found = 0;
+				for (int i = 0; i < rows.size(); ++i) {
+					if (Arrays.binarySearch(hits.get(i), imotif) >= 0) {
+						Assert.assertEquals(expected.Rearrangements.get(found).Rearrangement,
+											rows.get(i).Rearrangement);
+						++found;
+					}
+				}
+
+				Assert.assertEquals(expected.Rearrangements.size(), found);
+			}
+		}
+	}
+
 	// +-------+
 	// | Genes |
 	// +-------+
@@ -0,0 +1,124 @@
+//
+// SORTBUFFERTEST.JAVA
+
+package com.shutdownhook.vdj.vdjlib;
+
+import java.io.File;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.shutdownhook.vdj.vdjlib.KeySorter.KeyItem;
+
+public class SortBufferTest
+{
+	// +-------+
+	// | Tests |
+	// +-------+
+
+	@Test
+	public void sortAndDedup() throws Exception {
+
+		Random rand = new Random(19);
+
+		for (boolean offHeap : new boolean[] { false, true }) {
+			for (int trial = 0; trial < 20; ++trial) {
+
+				SortBuffer buffer = new SortBuffer(16 * 1024 * 1024, 100000, offHeap);
+				Map<String,Long> truth = new TreeMap<String,Long>();
+
+				int count = rand.nextInt(5000);
+				for (int i = 0; i < count; ++i) {
+					String key = randomKey(rand);
+					long n = 1 + rand.nextInt(1000);
+					Assert.assertTrue(buffer.add(key, n));
+					truth.put(key, truth.getOrDefault(key, 0L) + n);
+				}
+
+				assertRun(buffer, truth);
+
+				// and reusable after clear
+				buffer.clear();
+				Assert.assertEquals(0, buffer.size());
+				Assert.assertTrue(buffer.add("CASS", 3));
+				truth.clear();
+				truth.put("CASS", 3L);
+				assertRun(buffer, truth);
+			}
+		}
+	}
+
+	@Test
+	public void capacity() throws Exception {
+
+		// bytes
+		SortBuffer buffer = new SortBuffer(10 * (8 + SortBuffer.ENTRY_BYTES), 1000, false);
+		for (int i = 0; i < 10; ++i) Assert.assertTrue(buffer.add(String.format("KEY%05d", i), 1));
+		Assert.assertFalse(buffer.add("X", 1));
+		Assert.assertEquals(10, buffer.size());
+
+		// entries
+		buffer = new SortBuffer(1024 * 1024, 3, true);
+		for (int i = 0; i < 3; ++i) Assert.assertTrue(buffer.add("A", 1));
+		Assert.assertFalse(buffer.add("A", 1));
+
+		// growing the arena past its initial size
+		buffer = new SortBuffer(8 * 1024 * 1024, 1000000, true);
+		for (int i = 0; i < 100000; ++i) Assert.assertTrue(buffer.add(String.format("KEY%08d", i), 1));
+		Assert.assertEquals(100000, buffer.size());
+	}
+
+	@Test
+	public void budget() throws Exception {
+
+		SortBuffer.Budget budget = new SortBuffer.Budget(1000);
+
+		Assert.assertEquals(600, budget.acquire(600, 100));
+		Assert.assertEquals(400, budget.acquire(600, 100));
+
+		// nothing left but the minimum is always granted
+		Assert.assertEquals(100, budget.acquire(600, 100));
+		Assert.assertEquals(1100, budget.getUsedBytes());
+
+		budget.release(600);
+		Assert.assertEquals(500, budget.acquire(600, 100));
+	}
+
+	// +---------+
+	// | Helpers |
+	// +---------+
+
+	private static void assertRun(SortBuffer buffer, Map<String,Long> truth) throws Exception {
+
+		File file = File.createTempFile("vdj", ".run");
+		file.deleteOnExit();
+
+		KeySorter.KeyWriter wtr = new KeySorter.KeyWriter(file);
+		Assert.assertEquals(truth.size(), buffer.writeTo(wtr));
+		wtr.close();
+
+		KeySorter.KeyReader rdr = new KeySorter.KeyReader(file);
+		for (String key : truth.keySet()) {
+			KeyItem item = rdr.readNext();
+			Assert.assertEquals(key, item.getKey());
+			Assert.assertEquals(truth.get(key).longValue(), item.getCount());
+		}
+		Assert.assertNull(rdr.readNext());
+		rdr.close();
+
+		file.delete();
+	}
+
+	private static String randomKey(Random rand) {
+
+		// short alphabet so there are lots of duplicates and shared prefixes
+		StringBuilder sb = new StringBuilder();
+		int cch = 1 + rand.nextInt(rand.nextBoolean() ? 4 : 30);
+		for (int i = 0; i < cch; ++i) sb.append("ACGT".charAt(rand.nextInt(4)));
+		if (rand.nextInt(50) == 0) sb.append("é");
+		return(sb.toString());
+	}
+}
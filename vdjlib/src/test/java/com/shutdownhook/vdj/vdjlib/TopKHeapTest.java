@@ -0,0 +1,155 @@
+//
+// TOPKHEAPTEST.JAVA
+
+package com.shutdownhook.vdj.vdjlib;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TopKHeapTest
+{
+	// +-------+
+	// | Tests |
+	// +-------+
+
+	@Test
+	public void matchesStableSort() throws Exception {
+
+		Random rand = new Random(17);
+
+		for (int trial = 0; trial < 200; ++trial) {
+
+			List<Item> items = randomItems(rand, rand.nextInt(300));
+			int k = rand.nextInt(60);
+
+			TopKHeap<Item> heap = new TopKHeap<Item>(k);
+			for (Item item : items) {
+				boolean expectAccept = heap.wouldAccept(item.Primary, item.Secondary);
+				Item out = heap.offer(item.Primary, item.Secondary, item);
+				Assert.assertEquals(expectAccept, out != item);
+			}
+
+			Assert.assertEquals(expected(items, k), heap.toSortedList());
+		}
+	}
+
+	@Test
+	public void merge() throws Exception {
+
+		Random rand = new Random(23);
+
+		for (int trial = 0; trial < 200; ++trial) {
+
+			List<Item> items = randomItems(rand, rand.nextInt(500));
+			int k = 1 + rand.nextInt(40);
+			int chunks = 1 + rand.nextInt(6);
+
+			// contiguous chunks, merged in order
+
+			List<TopKHeap<Item>> heaps = new ArrayList<TopKHeap<Item>>();
+			for (int i = 0; i < chunks; ++i) {
+				TopKHeap<Item> heap = new TopKHeap<Item>(k);
+				int start = items.size() * i / chunks;
+				int end = items.size() * (i + 1) / chunks;
+				for (Item item : items.subList(start, end)) heap.offer(item.Primary, item.Secondary, item);
+				heaps.add(heap);
+			}
+
+			TopKHeap<Item> merged = heaps.get(0);
+			for (int i = 1; i < heaps.size(); ++i) merged.merge(heaps.get(i));
+
+			Assert.assertEquals(expected(items, k), merged.toSortedList());
+		}
+	}
+
+	@Test
+	public void tieBreak() throws Exception {
+
+		// with ties settled on Index, arrival order doesn't matter
+		
+		Random rand = new Random(29);
+
+		for (int trial = 0; trial < 200; ++trial) {
+
+			List<Item> items = randomItems(rand, rand.nextInt(300));
+			int k = rand.nextInt(60);
+
+			List<Item> shuffled = new ArrayList<Item>(items);
+			Collections.shuffle(shuffled, rand);
+
+			TopKHeap<Item> heap = new TopKHeap<Item>(k, (i1, i2) -> Integer.compare(i1.Index, i2.Index));
+			for (Item item : shuffled) {
+				boolean maybeAccept = heap.wouldAccept(item.Primary, item.Secondary);
+				Item out = heap.offer(item.Primary, item.Secondary, item);
+				if (!maybeAccept) Assert.assertSame(item, out);
+			}
+
+			Assert.assertEquals(expected(items, k), heap.toSortedList());
+		}
+	}
+
+	@Test
+	public void recycles() throws Exception {
+
+		TopKHeap<Item> heap = new TopKHeap<Item>(2);
+		Item a = new Item(0, 1, 0.0);
+		Item b = new Item(1, 2, 0.0);
+		Item c = new Item(2, 3, 0.0);
+		Item d = new Item(3, 3, 0.0);
+
+		Assert.assertNull(heap.offer(a.Primary, a.Secondary, a));
+		Assert.assertNull(heap.offer(b.Primary, b.Secondary, b));
+		Assert.assertSame(a, heap.offer(c.Primary, c.Secondary, c));
+		Assert.assertSame(b, heap.offer(d.Primary, d.Secondary, d));
+
+		// ties lose to what's already there
+		Assert.assertSame(d, heap.offer(d.Primary, d.Secondary, d));
+	}
+
+	// +---------+
+	// | Helpers |
+	// +---------+
+
+	private static class Item
+	{
+		public Item(int index, long primary, double secondary) {
+			this.Index = index;
+			this.Primary = primary;
+			this.Secondary = secondary;
+		}
+
+		public String toString() {
+			return(String.format("%d:%d:%f", Index, Primary, Secondary));
+		}
+
+		public int Index;
+		public long Primary;
+		public double Secondary;
+	}
+
+	private static List<Item> randomItems(Random rand, int count) {
+		List<Item> items = new ArrayList<Item>();
+		for (int i = 0; i < count; ++i) {
+			// small ranges so there are plenty of ties
+			items.add(new Item(i, rand.nextInt(5), rand.nextInt(4) / 4.0));
+		}
+		return(items);
+	}
+
+	private static List<Item> expected(List<Item> items, int k) {
+
+		List<Item> sorted = new ArrayList<Item>(items);
+
+		sorted.sort(Comparator.comparingLong((Item item) -> item.Primary)
+					.thenComparingDouble(item -> item.Secondary)
+					.reversed());
+
+		return(sorted.subList(0, Math.min(k, sorted.size())));
+	}
+}
@@ -3,12 +3,19 @@
 
 package com.shutdownhook.vdj.vdjlib;
 
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 import org.junit.Assert;
 import org.junit.Test;
 
+import com.shutdownhook.vdj.vdjlib.RearrangementKey.KeyType;
+import com.shutdownhook.vdj.vdjlib.TsvReader.Field;
 import com.shutdownhook.vdj.vdjlib.model.Locus;
 import com.shutdownhook.vdj.vdjlib.model.Rearrangement;
 import com.shutdownhook.vdj.vdjlib.model.Repertoire;
@@ -82,6 +89,198 @@ public class TsvReaderTest
 		rdr.close();
 	}
 
+	// +--------------------+
+	// | byteModeEquivalent |
+	// +--------------------+
+
+	@Test
+	public void byteModeEquivalent() throws Exception {
+		byteModeEquivalent("A_BCell_ID.tsv");
+		byteModeEquivalent("D_BCell_Cellfree_MRD.tsv");
+		byteModeEquivalent("BH.tsv");
+	}
+
+	private void byteModeEquivalent(String name) throws Exception {
+
+		Helpers.ResourceStreamReader rdr = new Helpers.ResourceStreamReader(name);
+		TsvReader tsvChars = new TsvReader(rdr.get(), 0);
+
+		InputStream stm = getClass().getClassLoader().getResourceAsStream(name);
+		TsvReader tsvBytes = new TsvReader(stm, 0);
+
+		Rearrangement rChars;
+		Rearrangement rBytes;
+		int rows = 0;
+		
+		while ((rChars = tsvChars.readNext()) != null) {
+			rBytes = tsvBytes.readNext();
+			Assert.assertNotNull(rBytes);
+			Assert.assertEquals(rChars.toJson(), rBytes.toJson());
+			++rows;
+		}
+
+		Assert.assertNull(tsvBytes.readNext());
+		Assert.assertEquals(tsvChars.getDiscoveredCellCount(), tsvBytes.getDiscoveredCellCount());
+		Assert.assertEquals(tsvChars.getDiscoveredSampleMillis(), tsvBytes.getDiscoveredSampleMillis());
+		System.out.println(String.format("byteModeEquivalent %d rows from %s", rows, name));
+
+		tsvBytes.close();
+		stm.close();
+		tsvChars.close();
+		rdr.close();
+	}
+
+	// +------------------+
+	// | mappedEquivalent |
+	// +------------------+
+
+	@Test
+	public void mappedEquivalent() throws Exception {
+
+		Helpers.TempRepertoireStore store = new Helpers.TempRepertoireStore();
+		RepertoireSpec spec = new RepertoireSpec("foo@bar.com", "context-mapped", "BH.tsv");
+		store.addFromResource(spec);
+
+		Assert.assertNotNull(store.get().getRepertoireBuffer(spec));
+
+		InputStream stm = store.get().getRepertoireStream(spec);
+		TsvReader tsvStream = new TsvReader(stm, 0);
+		TsvReader tsvMapped = TsvReader.open(store.get(), spec, 0, TsvReader.ALL_FIELDS);
+
+		Rearrangement rStream;
+		Rearrangement rMapped;
+		int rows = 0;
+
+		while ((rStream = tsvStream.readNext()) != null) {
+			rMapped = tsvMapped.readNext();
+			Assert.assertNotNull(rMapped);
+			Assert.assertEquals(rStream.toJson(), rMapped.toJson());
+			++rows;
+		}
+
+		Assert.assertNull(tsvMapped.readNext());
+		Assert.assertTrue(rows > 0);
+
+		// start offsets work the same way too
+		TsvReader tsvOffset = TsvReader.open(store.get(), spec, rows - 1, TsvReader.ALL_FIELDS);
+		Assert.assertNotNull(tsvOffset.readNext());
+		Assert.assertNull(tsvOffset.readNext());
+
+		tsvOffset.close();
+		tsvMapped.close();
+		tsvStream.close();
+		stm.close();
+		store.close();
+	}
+
+	// +--------------+
+	// | readNextInto |
+	// +--------------+
+
+	// verifies reused decoding matches fresh objects (including the cached
+	// cdr3, which has to be cleared between rows)
+
+	@Test
+	public void readNextInto() throws Exception {
+
+		String name = "A_BCell_ID.tsv";
+		
+		InputStream stmNew = getClass().getClassLoader().getResourceAsStream(name);
+		InputStream stmReuse = getClass().getClassLoader().getResourceAsStream(name);
+		TsvReader tsvNew = new TsvReader(stmNew, 0);
+		TsvReader tsvReuse = new TsvReader(stmReuse, 0);
+
+		Rearrangement rNew;
+		Rearrangement rReuse = new Rearrangement();
+		List<Rearrangement> copies = new ArrayList<Rearrangement>();
+		List<String> expected = new ArrayList<String>();
+		
+		while ((rNew = tsvNew.readNext()) != null) {
+			Assert.assertTrue(tsvReuse.readNextInto(rReuse));
+			Assert.assertEquals(rNew.toJson(), rReuse.toJson());
+			Assert.assertEquals(rNew.getCDR3(), rReuse.getCDR3());
+			copies.add(rReuse.copy());
+			expected.add(rNew.toJson());
+		}
+
+		Assert.assertFalse(tsvReuse.readNextInto(rReuse));
+
+		for (int i = 0; i < copies.size(); ++i) {
+			Assert.assertEquals(expected.get(i), copies.get(i).toJson());
+		}
+
+		tsvReuse.close(); stmReuse.close();
+		tsvNew.close(); stmNew.close();
+	}
+
+	// +------------+
+	// | projection |
+	// +------------+
+
+	// verifies projected reads agree with full reads (and that materialize
+	// fills in the rest)
+
+	@Test
+	public void projection() throws Exception {
+
+		Map<String,EnumSet<Field>> projections = new LinkedHashMap<String,EnumSet<Field>>();
+		projections.put("full", TsvReader.ALL_FIELDS);
+		projections.put("search-cdr3", RearrangementKey.getExtractor(KeyType.CDR3).getFields());
+		projections.put("search-aa", RearrangementKey.getExtractor(KeyType.AminoAcid).getFields());
+		projections.put("geneuse", EnumSet.of(Field.VResolved, Field.JResolved, Field.Count));
+		projections.put("receive", EnumSet.of(Field.Locus, Field.Count));
+		projections.put("tracking", EnumSet.of(Field.Rearrangement, Field.JIndex, Field.Count));
+		projections.put("topx-count", EnumSet.of(Field.Count));
+
+		String name = "A_BCell_ID.tsv";
+		
+		for (String label : projections.keySet()) {
+			assertProjection(name, projections.get(label));
+		}
+	}
+
+	private void assertProjection(String name, EnumSet<Field> fields) throws Exception {
+
+		InputStream stmFull = getClass().getClassLoader().getResourceAsStream(name);
+		InputStream stmProj = getClass().getClassLoader().getResourceAsStream(name);
+		TsvReader tsvFull = new TsvReader(stmFull, 0);
+		TsvReader tsvProj = new TsvReader(stmProj, 0, fields);
+
+		Rearrangement rFull;
+		Rearrangement rProj;
+		int i = 0;
+
+		while ((rFull = tsvFull.readNext()) != null) {
+			
+			rProj = tsvProj.readNext();
+
+			if (fields.contains(Field.Rearrangement)) Assert.assertEquals(rFull.Rearrangement, rProj.Rearrangement);
+			if (fields.contains(Field.AminoAcid)) Assert.assertEquals(rFull.AminoAcid, rProj.AminoAcid);
+			if (fields.contains(Field.VResolved)) Assert.assertEquals(rFull.VResolved, rProj.VResolved);
+			if (fields.contains(Field.JResolved)) Assert.assertEquals(rFull.JResolved, rProj.JResolved);
+			if (fields.contains(Field.Locus)) Assert.assertEquals(rFull.Locus, rProj.Locus);
+			if (fields.contains(Field.Count)) Assert.assertEquals(rFull.Count, rProj.Count);
+			if (fields.contains(Field.JIndex)) Assert.assertEquals(rFull.JIndex, rProj.JIndex);
+			if (fields.containsAll(RearrangementKey.CDR3_FIELDS)) Assert.assertEquals(rFull.getCDR3(), rProj.getCDR3());
+
+			if (!fields.contains(Field.Rearrangement)) Assert.assertNull(rProj.Rearrangement);
+			if (!fields.contains(Field.Locus)) Assert.assertNull(rProj.Locus);
+
+			// spot check materialize
+			if (i++ % 97 == 0) {
+				tsvProj.materialize(rProj);
+				Assert.assertEquals(rFull.toJson(), rProj.toJson());
+			}
+		}
+
+		Assert.assertNull(tsvProj.readNext());
+
+		tsvProj.close();
+		tsvFull.close();
+		stmProj.close();
+		stmFull.close();
+	}
+
 	// +---------+
 	// | Helpers |
 	// +---------+
@@ -3,6 +3,10 @@
 
 package com.shutdownhook.vdj.vdjlib;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDate;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
@@ -73,6 +77,40 @@ public class TsvReceiverTest
 		Assert.assertTrue(store.get().deleteRepertoire(spec));
 	}
 
+	// +-----------+
+	// | malformed |
+	// +-----------+
+
+	// a bad number anywhere in a row fails the upload, not just the
+	// fields a scan happens to need
+
+	@Test
+    public void malformed() throws Exception {
+
+		String name = "BH.tsv";
+		InputStream resource = getClass().getClassLoader().getResourceAsStream(name);
+		String[] lines = new String(resource.readAllBytes(), StandardCharsets.UTF_8).split("\n");
+		resource.close();
+
+		String[] headers = lines[0].split("\t");
+		int icol = 0;
+		while (!headers[icol].equals("cdr3Length")) ++icol;
+
+		String[] fields = lines[3].split("\t", -1);
+		fields[icol] = "notanumber";
+		lines[3] = String.join("\t", fields);
+
+		byte[] bytes = String.join("\n", lines).getBytes(StandardCharsets.UTF_8);
+		InputStreamReader rdr = new InputStreamReader(new ByteArrayInputStream(bytes));
+
+		RepertoireSpec spec = new RepertoireSpec(TEST_USER, TEST_CONTEXT, "malformed-" + name);
+		ReceiveResult result = TsvReceiver.receive(rdr, store.get(), spec).get();
+		rdr.close();
+
+		Assert.assertEquals(ReceiveResult.Error, result);
+		Assert.assertNull(findRepertoireInStore(spec));
+	}
+
     private void basic(int which) throws Exception {
 		basic(which, false);
 	}
@@ -0,0 +1,152 @@
+//
+// TSVTOKENIZERTEST.JAVA
+
+package com.shutdownhook.vdj.vdjlib;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TsvTokenizerTest 
+{
+	// +--------+
+	// | fields |
+	// +--------+
+
+	@Test
+	public void fields() throws Exception {
+
+		TsvTokenizer tok = new TsvTokenizer(stream("a\t b \t\t42\t-7\n"));
+
+		Assert.assertTrue(tok.nextLine());
+		Assert.assertEquals(5, tok.getFieldCount());
+		Assert.assertEquals("a", tok.getString(0));
+		Assert.assertEquals("b", tok.getString(1));
+		Assert.assertEquals(" b ", tok.getRawString(1));
+		Assert.assertTrue(tok.isEmpty(2));
+		Assert.assertEquals("", tok.getString(2));
+		Assert.assertEquals(42L, tok.getLong(3));
+		Assert.assertEquals(-7, tok.getInt(4));
+
+		// beyond the end of the line
+		Assert.assertEquals("", tok.getString(10));
+		Assert.assertNull(tok.getRawString(10));
+		Assert.assertTrue(tok.isEmpty(-1));
+
+		Assert.assertFalse(tok.nextLine());
+	}
+
+	// +---------+
+	// | numbers |
+	// +---------+
+
+	@Test
+	public void numbers() throws Exception {
+
+		TsvTokenizer tok = new TsvTokenizer(stream(Long.MAX_VALUE + "\t" + Long.MIN_VALUE +
+													"\t+3\t9223372036854775808\t12x\t\t1.5"));
+
+		Assert.assertTrue(tok.nextLine());
+		Assert.assertEquals(Long.MAX_VALUE, tok.getLong(0));
+		Assert.assertEquals(Long.MIN_VALUE, tok.getLong(1));
+		Assert.assertEquals(3L, tok.getLong(2));
+		assertBadNumber(tok, 3);
+		assertBadNumber(tok, 4);
+		assertBadNumber(tok, 5);
+		Assert.assertEquals(1.5, tok.getDouble(6), 0.000001);
+	}
+
+	private void assertBadNumber(TsvTokenizer tok, int ifld) {
+		try {
+			tok.getLong(ifld);
+			Assert.fail("expected NumberFormatException for field " + ifld);
+		}
+		catch (NumberFormatException e) {
+			// expected
+		}
+	}
+
+	// +-------------+
+	// | lineEndings |
+	// +-------------+
+
+	@Test
+	public void lineEndings() throws Exception {
+
+		TsvTokenizer tok = new TsvTokenizer(stream("one\r\ntwo\rthree\n\nfour"));
+
+		String[] expected = { "one", "two", "three", "", "four" };
+		for (String line : expected) {
+			Assert.assertTrue(tok.nextLine());
+			Assert.assertEquals(line, tok.getLine());
+		}
+
+		Assert.assertFalse(tok.nextLine());
+	}
+
+	// +------------+
+	// | longLines  |
+	// +------------+
+
+	// lines bigger than (and straddling) the initial buffer, delivered in
+	// small reads to exercise the refill logic
+
+	@Test
+	public void longLines() throws Exception {
+
+		StringBuilder sb = new StringBuilder();
+		String[] lines = new String[50];
+		
+		for (int i = 0; i < lines.length; ++i) {
+			StringBuilder line = new StringBuilder();
+			int cch = (i % 7 == 0 ? 150000 : 3000 + i);
+			for (int j = 0; j < cch; ++j) line.append((char) ('A' + (j % 4)));
+			line.append("\t").append(i);
+			lines[i] = line.toString();
+			sb.append(lines[i]).append(i % 2 == 0 ? "\r\n" : "\n");
+		}
+
+		InputStream stm = new ByteArrayInputStream(sb.toString().getBytes(StandardCharsets.UTF_8)) {
+			public int read(byte[] b, int off, int len) {
+				return(super.read(b, off, Math.min(len, 1777)));
+			}
+		};
+
+		TsvTokenizer tok = new TsvTokenizer(stm);
+
+		for (int i = 0; i < lines.length; ++i) {
+			Assert.assertTrue(tok.nextLine());
+			Assert.assertEquals(lines[i], tok.getLine());
+			Assert.assertEquals(i, tok.getInt(1));
+		}
+
+		Assert.assertFalse(tok.nextLine());
+	}
+
+	// +---------+
+	// | setLine |
+	// +---------+
+
+	@Test
+	public void setLine() throws Exception {
+
+		TsvTokenizer tok = new TsvTokenizer((InputStream) null);
+		tok.setLine("x\t12\ty");
+
+		Assert.assertEquals(3, tok.getFieldCount());
+		Assert.assertEquals(12, tok.getInt(1));
+		Assert.assertEquals("y", tok.getString(2));
+		Assert.assertFalse(tok.nextLine());
+	}
+
+	// +---------+
+	// | Helpers |
+	// +---------+
+
+	private static InputStream stream(String input) {
+		return(new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8)));
+	}
+}